@@ -0,0 +1,190 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+/*
+   TestAccessorSpeed.java - compare the boxed and primitive value 
+                            accessors of ncsa.horizon.data.NdArrayData
+                            on the paths that use them
+
+   Usage: java apps.tests.TestAccessorSpeed [fitsfile] [repeat]
+
+   With no file, a 256x256x64 float cube of synthetic data is written
+   to a temporary FITS file.  The file is opened as a FITSViewable, and
+   each of the following is timed repeat (default 10) times: finding
+   the range of the cube with NumericTransferFunction.calcRange(), its
+   cached statistics being discarded first so that each call scans the
+   data; the same scan with the boxed getValue(int), as calcRange()
+   used to make it; and formatting a 64x64 DataSlice for display the
+   way the SpreadsheetViewer does, with DataSlice.getDouble(), and with
+   the boxed DataSlice.getValue().  For each, the time taken and the
+   number of garbage collections that occurred are printed.  Note that
+   calcRange() computes the full statistics of the data (in two
+   passes, with percentiles), so it does more than the bare scan; and
+   that a JIT compiler that eliminates the boxes may leave the boxed
+   paths allocating little too.
+*/
+package apps.tests;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import ncsa.horizon.data.*;
+import ncsa.horizon.util.*;
+import ncsa.horizon.viewable.FITSViewable;
+
+public class TestAccessorSpeed {
+
+    FITSViewable viewable;
+    NdArrayData data;
+    NumericTransferFunction tf = new NumericTransferFunction();
+    DataSlice cells;
+
+    public TestAccessorSpeed(FITSViewable viewable) {
+	this.viewable = viewable;
+	data = viewable.getData();
+
+	// the corner of the first plane, as a spreadsheet would show it
+	Slice s = new Slice(viewable.getDefaultSlice());
+	s.setArea(Math.min(64, s.getTrueLength(s.getXaxis())), 
+		  Math.min(64, s.getTrueLength(s.getYaxis())));
+	cells = new DataSlice(data, s);
+    }
+
+    static long gcCount() {
+	long n = 0;
+	Iterator it = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+	while (it.hasNext()) {
+	    long c = ((GarbageCollectorMXBean) it.next()).getCollectionCount();
+	    if (c > 0) n += c;
+	}
+	return n;
+    }
+
+    /**
+     * find the range of the data with calcRange(), rescanning them
+     */
+    double calcRange() {
+	StatisticsEngine.invalidate(data);
+	Object[] range = tf.calcRange(viewable);
+	return ((Number) range[1]).doubleValue() - 
+	       ((Number) range[0]).doubleValue();
+    }
+
+    /**
+     * the range scan as calcRange() used to make it
+     */
+    double rangeBoxed() {
+	long npts = NdArrayMath.size(data.getSize());
+	double mn = Double.POSITIVE_INFINITY, mx = Double.NEGATIVE_INFINITY;
+	for(int i=0; i < npts; i++) {
+	    double val = ((Number) data.getValue(i)).doubleValue();
+	    if (val < mn) mn = val;
+	    if (val > mx) mx = val;
+	}
+	return mx - mn;
+    }
+
+    /**
+     * format the cells as SpreadsheetViewer does
+     */
+    double formatPrimitive() {
+	JavaType t = cells.getType();
+	int len = 0;
+	for(int y=0; y < cells.getYaxisLength(); y++) {
+	    for(int x=0; x < cells.getXaxisLength(); x++) {
+		String cell;
+		if (t == JavaType.DOUBLE) 
+		    cell = Double.toString(cells.getDouble(x, y));
+		else if (t == JavaType.FLOAT) 
+		    cell = Float.toString((float) cells.getDouble(x, y));
+		else
+		    cell = Integer.toString((int) cells.getDouble(x, y));
+		len += cell.length();
+	    }
+	}
+	return len;
+    }
+
+    /**
+     * format the cells from boxed values, as SpreadsheetViewer used to
+     */
+    double formatBoxed() {
+	int len = 0;
+	for(int y=0; y < cells.getYaxisLength(); y++) 
+	    for(int x=0; x < cells.getXaxisLength(); x++) 
+		len += cells.getValue(x, y).toString().length();
+	return len;
+    }
+
+    void time(String name, int which, int repeat) {
+	double x = 0;
+	long gc = gcCount();
+	long t = System.currentTimeMillis();
+	for(int r=0; r < repeat; r++) {
+	    switch (which) {
+	    case 0: x += calcRange(); break;
+	    case 1: x += rangeBoxed(); break;
+	    case 2: x += formatPrimitive(); break;
+	    case 3: x += formatBoxed(); break;
+	    }
+	}
+	t = System.currentTimeMillis() - t;
+	gc = gcCount() - gc;
+	System.out.println(name + ": " + t + " ms, " + gc + 
+			   " collections (" + x + ")");
+    }
+
+    public static void main(String[] args) throws Exception {
+	String fname;
+	if (args.length > 0) {
+	    fname = args[0];
+	}
+	else {
+	    int[] sz = { 256, 256, 64 };
+	    float[] vals = new float[(int) NdArrayMath.size(sz)];
+	    for(int i=0; i < vals.length; i++) 
+		vals[i] = (float) Math.sin(i*0.001);
+	    Volume vol = new Volume(3, new double[] { 1.0, 1.0, 1.0 },
+				    new double[] { 256.0, 256.0, 64.0 },
+				    new double[] { 1.0, 1.0, 1.0 });
+	    InMemoryData data = new InMemoryData(vol, JavaType.FLOAT);
+	    data.setValues(vals);
+	    data.setComplete();
+	    File f = File.createTempFile("accessor", ".fits");
+	    f.deleteOnExit();
+	    new FITSWriter().write(data, new Metadata(), f);
+	    fname = f.getPath();
+	}
+	final int repeat = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+
+	final TestAccessorSpeed test = 
+	    new TestAccessorSpeed(new FITSViewable(fname, false));
+	new TimingPasses() {
+	    protected void pass(boolean warmUp) {
+		test.time("  calcRange(Viewable)          ", 0, repeat);
+		test.time("  range scan, getValue(int)    ", 1, repeat);
+		test.time("  spreadsheet, getDouble(x, y) ", 2, repeat*50);
+		test.time("  spreadsheet, getValue(x, y)  ", 3, repeat*50);
+	    }
+	}.run();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+/*
+   TestColormapCycling.java - time switching the Lut of many views
+
+   Usage: java apps.tests.TestColormapCycling [size [nviews [ncycles]]]
+
+   nviews (default 12) SliceRenderers, as for that many open viewers, 
+   each render a size x size (default 1024) plane of synthetic float 
+   data through a MultiNumericTransferFunction; then the color model 
+   of every view is switched through the five Luts offered by 
+   LutSelectionPanel, ncycles (default 20) times.  This is timed first
+   with the transfer function edited before each switch (so that the 
+   levels must be recomputed), then with only the Lut changing (so 
+   that each view's raster is merely recolored).  The number of plane 
+   lookups made by the renderers while recoloring (which should be 
+   zero) is printed, along with the number of pixels that differ from
+   a fresh rendering with the last Lut.
+*/
+package apps.tests;
+
+import java.awt.image.*;
+import ncsa.horizon.awt.image.*;
+import ncsa.horizon.data.*;
+import ncsa.horizon.util.*;
+
+public class TestColormapCycling {
+
+    static Lut[] luts = { 
+	Lut.getRainbowLut(), Lut.getInvertedRainbowLut(), 
+	Lut.getBandedRainbowLut(), Lut.getStripedRainbowLut(), 
+	Lut.getGrayScaleLut() 
+    };
+
+    NdArrayData data;
+    Slice plane;
+    SliceRenderer[] renderers;
+    MultiNumericTransferFunction tf = 
+	new MultiNumericTransferFunction(256, -0.8, 0.8);
+
+    public TestColormapCycling(NdArrayData data, int nviews) {
+	this.data = data;
+	plane = new Slice(data.getVolume());
+	renderers = new SliceRenderer[nviews];
+	for(int i=0; i < nviews; i++) renderers[i] = new SliceRenderer(data);
+    }
+
+    int lookups() {
+	int n = 0;
+	for(int i=0; i < renderers.length; i++) 
+	    n += renderers[i].getCacheHits() + renderers[i].getCacheMisses();
+	return n;
+    }
+
+    BufferedImage[] cycle(String name, int ncycles, boolean edit) {
+	BufferedImage[] out = new BufferedImage[renderers.length];
+	int before = lookups();
+	long t = System.currentTimeMillis();
+	for(int c=0; c < ncycles; c++) {
+	    for(int l=0; l < luts.length; l++) {
+		if (edit) tf.setMaximum(0.8 - 0.01*(c*luts.length + l + 1));
+		IndexColorModel cm = luts[l].getIndexColorModel();
+		for(int i=0; i < renderers.length; i++) 
+		    out[i] = renderers[i].render(plane, cm, tf);
+	    }
+	}
+	t = System.currentTimeMillis() - t;
+	int switches = ncycles*luts.length;
+	System.out.println("  " + name + ": " + ((double) t)/switches + 
+			   " ms per switch of " + renderers.length + 
+			   " views, " + (lookups() - before) + 
+			   " plane lookups");
+	return out;
+    }
+
+    int compare(BufferedImage[] imgs) {
+	BufferedImage ref = new SliceRenderer(data).render(plane, 
+				(IndexColorModel) imgs[0].getColorModel(), tf);
+	int bad = 0, w = ref.getWidth(), h = ref.getHeight();
+	for(int i=0; i < imgs.length; i++) 
+	    for(int y=0; y < h; y++) 
+		for(int x=0; x < w; x++) 
+		    if (imgs[i].getRGB(x, y) != ref.getRGB(x, y)) bad++;
+	return bad;
+    }
+
+    public static void main(String[] args) throws Exception {
+	int size = (args.length > 0) ? Integer.parseInt(args[0]) : 1024;
+	int nviews = (args.length > 1) ? Integer.parseInt(args[1]) : 12;
+	final int ncycles = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+
+	float[] vals = new float[size*size];
+	for(int i=0; i < vals.length; i++) 
+	    vals[i] = (float) Math.sin(i*0.001);
+	Volume vol = new Volume(2, new double[] { 1.0, 1.0 },
+				new double[] { size, size },
+				new double[] { 1.0, 1.0 });
+	InMemoryData data = new InMemoryData(vol, JavaType.FLOAT);
+	data.setValues(vals);
+	data.setComplete();
+
+	final TestColormapCycling test = new TestColormapCycling(data, nviews);
+	new TimingPasses() {
+	    protected void pass(boolean warmUp) throws Exception {
+		int n = warmUp ? 2 : ncycles;
+		test.cycle("editing the transfer function", n, true);
+		BufferedImage[] imgs = test.cycle("switching the Lut only", n,
+						  false);
+		System.out.println("  pixels that differ: " +
+				   test.compare(imgs));
+	    }
+	}.run();
+    }
+}
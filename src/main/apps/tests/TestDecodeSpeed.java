@@ -0,0 +1,158 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+/*
+   TestDecodeSpeed.java - compare reading and writing a float array 
+                          element by element (as ncsa.fits.util.Data 
+                          used to) with Data's block-oriented NIO path
+
+   Usage: java apps.tests.TestDecodeSpeed [nmegabytes] [blocksize]
+
+   A scratch file holding a 1024-column float array of the given size 
+   (default 64 MB) is written to the temporary directory.  It is then 
+   read back through the old 32 KB byte[] decoder, through 
+   Data.readClass() from a RandomAccessFile (the channel path) and from
+   a buffered DataInputStream (the stream path).  The read rate of each
+   is printed along with the number of values on which the results 
+   disagree with the original (which should be zero).  Finally the 
+   array is written with Data.writeClass() and the rate printed.
+*/
+package apps.tests;
+
+import java.io.*;
+import ncsa.fits.util.Data;
+
+public class TestDecodeSpeed {
+
+    static final int NCOLS = 1024;
+
+    static float value(int row, int col) {
+	return (float) Math.sin(row*0.37 + col*0.001) * row;
+    }
+
+    static int compare(float[][] a) {
+	int bad = 0;
+	for(int j=0; j < a.length; j++) 
+	    for(int i=0; i < NCOLS; i++) 
+		if (a[j][i] != value(j, i)) bad++;
+	return bad;
+    }
+
+    static void report(String name, long nbytes, long t, int bad) {
+	double mb = nbytes / (1024.0*1024.0);
+	System.out.println(name + ": " + t + " ms, " + 
+			   ((t > 0) ? (int) (mb*1000.0/t) : 0) + " MB/s" +
+			   ((bad >= 0) ? ", " + bad + " values differ" : ""));
+    }
+
+    /**
+     * read the array as Data.read1DArray used to
+     */
+    static float[][] readOld(File f, int nrows) throws IOException {
+	float[][] out = new float[nrows][NCOLS];
+	byte[] ioBuffer = new byte[32768];
+	RandomAccessFile raf = new RandomAccessFile(f, "r");
+	try {
+	    for(int j=0; j < nrows; j++) {
+		for(int off=0; off < NCOLS; off += 8192) 
+		    Data.readFArray(raf, ioBuffer, out[j], 
+				    Math.min(8192, NCOLS-off), off);
+	    }
+	} finally {
+	    raf.close();
+	}
+	return out;
+    }
+
+    static float[][] readChannel(File f, int nrows) throws IOException {
+	Data d = new Data(new float[nrows][NCOLS]);
+	RandomAccessFile raf = new RandomAccessFile(f, "r");
+	try {
+	    d.readClass(raf);
+	} finally {
+	    raf.close();
+	}
+	return (float[][]) d.getData();
+    }
+
+    static float[][] readStream(File f, int nrows) throws IOException {
+	Data d = new Data(new float[nrows][NCOLS]);
+	DataInputStream dis = new DataInputStream(
+	    new BufferedInputStream(new FileInputStream(f), 65536));
+	try {
+	    d.readClass(dis);
+	} finally {
+	    dis.close();
+	}
+	return (float[][]) d.getData();
+    }
+
+    public static void main(String[] args) throws Exception {
+	int mb = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+	if (args.length > 1) Data.setBlockSize(Integer.parseInt(args[1]));
+	final int nrows = mb * 1024*1024 / (4*NCOLS);
+	final long nbytes = 4L * nrows * NCOLS;
+
+	final File f = File.createTempFile("decode", ".dat");
+	f.deleteOnExit();
+	final float[][] orig = new float[nrows][NCOLS];
+	for(int j=0; j < nrows; j++) 
+	    for(int i=0; i < NCOLS; i++) orig[j][i] = value(j, i);
+	DataOutputStream dos = new DataOutputStream(
+	    new BufferedOutputStream(new FileOutputStream(f), 65536));
+	for(int j=0; j < nrows; j++) 
+	    for(int i=0; i < NCOLS; i++) dos.writeFloat(orig[j][i]);
+	dos.close();
+
+	System.out.println("block size: " + Data.getBlockSize() + 
+			   " bytes; " + mb + " MB array");
+	new TimingPasses() {
+	    protected void pass(boolean warmUp) throws Exception {
+		long t = System.currentTimeMillis();
+		float[][] a = readOld(f, nrows);
+		report("  old byte[] decoder", nbytes, 
+		       System.currentTimeMillis() - t, compare(a));
+		a = null;
+
+		t = System.currentTimeMillis();
+		a = readChannel(f, nrows);
+		report("  Data from RandomAccessFile", nbytes, 
+		       System.currentTimeMillis() - t, compare(a));
+		a = null;
+
+		t = System.currentTimeMillis();
+		a = readStream(f, nrows);
+		report("  Data from DataInputStream", nbytes, 
+		       System.currentTimeMillis() - t, compare(a));
+		a = null;
+
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		t = System.currentTimeMillis();
+		new Data(orig).writeClass(raf);
+		raf.close();
+		report("  Data to RandomAccessFile", nbytes, 
+		       System.currentTimeMillis() - t, -1);
+	    }
+	}.run();
+	System.out.println("values differ after rewrite: " + 
+			   compare(readChannel(f, nrows)));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+/*
+   TestFITSWriter.java - export cutouts of a FITS image with
+                         ncsa.horizon.data.FITSWriter
+
+   Usage: java apps.tests.TestFITSWriter [fitsfile] [ncutouts] [width]
+
+   The first image of the file (examples/data/IRC+10216_CN.fits by
+   default) is read into memory, and the given number (default 200) of
+   cutouts, each width pixels (default 32) on a side in the first two
+   axes and spanning the others, are written to the temporary
+   directory, first uncompressed, then quantized to 16 bits, then
+   Rice- and GZIP_2-compressed; then cutouts of a byte array of the
+   same shape holding values from -128 to 127 are written uncompressed
+   and Rice-compressed.  For each kind the cutouts per second and the
+   mean file size are printed, and the first cutout is read back with
+   FITSNdArrayReader to check its values (exactly, or to within the
+   quantization step) and its shifted CRPIX1.
+*/
+package apps.tests;
+
+import java.io.*;
+import java.util.Random;
+import ncsa.horizon.data.*;
+import ncsa.horizon.util.*;
+
+public class TestFITSWriter {
+
+    public static void main(String[] args) throws Exception {
+	String fname = (args.length > 0) ? args[0]
+	                                 : "examples/data/IRC+10216_CN.fits";
+	int ncut = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+	int width = (args.length > 2) ? Integer.parseInt(args[2]) : 32;
+
+	FITSNdArrayReader reader = new FITSNdArrayReader(fname);
+	NdArrayData data = reader.getNdArrayData();
+	Metadata md = reader.getMetadata();
+	int[] size = data.getSize();
+	System.out.println(fname + ": " + data.getType().name() + " " +
+			   sizeString(size));
+
+	// the same cutouts are written each time
+	Random rand = new Random(42);
+	Volume[] cuts = new Volume[ncut];
+	double[] origin = data.getVolume().getLocation();
+	for(int c=0; c < ncut; c++) {
+	    double[] loc = (double[]) origin.clone();
+	    double[] sz = new double[size.length];
+	    for(int i=0; i < size.length; i++) {
+		sz[i] = (i < 2) ? Math.min(width, size[i]) : size[i];
+		if (i < 2) loc[i] += rand.nextInt(size[i] - (int) sz[i] + 1);
+	    }
+	    cuts[c] = new Volume(size.length, loc, sz, null);
+	}
+
+	File dir = new File(System.getProperty("java.io.tmpdir"),
+			    "fitswriter" + System.currentTimeMillis());
+	dir.mkdirs();
+
+	export("uncompressed", data, md, cuts, dir, 0, null, 0.0);
+	double step = range(data) / 65534.0;
+	export("quantized 16", data, md, cuts, dir, 16, null, step);
+	export("RICE_1", data, md, cuts, dir, 0, FITSWriter.RICE_1, 0.0);
+	export("RICE_1 q16", data, md, cuts, dir, 16, FITSWriter.RICE_1,
+	       step);
+	export("GZIP_2", data, md, cuts, dir, 0, FITSWriter.GZIP_2, 0.0);
+
+	// signed bytes spanning -128 to 127, which FITS stores unsigned
+	int n = (int) NdArrayMath.size(size);
+	byte[] b = new byte[n];
+	for(int i=0; i < n; i++) b[i] = (byte) (i * 37);
+	InMemoryData bytes = new InMemoryData(data.getVolume(),
+					      JavaType.BYTE);
+	bytes.setValues(b);
+	bytes.setComplete();
+	export("BYTE", bytes, md, cuts, dir, 0, null, 0.0);
+	export("BYTE RICE_1", bytes, md, cuts, dir, 0, FITSWriter.RICE_1,
+	       0.0);
+
+	File[] files = dir.listFiles();
+	for(int i=0; i < files.length; i++) files[i].delete();
+	dir.delete();
+    }
+
+    static void export(String name, NdArrayData data, Metadata md,
+		       Volume[] cuts, File dir, int bits, String cmp,
+		       double step)
+	throws Exception
+    {
+	FITSWriter writer = new FITSWriter();
+	writer.setQuantization(bits);
+	writer.setCompression(cmp);
+
+	long bytes = 0;
+	long t = System.currentTimeMillis();
+	for(int c=0; c < cuts.length; c++) {
+	    File f = new File(dir, "cut" + c + ".fits");
+	    writer.write(data, cuts[c], md, f);
+	    bytes += f.length();
+	}
+	t = System.currentTimeMillis() - t;
+
+	String check = verify(new File(dir, "cut0.fits"), data, md, cuts[0],
+			      step);
+	System.out.println(name + ": " + cuts.length + " cutouts in " + t +
+			   " ms (" +
+			   ((t > 0) ? (int) (cuts.length*1000L/t) : 0) +
+			   " per second), " + (bytes / cuts.length) +
+			   " bytes each; " + check);
+    }
+
+    /**
+     * read a cutout back and compare it with the original data
+     */
+    static String verify(File f, NdArrayData data, Metadata md, Volume cut,
+			 double step)
+	throws Exception
+    {
+	FITSNdArrayReader reader = new FITSNdArrayReader(f.getPath());
+	NdArrayData back = reader.getNdArrayData();
+	int[] size = back.getSize();
+	int[] expect = cut.getTrueSize();
+	for(int i=0; i < size.length; i++)
+	    if (size[i] != expect[i])
+		return "wrong size " + sizeString(size);
+
+	int n = (int) NdArrayMath.size(size);
+	double[] a = new double[n];
+	double[] b = new double[n];
+	data.readInto(a, ArrayTypeConverter.arrayDoubleToInt(
+				 cut.getLocation()), size);
+	back.readInto(b, ArrayTypeConverter.arrayDoubleToInt(
+				 back.getVolume().getLocation()), size);
+	int bad = 0;
+	for(int i=0; i < n; i++) {
+	    if (a[i] != a[i] && b[i] != b[i]) continue;
+	    if (Math.abs(a[i] - b[i]) > step) bad++;
+	}
+
+	String crpix = "";
+	Metadata nat = (Metadata) md.getMetadatum("NativeMetadata");
+	Metadata bnat =
+	    (Metadata) reader.getMetadata().getMetadatum("NativeMetadata");
+	Object c0 = (nat == null) ? null : nat.getMetadatum("CRPIX1");
+	Object c1 = (bnat == null) ? null : bnat.getMetadatum("CRPIX1");
+	if (c0 instanceof Number && c1 instanceof Number)
+	    crpix = ", CRPIX1 " + c0 + " -> " + c1;
+	return bad + " of " + n + " values differ" + crpix;
+    }
+
+    static double range(NdArrayData data) {
+	NdArrayStatistics stats = StatisticsEngine.getStatistics(data);
+	return stats.getMaximum() - stats.getMinimum();
+    }
+
+    static String sizeString(int[] size) {
+	StringBuffer sb = new StringBuffer();
+	for(int i=0; i < size.length; i++) {
+	    if (i > 0) sb.append('x');
+	    sb.append(size[i]);
+	}
+	return sb.toString();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+/*
+   TestLevelMappingSpeed.java - time the conversion of a frame of data 
+                                to transfer function levels
+
+   Usage: java apps.tests.TestLevelMappingSpeed [width [height [repeat]]]
+
+   The default frame is 4096x4096.  For each data type and each mode of
+   MultiNumericTransferFunction, the frame is converted both by calling
+   getLevel(double) for each value (as getLevels() used to) and by 
+   getLevels(); the times are printed along with the number of values 
+   for which the two disagree.  Away from the exact boundaries between 
+   levels, they should agree; in the LOG and EXP modes, float and 
+   double values are mapped via a sampled table, so a handful of 
+   disagreements (by one level) are expected there.
+*/
+package apps.tests;
+
+import ncsa.horizon.data.*;
+import ncsa.horizon.util.*;
+
+public class TestLevelMappingSpeed {
+
+    static final JavaType[] types = { 
+	JavaType.BYTE, JavaType.SHORT, JavaType.INT, 
+	JavaType.LONG, JavaType.FLOAT, JavaType.DOUBLE 
+    };
+
+    int npts;
+    MultiNumericTransferFunction tf = new MultiNumericTransferFunction();
+
+    public TestLevelMappingSpeed(int npts) { this.npts = npts; }
+
+    /**
+     * create a frame of values of the given type that covers somewhat 
+     * more than the transfer function's range
+     */
+    Object makeFrame(JavaType type) {
+	double lo, hi;
+	if (type == JavaType.BYTE) { lo = -128; hi = 127; }
+	else if (type == JavaType.SHORT) { lo = -32768; hi = 32767; }
+	else { lo = -1.0e5; hi = 1.0e5; }
+	tf.setMinimum(lo + 0.1*(hi-lo));
+	tf.setMaximum(hi - 0.1*(hi-lo));
+
+	Object out = type.allocateArray(npts);
+	java.util.Random r = new java.util.Random(npts);
+	for(int i=0; i < npts; i++) {
+	    double v = lo + (hi-lo)*r.nextDouble();
+	    if (type == JavaType.BYTE) ((byte[]) out)[i] = (byte) v;
+	    else if (type == JavaType.SHORT) ((short[]) out)[i] = (short) v;
+	    else if (type == JavaType.INT) ((int[]) out)[i] = (int) v;
+	    else if (type == JavaType.LONG) ((long[]) out)[i] = (long) v;
+	    else if (type == JavaType.FLOAT) ((float[]) out)[i] = (float) v;
+	    else ((double[]) out)[i] = v;
+	}
+	if (type == JavaType.FLOAT) ((float[]) out)[0] = Float.NaN;
+	if (type == JavaType.DOUBLE) ((double[]) out)[0] = Double.NaN;
+	return out;
+    }
+
+    /**
+     * convert a frame one value at a time
+     */
+    int[] perValue(Object frame, JavaType type) {
+	int[] out = new int[npts];
+	for(int i=0; i < npts; i++) 
+	    out[i] = tf.getLevel(type.doubleFromArray(frame, i));
+	return out;
+    }
+
+    void time(JavaType type, int repeat) {
+	Object frame = makeFrame(type);
+	int[] ref = null, lev = null;
+
+	long t = System.currentTimeMillis();
+	for(int r=0; r < repeat; r++) ref = perValue(frame, type);
+	long tref = System.currentTimeMillis() - t;
+
+	t = System.currentTimeMillis();
+	for(int r=0; r < repeat; r++) lev = tf.getLevels(frame, type);
+	long tlev = System.currentTimeMillis() - t;
+
+	int bad = 0;
+	for(int i=0; i < npts; i++) if (ref[i] != lev[i]) bad++;
+
+	System.out.println("  " + type.name() + ": per value " + tref/repeat + 
+			   " ms, getLevels " + tlev/repeat + " ms, " + 
+			   bad + " differ");
+    }
+
+    public static void main(String[] args) throws Exception {
+	int width = (args.length > 0) ? Integer.parseInt(args[0]) : 4096;
+	int height = (args.length > 1) ? Integer.parseInt(args[1]) : width;
+	final int repeat = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+
+	final TestLevelMappingSpeed test =
+	    new TestLevelMappingSpeed(width*height);
+	final String[] modes = test.tf.getModeNames();
+	new TimingPasses() {
+	    protected void pass(boolean warmUp) {
+		for(int m=0; m < modes.length; m++) {
+		    test.tf.useMode(modes[m]);
+		    System.out.println(" " + modes[m] + ":");
+		    for(int i=0; i < types.length; i++)
+			test.time(types[i], warmUp ? 1 : repeat);
+		}
+	    }
+	}.run();
+    }
+}
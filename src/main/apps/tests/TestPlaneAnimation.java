@@ -0,0 +1,142 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+/*
+   TestPlaneAnimation.java - play the planes of a cube through a viewer
+                             with a PlaneAnimator, with and without
+                             rendering planes ahead
+
+   Usage: java apps.tests.TestPlaneAnimation [size [nplanes [fps]]]
+
+   A size x size x nplanes (default 1024 x 1024 x 100) float cube of 
+   synthetic data is written to a temporary FITS file, which is opened
+   afresh as a FITSViewable for each play, with its plane cache turned
+   off so that every plane is read and rendered anew.  A viewer that 
+   renders each slice it is given on the event thread (as the viewers 
+   did before they had a RenderScheduler) is animated through all the
+   planes at fps frames per second (default 30): first without 
+   prefetching, so that each plane is rendered when its turn comes, 
+   then with the lookahead chosen by the animator, so that the 
+   FramePrefetcher has rendered it already.
+   For each, the frame rate achieved, the late frames, the longest 
+   time a frame took to display and the prefetcher's hits and mean 
+   render time are printed.
+*/
+package apps.tests;
+
+import java.awt.Dimension;
+import java.io.File;
+import ncsa.horizon.data.*;
+import ncsa.horizon.util.*;
+import ncsa.horizon.viewable.FITSViewable;
+import ncsa.horizon.viewable.FramePrefetcher;
+import ncsa.horizon.viewable.Viewable;
+import ncsa.horizon.viewer.PlaneAnimator;
+import ncsa.horizon.viewer.Viewer;
+
+public class TestPlaneAnimation extends Viewer {
+
+    Viewable viewable;
+    Slice slice;
+    long maxDisplay = 0;
+
+    public void addViewable(Viewable v) { viewable = v; }
+
+    public Viewable getViewable() { return viewable; }
+
+    public void displaySlice(Slice sl) {
+	long t = System.nanoTime();
+	slice = (sl == null) ? viewable.getDefaultSlice() : new Slice(sl);
+	viewable.getView(slice, null, false);
+	maxDisplay = Math.max(maxDisplay, System.nanoTime() - t);
+    }
+
+    public Slice getViewSlice() { 
+	return (slice == null) ? null : (Slice) slice.clone(); 
+    }
+
+    public Dimension getDisplaySize() { return new Dimension(512, 512); }
+
+    void play(String name, File f, boolean prefetch, double fps) 
+	throws Exception
+    {
+	FITSViewable v = new FITSViewable(f.getPath(), false);
+	v.setPlaneCacheSize(0);
+	addViewable(v);
+	FramePrefetcher pf = v.getPrefetcher();
+	long hits = pf.getHitCount(), misses = pf.getMissCount();
+	displaySlice(null);
+	maxDisplay = 0;
+
+	PlaneAnimator anim = new PlaneAnimator(this);
+	anim.setMode(PlaneAnimator.ONCE);
+	anim.setFrameRate(fps);
+	anim.setPrefetching(prefetch);
+	long t = System.currentTimeMillis();
+	anim.start();
+	while (anim.isPlaying()) Thread.sleep(10);
+	t = System.currentTimeMillis() - t;
+
+	System.out.println("  " + name + ": " + anim.getFrameCount() + 
+			   " frames in " + t + " ms (" + 
+			   (int) (anim.getFrameCount() * 1000L / t) + 
+			   " fps), " + anim.getLateCount() + " late, " +
+			   "slowest display " + maxDisplay/1000000 + 
+			   " ms; prefetched " + (pf.getHitCount() - hits) +
+			   " of " + (pf.getHitCount() - hits + 
+				     pf.getMissCount() - misses) + 
+			   ", lookahead " + anim.getLookahead() + 
+			   ", render time " + (int) pf.getRenderTime() + 
+			   " ms on " + pf.getThreadCount() + " threads");
+	pf.stop();
+    }
+
+    public static void main(String[] args) throws Exception {
+	int size = (args.length > 0) ? Integer.parseInt(args[0]) : 1024;
+	int nplanes = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+	final double fps = (args.length > 2) ? Double.parseDouble(args[2]) : 30;
+
+	float[] vals = new float[size*size*nplanes];
+	for(int i=0; i < vals.length; i++) 
+	    vals[i] = (float) Math.sin(i*0.001);
+	Volume vol = new Volume(3, new double[] { 1.0, 1.0, 1.0 },
+				new double[] { size, size, nplanes },
+				new double[] { 1.0, 1.0, 1.0 });
+	InMemoryData data = new InMemoryData(vol, JavaType.FLOAT);
+	data.setValues(vals);
+	data.setComplete();
+	vals = null;
+	final File f = File.createTempFile("anim", ".fits");
+	f.deleteOnExit();
+	new FITSWriter().write(data, new Metadata(), f);
+	data = null;
+
+	final TestPlaneAnimation test = new TestPlaneAnimation();
+	System.out.println(size + "x" + size + "x" + nplanes + " cube at " +
+			   fps + " fps:");
+	new TimingPasses() {
+	    protected void pass(boolean warmUp) throws Exception {
+		test.play("rendered on display", f, false, fps);
+		test.play("prefetched", f, true, fps);
+	    }
+	}.run();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+/*
+   TestRemoteFITS.java - read FITS planes over HTTP with Range requests
+                         through ncsa.horizon.data.RemoteFITSNdArrayReader
+
+   Usage: java apps.tests.TestRemoteFITS [directory] [fitsfile]
+
+   A small HTTP server that honors Range requests is started on a free
+   local port, serving the files in the directory (examples/data by
+   default).  The first image of the file (IRC+10216_CN.fits by
+   default) is then opened by URL, in blocks of 4 kbytes so that a
+   plane spans several blocks, and its first plane is read; the bytes
+   transferred, the requests made and the time taken are printed for
+   each step (including the read-ahead of the second plane), and the
+   values are checked against those read from the local file.  The
+   server then refuses all requests while the second plane is read,
+   which must therefore come from the blocks fetched in the
+   background.  Finally the file is opened again with a disk cache that
+   was filled by the first pass, which should transfer only the first
+   block.  The program exits with status 1 if any check fails.
+*/
+package apps.tests;
+
+import java.io.*;
+import java.net.*;
+import java.util.Arrays;
+import ncsa.horizon.data.*;
+import ncsa.horizon.util.*;
+
+public class TestRemoteFITS {
+
+    /**
+     * a minimal HTTP/1.0 server for GET requests with optional 
+     * single Range headers
+     */
+    static class Server extends Thread {
+	ServerSocket socket;
+	File dir;
+	long sent = 0;
+	boolean refusing = false;
+
+	Server(File dir) throws IOException {
+	    super("test HTTP server");
+	    this.dir = dir;
+	    socket = new ServerSocket(0);
+	    setDaemon(true);
+	}
+
+	int getPort() { return socket.getLocalPort(); }
+
+	synchronized long getBytesSent() { return sent; }
+
+	/**
+	 * answer every request with an error, or stop doing so
+	 */
+	synchronized void setRefusing(boolean yes) { refusing = yes; }
+
+	synchronized boolean isRefusing() { return refusing; }
+
+	public void run() {
+	    while (true) {
+		try {
+		    final Socket s = socket.accept();
+		    Thread t = new Thread() {
+			public void run() { serve(s); }
+		    };
+		    t.setDaemon(true);
+		    t.start();
+		} catch (IOException ex) {
+		    return;
+		}
+	    }
+	}
+
+	void serve(Socket s) {
+	    try {
+		BufferedReader in = new BufferedReader(
+			    new InputStreamReader(s.getInputStream(), "ISO-8859-1"));
+		OutputStream out = new BufferedOutputStream(s.getOutputStream());
+		String request = in.readLine();
+		String range = null, line;
+		while ((line = in.readLine()) != null && line.length() > 0) {
+		    if (line.toLowerCase().startsWith("range:")) 
+			range = line.substring(6).trim();
+		}
+
+		String[] parts = (request == null) ? new String[0] 
+		                                   : request.split(" ");
+		File f = (parts.length < 2) ? null 
+		    : new File(dir, URLDecoder.decode(parts[1].substring(1), 
+						      "UTF-8"));
+		if (isRefusing()) {
+		    out.write("HTTP/1.0 503 Service Unavailable\r\n\r\n".getBytes());
+		    out.close();
+		    return;
+		}
+		if (f == null || ! f.isFile()) {
+		    out.write("HTTP/1.0 404 Not Found\r\n\r\n".getBytes());
+		    out.close();
+		    return;
+		}
+
+		long len = f.length(), first = 0, last = len - 1;
+		boolean partial = false;
+		if (range != null && range.startsWith("bytes=")) {
+		    String[] r = range.substring(6).split("-");
+		    first = Long.parseLong(r[0]);
+		    if (r.length > 1 && r[1].length() > 0) 
+			last = Math.min(last, Long.parseLong(r[1]));
+		    partial = true;
+		}
+		StringBuffer h = new StringBuffer();
+		h.append(partial ? "HTTP/1.0 206 Partial Content\r\n" 
+			         : "HTTP/1.0 200 OK\r\n");
+		h.append("Content-Length: " + (last - first + 1) + "\r\n");
+		if (partial) 
+		    h.append("Content-Range: bytes " + first + "-" + last + 
+			     "/" + len + "\r\n");
+		h.append("Last-Modified: " + f.lastModified() + "\r\n");
+		h.append("Connection: close\r\n\r\n");
+		out.write(h.toString().getBytes("ISO-8859-1"));
+
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+		    raf.seek(first);
+		    byte[] buf = new byte[65536];
+		    long left = last - first + 1;
+		    while (left > 0) {
+			int n = raf.read(buf, 0, (int) Math.min(buf.length, left));
+			if (n < 0) break;
+			out.write(buf, 0, n);
+			left -= n;
+		    }
+		} finally {
+		    raf.close();
+		}
+		synchronized (this) {
+		    sent += last - first + 1;
+		}
+		out.close();
+	    } catch (IOException ex) {
+		System.err.println("server: " + ex);
+	    } finally {
+		try { s.close(); } catch (IOException ex) { }
+	    }
+	}
+    }
+
+    /**
+     * the block size to read with, small enough that a plane of the 
+     * default file (64x64 floats) spans several blocks
+     */
+    static final int BLOCK_SIZE = 4096;
+
+    static long lastRequests = 0, lastBytes = 0;
+
+    /**
+     * print the time taken and the requests made since the last report
+     */
+    static void report(String what, RemoteFile remote, long t) {
+	long requests = remote.getRequestCount() - lastRequests;
+	long bytes = remote.getBytesFetched() - lastBytes;
+	lastRequests = remote.getRequestCount();
+	lastBytes = remote.getBytesFetched();
+	System.out.println(what + ": " + (System.currentTimeMillis() - t) + 
+			   " ms, " + requests + " requests, " + bytes + 
+			   " bytes fetched (file is " + remote.length() + ")");
+    }
+
+    static double[] plane(NdArrayData data, int z) {
+	int[] sz = data.getSize();
+	int[] start = new int[sz.length];
+	int[] size = new int[sz.length];
+	for(int i=0; i < sz.length; i++) {
+	    start[i] = (i == 2) ? z : 1;
+	    size[i] = (i < 2) ? sz[i] : 1;
+	}
+	double[] out = new double[(int) NdArrayMath.size(size)];
+	data.readInto(out, start, size);
+	return out;
+    }
+
+    public static void main(String[] args) throws Exception {
+	File dir = new File((args.length > 0) ? args[0] : "examples/data");
+	String name = (args.length > 1) ? args[1] : "IRC+10216_CN.fits";
+	Server server = new Server(dir);
+	server.start();
+	URL url = new URL("http://localhost:" + server.getPort() + "/" + 
+			  URLEncoder.encode(name, "UTF-8"));
+	File cache = new File(System.getProperty("java.io.tmpdir"), 
+			      "TestRemoteFITS-cache");
+	File[] old = cache.listFiles();
+	for(int i=0; old != null && i < old.length; i++) old[i].delete();
+
+	NdArrayData local = 
+	    new FITSNdArrayReader(new File(dir, name).getPath()).getNdArrayData();
+
+	long t = System.currentTimeMillis();
+	RemoteFITSNdArrayReader reader = 
+	    new RemoteFITSNdArrayReader(url, cache, BLOCK_SIZE);
+	RemoteFile remote = reader.getRemoteFile();
+	report("open (headers)", remote, t);
+	NdArrayData data = reader.getNdArrayData();
+
+	t = System.currentTimeMillis();
+	double[] got = plane(data, 1);
+	report("plane 1", remote, t);
+	boolean ok = Arrays.equals(got, plane(local, 1));
+	System.out.println("  values match the local file: " + ok);
+
+	if (data.getNaxes() > 2 && data.getSize()[2] > 1) {
+	    // give the read-ahead of the next plane a moment
+	    t = System.currentTimeMillis();
+	    Thread.sleep(200);
+	    report("  read-ahead", remote, t);
+
+	    // plane 2 must now be readable without the server
+	    server.setRefusing(true);
+	    try {
+		boolean match = Arrays.equals(plane(data, 2), plane(local, 2));
+		System.out.println("plane 2, read with the server refusing " +
+				   "requests: values match the local file: " + 
+				   match);
+		ok &= match;
+	    } catch (Throwable ex) {
+		System.out.println("plane 2 was not read ahead: " + ex);
+		ok = false;
+	    } finally {
+		server.setRefusing(false);
+	    }
+	}
+
+	t = System.currentTimeMillis();
+	reader = new RemoteFITSNdArrayReader(url, cache, BLOCK_SIZE);
+	remote = reader.getRemoteFile();
+	lastRequests = lastBytes = 0;
+	plane(reader.getNdArrayData(), 1);
+	report("reopened with disk cache, plane 1", remote, t);
+	System.out.println("server sent " + server.getBytesSent() + " bytes");
+	if (! ok) System.exit(1);
+    }
+}
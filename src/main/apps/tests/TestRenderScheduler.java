@@ -0,0 +1,182 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+/*
+   TestRenderScheduler.java - compare rendering the views requested 
+                              while panning synchronously with 
+                              rendering them through a RenderScheduler
+
+   Usage: java apps.tests.TestRenderScheduler [size [nevents [interval]]]
+
+   A size x size (default 4096) float image of synthetic data is
+   written to a temporary FITS file and opened as a FITSViewable.  A
+   drag is simulated by nevents (default 200) requests, interval
+   milliseconds (default 5) apart, for a view of a quarter of the
+   image panned by one pixel at a time; each view is rendered with the
+   plane cache turned off, so that rendering one takes longer than the
+   interval, as it would for a larger image.  Done synchronously (as
+   the viewers used to on the event thread), each event waits for the
+   renders of all the events before it, so the time from the last
+   event to the display of its view grows with the length of the
+   drag.  Through a RenderScheduler, superseded requests are dropped or
+   cancelled; the scheduler's counts and latencies are printed, along
+   with whether the last view displayed was the last one requested.
+
+   Then the file is opened 50 times with a MappedFITSNdArrayReader,
+   and each time a view is requested and cancelled as its render
+   starts, before the data have been mapped; the data must still be
+   readable afterwards (a render cancelled by interrupting its thread
+   would close the file for good).  The program exits with status 1
+   if they are not.
+*/
+package apps.tests;
+
+import java.awt.EventQueue;
+import java.awt.Image;
+import java.io.File;
+import ncsa.horizon.data.*;
+import ncsa.horizon.util.*;
+import ncsa.horizon.viewable.FITSViewable;
+import ncsa.horizon.viewer.RenderScheduler;
+
+public class TestRenderScheduler implements RenderScheduler.Display {
+
+    FITSViewable viewable;
+    int size;
+    Slice last = null;
+    int nshown = 0;
+
+    public synchronized void displayView(Slice slice, Image view) {
+	last = slice;
+	nshown++;
+    }
+
+    Slice view(int i) {
+	Slice s = new Slice(viewable.getDefaultSlice());
+	s.setXaxisLocation(s.axisPos(s.getXaxis()) + i);
+	s.setYaxisLocation(s.axisPos(s.getYaxis()) + i);
+	s.setArea(size/2, size/2);
+	return s;
+    }
+
+    void synchronous(int nevents, long interval) throws Exception {
+	long start = System.currentTimeMillis(), lastEvent = 0;
+	for(int i=0; i < nevents; i++) {
+	    // an event can only be handled once the previous ones have been
+	    long due = start + i*interval, now = System.currentTimeMillis();
+	    if (due > now) Thread.sleep(due - now);
+	    lastEvent = due;
+	    displayView(view(i), viewable.getView(view(i), null, false));
+	}
+	long end = System.currentTimeMillis();
+	System.out.println("  synchronous: " + nevents + " renders, last " +
+			   "view displayed " + (end - lastEvent) + 
+			   " ms after its event, " + 
+			   (end - start - (nevents-1)*interval) + 
+			   " ms after the end of the drag");
+    }
+
+    void scheduled(int nevents, long interval) throws Exception {
+	RenderScheduler sched = new RenderScheduler(this);
+	nshown = 0;
+	long start = System.currentTimeMillis();
+	for(int i=0; i < nevents; i++) {
+	    long due = start + i*interval, now = System.currentTimeMillis();
+	    if (due > now) Thread.sleep(due - now);
+	    sched.request(viewable, view(i), null, false);
+	}
+	sched.waitUntilIdle();
+	EventQueue.invokeAndWait(new Runnable() { public void run() { } });
+	long end = System.currentTimeMillis();
+	System.out.println("  scheduled: " + sched);
+	System.out.println("  last view displayed " + (end - start - 
+			   (nevents-1)*interval) + " ms after the end of " +
+			   "the drag; it was the last requested: " + 
+			   last.equals(view(nevents-1)));
+    }
+
+    /**
+     * cancel renders of freshly opened mapped data as they start, and 
+     * return the number of times the data could not be read afterwards
+     */
+    static int cancelMapped(File f, int size, int ntries) throws Exception {
+	int broken = 0;
+	long cancelled = 0;
+	for(int t=0; t < ntries; t++) {
+	    TestRenderScheduler test = new TestRenderScheduler();
+	    test.size = size;
+	    test.viewable = 
+		new FITSViewable(new MappedFITSNdArrayReader(f));
+	    RenderScheduler sched = new RenderScheduler(test);
+	    sched.setDelay(0);
+	    sched.request(test.viewable, test.view(0), null, false);
+	    Thread.sleep(t % 3);
+	    sched.cancel();
+	    sched.waitUntilIdle();
+	    cancelled += sched.getCancelledCount();
+
+	    NdArrayData data = test.viewable.getData();
+	    try {
+		data.readInto(new float[size], new int[] { 1, 1 }, 
+			      new int[] { size, 1 });
+	    } catch (Throwable ex) {
+		broken++;
+	    }
+	}
+	System.out.println("mapped data: " + cancelled + " of " + ntries + 
+			   " renders cancelled in progress; the data were " +
+			   "unreadable afterwards " + broken + " times");
+	return broken;
+    }
+
+    public static void main(String[] args) throws Exception {
+	int size = (args.length > 0) ? Integer.parseInt(args[0]) : 4096;
+	final int nevents = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+	final long interval = (args.length > 2) ? Long.parseLong(args[2]) : 5;
+
+	float[] vals = new float[size*size];
+	for(int i=0; i < vals.length; i++) 
+	    vals[i] = (float) Math.sin(i*0.001);
+	Volume vol = new Volume(2, new double[] { 1.0, 1.0 },
+				new double[] { size, size },
+				new double[] { 1.0, 1.0 });
+	InMemoryData data = new InMemoryData(vol, JavaType.FLOAT);
+	data.setValues(vals);
+	data.setComplete();
+	File f = File.createTempFile("sched", ".fits");
+	f.deleteOnExit();
+	new FITSWriter().write(data, new Metadata(), f);
+
+	final TestRenderScheduler test = new TestRenderScheduler();
+	test.size = size;
+	test.viewable = new FITSViewable(f.getPath(), false);
+	test.viewable.setPlaneCacheSize(0);
+	new TimingPasses() {
+	    protected void pass(boolean warmUp) throws Exception {
+		int n = warmUp ? 20 : nevents;
+		test.synchronous(n, interval);
+		test.scheduled(n, interval);
+	    }
+	}.run();
+
+	if (cancelMapped(f, size, 50) > 0) System.exit(1);
+    }
+}
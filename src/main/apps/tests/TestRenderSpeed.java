@@ -0,0 +1,207 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+/*
+   TestRenderSpeed.java - compare rendering a cropped view of a plane 
+                          through the ImageProducer/ImageFilter chain 
+                          with rendering it via SliceRenderer
+
+   Usage: java apps.tests.TestRenderSpeed [fitsfile] [repeat]
+
+   With no file, a 1024x1024x4 float plane of synthetic data is used.
+   The producer path is SliceImageSource -> FlippingFilter -> 
+   CropImageFilter, as FITSViewable used to display a view; the time 
+   per frame and the number of garbage collections are printed for 
+   each path, along with the number of pixels on which they disagree
+   (which should be zero).  Finally, the whole plane is rendered at 
+   full resolution and sampled down to 320 pixels across, as for a 
+   zoomed-out display; the latter is drawn from the plane's 
+   ImagePyramid (which is built during the warm-up).
+*/
+package apps.tests;
+
+import java.awt.image.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+import java.util.Iterator;
+import ncsa.horizon.awt.image.*;
+import ncsa.horizon.data.*;
+import ncsa.horizon.util.*;
+
+public class TestRenderSpeed {
+
+    NdArrayData data;
+    Slice plane, view, zoomed;
+    IndexColorModel cm;
+    SliceRenderer renderer;
+    NdArrayStatistics stats;
+    int w, h;
+
+    public TestRenderSpeed(NdArrayData data) {
+	this.data = data;
+	plane = new Slice(data.getVolume());
+	plane.setLength(2 % plane.getNaxes(), 
+			(plane.getNaxes() > 2) ? 1 : plane.getLength(0));
+
+	// view the middle half of the plane
+	view = (Slice) plane.clone();
+	w = (int) plane.getLength(0) / 2;
+	h = (int) plane.getLength(1) / 2;
+	view.setXaxisLocation(plane.axisPos(0) + w/2);
+	view.setYaxisLocation(plane.axisPos(1) + h/2);
+	view.setArea(w, h);
+
+	zoomed = (Slice) plane.clone();
+	double samp = Math.max(2.0, plane.getLength(0) / 320);
+	zoomed.setXaxisSampling(samp);
+	zoomed.setYaxisSampling(samp);
+
+	Lut lut = Lut.getRainbowLut();
+	cm = new IndexColorModel(8, 256, lut.getRed(), lut.getGreen(), 
+				 lut.getBlue());
+	renderer = new SliceRenderer(data);
+	stats = StatisticsEngine.getStatistics(data, plane);
+    }
+
+    static long gcCount() {
+	long n = 0;
+	Iterator it = ManagementFactory.getGarbageCollectorMXBeans().iterator();
+	while (it.hasNext()) {
+	    long c = ((GarbageCollectorMXBean) it.next()).getCollectionCount();
+	    if (c > 0) n += c;
+	}
+	return n;
+    }
+
+    /**
+     * an ImageConsumer that saves the color indices it is sent
+     */
+    class Collector implements ImageConsumer {
+	int[] pixels = new int[w*h];
+	boolean done = false;
+
+	public void setDimensions(int width, int height) { }
+	public void setProperties(Hashtable props) { }
+	public void setColorModel(ColorModel model) { }
+	public void setHints(int hints) { }
+	public void setPixels(int x, int y, int pw, int ph, ColorModel model,
+			      byte[] pix, int off, int scansize) { 
+	    for(int j=0; j < ph; j++) 
+		for(int i=0; i < pw; i++) 
+		    pixels[(y+j)*w + x+i] = pix[off + j*scansize + i] & 0xff;
+	}
+	public void setPixels(int x, int y, int pw, int ph, ColorModel model,
+			      int[] pix, int off, int scansize) { 
+	    for(int j=0; j < ph; j++) 
+		System.arraycopy(pix, off + j*scansize, pixels, (y+j)*w + x, 
+				 pw);
+	}
+	public synchronized void imageComplete(int status) { 
+	    done = true;
+	    notifyAll();
+	}
+	synchronized void waitForImage() throws InterruptedException {
+	    while (! done) wait();
+	}
+    }
+
+    /**
+     * produce the view as FITSViewable used to
+     */
+    int[] produce() throws InterruptedException {
+	ImageProducer p = new SliceImageSource(plane, data, cm);
+	p = new FilteredImageSource(p, new FlippingFilter());
+	int ph = (int) plane.getLength(1);
+	p = new FilteredImageSource(p, new CropImageFilter(w/2, ph-h/2-h, 
+							   w, h));
+	Collector c = new Collector();
+	p.startProduction(c);
+	c.waitForImage();
+	return c.pixels;
+    }
+
+    /**
+     * render the view directly
+     */
+    BufferedImage render() {
+	return renderer.render(view, cm, stats.getMinimum(), 
+			       stats.getMaximum());
+    }
+
+    void time(String name, int which, int repeat) 
+	throws InterruptedException 
+    {
+	long gc = gcCount();
+	long t = System.currentTimeMillis();
+	for(int r=0; r < repeat; r++) {
+	    if (which == 0) produce();
+	    else if (which == 1) render();
+	    else renderer.render((which == 2) ? plane : zoomed, cm, 
+				 stats.getMinimum(), stats.getMaximum());
+	}
+	t = System.currentTimeMillis() - t;
+	gc = gcCount() - gc;
+	System.out.println(name + ": " + ((double) t)/repeat + 
+			   " ms/frame, " + gc + " collections");
+    }
+
+    int compare() throws InterruptedException {
+	int[] ref = produce();
+	Raster r = render().getRaster();
+	int bad = 0;
+	for(int y=0; y < h; y++) 
+	    for(int x=0; x < w; x++) 
+		if (r.getSample(x, y, 0) != ref[y*w + x]) bad++;
+	return bad;
+    }
+
+    public static void main(String[] args) throws Exception {
+	NdArrayData data;
+	if (args.length > 0) {
+	    data = new FITSNdArrayReader(args[0]).getNdArrayData();
+	}
+	else {
+	    int[] sz = { 1024, 1024, 4 };
+	    float[] vals = new float[(int) NdArrayMath.size(sz)];
+	    for(int i=0; i < vals.length; i++) 
+		vals[i] = (float) Math.sin(i*0.001);
+	    Volume vol = new Volume(3, new double[] { 1.0, 1.0, 1.0 },
+				    new double[] { 1024.0, 1024.0, 4.0 },
+				    new double[] { 1.0, 1.0, 1.0 });
+	    data = new InMemoryData(vol, JavaType.FLOAT);
+	    data.setValues(vals);
+	    ((InMemoryData) data).setComplete();
+	}
+	final int repeat = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+
+	final TestRenderSpeed test = new TestRenderSpeed(data);
+	System.out.println("pixels that differ: " + test.compare());
+	new TimingPasses() {
+	    protected void pass(boolean warmUp) throws Exception {
+		test.time("  producer and filters", 0, repeat);
+		test.time("  SliceRenderer       ", 1, repeat);
+		test.time("  whole plane         ", 2, repeat);
+		test.time("  whole plane, zoomed ", 3, repeat);
+	    }
+	}.run();
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+/*
+   TestStridedCopy.java - check and time the extraction of regions and 
+                          slices from InMemoryData with StridedCopy
+
+   Usage: java apps.tests.TestStridedCopy [size [nplanes [ntrials]]]
+
+   A size x size x nplanes (default 512 x 512 x 256) float cube of 
+   synthetic data is made in memory.  ntrials (default 200) random 
+   boxes are read with getValue(int[], int[]) and written back, 
+   shifted, with setValue(int[], int[], Object), and random slices 
+   along each pair of axes, with whole, negative and fractional 
+   sampling, with and without interpolation, are read with 
+   getValue(Slice); each is compared with the same values read one at
+   a time with getDouble(), and the number of mismatches is printed. 
+   Then the time to extract a full image plane, a position-velocity 
+   plane (x and the third axis), its transpose, and a plane decimated 
+   by 4, is printed for getValue() and for an element-by-element copy.
+*/
+package apps.tests;
+
+import java.util.Random;
+import ncsa.horizon.data.*;
+import ncsa.horizon.util.*;
+
+public class TestStridedCopy {
+
+    static InMemoryData data;
+    static int[] size;
+
+    public static void main(String[] args) throws Exception {
+	int n = (args.length > 0) ? Integer.parseInt(args[0]) : 512;
+	int nplanes = (args.length > 1) ? Integer.parseInt(args[1]) : 256;
+	int ntrials = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+
+	size = new int[] { n, n, nplanes };
+	Volume vol = new Volume(3, new double[] { 1.0, 1.0, 1.0 },
+				new double[] { n, n, nplanes },
+				new double[] { 1.0, 1.0, 1.0 });
+	data = new InMemoryData(vol, JavaType.FLOAT);
+	float[] vals = new float[n*n*nplanes];
+	for(int i=0; i < vals.length; i++) vals[i] = i;
+	data.setValues(vals);
+	data.setComplete();
+
+	Random rand = new Random(7);
+	int bad = 0;
+	for(int t=0; t < ntrials; t++) bad += checkBox(rand);
+	System.out.println(ntrials + " boxes read: " + bad + " mismatches");
+
+	bad = 0;
+	for(int t=0; t < ntrials; t++) bad += checkSetBox(rand);
+	System.out.println(ntrials + " boxes set: " + bad + " mismatches");
+
+	bad = 0;
+	for(int t=0; t < ntrials; t++) bad += checkSlice(rand);
+	System.out.println(ntrials + " slices read: " + bad + " mismatches");
+
+	new TimingPasses() {
+	    protected void pass(boolean warmUp) {
+		time("image plane", slice(0, 1, 1), 20);
+		time("p-v plane", slice(0, 2, 1), 20);
+		time("transposed p-v plane", slice(2, 0, 1), 20);
+		time("plane decimated by 4", slice(0, 1, 4), 20);
+	    }
+	}.run();
+    }
+
+    static int checkBox(Random rand) {
+	int[] start = new int[3], sz = new int[3];
+	for(int i=0; i < 3; i++) {
+	    sz[i] = 1 + rand.nextInt(Math.min(size[i], 40));
+	    start[i] = 1 + rand.nextInt(size[i] - sz[i] + 1);
+	}
+	float[] got = (float[]) data.getValue(start, sz);
+	int bad = 0, k = 0;
+	int[] pos = new int[3];
+	for(int z=0; z < sz[2]; z++) 
+	    for(int y=0; y < sz[1]; y++) 
+		for(int x=0; x < sz[0]; x++, k++) {
+		    pos[0] = start[0]+x;
+		    pos[1] = start[1]+y;
+		    pos[2] = start[2]+z;
+		    if (got[k] != data.getDouble(pos)) bad++;
+		}
+	return bad;
+    }
+
+    static int checkSetBox(Random rand) {
+	int[] start = new int[3], sz = new int[3];
+	for(int i=0; i < 3; i++) {
+	    sz[i] = 1 + rand.nextInt(Math.min(size[i], 40));
+	    start[i] = 1 + rand.nextInt(size[i] - sz[i] + 1);
+	}
+	float[] vals = (float[]) data.getValue(start, sz);
+	float[] neg = new float[vals.length];
+	for(int i=0; i < vals.length; i++) neg[i] = -vals[i];
+	data.setValue(start, sz, neg);
+	int bad = 0, k = 0;
+	int[] pos = new int[3];
+	for(int z=0; z < sz[2]; z++) 
+	    for(int y=0; y < sz[1]; y++) 
+		for(int x=0; x < sz[0]; x++, k++) {
+		    pos[0] = start[0]+x;
+		    pos[1] = start[1]+y;
+		    pos[2] = start[2]+z;
+		    if (neg[k] != data.getDouble(pos)) bad++;
+		}
+	data.setValue(start, sz, vals);
+	return bad;
+    }
+
+    static int checkSlice(Random rand) {
+	int xaxis = rand.nextInt(3), yaxis;
+	do { yaxis = rand.nextInt(3); } while (yaxis == xaxis);
+	double[] steps = { 1.0, 2.0, 3.0, -1.0, -2.0, 0.5, 1.5 };
+	double sx = steps[rand.nextInt(steps.length)];
+	double sy = steps[rand.nextInt(steps.length)];
+	boolean interp = rand.nextInt(4) == 0;
+
+	double[] loc = new double[3], len = new double[3], samp = new double[3];
+	for(int i=0; i < 3; i++) {
+	    samp[i] = 1.0;
+	    len[i] = 1.0;
+	    loc[i] = 1 + rand.nextInt(size[i]);
+	}
+	len[xaxis] = 1 + rand.nextInt(Math.min(size[xaxis], 60));
+	len[yaxis] = 1 + rand.nextInt(Math.min(size[yaxis], 60));
+	loc[xaxis] = 1 + rand.nextInt(size[xaxis] - (int) len[xaxis] + 1);
+	loc[yaxis] = 1 + rand.nextInt(size[yaxis] - (int) len[yaxis] + 1);
+	samp[xaxis] = sx;
+	samp[yaxis] = sy;
+	Slice s = new Slice(new Volume(3, loc, len, samp), xaxis, yaxis);
+	if (interp) s.flags = Volume.CAN_INTERPOLATE;
+
+	float[] got = (float[]) data.getValue(s);
+	int w = s.getTrueLength(xaxis), h = s.getTrueLength(yaxis);
+	if (got == null) return 1;
+	if (got.length != w*h) return w*h;
+
+	int bad = 0;
+	int[] pos = new int[3];
+	for(int j=0; j < h; j++) {
+	    for(int i=0; i < w; i++) {
+		double px = position(loc[xaxis], sx, w, i, interp);
+		double py = position(loc[yaxis], sy, h, j, interp);
+		double expect;
+		for(int a=0; a < 3; a++) pos[a] = (int) loc[a];
+		if (interp) {
+		    expect = bilinear(pos, xaxis, px, yaxis, py);
+		} 
+		else {
+		    pos[xaxis] = (int) Math.floor(px);
+		    pos[yaxis] = (int) Math.floor(py);
+		    expect = data.getDouble(pos);
+		}
+		if (Math.abs(got[j*w+i] - expect) > 
+		    1e-6 * Math.abs(expect) + 1e-3) bad++;
+	    }
+	}
+	return bad;
+    }
+
+    /**
+     * the position, in the data's coordinates, of a sample
+     */
+    static double position(double lo, double step, int n, int i, 
+			   boolean interp) 
+    {
+	double a = Math.abs(step);
+	double p = (step < 0) ? lo + (n-1-i)*a : lo + i*a;
+	return interp ? p + (a-1)/2 : p;
+    }
+
+    static double bilinear(int[] pos, int xaxis, double px, int yaxis, 
+			   double py) 
+    {
+	px = Math.max(1, Math.min(size[xaxis], px));
+	py = Math.max(1, Math.min(size[yaxis], py));
+	int x0 = (int) Math.floor(px), y0 = (int) Math.floor(py);
+	int x1 = Math.min(x0+1, size[xaxis]), y1 = Math.min(y0+1, size[yaxis]);
+	double fx = px - x0, fy = py - y0;
+	double[] v = new double[4];
+	int[][] xy = { {x0, y0}, {x1, y0}, {x0, y1}, {x1, y1} };
+	for(int k=0; k < 4; k++) {
+	    pos[xaxis] = xy[k][0];
+	    pos[yaxis] = xy[k][1];
+	    v[k] = data.getDouble(pos);
+	}
+	double a = v[0] + fx*(v[1]-v[0]), b = v[2] + fx*(v[3]-v[2]);
+	return a + fy*(b-a);
+    }
+
+    static Slice slice(int xaxis, int yaxis, double step) {
+	double[] loc = { 1.0, 1.0, 1.0 }, len = { 1.0, 1.0, 1.0 };
+	double[] samp = { 1.0, 1.0, 1.0 };
+	loc[3 - xaxis - yaxis] = size[3 - xaxis - yaxis] / 2;
+	len[xaxis] = size[xaxis];
+	len[yaxis] = size[yaxis];
+	samp[xaxis] = samp[yaxis] = step;
+	return new Slice(new Volume(3, loc, len, samp), xaxis, yaxis);
+    }
+
+    static void time(String name, Slice s, int reps) {
+	int xaxis = s.getXaxis(), yaxis = s.getYaxis();
+	int w = s.getTrueLength(xaxis), h = s.getTrueLength(yaxis);
+	int step = (int) s.getStep(xaxis);
+
+	long t = System.nanoTime();
+	for(int r=0; r < reps; r++) data.getValue(s);
+	double fast = (System.nanoTime() - t) / 1.0e6 / reps;
+
+	float[] out = new float[w*h];
+	int[] pos = new int[3];
+	t = System.nanoTime();
+	for(int r=0; r < reps; r++) {
+	    for(int a=0; a < 3; a++) pos[a] = (int) s.axisPos(a);
+	    int y0 = pos[yaxis], x0 = pos[xaxis];
+	    for(int j=0; j < h; j++) {
+		pos[yaxis] = y0 + j*step;
+		for(int i=0; i < w; i++) {
+		    pos[xaxis] = x0 + i*step;
+		    out[j*w+i] = (float) data.getDouble(pos);
+		}
+	    }
+	}
+	double slow = (System.nanoTime() - t) / 1.0e6 / reps;
+	System.out.println("  " + name + " (" + w + "x" + h + "): " + 
+			   round(fast) + " ms, element by element " + 
+			   round(slow) + " ms");
+    }
+
+    static double round(double ms) { return Math.round(ms*100) / 100.0; }
+}
@@ -0,0 +1,448 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+/*
+   TestTileDecoding.java - check the tile decoders of
+                           ncsa.fits.fits.CompressedImage against data
+                           laid out by the reference implementation
+                           (CFITSIO)
+
+   Usage: java apps.tests.TestTileDecoding [compressed original] ...
+
+   Given pairs of files, each compressed file (made from the original
+   with, e.g., "fpack -r", "fpack -g2" or "fpack -q 4", the last of
+   which quantizes floating-point data with SUBTRACTIVE_DITHER_1) is
+   read tile by tile and compared with the original: lossless tiles
+   must match exactly and quantized ones to within half of the tile's
+   ZSCALE (plus the rounding of the restored value to a float).
+
+   Without arguments, built-in cases are checked instead: Rice streams
+   assembled bit by bit in the layout CFITSIO's fits_rcomp() writes
+   (a low-entropy, a normal and a high-entropy block, for 2- and
+   4-byte pixels), CFITSIO's dithering sequence, and NOCOMPRESS tiles
+   held in the COMPRESSED_DATA column both as bytes and as arrays of
+   dithered, quantized integers.  Each check prints "ok" or what
+   differs.
+*/
+package apps.tests;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Vector;
+import ncsa.fits.fits.*;
+import ncsa.horizon.data.*;
+import ncsa.horizon.util.*;
+
+public class TestTileDecoding {
+
+    static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+	if (args.length > 0) {
+	    if (args.length % 2 != 0) {
+		System.err.println("Usage: java apps.tests.TestTileDecoding " +
+				   "[compressed original] ...");
+		System.exit(1);
+	    }
+	    for(int i=0; i < args.length; i += 2)
+		compareFiles(new File(args[i]), new File(args[i+1]));
+	}
+	else {
+	    checkRice32();
+	    checkRice16();
+	    checkRandoms();
+	    checkNoCompressBytes();
+	    checkNoCompressDithered();
+	}
+	System.out.println((failures == 0) ? "all checks passed"
+			                   : failures + " checks failed");
+	System.exit((failures == 0) ? 0 : 1);
+    }
+
+    static void report(String name, String problem) {
+	if (problem != null) failures++;
+	System.out.println(name + ": " + ((problem == null) ? "ok" : problem));
+    }
+
+    /**
+     * compare a compressed file with the original it was made from
+     */
+    static void compareFiles(File cfile, File ofile) throws Exception {
+	String name = cfile.getName() + " vs. " + ofile.getName();
+
+	// find the compressed image
+	FitsIndex index = new FitsIndex(cfile);
+	int hdu = -1;
+	for(int i=0; i < index.size() && hdu < 0; i++)
+	    if (index.getEntry(i).isCompressedImage()) hdu = i;
+	if (hdu < 0) {
+	    report(name, "no compressed image found");
+	    return;
+	}
+	RandomAccessFile raf = new RandomAccessFile(cfile, "r");
+	BinaryTable table;
+	try {
+	    table = index.readTable(raf, hdu);
+	} finally {
+	    raf.close();
+	}
+	CompressedImage image = new CompressedImage(table);
+	Header header = table.getHeader();
+
+	// the original values, with BSCALE and BZERO applied
+	NdArrayData orig = new FITSNdArrayReader(ofile.getPath())
+	                                               .getNdArrayData();
+	int[] size = orig.getSize();
+	int[] csize = image.getSize();
+	if (size.length != csize.length) {
+	    report(name, "images have different numbers of axes");
+	    return;
+	}
+	for(int i=0; i < size.length; i++) {
+	    if (size[i] != csize[i]) {
+		report(name, "images have different sizes");
+		return;
+	    }
+	}
+	double[] ovals = new double[(int) NdArrayMath.size(size)];
+	orig.readInto(ovals, ArrayTypeConverter.arrayDoubleToInt(
+				 orig.getVolume().getLocation()), size);
+
+	// tiles of integer images are returned as stored
+	double bscale = 1.0, bzero = 0.0;
+	boolean hasBlank = false;
+	long blank = 0;
+	if (image.getBitpix() > 0) {
+	    Header ih = image.getImageHeader();
+	    if (ih.hasKey("BSCALE")) bscale = ih.getDValue("BSCALE");
+	    if (ih.hasKey("BZERO")) bzero = ih.getDValue("BZERO");
+	    if (ih.hasKey("BLANK")) {
+		hasBlank = true;
+		blank = ih.getLValue("BLANK");
+	    }
+	}
+	int cscale = table.findColumn("ZSCALE");
+	double zscale = header.hasKey("ZSCALE") ? header.getDValue("ZSCALE")
+	                                        : 0.0;
+
+	int ntile = table.getRowCount();
+	int[] origin = new int[size.length];
+	int[] tsize = new int[size.length];
+	int bad = 0;
+	double worst = 0.0;
+	for(int t=0; t < ntile; t++) {
+	    Object tile = image.readTile(t);
+	    image.getTileExtent(t, origin, tsize);
+	    double tol = 0.0;
+	    if (image.getBitpix() < 0) {
+		double s = (cscale > 0) ? number(table.getColumn(cscale, t, 1))
+		                        : zscale;
+		tol = 0.5 * s;
+	    }
+
+	    int n = java.lang.reflect.Array.getLength(tile);
+	    int[] pos = (int[]) origin.clone();
+	    for(int k=0; k < n; k++) {
+		int at = (int) NdArrayMath.indexArrayToNumber(pos, size);
+		double v = ((Number) java.lang.reflect.Array.get(tile, k))
+		                                               .doubleValue();
+		if (image.getBitpix() == 8) v = ((int) v) & 0xff;
+		if (hasBlank && v == blank) v = Double.NaN;
+		else if (image.getBitpix() > 0) v = bzero + bscale*v;
+		double d = Math.abs(v - ovals[at]);
+		double lim = (tol > 0.0) ? tol + Math.ulp((float) ovals[at])
+		                         : 0.0;
+		if (Double.isNaN(v) != Double.isNaN(ovals[at]) || d > lim)
+		    bad++;
+		else if (d == d)
+		    worst = Math.max(worst, d);
+
+		// next position within the tile
+		for(int i=0; i < pos.length; i++) {
+		    if (++pos[i] < origin[i] + tsize[i]) break;
+		    pos[i] = origin[i];
+		}
+	    }
+	}
+	System.out.println(name + ": " + image.getCompressionType() + ", " +
+			   ntile + " tiles, largest difference " + worst);
+	report(name, (bad == 0) ? null : bad + " values out of tolerance");
+    }
+
+    static double number(Object array) {
+	return ((Number) java.lang.reflect.Array.get(array, 0)).doubleValue();
+    }
+
+    /**
+     * collects a stream of bits, most significant first, padding the
+     * last byte with zeros as fits_rcomp() does
+     */
+    static class Bits {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	int buf = 0, nbits = 0;
+
+	/** append bits given as a string of 0s and 1s (blanks ignored) */
+	Bits put(String bits) {
+	    for(int i=0; i < bits.length(); i++) {
+		char c = bits.charAt(i);
+		if (c == ' ') continue;
+		bit(c == '1');
+	    }
+	    return this;
+	}
+
+	/** append the low nb bits of value */
+	Bits put(long value, int nb) {
+	    for(int i=nb-1; i >= 0; i--) bit(((value >>> i) & 1) != 0);
+	    return this;
+	}
+
+	void bit(boolean on) {
+	    buf = (buf << 1) | (on ? 1 : 0);
+	    if (++nbits == 8) {
+		out.write(buf);
+		buf = nbits = 0;
+	    }
+	}
+
+	byte[] bytes() {
+	    while (nbits != 0) bit(false);
+	    return out.toByteArray();
+	}
+    }
+
+    /**
+     * the Rice mapping of a difference to an unsigned value
+     */
+    static long map(int diff) {
+	return (diff < 0) ? ~(((long) diff) << 1) & 0xffffffffL
+	                  : ((long) diff) << 1;
+    }
+
+    /**
+     * a 32-bit Rice tile with block size 4: the first pixel is stored
+     * whole, then each block starts with a 5-bit code holding fs+1
+     * (0 for a block of zero differences, 26 for differences stored
+     * whole); mapped differences are written as fs low bits after a
+     * unary count (zeros ended by a one) of the high bits.
+     */
+    static void checkRice32() throws IOException {
+	int[] expect = { 100, 100, 100, 100, 101, 99, 99, 102,
+			 1000102, 1000097, 0, 7 };
+	Bits b = new Bits();
+	b.put(100, 32);                           // the first pixel
+	b.put("00000");                           // low entropy
+	b.put("00010");                           // fs = 1
+	b.put("01 0  01 1  1 0  0001 0");         // 2, 3, 0, 6
+	b.put("11010");                           // high entropy
+	b.put(map(1000000), 32).put(map(-5), 32)
+	 .put(map(-1000097), 32).put(map(7), 32);
+	byte[] in = b.bytes();
+
+	int[] out = new int[expect.length];
+	TileCompression.riceDecode(in, in.length, out, out.length, 4, 4);
+	report("RICE_1, 32-bit pixels", differences(expect, out, 0));
+    }
+
+    /**
+     * a 16-bit Rice tile with block size 4: as for 32 bits, but with
+     * 4-bit block codes (15 for differences stored whole) and 16-bit
+     * differences
+     */
+    static void checkRice16() throws IOException {
+	int[] expect = { -3, -3, -3, -3, -3, -2, -4, -4, 100, -100, 0, 5 };
+	Bits b = new Bits();
+	b.put(-3 & 0xffff, 16);                   // the first pixel
+	b.put("0000");                            // low entropy
+	b.put("0001");                            // fs = 0
+	b.put("1  001  0001  1");                 // 0, 2, 3, 0
+	b.put("1111");                            // high entropy
+	b.put(map(104), 16).put(map(-200), 16).put(map(100), 16)
+	 .put(map(5), 16);
+	byte[] in = b.bytes();
+
+	int[] out = new int[expect.length];
+	TileCompression.riceDecode(in, in.length, out, out.length, 4, 2);
+	report("RICE_1, 16-bit pixels", differences(expect, out, 16));
+    }
+
+    /**
+     * compare decoded values; if bits is not 0 only that many low bits
+     * are significant
+     */
+    static String differences(int[] expect, int[] got, int bits) {
+	int bad = 0;
+	for(int i=0; i < expect.length; i++) {
+	    int g = (bits == 16) ? (short) got[i] : got[i];
+	    if (g != expect[i]) bad++;
+	}
+	return (bad == 0) ? null : bad + " of " + expect.length +
+	                           " values differ";
+    }
+
+    /**
+     * CFITSIO's dithering offsets, as computed by fits_init_randoms()
+     */
+    static float[] randoms() {
+	float[] r = new float[CompressedImage.N_RANDOM];
+	double a = 16807.0, m = 2147483647.0, seed = 1;
+	for(int i=0; i < r.length; i++) {
+	    double temp = a * seed;
+	    seed = temp - m * ((int) (temp / m));
+	    r[i] = (float) (seed / m);
+	}
+	return r;
+    }
+
+    static void checkRandoms() {
+	float[] expect = randoms();
+	float[] got = CompressedImage.getRandoms();
+	int bad = 0;
+	for(int i=0; i < expect.length; i++)
+	    if (expect[i] != got[i]) bad++;
+	report("dithering sequence",
+	       (bad == 0) ? null : bad + " random values differ");
+    }
+
+    /**
+     * a 4x2 float image in two NOCOMPRESS tiles, each holding the
+     * big-endian bytes of its values
+     */
+    static void checkNoCompressBytes() throws IOException {
+	float[] expect = { 1.5f, -2.25f, Float.NaN, 1.0e30f,
+			   0.0f, -0.0f, 3.0f, -7.125f };
+	ByteBuffer heap = ByteBuffer.allocate(32);
+	for(int i=0; i < expect.length; i++) heap.putFloat(expect[i]);
+
+	Vector cards = tableCards(8, 2);
+	cards.addElement(FITSWriter.card("TFIELDS", new Integer(1)));
+	cards.addElement(FITSWriter.card("TTYPE1", "COMPRESSED_DATA"));
+	cards.addElement(FITSWriter.card("TFORM1", "1PB(16)"));
+	cards.addElement(FITSWriter.card("PCOUNT", new Integer(32)));
+	ByteBuffer rows = ByteBuffer.allocate(16);
+	rows.putInt(16).putInt(0).putInt(16).putInt(16);
+
+	CompressedImage image = image(cards, rows, heap);
+	float[] got = new float[expect.length];
+	for(int t=0; t < 2; t++)
+	    System.arraycopy((float[]) image.readTile(t), 0, got, 4*t, 4);
+	int bad = 0;
+	for(int i=0; i < expect.length; i++)
+	    if (Float.floatToIntBits(expect[i]) !=
+		Float.floatToIntBits(got[i])) bad++;
+	report("NOCOMPRESS, bytes",
+	       (bad == 0) ? null : bad + " values differ");
+    }
+
+    /**
+     * a 4x2 float image in two NOCOMPRESS tiles of 32-bit integers
+     * quantized with SUBTRACTIVE_DITHER_1; the values are restored as
+     * CFITSIO does it, as (i - r + 0.5) * ZSCALE + ZZERO where r steps
+     * through the dithering sequence from an offset chosen by the
+     * tile's number and ZDITHER0.
+     */
+    static void checkNoCompressDithered() throws IOException {
+	int dither0 = 7;
+	int[] ivals = { 10, -20, CompressedImage.NULL_VALUE, 30000,
+			0, 1, -1, 123456 };
+	double[] zscale = { 0.01, 2.5 };
+	double[] zzero = { 100.0, -3.0 };
+
+	ByteBuffer heap = ByteBuffer.allocate(32);
+	for(int i=0; i < ivals.length; i++) heap.putInt(ivals[i]);
+	Vector cards = tableCards(24, 2);
+	cards.addElement(FITSWriter.card("TFIELDS", new Integer(3)));
+	cards.addElement(FITSWriter.card("TTYPE1", "COMPRESSED_DATA"));
+	cards.addElement(FITSWriter.card("TFORM1", "1PJ(4)"));
+	cards.addElement(FITSWriter.card("TTYPE2", "ZSCALE"));
+	cards.addElement(FITSWriter.card("TFORM2", "1D"));
+	cards.addElement(FITSWriter.card("TTYPE3", "ZZERO"));
+	cards.addElement(FITSWriter.card("TFORM3", "1D"));
+	cards.addElement(FITSWriter.card("PCOUNT", new Integer(32)));
+	cards.addElement(FITSWriter.card("ZQUANTIZ", "SUBTRACTIVE_DITHER_1"));
+	cards.addElement(FITSWriter.card("ZDITHER0", new Integer(dither0)));
+	cards.addElement(FITSWriter.card("ZBLANK",
+				 new Integer(CompressedImage.NULL_VALUE)));
+	ByteBuffer rows = ByteBuffer.allocate(48);
+	for(int t=0; t < 2; t++) {
+	    rows.putInt(4).putInt(16*t);
+	    rows.putDouble(zscale[t]).putDouble(zzero[t]);
+	}
+
+	float[] rand = randoms();
+	CompressedImage image = image(cards, rows, heap);
+	int bad = 0;
+	for(int t=0; t < 2; t++) {
+	    float[] got = (float[]) image.readTile(t);
+	    int iseed = (t + dither0 - 1) % CompressedImage.N_RANDOM;
+	    int next = (int) (rand[iseed] * 500);
+	    for(int i=0; i < 4; i++, next++) {
+		int iv = ivals[4*t+i];
+		float expect = (iv == CompressedImage.NULL_VALUE) ? Float.NaN :
+		    (float) ((iv - rand[next] + 0.5) * zscale[t] + zzero[t]);
+		if (Float.floatToIntBits(expect) !=
+		    Float.floatToIntBits(got[i])) bad++;
+	    }
+	}
+	report("NOCOMPRESS, quantized with dithering",
+	       (bad == 0) ? null : bad + " values differ");
+    }
+
+    /**
+     * the cards common to the 4x2 test images' tables
+     */
+    static Vector tableCards(int rowlen, int nrows) {
+	Vector cards = new Vector();
+	cards.addElement(FITSWriter.card("XTENSION", "BINTABLE"));
+	cards.addElement(FITSWriter.card("BITPIX", new Integer(8)));
+	cards.addElement(FITSWriter.card("NAXIS", new Integer(2)));
+	cards.addElement(FITSWriter.card("NAXIS1", new Integer(rowlen)));
+	cards.addElement(FITSWriter.card("NAXIS2", new Integer(nrows)));
+	cards.addElement(FITSWriter.card("GCOUNT", new Integer(1)));
+	cards.addElement(FITSWriter.card("ZIMAGE", Boolean.TRUE));
+	cards.addElement(FITSWriter.card("ZCMPTYPE", "NOCOMPRESS"));
+	cards.addElement(FITSWriter.card("ZBITPIX", new Integer(-32)));
+	cards.addElement(FITSWriter.card("ZNAXIS", new Integer(2)));
+	cards.addElement(FITSWriter.card("ZNAXIS1", new Integer(4)));
+	cards.addElement(FITSWriter.card("ZNAXIS2", new Integer(2)));
+	cards.addElement(FITSWriter.card("ZTILE1", new Integer(4)));
+	cards.addElement(FITSWriter.card("ZTILE2", new Integer(1)));
+	return cards;
+    }
+
+    /**
+     * build a compressed image from header cards, rows and a heap
+     */
+    static CompressedImage image(Vector cards, ByteBuffer rows,
+				 ByteBuffer heap)
+	throws IOException
+    {
+	cards.addElement(FITSWriter.card("END", null));
+	String[] c = new String[cards.size()];
+	cards.copyInto(c);
+
+	ByteBuffer data = ByteBuffer.allocate(rows.capacity() +
+					      heap.capacity());
+	data.put(rows.array()).put(heap.array());
+	data.flip();
+	return new CompressedImage(new BinaryTable(data, new Header(c)));
+    }
+}
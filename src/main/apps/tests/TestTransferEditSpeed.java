@@ -0,0 +1,128 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+/*
+   TestTransferEditSpeed.java - time redrawing a plane as its transfer 
+                                function is edited
+
+   Usage: java apps.tests.TestTransferEditSpeed [width [height [repeat]]]
+
+   A width x height x 2 float cube (4096x4096 by default) of synthetic 
+   data is rendered at full resolution by SliceRenderer repeatedly, 
+   with the minimum, maximum, and mode of a MultiNumericTransferFunction
+   changed before each frame, as while dragging the controls of a 
+   TransferFunctionPanel.  This is done first with the renderer's plane
+   cache turned off (so that every frame reads the data), then with it 
+   on (so that only the first does); the time per frame is printed for
+   each, along with the number of pixels on which the last frames 
+   disagree (which should be zero), and the same for a panned view 
+   of the middle quarter of the plane.
+*/
+package apps.tests;
+
+import java.awt.image.*;
+import ncsa.horizon.awt.image.*;
+import ncsa.horizon.data.*;
+import ncsa.horizon.util.*;
+
+public class TestTransferEditSpeed {
+
+    NdArrayData data;
+    Slice plane, view;
+    IndexColorModel cm;
+    MultiNumericTransferFunction tf = new MultiNumericTransferFunction();
+    String[] modes = tf.getModeNames();
+
+    public TestTransferEditSpeed(NdArrayData data) {
+	this.data = data;
+	plane = new Slice(data.getVolume());
+	plane.setLength(2, 1);
+
+	view = (Slice) plane.clone();
+	int w = (int) plane.getLength(0) / 2, h = (int) plane.getLength(1) / 2;
+	view.setXaxisLocation(plane.axisPos(0) + w/2);
+	view.setYaxisLocation(plane.axisPos(1) + h/2);
+	view.setArea(w, h);
+
+	Lut lut = Lut.getRainbowLut();
+	cm = new IndexColorModel(8, 256, lut.getRed(), lut.getGreen(), 
+				 lut.getBlue());
+    }
+
+    /**
+     * render frames with a transfer function edited before each; 
+     * return a copy of the last one's color indices
+     */
+    byte[] time(String name, Slice s, long cacheSize, int repeat) {
+	SliceRenderer renderer = new SliceRenderer(data);
+	renderer.setCacheSize(cacheSize);
+	BufferedImage img = null;
+	long t = System.currentTimeMillis();
+	for(int r=0; r < repeat; r++) {
+	    tf.useMode(modes[r % modes.length]);
+	    tf.setMinimum(-1.0 + 0.5*r/repeat);
+	    tf.setMaximum(1.0 - 0.5*r/repeat);
+	    img = renderer.render(s, cm, tf);
+	}
+	t = System.currentTimeMillis() - t;
+	System.out.println("  " + name + ": " + ((double) t)/repeat + 
+			   " ms/frame (" + renderer.getCacheHits() + 
+			   " cache hits)");
+	return (byte[]) ((DataBufferByte) 
+			 img.getRaster().getDataBuffer()).getData().clone();
+    }
+
+    void compare(String name, Slice s, int repeat) {
+	byte[] ref = time(name + ", reading the data", s, 0, repeat);
+	byte[] got = time(name + ", from the plane cache", s, 
+			  SliceRenderer.DEFAULT_CACHE_SIZE, repeat);
+	int bad = 0;
+	for(int i=0; i < ref.length; i++) if (ref[i] != got[i]) bad++;
+	System.out.println("  pixels that differ: " + bad);
+    }
+
+    public static void main(String[] args) throws Exception {
+	int width = (args.length > 0) ? Integer.parseInt(args[0]) : 4096;
+	int height = (args.length > 1) ? Integer.parseInt(args[1]) : width;
+	final int repeat = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+
+	int[] sz = { width, height, 2 };
+	float[] vals = new float[(int) NdArrayMath.size(sz)];
+	for(int i=0; i < vals.length; i++) 
+	    vals[i] = (float) Math.sin(i*0.001);
+	Volume vol = new Volume(3, new double[] { 1.0, 1.0, 1.0 },
+				new double[] { width, height, 2.0 },
+				new double[] { 1.0, 1.0, 1.0 });
+	InMemoryData data = new InMemoryData(vol, JavaType.FLOAT);
+	data.setValues(vals);
+	data.setComplete();
+	System.out.println(width + "x" + height + " float plane, " + 
+			   WorkerPool.getParallelism() + " threads");
+
+	final TestTransferEditSpeed test = new TestTransferEditSpeed(data);
+	new TimingPasses() {
+	    protected void pass(boolean warmUp) {
+		test.compare("whole plane", test.plane, warmUp ? 2 : repeat);
+		test.compare("panned view", test.view, warmUp ? 2 : repeat);
+	    }
+	}.run();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+/*
+   TimingPasses.java - run the steps of a timing test twice, the first
+                       time to warm up
+
+   The timing tests in this package subclass this with the steps they
+   time, and call run().  The steps are run once to let the JIT
+   compiler do its work, under the heading "warm-up:", and then again,
+   under "timing:", for the times that count.  A test may do less work
+   in the warm-up pass.
+*/
+package apps.tests;
+
+public abstract class TimingPasses {
+
+    /**
+     * run the steps once
+     * @param warmUp  true for the first pass, whose times do not count
+     */
+    protected abstract void pass(boolean warmUp) throws Exception;
+
+    /**
+     * run the warm-up pass and then the timing pass
+     */
+    public void run() throws Exception {
+	System.out.println("warm-up:");
+	pass(true);
+	System.out.println("timing:");
+	pass(false);
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ */
+
+package ncsa.fits.fits;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/** A column-oriented view of a binary table (BINTABLE) extension.
+  * Rather than building an object for each row, the table records the
+  * row stride (NAXIS1) and the offset and format of each column (from
+  * the TFORMn keywords) and decodes values on demand from a buffer 
+  * holding the data segment, usually a memory-mapped region of the 
+  * file.  A column, or any range of rows within it, can be read into a
+  * primitive array without touching the other columns or allocating 
+  * anything per row.
+  * <p>
+  * Columns are numbered from 1, as in the FITS keywords.  Their 
+  * values are returned as the Java type corresponding to the column
+  * code: L, X, B and A give bytes, I shorts, J ints, K longs, E and C 
+  * floats, D and M doubles.  Complex values (C, M) are returned as
+  * real/imaginary pairs, so each counts as two elements.  Bit columns
+  * (X) are returned packed, one byte per 8 bits.  TSCALn and TZEROn
+  * are not applied.
+  * <p>
+  * Variable length array columns (P and Q) hold a descriptor (element
+  * count and heap offset) in each row; the array itself is read from
+  * the heap with getArrayLength() and readArray().
+  */
+public class BinaryTable extends Object {
+
+    private Header header;
+    private int nrows;
+    private int stride;
+    private int ncols;
+    private char[] code;
+    private int[] repeat;
+    private int[] offset;
+    private char[] heapCode;
+
+    // the rows, split into segments of at most segRows rows so that
+    // tables bigger than 2 GB can be mapped
+    private ByteBuffer[] rows;
+    private int segRows;
+    private ByteBuffer heap = null;
+
+    /** Open a binary table in a local file by mapping its data segment.
+      * @param ch          a channel on the file
+      * @param dataOffset  the byte offset of the start of the table's
+      *                    data (see FitsIndex.Entry.getDataOffset())
+      * @param header      the table's header
+      * @exception IOException if the data cannot be mapped or the 
+      *                    header does not describe a valid table
+      */
+    public BinaryTable(FileChannel ch, long dataOffset, Header header)
+	throws IOException 
+    {
+	parseHeader(header);
+	long rowsize = ((long) stride) * nrows;
+	segRows = (stride == 0) ? Math.max(nrows, 1) 
+	                        : Math.max(1, Integer.MAX_VALUE / stride);
+	int nseg = (nrows + segRows - 1) / segRows;
+	rows = new ByteBuffer[nseg];
+	for(int i=0; i < nseg; i++) {
+	    long start = ((long) i)*segRows*stride;
+	    long len = Math.min(((long) segRows)*stride, rowsize - start);
+	    rows[i] = ch.map(FileChannel.MapMode.READ_ONLY, 
+			     dataOffset + start, len);
+	}
+
+	long heapSize = header.getLValue("PCOUNT", 0);
+	long heapOffset = header.getLValue("THEAP", rowsize);
+	if (heapSize - (heapOffset - rowsize) > 0) {
+	    long len = heapSize - (heapOffset - rowsize);
+	    if (len > Integer.MAX_VALUE) 
+		throw new IOException("heap too large to map: " + len);
+	    heap = ch.map(FileChannel.MapMode.READ_ONLY, 
+			  dataOffset + heapOffset, len);
+	}
+    }
+
+    /** Create a binary table over data already in memory.
+      * @param data    a buffer holding the table's data segment (rows,
+      *                then the heap), starting at its position
+      * @param header  the table's header
+      * @exception IOException if the header does not describe a valid 
+      *                table or the buffer is too short
+      */
+    public BinaryTable(ByteBuffer data, Header header) throws IOException {
+	parseHeader(header);
+	long rowsize = ((long) stride) * nrows;
+	long heapSize = header.getLValue("PCOUNT", 0);
+	long heapOffset = header.getLValue("THEAP", rowsize);
+	if (data.remaining() < rowsize + heapSize)
+	    throw new IOException("table data truncated");
+
+	ByteBuffer buf = data.slice();
+	buf.limit((int) rowsize);
+	rows = new ByteBuffer[] { buf.slice() };
+	segRows = Math.max(nrows, 1);
+	if (heapSize - (heapOffset - rowsize) > 0) {
+	    buf = data.slice();
+	    buf.position((int) heapOffset);
+	    buf.limit((int) (rowsize + heapSize));
+	    heap = buf.slice();
+	}
+    }
+
+    /** Read the keywords describing the table's layout */
+    private void parseHeader(Header header) throws IOException {
+	this.header = header;
+	stride = (int) header.getLValue("NAXIS1", 0);
+	nrows = (int) header.getLValue("NAXIS2", 0);
+	ncols = (int) header.getLValue("TFIELDS", 0);
+	code = new char[ncols+1];
+	repeat = new int[ncols+1];
+	offset = new int[ncols+1];
+	heapCode = new char[ncols+1];
+
+	int off = 0;
+	for(int col=1; col <= ncols; col++) {
+	    String key = "TFORM" + col;
+	    if (! header.hasKey(key)) 
+		throw new IOException("missing " + key);
+	    String format = header.getSValue(key).trim();
+
+	    int i = 0;
+	    while (i < format.length() && Character.isDigit(format.charAt(i)))
+		i++;
+	    if (i >= format.length()) 
+		throw new IOException("invalid " + key + ": " + format);
+	    repeat[col] = (i > 0) ? Integer.parseInt(format.substring(0, i)) 
+		                  : 1;
+	    code[col] = format.charAt(i);
+	    offset[col] = off;
+
+	    if (code[col] == 'P' || code[col] == 'Q') {
+		if (i+1 >= format.length()) 
+		    throw new IOException("invalid " + key + ": " + format);
+		heapCode[col] = format.charAt(i+1);
+		if (elementSize(heapCode[col]) < 0 || heapCode[col] == 'P' ||
+		    heapCode[col] == 'Q') 
+		    throw new IOException("invalid " + key + ": " + format);
+		if (repeat[col] > 1) repeat[col] = 1;
+	    }
+	    else if (code[col] == 'X') {
+		repeat[col] = (repeat[col]+7)/8;
+	    }
+	    else if (code[col] == 'C' || code[col] == 'M') {
+		repeat[col] *= 2;
+	    }
+	    int size = elementSize(code[col]);
+	    if (size < 0) 
+		throw new IOException("invalid column code in " + key + 
+				      ": " + format);
+	    off += size * repeat[col];
+	}
+	if (off > stride) 
+	    throw new IOException("columns wider than NAXIS1: " + off);
+    }
+
+    /** Return the size in bytes of one element (or one descriptor) of
+      * a column with the given code, or -1 if the code is not valid.
+      */
+    public static int elementSize(char code) {
+	switch (code) {
+	case 'L': case 'X': case 'B': case 'A':
+	    return 1;
+	case 'I':
+	    return 2;
+	case 'J': case 'E': case 'C':
+	    return 4;
+	case 'K': case 'D': case 'M':
+	    return 8;
+	case 'P':
+	    return 8;
+	case 'Q':
+	    return 16;
+	default:
+	    return -1;
+	}
+    }
+
+    /** Return the table's header */
+    public Header getHeader() { return header; }
+
+    /** Return the number of rows (NAXIS2) */
+    public int getRowCount() { return nrows; }
+
+    /** Return the number of columns (TFIELDS) */
+    public int getColumnCount() { return ncols; }
+
+    /** Return the size of a row in bytes (NAXIS1) */
+    public int getRowStride() { return stride; }
+
+    private void checkColumn(int col) {
+	if (col < 1 || col > ncols) 
+	    throw new IllegalArgumentException("no such column: " + col);
+    }
+
+    /** Return the byte offset of a column within a row */
+    public int getColumnOffset(int col) {
+	checkColumn(col);
+	return offset[col];
+    }
+
+    /** Return the code (from TFORMn) of a column; for variable length
+      * columns this is P or Q.
+      */
+    public char getColumnCode(int col) {
+	checkColumn(col);
+	return code[col];
+    }
+
+    /** Return the number of elements per row of a fixed length column,
+      * counting each complex value as two and 8 bits as one.  For 
+      * variable length columns this is 1 (the descriptor).
+      */
+    public int getRepeat(int col) {
+	checkColumn(col);
+	return repeat[col];
+    }
+
+    /** Return the name of a column (TTYPEn), or null if it has none */
+    public String getColumnName(int col) {
+	checkColumn(col);
+	String key = "TTYPE" + col;
+	return (header.hasKey(key)) ? header.getSValue(key).trim() : null;
+    }
+
+    /** Return the number of the column with a given name (ignoring case),
+      * or -1 if there is none.
+      */
+    public int findColumn(String name) {
+	for(int col=1; col <= ncols; col++) {
+	    String cname = getColumnName(col);
+	    if (cname != null && cname.equalsIgnoreCase(name)) return col;
+	}
+	return -1;
+    }
+
+    /** Is a column a variable length array column? */
+    public boolean isVariableLength(int col) {
+	checkColumn(col);
+	return code[col] == 'P' || code[col] == 'Q';
+    }
+
+    /** Return the code of the elements of a variable length column's 
+      * arrays, or 0 for a fixed length column.
+      */
+    public char getArrayCode(int col) {
+	checkColumn(col);
+	return heapCode[col];
+    }
+
+    /** Allocate an array of the type used to return elements with a 
+      * given column code.
+      */
+    public static Object allocate(char code, int n) {
+	switch (code) {
+	case 'L': case 'X': case 'B': case 'A':
+	    return new byte[n];
+	case 'I':
+	    return new short[n];
+	case 'J':
+	    return new int[n];
+	case 'K':
+	    return new long[n];
+	case 'E': case 'C':
+	    return new float[n];
+	case 'D': case 'M':
+	    return new double[n];
+	default:
+	    throw new IllegalArgumentException("bad column code: " + code);
+	}
+    }
+
+    /** Return all of the values in a fixed length column.
+      * @see #readColumn(int, int, int, Object, int)
+      */
+    public Object getColumn(int col) {
+	return getColumn(col, 0, nrows);
+    }
+
+    /** Return the values in a range of rows of a fixed length column.
+      * @param col       the column number
+      * @param firstRow  the first row to read, counting from 0
+      * @param count     the number of rows to read
+      * @return an array of getRepeat(col)*count elements
+      */
+    public Object getColumn(int col, int firstRow, int count) {
+	checkColumn(col);
+	Object out = allocate(code[col], repeat[col]*count);
+	readColumn(col, firstRow, count, out, 0);
+	return out;
+    }
+
+    /** Read the values in a range of rows of a fixed length column 
+      * into an array.  For a variable length column, use readArray().
+      * @param col       the column number
+      * @param firstRow  the first row to read, counting from 0
+      * @param count     the number of rows to read
+      * @param dst       an array of the type returned by 
+      *                  allocate(getColumnCode(col), n)
+      * @param dstOffset where in dst to put the first value
+      */
+    public void readColumn(int col, int firstRow, int count, Object dst,
+			   int dstOffset) 
+    {
+	checkColumn(col);
+	if (isVariableLength(col)) 
+	    throw new IllegalArgumentException("column " + col + 
+					       " has variable length");
+	if (firstRow < 0 || count < 0 || firstRow + count > nrows) 
+	    throw new IllegalArgumentException("rows out of range");
+
+	int rep = repeat[col], size = elementSize(code[col]);
+	int row = firstRow, end = firstRow + count;
+	while (row < end) {
+	    ByteBuffer seg = rows[row / segRows];
+	    int segEnd = Math.min(end, (row / segRows + 1) * segRows);
+	    int pos = (row % segRows)*stride + offset[col];
+	    for( ; row < segEnd; row++, pos += stride) {
+		get(seg, pos, code[col], rep, dst, dstOffset);
+		dstOffset += rep;
+	    }
+	}
+    }
+
+    /** Copy n elements of the type given by code from a buffer, starting
+      * at byte position pos, into an array.
+      */
+    private static void get(ByteBuffer buf, int pos, char code, int n,
+			    Object dst, int off) 
+    {
+	int i;
+	switch (code) {
+	case 'L': case 'X': case 'B': case 'A': {
+	    byte[] a = (byte[]) dst;
+	    for(i=0; i < n; i++) a[off+i] = buf.get(pos+i);
+	    break;
+	}
+	case 'I': {
+	    short[] a = (short[]) dst;
+	    for(i=0; i < n; i++, pos += 2) a[off+i] = buf.getShort(pos);
+	    break;
+	}
+	case 'J': {
+	    int[] a = (int[]) dst;
+	    for(i=0; i < n; i++, pos += 4) a[off+i] = buf.getInt(pos);
+	    break;
+	}
+	case 'K': {
+	    long[] a = (long[]) dst;
+	    for(i=0; i < n; i++, pos += 8) a[off+i] = buf.getLong(pos);
+	    break;
+	}
+	case 'E': case 'C': {
+	    float[] a = (float[]) dst;
+	    for(i=0; i < n; i++, pos += 4) a[off+i] = buf.getFloat(pos);
+	    break;
+	}
+	case 'D': case 'M': {
+	    double[] a = (double[]) dst;
+	    for(i=0; i < n; i++, pos += 8) a[off+i] = buf.getDouble(pos);
+	    break;
+	}
+	default:
+	    throw new IllegalArgumentException("bad column code: " + code);
+	}
+    }
+
+    /** Return the first element of a fixed length numeric column in a 
+      * given row as a double.
+      */
+    public double getDouble(int row, int col) {
+	checkColumn(col);
+	if (row < 0 || row >= nrows) 
+	    throw new IllegalArgumentException("no such row: " + row);
+	ByteBuffer seg = rows[row / segRows];
+	int pos = (row % segRows)*stride + offset[col];
+	switch (code[col]) {
+	case 'B':
+	    return seg.get(pos) & 0xff;
+	case 'I':
+	    return seg.getShort(pos);
+	case 'J':
+	    return seg.getInt(pos);
+	case 'K':
+	    return seg.getLong(pos);
+	case 'E': case 'C':
+	    return seg.getFloat(pos);
+	case 'D': case 'M':
+	    return seg.getDouble(pos);
+	default:
+	    throw new IllegalArgumentException("column " + col + 
+					       " is not numeric");
+	}
+    }
+
+    /** Return the value of a character (A) column in a given row, with
+      * trailing blanks and anything after a NUL removed.
+      */
+    public String getString(int row, int col) {
+	checkColumn(col);
+	if (code[col] != 'A') 
+	    throw new IllegalArgumentException("column " + col + 
+					       " is not a string");
+	ByteBuffer seg = rows[row / segRows];
+	int pos = (row % segRows)*stride + offset[col];
+	int n = 0;
+	while (n < repeat[col] && seg.get(pos+n) != 0) n++;
+	while (n > 0 && seg.get(pos+n-1) == ' ') n--;
+	char[] c = new char[n];
+	for(int i=0; i < n; i++) c[i] = (char) (seg.get(pos+i) & 0xff);
+	return new String(c);
+    }
+
+    /** Return the byte position of the descriptor for a variable length
+      * column in a row, within its segment.
+      */
+    private int descriptor(int row, int col) {
+	checkColumn(col);
+	if (! isVariableLength(col)) 
+	    throw new IllegalArgumentException("column " + col + 
+					       " has fixed length");
+	if (row < 0 || row >= nrows) 
+	    throw new IllegalArgumentException("no such row: " + row);
+	return (row % segRows)*stride + offset[col];
+    }
+
+    /** Return the number of elements in a variable length column's 
+      * array in a given row, counted as for getRepeat() (i.e. a complex
+      * value counts as two elements and 8 bits as one).
+      */
+    public int getArrayLength(int row, int col) {
+	int pos = descriptor(row, col);
+	ByteBuffer seg = rows[row / segRows];
+	long n = (code[col] == 'P') ? seg.getInt(pos) : seg.getLong(pos);
+	char c = heapCode[col];
+	return (int) ((c == 'X') ? (n+7)/8 : (c == 'C' || c == 'M') ? 2*n : n);
+    }
+
+    /** Return a variable length column's array for a given row.
+      * @return an array of the type given by getArrayCode(col)
+      */
+    public Object getArray(int row, int col) {
+	Object out = allocate(getArrayCode(col), getArrayLength(row, col));
+	readArray(row, col, out, 0);
+	return out;
+    }
+
+    /** Read a variable length column's array for a given row from the 
+      * heap into an array.
+      * @param dst  an array of the type returned by 
+      *             allocate(getArrayCode(col), n), with room for 
+      *             getArrayLength(row, col) elements after dstOffset
+      * @return the number of elements read
+      */
+    public int readArray(int row, int col, Object dst, int dstOffset) {
+	int pos = descriptor(row, col);
+	ByteBuffer seg = rows[row / segRows];
+	long hoff = (code[col] == 'P') ? seg.getInt(pos+4) & 0xffffffffL 
+	                               : seg.getLong(pos+8);
+	int nelem = getArrayLength(row, col);
+	if (nelem == 0) return 0;
+	char c = heapCode[col];
+	if (heap == null || hoff < 0 || 
+	    hoff + ((long) nelem)*elementSize(c) > heap.limit())
+	    throw new IllegalArgumentException("array for row " + row + 
+					       " lies outside the heap");
+	get(heap, (int) hoff, c, nelem, dst, dstOffset);
+	return nelem;
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ */
+
+package ncsa.fits.fits;
+
+import java.io.*;
+import java.nio.*;
+import java.util.Vector;
+
+/** An image stored with the FITS tiled image compression convention:
+  * a binary table (with ZIMAGE = T) each of whose rows holds one 
+  * compressed rectangular tile of the image.  Tiles are decoded one at
+  * a time on request with readTile(), so that a caller interested in
+  * part of the image need only decompress the tiles that overlap it.
+  * Tiles may be read by several threads at once.
+  * <p>
+  * The RICE_1, GZIP_1, GZIP_2, PLIO_1 and NOCOMPRESS algorithms are
+  * supported, along with tiles stored in the GZIP_COMPRESSED_DATA and
+  * UNCOMPRESSED_DATA columns.  Floating-point images quantized to 
+  * integers are restored using ZSCALE and ZZERO, with the subtractive 
+  * dithering (SUBTRACTIVE_DITHER_1 and _2) undone using the same 
+  * random sequence as CFITSIO so that the values match those produced
+  * by the standard tools.  Integer tiles are returned as stored; BSCALE,
+  * BZERO and BLANK (from ZBLANK) are left to the caller and appear in 
+  * the header returned by getImageHeader().
+  */
+public class CompressedImage extends Object {
+
+    /** the number of values in the dithering random sequence */
+    public static final int N_RANDOM = 10000;
+
+    /** the quantized value that marks a null (NaN) pixel if ZBLANK is
+      * not given */
+    public static final int NULL_VALUE = -2147483647;
+
+    /** the quantized value that marks an exact zero with 
+      * SUBTRACTIVE_DITHER_2 */
+    public static final int ZERO_VALUE = -2147483646;
+
+    private static final int NO_DITHER = 0, DITHER_1 = 1, DITHER_2 = 2;
+
+    private static float[] randoms = null;
+
+    private BinaryTable table;
+    private Header header;
+    private int bitpix;
+    private int[] size, tileSize, ntiles;
+    private String cmptype;
+    private int blockSize = 32, bytePix = 4;
+    private int quantize = NO_DITHER;
+    private int dither0 = 1;
+
+    // the columns holding each tile's data and parameters; 0 if absent
+    private int cData, cGzip, cRaw, cScale, cZero, cBlank;
+    // the values of ZSCALE, ZZERO and ZBLANK if given as keywords
+    private double zscale = Double.NaN, zzero = 0.0;
+    private boolean hasBlank = false;
+    private int zblank = NULL_VALUE;
+
+    /** Create a compressed image from the binary table holding it.
+      * @exception IOException if the table is not a compressed image
+      */
+    public CompressedImage(BinaryTable table) throws IOException {
+	this.table = table;
+	header = table.getHeader();
+	if (! header.getBValue("ZIMAGE", false)) 
+	    throw new IOException("table is not a compressed image");
+
+	bitpix = (int) header.getLValue("ZBITPIX", 0);
+	int naxis = (int) header.getLValue("ZNAXIS", 0);
+	if (naxis <= 0) throw new IOException("bad ZNAXIS: " + naxis);
+	size = new int[naxis];
+	tileSize = new int[naxis];
+	ntiles = new int[naxis];
+	long total = 1;
+	for (int i=0; i < naxis; i++) {
+	    size[i] = (int) header.getLValue("ZNAXIS" + (i+1), 0);
+	    tileSize[i] = (int) header.getLValue("ZTILE" + (i+1), 
+						 (i == 0) ? size[0] : 1);
+	    if (size[i] <= 0 || tileSize[i] <= 0) 
+		throw new IOException("bad image or tile size on axis " + 
+				      (i+1));
+	    ntiles[i] = (size[i] + tileSize[i] - 1) / tileSize[i];
+	    total *= ntiles[i];
+	}
+	if (total != table.getRowCount()) 
+	    throw new IOException("table has " + table.getRowCount() + 
+				  " rows but the image has " + total + 
+				  " tiles");
+
+	cmptype = header.hasKey("ZCMPTYPE") ? 
+	    header.getSValue("ZCMPTYPE").trim().toUpperCase() : "NOCOMPRESS";
+	for (int i=1; header.hasKey("ZNAME" + i); i++) {
+	    String name = header.getSValue("ZNAME" + i).trim().toUpperCase();
+	    if (name.equals("BLOCKSIZE")) 
+		blockSize = (int) header.getLValue("ZVAL" + i, 32);
+	    else if (name.equals("BYTEPIX")) 
+		bytePix = (int) header.getLValue("ZVAL" + i, 4);
+	}
+
+	String q = header.hasKey("ZQUANTIZ") ? 
+	    header.getSValue("ZQUANTIZ").trim().toUpperCase() : "NO_DITHER";
+	if (q.equals("SUBTRACTIVE_DITHER_1")) quantize = DITHER_1;
+	else if (q.equals("SUBTRACTIVE_DITHER_2")) quantize = DITHER_2;
+	dither0 = (int) header.getLValue("ZDITHER0", 1);
+
+	cData = table.findColumn("COMPRESSED_DATA");
+	cGzip = table.findColumn("GZIP_COMPRESSED_DATA");
+	cRaw = table.findColumn("UNCOMPRESSED_DATA");
+	cScale = table.findColumn("ZSCALE");
+	cZero = table.findColumn("ZZERO");
+	cBlank = table.findColumn("ZBLANK");
+	if (cData < 0 && cRaw < 0 && cGzip < 0) 
+	    throw new IOException("no COMPRESSED_DATA column");
+	if (header.hasKey("ZSCALE")) zscale = header.getDValue("ZSCALE");
+	if (header.hasKey("ZZERO")) zzero = header.getDValue("ZZERO");
+	if (header.hasKey("ZBLANK")) {
+	    hasBlank = true;
+	    zblank = (int) header.getLValue("ZBLANK");
+	}
+	if (cBlank > 0) hasBlank = true;
+    }
+
+    /** Return the value of ZBITPIX, the BITPIX of the image */
+    public int getBitpix() { return bitpix; }
+
+    /** Return the length of each axis of the image */
+    public int[] getSize() { return (int[]) size.clone(); }
+
+    /** Return the length of each axis of a (full) tile */
+    public int[] getTileSize() { return (int[]) tileSize.clone(); }
+
+    /** Return the compression algorithm (ZCMPTYPE) */
+    public String getCompressionType() { return cmptype; }
+
+    /** Return the number of the tile (counting from 0) that contains 
+      * the pixel at a zero-based position
+      */
+    public int getTileNumber(int[] pos) {
+	int n = 0;
+	for (int i=size.length-1; i >= 0; i--) 
+	    n = n*ntiles[i] + pos[i]/tileSize[i];
+	return n;
+    }
+
+    /** Return a header describing the image as if it were stored 
+      * uncompressed: the Z keywords replace their counterparts, and the
+      * keywords describing the table and its compression are dropped.
+      */
+    public Header getImageHeader() {
+	Vector out = new Vector();
+	int n = header.getCardSize();
+	out.addElement(card("SIMPLE", "T"));
+	out.addElement(card("BITPIX", Integer.toString(bitpix)));
+	out.addElement(card("NAXIS", Integer.toString(size.length)));
+	for (int i=0; i < size.length; i++) 
+	    out.addElement(card("NAXIS" + (i+1), Integer.toString(size[i])));
+	if (bitpix > 0 && header.hasKey("ZBLANK") && ! header.hasKey("BLANK"))
+	    out.addElement(card("BLANK", Long.toString(zblank)));
+
+	for (int i=0; i < n; i++) {
+	    String c = header.getCard(i);
+	    String key = Header.keyword(c);
+	    if (key.equals("END") || isTableKeyword(key)) continue;
+	    out.addElement(c);
+	}
+	out.addElement(card("END", null));
+	String[] cards = new String[out.size()];
+	out.copyInto(cards);
+	return new Header(cards);
+    }
+
+    private static boolean isTableKeyword(String key) {
+	String[] fixed = { "XTENSION", "BITPIX", "NAXIS", "PCOUNT", "GCOUNT",
+			   "TFIELDS", "THEAP", "ZIMAGE", "ZCMPTYPE", "ZBITPIX",
+			   "ZNAXIS", "ZQUANTIZ", "ZDITHER0", "ZSIMPLE", 
+			   "ZEXTEND", "ZBLOCKED", "ZTENSION", "ZPCOUNT", 
+			   "ZGCOUNT", "ZHECKSUM", "ZDATASUM", "ZSCALE", 
+			   "ZZERO", "ZBLANK", "CHECKSUM", "DATASUM", 
+			   "EXTNAME" };
+	for (int i=0; i < fixed.length; i++) 
+	    if (key.equals(fixed[i])) return true;
+	String[] indexed = { "NAXIS", "TFORM", "TTYPE", "TUNIT", "TSCAL", 
+			     "TZERO", "TNULL", "TDISP", "TDIM", "ZNAXIS", 
+			     "ZTILE", "ZNAME", "ZVAL" };
+	for (int i=0; i < indexed.length; i++) {
+	    if (key.startsWith(indexed[i]) && 
+		key.length() > indexed[i].length() &&
+		Character.isDigit(key.charAt(indexed[i].length())))
+		return true;
+	}
+	return false;
+    }
+
+    private static String card(String key, String value) {
+	StringBuffer sb = new StringBuffer(key);
+	while (sb.length() < 8) sb.append(' ');
+	if (value != null) {
+	    sb.append("= ");
+	    for (int i=value.length(); i < 20; i++) sb.append(' ');
+	    sb.append(value);
+	}
+	while (sb.length() < 80) sb.append(' ');
+	return sb.toString();
+    }
+
+    /** Compute the zero-based origin and size of a tile */
+    public void getTileExtent(int tile, int[] origin, int[] tsize) {
+	for (int i=0; i < size.length; i++) {
+	    int pos = tile % ntiles[i];
+	    tile /= ntiles[i];
+	    origin[i] = pos * tileSize[i];
+	    tsize[i] = Math.min(tileSize[i], size[i] - origin[i]);
+	}
+    }
+
+    /** Decode a tile.
+      * @param tile  the tile number, counting from 0 with the first axis
+      *              varying fastest
+      * @return the tile's values, first axis varying fastest, as an 
+      *         array of the Java type corresponding to ZBITPIX (byte, 
+      *         short, int, long, float or double)
+      * @exception IOException if the tile cannot be decoded
+      */
+    public Object readTile(int tile) throws IOException {
+	int[] origin = new int[size.length];
+	int[] tsize = new int[size.length];
+	getTileExtent(tile, origin, tsize);
+	int n = 1;
+	for (int i=0; i < tsize.length; i++) n *= tsize[i];
+
+	if (cData > 0 && table.getArrayLength(tile, cData) > 0) {
+	    if (cmptype.equals("NOCOMPRESS")) 
+		return uncompressed(tile, table.getArray(tile, cData), n);
+	    if (cmptype.startsWith("GZIP")) {
+		byte[] b = gunzip(tile, cData, n);
+		if (b.length == n*elementSize() && 
+		    ! (bitpix < 0 && isQuantized())) 
+		    return toValues(b, n);
+		int[] ivals = new int[n];
+		if (b.length != 4*n) 
+		    throw new IOException("tile " + tile + 
+					  " has the wrong size");
+		ByteBuffer.wrap(b).asIntBuffer().get(ivals);
+		return (bitpix < 0) ? unquantize(tile, ivals) : narrow(ivals);
+	    }
+	    int[] ivals = decode(tile, n);
+	    if (bitpix < 0) 
+		return unquantize(tile, ivals);
+	    return narrow(ivals);
+	}
+	if (cGzip > 0 && table.getArrayLength(tile, cGzip) > 0) 
+	    return toValues(gunzip(tile, cGzip, n), n);
+	if (cRaw > 0) {
+	    Object raw = table.getArray(tile, cRaw);
+	    if (java.lang.reflect.Array.getLength(raw) != n) 
+		throw new IOException("tile " + tile + " has the wrong size");
+	    return convertRaw(raw, n);
+	}
+	throw new IOException("tile " + tile + " has no data");
+    }
+
+    /** Are floating-point values stored as scaled integers? */
+    private boolean isQuantized() {
+	return cScale > 0 || zscale == zscale;
+    }
+
+    /** Inflate a GZIP-compressed tile, undoing the GZIP_2 shuffle */
+    private byte[] gunzip(int tile, int col, int n) throws IOException {
+	byte[] b = TileCompression.inflate((byte[]) table.getArray(tile, col),
+					   n*Math.max(4, elementSize()));
+	if (cmptype.equals("GZIP_2") && b.length % n == 0) 
+	    b = TileCompression.unshuffle(b, b.length / n);
+	return b;
+    }
+
+    private int elementSize() {
+	return Math.abs(bitpix) / 8;
+    }
+
+    /** Decompress the COMPRESSED_DATA of a tile into integers */
+    private int[] decode(int tile, int n) throws IOException {
+	int[] out = new int[n];
+	if (cmptype.equals("RICE_1") || cmptype.equals("RICE_ONE")) {
+	    byte[] in = (byte[]) table.getArray(tile, cData);
+	    TileCompression.riceDecode(in, in.length, out, n, blockSize, 
+				       (bitpix < 0) ? 4 : bytePix);
+	}
+	else if (cmptype.equals("PLIO_1")) {
+	    Object ll = table.getArray(tile, cData);
+	    if (! (ll instanceof short[])) 
+		throw new IOException("PLIO data must be 16-bit");
+	    TileCompression.plioDecode((short[]) ll, out, n);
+	}
+	else if (cmptype.startsWith("HCOMPRESS")) {
+	    throw new IOException("HCOMPRESS tiles are not supported");
+	}
+	else {
+	    throw new IOException("unknown compression: " + cmptype);
+	}
+	return out;
+    }
+
+    /** Convert decoded integers to the type given by ZBITPIX */
+    private Object narrow(int[] ivals) throws IOException {
+	int n = ivals.length;
+	switch (bitpix) {
+	case 8: {
+	    byte[] out = new byte[n];
+	    for (int i=0; i < n; i++) out[i] = (byte) ivals[i];
+	    return out;
+	}
+	case 16: {
+	    short[] out = new short[n];
+	    for (int i=0; i < n; i++) out[i] = (short) ivals[i];
+	    return out;
+	}
+	case 32:
+	    return ivals;
+	case 64: {
+	    long[] out = new long[n];
+	    for (int i=0; i < n; i++) out[i] = ivals[i];
+	    return out;
+	}
+	default:
+	    throw new IOException("bad ZBITPIX: " + bitpix);
+	}
+    }
+
+    /** Convert uncompressed big-endian bytes to the type given by 
+      * ZBITPIX */
+    private Object toValues(byte[] b, int n) throws IOException {
+	if (b.length == n*elementSize()) {
+	    ByteBuffer buf = ByteBuffer.wrap(b);
+	    switch (bitpix) {
+	    case 8:
+		return b;
+	    case 16: {
+		short[] out = new short[n];
+		buf.asShortBuffer().get(out);
+		return out;
+	    }
+	    case 32: {
+		int[] out = new int[n];
+		buf.asIntBuffer().get(out);
+		return out;
+	    }
+	    case 64: {
+		long[] out = new long[n];
+		buf.asLongBuffer().get(out);
+		return out;
+	    }
+	    case -32: {
+		float[] out = new float[n];
+		buf.asFloatBuffer().get(out);
+		return out;
+	    }
+	    case -64: {
+		double[] out = new double[n];
+		buf.asDoubleBuffer().get(out);
+		return out;
+	    }
+	    }
+	}
+	throw new IOException("uncompressed tile has the wrong size");
+    }
+
+    /** Convert the COMPRESSED_DATA of a NOCOMPRESS tile, which holds 
+      * either the big-endian bytes of the values or an array of them, 
+      * to the type given by ZBITPIX */
+    private Object uncompressed(int tile, Object raw, int n) 
+	throws IOException 
+    {
+	if (bitpix < 0 && isQuantized()) {
+	    int[] ivals = null;
+	    if (raw instanceof int[]) {
+		ivals = (int[]) raw;
+	    } else if (raw instanceof byte[] && ((byte[]) raw).length == 4*n) {
+		ivals = new int[n];
+		ByteBuffer.wrap((byte[]) raw).asIntBuffer().get(ivals);
+	    }
+	    if (ivals == null || ivals.length != n) 
+		throw new IOException("tile " + tile + " has the wrong size");
+	    return unquantize(tile, ivals);
+	}
+	if (raw instanceof byte[]) 
+	    return toValues((byte[]) raw, n);
+	if (java.lang.reflect.Array.getLength(raw) != n) 
+	    throw new IOException("tile " + tile + " has the wrong size");
+	return convertRaw(raw, n);
+    }
+
+    /** Convert an UNCOMPRESSED_DATA array to the type given by ZBITPIX */
+    private Object convertRaw(Object raw, int n) throws IOException {
+	switch (bitpix) {
+	case -32:
+	    if (raw instanceof float[]) return raw;
+	    if (raw instanceof double[]) {
+		float[] out = new float[n];
+		for (int i=0; i < n; i++) out[i] = (float) ((double[]) raw)[i];
+		return out;
+	    }
+	    break;
+	case -64:
+	    if (raw instanceof double[]) return raw;
+	    if (raw instanceof float[]) {
+		double[] out = new double[n];
+		for (int i=0; i < n; i++) out[i] = ((float[]) raw)[i];
+		return out;
+	    }
+	    break;
+	case 8:
+	    if (raw instanceof byte[]) return raw;
+	    break;
+	case 16:
+	    if (raw instanceof short[]) return raw;
+	    break;
+	case 32:
+	    if (raw instanceof int[]) return raw;
+	    break;
+	case 64:
+	    if (raw instanceof long[]) return raw;
+	    break;
+	}
+	throw new IOException("UNCOMPRESSED_DATA does not match ZBITPIX");
+    }
+
+    /** Restore the floating-point values of a quantized tile */
+    private Object unquantize(int tile, int[] ivals) throws IOException {
+	double scale = zscale, zero = zzero;
+	if (cScale > 0) 
+	    scale = ((double[]) asDouble(table.getColumn(cScale, tile, 1)))[0];
+	if (cZero > 0) 
+	    zero = ((double[]) asDouble(table.getColumn(cZero, tile, 1)))[0];
+	int blank = zblank;
+	if (cBlank > 0) 
+	    blank = (int) ((double[]) asDouble(table.getColumn(cBlank, tile, 
+							       1)))[0];
+	if (scale != scale) {
+	    // no scaling given: the integers are the values
+	    scale = 1.0;
+	    zero = 0.0;
+	}
+	boolean hb = hasBlank;
+	int n = ivals.length;
+
+	float[] rand = null;
+	int iseed = 0, next = 0;
+	if (quantize != NO_DITHER) {
+	    rand = getRandoms();
+	    iseed = (tile + dither0 - 1) % N_RANDOM;
+	    next = (int) (rand[iseed] * 500);
+	}
+
+	float[] fout = (bitpix == -32) ? new float[n] : null;
+	double[] dout = (bitpix == -64) ? new double[n] : null;
+	for (int i=0; i < n; i++) {
+	    int iv = ivals[i];
+	    double v;
+	    if (hb && iv == blank) {
+		v = Double.NaN;
+	    } else if (quantize == NO_DITHER) {
+		v = iv * scale + zero;
+	    } else if (quantize == DITHER_2 && iv == ZERO_VALUE) {
+		v = 0.0;
+	    } else {
+		v = (iv - rand[next] + 0.5) * scale + zero;
+	    }
+	    if (fout != null) fout[i] = (float) v;
+	    else dout[i] = v;
+
+	    if (rand != null && ++next == N_RANDOM) {
+		if (++iseed == N_RANDOM) iseed = 0;
+		next = (int) (rand[iseed] * 500);
+	    }
+	}
+	return (fout != null) ? (Object) fout : (Object) dout;
+    }
+
+    private static Object asDouble(Object a) {
+	if (a instanceof double[]) return a;
+	int n = java.lang.reflect.Array.getLength(a);
+	double[] out = new double[n];
+	for (int i=0; i < n; i++) 
+	    out[i] = ((Number) java.lang.reflect.Array.get(a, i)).doubleValue();
+	return out;
+    }
+
+    /** Return the sequence of random numbers used for dithering: the
+      * same values CFITSIO computes with its Park-Miller generator.
+      */
+    public synchronized static float[] getRandoms() {
+	if (randoms == null) {
+	    float[] r = new float[N_RANDOM];
+	    double a = 16807.0, m = 2147483647.0, seed = 1;
+	    for (int i=0; i < N_RANDOM; i++) {
+		double temp = a * seed;
+		seed = temp - m * ((int) (temp / m));
+		r[i] = (float) (seed / m);
+	    }
+	    // the last seed is a check on the arithmetic
+	    if ((int) seed != 1043618065) 
+		throw new InternalError("dithering random sequence is wrong");
+	    randoms = r;
+	}
+	return randoms;
+    }
+}
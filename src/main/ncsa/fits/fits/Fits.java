@@ -60,9 +60,11 @@ public class Fits extends Object implements IO {
 	}
     }
 
-    /** Create the FITS object using an existing File Object */
+    /** Create the FITS object using an existing File Object.  A gzip or
+      * bzip2 compressed file is decompressed as it is read.
+      */
     public Fits(File fitsFile) throws IOException {
-	this(new RandomAccessFile(fitsFile, "r"));
+	this(open(fitsFile));
     }
     
     /** Create the FITS object from a given file name */
@@ -70,9 +72,20 @@ public class Fits extends Object implements IO {
   	this(new File(filename));
     }
 
-    /** Create the FITS object from a given URL */
+    /** Create the FITS object from a given URL.  Gzip or bzip2 
+      * compressed data are decompressed as they are read.
+      */
     public Fits (URL myURL) throws IOException {
-	this (new DataInputStream(myURL.openStream()));
+	this (new DataInputStream(CompressedInput.open(myURL.openStream())));
+    }
+
+    /** open a file for random access, or as a decompressing stream if 
+      * it is compressed
+      */
+    private static DataInput open(File fitsFile) throws IOException {
+	if (CompressedInput.detect(fitsFile) == CompressedInput.NONE) 
+	    return new RandomAccessFile(fitsFile, "r");
+	return new DataInputStream(CompressedInput.open(fitsFile));
     }
     
    
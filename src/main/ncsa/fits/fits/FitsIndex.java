@@ -0,0 +1,542 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ */
+
+package ncsa.fits.fits;
+
+import java.io.*;
+import java.util.*;
+
+/** An index of the HDUs in a FITS file.
+  * The index is built by a single pass through the file that reads
+  * only the header blocks (2880 bytes at a time) and seeks over the
+  * data segments.  For each HDU it records where the header and data
+  * begin, the size of the data, and the handful of keywords needed to
+  * interpret an image array (BITPIX, NAXISn, BSCALE, BZERO, BLANK,
+  * EXTNAME, and ZIMAGE for tile-compressed images).  Any HDU may then
+  * be located directly without walking through the ones before it.
+  * <p>
+  * An index can be saved to a small sidecar file next to the FITS file
+  * so that reopening a file with many extensions does not require
+  * rescanning it; see forFile().
+  */
+public class FitsIndex extends Object {
+
+    /** Size of a FITS logical record */
+    public static final int BLOCK_SIZE = 2880;
+
+    /** Size of a FITS header card */
+    public static final int CARD_SIZE = 80;
+
+    /** Extension appended to the FITS file name to get the sidecar name */
+    public static final String SIDECAR_EXTENSION = ".fidx";
+
+    /** forFile() will only save a sidecar for files with at least this
+      * many HDUs; smaller files are faster to rescan than to look up.
+      */
+    public static int sidecarMinimumHDUs = 16;
+
+    private static final int MAGIC = 0x46494458;    // "FIDX"
+    private static final int VERSION = 2;
+
+    private Vector entries = new Vector();
+    private long fileLength = -1;
+    private long lastModified = 0;
+
+    /** Null constructor */
+    protected FitsIndex() { }
+
+    /** Build an index by scanning an open file from the beginning.
+      * @param raf  the file to scan; its file pointer is moved.
+      */
+    public FitsIndex(RandomAccessFile raf) throws IOException {
+	scan(raf);
+    }
+
+    /** Build an index by scanning the given file. */
+    public FitsIndex(File file) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	    scan(raf);
+	} finally {
+	    raf.close();
+	}
+	lastModified = file.lastModified();
+    }
+
+    /** Return an index for the given file, using a previously saved
+      * sidecar if there is an up-to-date one.  Otherwise the file is
+      * scanned and, if it has enough HDUs to make it worthwhile, an
+      * attempt is made to save the index as a sidecar.  Failure to
+      * write the sidecar (e.g. because the directory is read-only) is
+      * silently ignored.
+      */
+    public static FitsIndex forFile(File file) throws IOException {
+	File side = getSidecar(file);
+	if (side.exists()) {
+	    try {
+		FitsIndex idx = read(side);
+		if (idx.fileLength == file.length() &&
+		    idx.lastModified == file.lastModified())
+		    return idx;
+	    } catch (IOException ex) {
+		// unusable sidecar; rescan
+	    }
+	}
+
+	FitsIndex idx = new FitsIndex(file);
+	if (idx.size() >= sidecarMinimumHDUs) {
+	    try {
+		idx.write(side);
+	    } catch (IOException ex) {
+	    } catch (SecurityException ex) { }
+	}
+	return idx;
+    }
+
+    /** Return the name of the sidecar file for a FITS file */
+    public static File getSidecar(File file) {
+	return new File(file.getPath() + SIDECAR_EXTENSION);
+    }
+
+    /** Get the number of HDUs in the file */
+    public int size() {
+	return entries.size();
+    }
+
+    /** Get the description of the n'th HDU (0 for the primary HDU)
+      * @exception ArrayIndexOutOfBoundsException if n is out of range
+      */
+    public Entry getEntry(int n) {
+	return (Entry) entries.elementAt(n);
+    }
+
+    /** Get the numbers of the HDUs that contain non-empty image
+      * arrays (including the primary array), in file order.
+      */
+    public int[] getImageHDUs() {
+	int i, n=0;
+	for(i=0; i < entries.size(); i++)
+	    if (getEntry(i).isImage()) n++;
+
+	int[] out = new int[n];
+	for(i=0, n=0; i < entries.size(); i++)
+	    if (getEntry(i).isImage()) out[n++] = i;
+	return out;
+    }
+
+    /** Read the header of the n'th HDU from an open file.
+      * @param raf  the file; its file pointer is moved.
+      */
+    public Header readHeader(RandomAccessFile raf, int n) throws IOException {
+	raf.seek(getEntry(n).getHeaderOffset());
+	return new Header(raf);
+    }
+
+    /** Read the complete n'th HDU (header and data) from an open file.
+      * @param raf  the file; its file pointer is moved.
+      */
+    public HDU readHDU(RandomAccessFile raf, int n) throws IOException {
+	raf.seek(getEntry(n).getHeaderOffset());
+	HDU hdu = new HDU();
+	hdu.readClass(raf);
+	return hdu;
+    }
+
+    /** Open the n'th HDU, which must be a binary table, for column
+      * access.  The table's data segment is mapped from the file, so 
+      * the table remains usable after the file is closed.
+      * @param raf  the file; its file pointer is moved.
+      * @exception IOException if the HDU is not a binary table
+      */
+    public BinaryTable readTable(RandomAccessFile raf, int n) 
+	throws IOException 
+    {
+	Entry e = getEntry(n);
+	if (! "BINTABLE".equals(e.getXtension())) 
+	    throw new IOException("HDU " + n + " is not a binary table");
+	return new BinaryTable(raf.getChannel(), e.getDataOffset(), 
+			       readHeader(raf, n));
+    }
+
+    /** Scan the file, recording every HDU */
+    protected void scan(RandomAccessFile raf) throws IOException {
+	byte[] block = new byte[BLOCK_SIZE];
+	long length = raf.length();
+	long offset = 0;
+
+	entries.removeAllElements();
+	fileLength = length;
+	while (offset + BLOCK_SIZE <= length) {
+	    raf.seek(offset);
+	    Entry e = scanHeader(raf, block, offset, length, entries.size());
+	    if (e == null) break;
+	    entries.addElement(e);
+	    offset = e.getDataOffset() + e.getPaddedDataSize();
+	}
+    }
+
+    /** Parse one header starting at offset.
+      * @return the description of the HDU or null if a valid header
+      *         is not found
+      */
+    private Entry scanHeader(RandomAccessFile raf, byte[] block,
+			     long offset, long length, int hdunum)
+	throws IOException
+    {
+	Entry e = new Entry();
+	e.headerOffset = offset;
+	Vector naxes = null;
+	int ncards = 0;
+	boolean ended = false;
+
+	while (! ended) {
+	    if (offset + BLOCK_SIZE > length) return null;
+	    raf.readFully(block);
+	    offset += BLOCK_SIZE;
+
+	    for(int c=0; c < BLOCK_SIZE && ! ended; c += CARD_SIZE, ncards++) {
+
+		if (ncards == 0) {
+		    // the first card must be SIMPLE (for the primary HDU)
+		    // or XTENSION
+		    if (hdunum == 0 && matches(block, c, "SIMPLE  ")) {
+			e.xtension = Entry.PRIMARY;
+		    } else if (hdunum > 0 && matches(block, c, "XTENSION")) {
+			e.xtension = stringValue(block, c);
+			if (e.xtension == null) return null;
+		    } else {
+			return null;
+		    }
+		}
+		else if (matches(block, c, "END     ")) {
+		    ended = true;
+		}
+		else if (matches(block, c, "BITPIX  ")) {
+		    e.bitpix = (int) longValue(block, c, 0);
+		}
+		else if (matches(block, c, "NAXIS   ")) {
+		    int n = (int) longValue(block, c, 0);
+		    naxes = new Vector(n);
+		    for(int i=0; i < n; i++) naxes.addElement(new Integer(0));
+		}
+		else if (naxes != null && matches(block, c, "NAXIS")) {
+		    // NAXISn
+		    int n = axisNumber(block, c+5);
+		    if (n > 0 && n <= naxes.size())
+			naxes.setElementAt(
+			    new Integer((int) longValue(block, c, 0)), n-1);
+		}
+		else if (matches(block, c, "PCOUNT  ")) {
+		    e.pcount = longValue(block, c, 0);
+		}
+		else if (matches(block, c, "GCOUNT  ")) {
+		    e.gcount = longValue(block, c, 1);
+		}
+		else if (matches(block, c, "BSCALE  ")) {
+		    e.bscale = doubleValue(block, c);
+		}
+		else if (matches(block, c, "BZERO   ")) {
+		    e.bzero = doubleValue(block, c);
+		}
+		else if (matches(block, c, "BLANK   ")) {
+		    e.blank = new Long(longValue(block, c, 0));
+		}
+		else if (matches(block, c, "EXTNAME ")) {
+		    e.extname = stringValue(block, c);
+		}
+		else if (matches(block, c, "ZIMAGE  ")) {
+		    String val = valueField(block, c);
+		    e.zimage = (val != null && val.startsWith("T"));
+		}
+	    }
+	}
+
+	e.dataOffset = offset;
+	e.naxis = new int[(naxes == null) ? 0 : naxes.size()];
+	for(int i=0; i < e.naxis.length; i++)
+	    e.naxis[i] = ((Integer) naxes.elementAt(i)).intValue();
+
+	// NAXIS1 = 0 in a primary header signals random groups, where
+	// the first axis does not count toward the size.
+	int first = (hdunum == 0 && e.naxis.length > 1 && e.naxis[0] == 0)
+	                                                           ? 1 : 0;
+	long size = 0;
+	if (e.naxis.length > 0) {
+	    size = 1;
+	    for(int i=first; i < e.naxis.length; i++) size *= e.naxis[i];
+	}
+	if (size > 0 || e.pcount > 0)
+	    size = (size + e.pcount) * e.gcount * (Math.abs(e.bitpix)/8);
+	e.dataSize = size;
+
+	return e;
+    }
+
+    private static boolean matches(byte[] block, int c, String key) {
+	int n = key.length();
+	for(int i=0; i < n; i++)
+	    if (block[c+i] != (byte) key.charAt(i)) return false;
+	return true;
+    }
+
+    private static int axisNumber(byte[] block, int c) {
+	int n = 0;
+	for(int i=c; i < c+3; i++) {
+	    if (block[i] == ' ') break;
+	    if (block[i] < '0' || block[i] > '9') return -1;
+	    n = n*10 + (block[i] - '0');
+	}
+	return n;
+    }
+
+    /** Return the value field of a card (without comment) or null */
+    private static String valueField(byte[] block, int c) {
+	if (block[c+8] != '=') return null;
+	int start = c+10, end = c+CARD_SIZE;
+	for(int i=start; i < end; i++) {
+	    if (block[i] == '/') {
+		end = i;
+		break;
+	    }
+	}
+	String out = new String(block, start, end-start).trim();
+	return (out.length() == 0) ? null : out;
+    }
+
+    private static long longValue(byte[] block, int c, long dft) {
+	String val = valueField(block, c);
+	if (val == null) return dft;
+	try {
+	    return Long.parseLong(val);
+	} catch (NumberFormatException ex) {
+	    try {
+		return (long) Double.valueOf(val).doubleValue();
+	    } catch (NumberFormatException ex2) {
+		return dft;
+	    }
+	}
+    }
+
+    private static Double doubleValue(byte[] block, int c) {
+	String val = valueField(block, c);
+	if (val == null) return null;
+	try {
+	    return Double.valueOf(val.replace('D', 'E'));
+	} catch (NumberFormatException ex) {
+	    return null;
+	}
+    }
+
+    private static String stringValue(byte[] block, int c) {
+	if (block[c+8] != '=') return null;
+	int i, end = c+CARD_SIZE;
+	for(i=c+10; i < end && block[i] == ' '; i++);
+	if (i >= end || block[i] != '\'') return null;
+
+	StringBuffer out = new StringBuffer();
+	for(i++; i < end; i++) {
+	    if (block[i] == '\'') {
+		if (i+1 < end && block[i+1] == '\'') {
+		    out.append('\'');
+		    i++;
+		} else {
+		    break;
+		}
+	    } else {
+		out.append((char) block[i]);
+	    }
+	}
+
+	// trailing blanks are not significant
+	int l = out.length();
+	while (l > 0 && out.charAt(l-1) == ' ') l--;
+	out.setLength(l);
+	return out.toString();
+    }
+
+    /** Save this index to a sidecar file */
+    public void write(File sidecar) throws IOException {
+	DataOutputStream dos = new DataOutputStream(
+	    new BufferedOutputStream(new FileOutputStream(sidecar)));
+	try {
+	    dos.writeInt(MAGIC);
+	    dos.writeInt(VERSION);
+	    dos.writeLong(fileLength);
+	    dos.writeLong(lastModified);
+	    dos.writeInt(entries.size());
+	    for(int i=0; i < entries.size(); i++)
+		getEntry(i).writeClass(dos);
+	} finally {
+	    dos.close();
+	}
+    }
+
+    /** Load an index previously saved with write() */
+    public static FitsIndex read(File sidecar) throws IOException {
+	DataInputStream dis = new DataInputStream(
+	    new BufferedInputStream(new FileInputStream(sidecar)));
+	try {
+	    if (dis.readInt() != MAGIC || dis.readInt() != VERSION)
+		throw new IOException("Not a FITS index file: " + sidecar);
+
+	    FitsIndex idx = new FitsIndex();
+	    idx.fileLength = dis.readLong();
+	    idx.lastModified = dis.readLong();
+	    int n = dis.readInt();
+	    for(int i=0; i < n; i++) {
+		Entry e = new Entry();
+		e.readClass(dis);
+		idx.entries.addElement(e);
+	    }
+	    return idx;
+	} finally {
+	    dis.close();
+	}
+    }
+
+    /** The description of a single HDU */
+    public static class Entry {
+
+	/** the value of getXtension() for the primary HDU */
+	public static final String PRIMARY = "PRIMARY";
+
+	String xtension;
+	long headerOffset = 0;
+	long dataOffset = 0;
+	long dataSize = 0;
+	int bitpix = 0;
+	int[] naxis = new int[0];
+	long pcount = 0;
+	long gcount = 1;
+	Double bscale = null;
+	Double bzero = null;
+	Long blank = null;
+	String extname = null;
+	boolean zimage = false;
+
+	Entry() { }
+
+	/** Get the extension type ("IMAGE", "BINTABLE", etc.) or
+	  * PRIMARY for the primary HDU
+	  */
+	public String getXtension() { return xtension; }
+
+	/** Get the byte offset of the start of the header */
+	public long getHeaderOffset() { return headerOffset; }
+
+	/** Get the byte offset of the start of the data */
+	public long getDataOffset() { return dataOffset; }
+
+	/** Get the size of the data in bytes (excluding padding) */
+	public long getDataSize() { return dataSize; }
+
+	/** Get the size of the data in bytes (including padding) */
+	public long getPaddedDataSize() {
+	    return ((dataSize + BLOCK_SIZE - 1)/BLOCK_SIZE)*BLOCK_SIZE;
+	}
+
+	/** Get the value of BITPIX */
+	public int getBitpix() { return bitpix; }
+
+	/** Get the number of axes */
+	public int getNaxis() { return naxis.length; }
+
+	/** Get the axis lengths (NAXIS1, NAXIS2, ...) */
+	public int[] getAxes() {
+	    int[] out = new int[naxis.length];
+	    System.arraycopy(naxis, 0, out, 0, naxis.length);
+	    return out;
+	}
+
+	/** Get the value of PCOUNT */
+	public long getPcount() { return pcount; }
+
+	/** Get the value of GCOUNT */
+	public long getGcount() { return gcount; }
+
+	/** Get the value of BSCALE or null if not present */
+	public Double getBscale() { return bscale; }
+
+	/** Get the value of BZERO or null if not present */
+	public Double getBzero() { return bzero; }
+
+	/** Get the value of BLANK or null if not present */
+	public Long getBlank() { return blank; }
+
+	/** Get the value of EXTNAME or null if not present */
+	public String getExtname() { return extname; }
+
+	/** Does this HDU hold an image stored with the tiled image
+	  * compression convention (a BINTABLE with ZIMAGE = T)?
+	  */
+	public boolean isCompressedImage() {
+	    return zimage && "BINTABLE".equals(xtension);
+	}
+
+	/** Does this HDU contain a non-empty image array? */
+	public boolean isImage() {
+	    if (! PRIMARY.equals(xtension) && ! "IMAGE".equals(xtension))
+		return false;
+	    if (naxis.length == 0 || gcount != 1 || pcount != 0)
+		return false;
+	    for(int i=0; i < naxis.length; i++)
+		if (naxis[i] <= 0) return false;
+	    return true;
+	}
+
+	void writeClass(DataOutput dos) throws IOException {
+	    dos.writeUTF(xtension);
+	    dos.writeLong(headerOffset);
+	    dos.writeLong(dataOffset);
+	    dos.writeLong(dataSize);
+	    dos.writeInt(bitpix);
+	    dos.writeInt(naxis.length);
+	    for(int i=0; i < naxis.length; i++) dos.writeInt(naxis[i]);
+	    dos.writeLong(pcount);
+	    dos.writeLong(gcount);
+	    dos.writeBoolean(bscale != null);
+	    if (bscale != null) dos.writeDouble(bscale.doubleValue());
+	    dos.writeBoolean(bzero != null);
+	    if (bzero != null) dos.writeDouble(bzero.doubleValue());
+	    dos.writeBoolean(blank != null);
+	    if (blank != null) dos.writeLong(blank.longValue());
+	    dos.writeBoolean(extname != null);
+	    if (extname != null) dos.writeUTF(extname);
+	    dos.writeBoolean(zimage);
+	}
+
+	void readClass(DataInput dis) throws IOException {
+	    xtension = dis.readUTF();
+	    headerOffset = dis.readLong();
+	    dataOffset = dis.readLong();
+	    dataSize = dis.readLong();
+	    bitpix = dis.readInt();
+	    naxis = new int[dis.readInt()];
+	    for(int i=0; i < naxis.length; i++) naxis[i] = dis.readInt();
+	    pcount = dis.readLong();
+	    gcount = dis.readLong();
+	    if (dis.readBoolean()) bscale = new Double(dis.readDouble());
+	    if (dis.readBoolean()) bzero = new Double(dis.readDouble());
+	    if (dis.readBoolean()) blank = new Long(dis.readLong());
+	    if (dis.readBoolean()) extname = dis.readUTF();
+	    zimage = dis.readBoolean();
+	}
+    }
+}
@@ -379,7 +379,9 @@ public class HDU extends Object implements IO {
   }
     
     /** Create a Data object for Binary tables.
-      * Currently this does not support variable length fields
+      * Variable length fields are read as their descriptors only; the
+      * heap is skipped.  BinaryTable gives column-oriented access to a
+      * table, including its heap, without building an object per row.
       */
     Data binaryData() {
 	
@@ -492,6 +494,9 @@ public class HDU extends Object implements IO {
       case 'J':
 	datatype = Data.INT;
 	break;
+      case 'K':
+	datatype = Data.LONG;
+	break;
       case 'E':
 	datatype = Data.FLOAT;
 	break;
@@ -504,16 +509,18 @@ public class HDU extends Object implements IO {
 	break;
       case 'M':
 	datatype = Data.DOUBLE;
-	arrsiz= 2;
+	arrsiz *= 2;
 	break;
       case 'P':
-	datatype = Data.INT;
+      case 'Q':
+	datatype = (format.charAt(i) == 'P') ? Data.INT : Data.LONG;
 	if (arrsiz > 0) {
 	  arrsiz = 2;
 	}
 	else {
 	  arrsiz = 0;
 	}
+	break;
       default:
 	System.err.println("Invalid column code:"+format.charAt(i));
 	return null;
@@ -42,6 +42,32 @@ import ncsa.fits.util.*;
 public class Header extends Object implements IO {
 
   private String  cards[];
+  private int     ncards = 0;
+
+  // the header blocks as read; cards are only made into Strings when
+  // they are asked for
+  private byte[]  raw = null;
+
+  private static final int CARD = 80;
+  private static final int BLOCK = 2880;
+  private static final byte[] END = { 'E','N','D',' ',' ',' ',' ',' ' };
+
+  // the number of the first card with each keyword, and the parsed 
+  // form of each card (filled in as cards are looked up)
+  private HashMap index = null;
+  private Card[]  parsed = null;
+
+  /**
+   * the parsed value and comment of a keyword card.  The typed values
+   * are converted the first time they are asked for.
+   */
+  static class Card {
+    String  value = null;     // the value field as written
+    String  comment = null;
+    String  string = null;    // a string value, with CONTINUEs joined
+    Long    lvalue = null;
+    Double  dvalue = null;
+  }
 
   public Header (){
   }
@@ -53,18 +79,21 @@ public class Header extends Object implements IO {
   public Header(String cards[]) {
     this.cards = new String[cards.length];
     System.arraycopy(cards, 0, this.cards, 0, cards.length);
+    ncards = cards.length;
+    raw = null;
+    index = null;
   }
 
   /**
    * return how many valid cards this header contains
    */
   public int getCardSize() {
-    return cards.length;
+    return ncards;
   }
     
   public long getSize() {
     if (validHeader()) {
-      return ( ((cards.length + 35)/36)*2880);
+      return ( ((ncards + 35)/36)*2880);
     }
     else {
       return 0;
@@ -76,6 +105,9 @@ public class Header extends Object implements IO {
       long size;
       size = 1;
       int axis;
+      if (getLValue("NAXIS", 0L) == 0) {
+	return 0;
+      }
       for (axis = 0; axis<getLValue("NAXIS", 0L); axis += 1) {
 	size *= getLValue("NAXIS"+(axis+1), 0L);
       }
@@ -83,7 +115,7 @@ public class Header extends Object implements IO {
       size *= getLValue("GCOUNT", 1L);
       size *= Math.abs(getLValue("BITPIX", 0L))/8;
 	    
-      return ((size + 2779)/2880)*2880;
+      return ((size + 2879)/2880)*2880;
     }
     else {
       return 0;
@@ -92,7 +124,7 @@ public class Header extends Object implements IO {
 	    
   public boolean validHeader() {
     // Probably should do something more sophisticated than this...
-    if (cards == null || cards.length < 5) {
+    if (cards == null || ncards < 5) {
       return false;
     }
     else {
@@ -101,60 +133,71 @@ public class Header extends Object implements IO {
   }
     
   public String getCard(int n) {
-    if (n<0 || n >= cards.length) {
+    if (n<0 || n >= ncards) {
       return null;
     }
-    else {
-      return cards[n];
+    String card = cards[n];
+    if (card == null) {
+      // the bytes are ASCII
+      char[] c = new char[CARD];
+      int off = n*CARD;
+      for (int i=0; i < CARD; i++) {
+	c[i] = (char) (raw[off+i] & 0xff);
+      }
+      card = new String(c);
+      cards[n] = card;
     }
+    return card;
   }
     
   public long getLValue(String key, long dft) {
-    String val = checkKey(key);
-    if (val == null) {
+    Card c = card(key);
+    if (c == null || c.value == null) {
       return dft;
     }
-      
-    long res;
-    try {
-      res = Long.parseLong(val);
-    }
-    catch (NumberFormatException e) {
-      System.err.println("Key "+key+" not integer value:"+val);
-      return 0;
+    if (c.lvalue == null) {
+      try {
+	c.lvalue = new Long(Long.parseLong(c.value));
+      }
+      catch (NumberFormatException e) {
+	System.err.println("Key "+key+" not integer value:"+c.value);
+	return 0;
+      }
     }
-    return res;
+    return c.lvalue.longValue();
   }
     
   public double  getDValue(String key, double dft) {
-    String val = checkKey(key);
-    if (val == null) {
+    Card c = card(key);
+    if (c == null || c.value == null) {
       return dft;
     }
-    double res;
-    try {
-      res = new Double(val).doubleValue();
-    } catch (NumberFormatException e) {
-      System.err.println("Key "+key+" not double value:"+val);
-      return 0.;
+    if (c.dvalue == null) {
+      try {
+	// FITS allows D as the exponent character
+	c.dvalue = new Double(c.value.replace('D', 'E').replace('d', 'e'));
+      } catch (NumberFormatException e) {
+	System.err.println("Key "+key+" not double value:"+c.value);
+	return 0.;
+      }
     }
-    return res;
+    return c.dvalue.doubleValue();
   }
       
   public boolean getBValue(String key, boolean dft) {
-    String val = checkKey(key);
-    if (val == null) {
+    Card c = card(key);
+    if (c == null || c.value == null) {
       return dft;
     }
 	
-    if (val.equals("T")) {
+    if (c.value.equals("T")) {
       return true;
     }
-    else if (val.equals("F")) {
+    else if (c.value.equals("F")) {
       return false;
     }
     else {
-      System.err.println("Key "+key+" not boolean: val="+val);
+      System.err.println("Key "+key+" not boolean: val="+c.value);
       return false;
     }
   }  
@@ -171,51 +214,48 @@ public class Header extends Object implements IO {
     return getBValue(key, false);
   }
     
+  /**
+   * return the value of a string keyword without its quotes, or null if
+   * the keyword is missing or not a string.  A value continued onto 
+   * following CONTINUE cards (by ending it with &amp;) is returned 
+   * whole.
+   */
   public String  getSValue(String key) {
-    
-    String val = checkKey(key);
-    if (val.substring(0,1).equals("'")) {
-      // Strip the quotes
-      return val.substring(1,val.length()-1);
-    }
-    else {
-      System.err.println("Key "+key+" not string:" + val);
+    Card c = card(key);
+    if (c == null) {
       return null;
     }
+    if (c.string == null) {
+      System.err.println("Key "+key+" not string:" + c.value);
+    }
+    return c.string;
+  }
+
+  /**
+   * return the comment on a keyword's card, or null if the keyword is 
+   * missing or its card has no comment
+   */
+  public String getComment(String key) {
+    Card c = card(key);
+    return (c == null) ? null : c.comment;
   }
-  
+
+  /**
+   * read a header from a stream, a 2880-byte block at a time, stopping
+   * after the block containing the END card.
+   * @return false if the stream ends before the END card
+   */
   public boolean readHeader(DataInput dis) {
-    /* Get the Header in 80 byte chunks.
-     */
-	
-    Vector vcards = new Vector(500,100);
-    byte buffer[] = new byte[80];
-    boolean firstCall = true;
+    byte[] buf = new byte[4*BLOCK];
+    int nbytes = 0;
+    int ncard = 0;
+    boolean found = false;
     
-    while (true) {
-      /* Another kludge here.
-       * readFully(byte[]) will hang here on a
-       * RandomAccessFile if we're at the end.
-       * So...
-       */
-      try {
-	if (dis instanceof RandomAccessFile) {
-	  if (((RandomAccessFile) dis).length() <
-	      ((RandomAccessFile) dis).getFilePointer()+80) {
-	    throw new EOFException();
-	  }
-	}
-	dis.readFully(buffer);
-      }
-      catch (EOFException e) {
-	return false;
-      }
-      catch (IOException e) {
-	return false;
-      }
-      
-      String str = new String(buffer, 0);
-      if (firstCall && str.substring(0,4).equalsIgnoreCase("HTTP") ) {
+    try {
+      // read the first card alone to look for the HTTP kludge below
+      dis.readFully(buf, 0, CARD);
+      if ((buf[0] == 'H' || buf[0] == 'h') && 
+	  new String(buf, 0, 4, "ISO-8859-1").equalsIgnoreCase("HTTP")) {
 	  
 	// This is a bit of a kludge too.  Some Web servers
 	// will return information at the beginning
@@ -227,125 +267,283 @@ public class Header extends Object implements IO {
 	// both a \r and \n character.  We assume that
 	// \n ends the line.
 	  
-	buffer = findStart(new String(buffer,0), dis);
-	if (buffer == null) {
+	byte[] first = findStart(new String(buf, 0, CARD, "ISO-8859-1"), 
+				 dis);
+	if (first == null) {
 	  return false;
 	}
-	str = new String(buffer, 0);
-      }
-      firstCall = false;
-	
-      vcards.addElement(str);
-      if (str.substring(0,8).equals("END     ") ){
-	break;
+	System.arraycopy(first, 0, buf, 0, CARD);
       }
-    }
-      
-    int blanks = 36 - vcards.size() % 36;
-    if (blanks != 36) {
-      while (blanks>0) {
-	try {
-	  dis.readFully(buffer);
-	  blanks -= 1;
+      dis.readFully(buf, CARD, BLOCK-CARD);
+      nbytes = BLOCK;
+
+      while (true) {
+	// scan the newest block for the END card
+	for ( ; ncard*CARD < nbytes; ncard++) {
+	  if (isEnd(buf, ncard*CARD)) {
+	    found = true;
+	    break;
+	  }
 	}
-	catch (EOFException e) {
-	  return false;
-	} catch (IOException e) {
-	  return false;
+	if (found) {
+	  break;
+	}
+	if (nbytes + BLOCK > buf.length) {
+	  byte[] tmp = new byte[2*buf.length];
+	  System.arraycopy(buf, 0, tmp, 0, nbytes);
+	  buf = tmp;
 	}
+	dis.readFully(buf, nbytes, BLOCK);
+	nbytes += BLOCK;
       }
     }
+    catch (IOException e) {
+      return false;
+    }
       
-    cards = new String[vcards.size()];
-    vcards.copyInto(cards);
+    raw = buf;
+    ncards = ncard+1;
+    cards = new String[ncards];
+    index = null;
+    parsed = null;
       
     return true;
   }
-	
-  int findKey(String key) {
-    String mykey = (key+"        ").substring(0,8);
-    int i;
-	
-    for (i=0; i<cards.length; i += 1) {
-      if (cards[i].substring(0,8).equalsIgnoreCase(mykey)) {
-	return i;
+
+  private static boolean isEnd(byte[] buf, int off) {
+    for (int i=0; i < END.length; i++) {
+      if (buf[off+i] != END[i]) {
+	return false;
       }
     }
-    return -1;
+    return true;
   }
-    
-  String valStr(String card) {
-    // We are going to assume that the value has no blanks in
-    // it unless it is enclosed in quotes.  Also, we assume that
-    // a / terminates the string (except inside quotes)
-    
-    // Make sure that this is a value keyword.
-    if (!card.substring(8,9).equals("=")) {
+
+  /**
+   * return true if the header contains a card with the given keyword
+   */
+  public boolean hasKey(String key) {
+    return findKey(key) >= 0;
+  }
+
+  /**
+   * return the keyword of a card, in upper case.  For a HIERARCH card
+   * this is "HIERARCH " followed by everything before the =, with 
+   * runs of blanks reduced to one.
+   */
+  static String keyword(String card) {
+    if (card.length() > 9 && 
+	card.substring(0,9).equalsIgnoreCase("HIERARCH ")) {
+      int eq = card.indexOf('=');
+      if (eq > 9) {
+	return "HIERARCH " + squeeze(card.substring(9, eq));
+      }
+    }
+    return card.substring(0, Math.min(8, card.length())).trim().toUpperCase();
+  }
+
+  /** trim a keyword, upper case it, and reduce runs of blanks to one */
+  private static String squeeze(String key) {
+    StringTokenizer st = new StringTokenizer(key.toUpperCase(), " ");
+    StringBuffer out = new StringBuffer(key.length());
+    while (st.hasMoreTokens()) {
+      if (out.length() > 0) out.append(' ');
+      out.append(st.nextToken());
+    }
+    return out.toString();
+  }
+
+  /**
+   * return the keyword of the n'th card, looking at its bytes directly
+   * if it has not been made into a String
+   */
+  private String keyword(int n) {
+    if (cards[n] != null || raw == null) {
+      return keyword(getCard(n));
+    }
+    int off = n*CARD;
+    if ((raw[off] == 'H' || raw[off] == 'h') && raw[off+8] == ' ') {
+      String key = keyword(getCard(n));
+      if (key.startsWith("HIERARCH ")) {
+	return key;
+      }
+    }
+    char[] c = new char[8];
+    int len = 0;
+    for (int i=0; i < 8; i++) {
+      c[i] = Character.toUpperCase((char) (raw[off+i] & 0xff));
+      if (c[i] != ' ') len = i+1;
+    }
+    int start = 0;
+    while (start < len && c[start] == ' ') start++;
+    return new String(c, start, len-start);
+  }
+
+  /**
+   * index the cards by keyword, keeping the first card for each.  This
+   * is done the first time a keyword is looked up.
+   */
+  private synchronized void buildIndex() {
+    if (index != null) {
+      return;
+    }
+    HashMap map = new HashMap(ncards*2);
+    parsed = new Card[ncards];
+    for (int i=0; i < ncards; i++) {
+      String key = keyword(i);
+      if (key.length() > 0 && ! map.containsKey(key)) {
+	map.put(key, new Integer(i));
+      }
+    }
+    index = map;
+  }
+
+  /**
+   * return the number of the first card with a keyword, or -1 if there
+   * is none.  Keywords are matched ignoring case; a HIERARCH keyword
+   * may be given with or without the "HIERARCH " prefix.
+   */
+  int findKey(String key) {
+    if (cards == null) {
+      return -1;
+    }
+    if (index == null) {
+      buildIndex();
+    }
+    // most keywords are asked for exactly as they are indexed
+    Object n = index.get(key);
+    if (n != null) {
+      return ((Integer) n).intValue();
+    }
+    String mykey = squeeze(key);
+    n = index.get(mykey);
+    if (n == null && ! mykey.startsWith("HIERARCH ")) {
+      n = index.get("HIERARCH " + mykey);
+    }
+    if (n == null && mykey.length() > 8 && mykey.indexOf(' ') < 0) {
+      // only the first 8 characters of a keyword are significant
+      n = index.get(mykey.substring(0,8));
+    }
+    return (n == null) ? -1 : ((Integer) n).intValue();
+  }
+
+  /**
+   * return the parsed form of the first card with a keyword, or null
+   * if there is none
+   */
+  Card card(String key) {
+    int i = findKey(key);
+    if (i < 0) {
       return null;
     }
-	
-    int vstart = -1;
-    int vend = -1;
-    boolean quote = false;
-    
-    int offset = 9;
-    while (offset < 80 &&  card.substring(offset, offset+1).equals(" ")) {
+    Card c = parsed[i];
+    if (c == null) {
+      c = parseCard(i);
+      parsed[i] = c;
+    }
+    return c;
+  }
+
+  /**
+   * split a card into its value and comment, joining any CONTINUE 
+   * cards onto a string value
+   */
+  private Card parseCard(int n) {
+    Card c = new Card();
+    String card = getCard(n);
+    int start;
+    if (keyword(card).startsWith("HIERARCH ")) {
+      start = card.indexOf('=') + 1;
+    }
+    else if (card.length() > 8 && card.charAt(8) == '=') {
+      start = 9;
+    }
+    else {
+      return c;
+    }
+
+    int end = parseValue(card, start, c);
+    if (end < 0) {
+      return c;
+    }
+    if (c.string != null) {
+      // long strings: a value ending in & continues on the next card
+      while (n+1 < ncards && endsWithAmpersand(c.string) &&
+	     keyword(n+1).equals("CONTINUE")) {
+	Card next = new Card();
+	if (parseValue(getCard(n+1), 8, next) < 0 || next.string == null) {
+	  break;
+	}
+	String s = c.string.trim();
+	c.string = s.substring(0, s.length()-1) + next.string;
+	n++;
+      }
+    }
+    return c;
+  }
+
+  private static boolean endsWithAmpersand(String s) {
+    int e = s.length();
+    while (e > 0 && s.charAt(e-1) == ' ') e--;
+    return e > 0 && s.charAt(e-1) == '&';
+  }
+
+  /**
+   * parse the value field of a card starting at a given column, 
+   * setting the value, string and comment of c.  We assume that the 
+   * value has no blanks in it unless it is enclosed in quotes, and 
+   * that a / terminates it (except inside quotes).
+   * @return the column following the value, or -1 if there is none
+   */
+  private static int parseValue(String card, int offset, Card c) {
+    int len = Math.min(card.length(), 80);
+    while (offset < len && card.charAt(offset) == ' ') {
       offset += 1;
     }
-	
-    if (offset >= 80) {
-      return null;
+    if (offset >= len) {
+      return -1;
     }
-    vstart = offset;
+    int vstart = offset;
+    int vend;
 	
-    // If we have a ' then find the matching quote.
-    if (card.substring(offset, offset+1).equals("'")) {
-      
+    if (card.charAt(offset) == '\'') {
+      // find the matching quote, skipping escaped ('') quotes
+      StringBuffer str = new StringBuffer();
       offset += 1;
-      while (offset < 80) {
-	
-	vend = card.indexOf("'", offset);;
-	if (vend == 79 || !card.substring(vend+1,vend+2).equals("'")) {
+      while (true) {
+	vend = card.indexOf('\'', offset);
+	if (vend < 0 || vend >= len) {
+	  return -1;
+	}
+	str.append(card.substring(offset, vend));
+	if (vend+1 < len && card.charAt(vend+1) == '\'') {
+	  str.append('\'');
+	  offset = vend+2;
+	}
+	else {
 	  break;
 	}
-	offset = vend+2;
-	vend = -1;   // Found escaped '
       }
-      if (vend < 0) {
-	return null;
+      vend += 1;
+      c.value = card.substring(vstart, vend);
+      c.string = str.toString();
+    }
+    else {
+      vend = vstart;
+      while (vend < len && card.charAt(vend) != ' ' && 
+	     card.charAt(vend) != '/') {
+	vend += 1;
       }
-      return card.substring(vstart, vend+1);
+      c.value = card.substring(vstart, vend);
     }
 
-    // Otherwise we can look for a space or a / to terminate
-    // the field.  Note that it's probably legal FITS to
-    // put the comment immediately after the value but it's
-    // bad practice and we won't worry about it yet.
-    
-    int spaceLoc = card.indexOf(" ", vstart+1);
-    int slashLoc = card.indexOf("/", vstart+1);
-    
-    if (spaceLoc<0) spaceLoc=80;
-    if (slashLoc<0) slashLoc=80;
-    
-    vend = spaceLoc;
-    if (slashLoc < spaceLoc) vend = slashLoc;
-    
-    if (vend < 79) {
-      return card.substring(vstart, vend);
-    } else {
-      return card.substring(vstart);
+    int slash = card.indexOf('/', vend);
+    if (slash >= 0 && slash < len) {
+      c.comment = card.substring(slash+1, len).trim();
     }
+    return vend;
   }
 
-  String checkKey(String key) {
-    int card = findKey(key);
-    if (card < 0) {
-      return null;
-    }
-    return  valStr(cards[card]);
-  }
-    
   public void readClass (DataInput dis) throws IOException {
     readHeader(dis);
   }
@@ -353,10 +551,15 @@ public class Header extends Object implements IO {
   public void writeClass (DataOutput dos) throws IOException {
     int i;
     if (validHeader()) {
-      for (i=0; i<cards.length; i += 1) {
-	dos.writeBytes(cards[i]);
+      for (i=0; i<ncards; i += 1) {
+	if (cards[i] == null) {
+	  dos.write(raw, i*CARD, CARD);
+	}
+	else {
+	  dos.writeBytes(cards[i]);
+	}
       }
-      int pad = 36 - cards.length%36;
+      int pad = 36 - ncards%36;
       if (pad != 36) {
 	
 	for (i=0; i<4*pad; i += 1) {
@@ -370,8 +573,8 @@ public class Header extends Object implements IO {
   public void printClass(PrintStream ps) throws IOException {
     int i;
     if (validHeader()) {
-      for (i=0; i<cards.length; i += 1) {
-	ps.println(cards[i]);
+      for (i=0; i<ncards; i += 1) {
+	ps.println(getCard(i));
       }
     }
   }
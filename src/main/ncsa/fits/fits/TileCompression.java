@@ -0,0 +1,422 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ */
+
+package ncsa.fits.fits;
+
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/** Decoders for the tile compression algorithms of the FITS tiled 
+  * image convention: Rice (RICE_1), GZIP (GZIP_1, and GZIP_2 with its
+  * byte shuffling) and the IRAF pixel list encoding (PLIO_1), along 
+  * with encoders for Rice and GZIP.  The algorithms follow the 
+  * reference implementation in CFITSIO.
+  */
+public class TileCompression extends Object {
+
+    private TileCompression() { }
+
+    // the number of significant bits in each byte value
+    private static final int[] nonzeroCount = new int[256];
+    static {
+	for (int i=0; i < 256; i++) 
+	    nonzeroCount[i] = 32 - Integer.numberOfLeadingZeros(i);
+    }
+
+    /** Decode a Rice-compressed tile.
+      * @param in       the compressed bytes
+      * @param inLen    the number of compressed bytes
+      * @param out      the decoded values; for 1- and 2-byte pixels 
+      *                 only the low 8 or 16 bits are significant
+      * @param n        the number of values to decode
+      * @param blockSize the number of pixels coded with each choice of
+      *                 split (the BLOCKSIZE parameter, usually 32)
+      * @param bytePix  the size of the original pixels (BYTEPIX): 1, 2 
+      *                 or 4
+      * @exception IOException if the data are corrupt
+      */
+    public static void riceDecode(byte[] in, int inLen, int[] out, int n,
+				  int blockSize, int bytePix) 
+	throws IOException 
+    {
+	int fsbits, fsmax, bbits;
+	switch (bytePix) {
+	case 1:  fsbits = 3; fsmax = 6;  bbits = 8;  break;
+	case 2:  fsbits = 4; fsmax = 14; bbits = 16; break;
+	case 4:  fsbits = 5; fsmax = 25; bbits = 32; break;
+	default:
+	    throw new IOException("unsupported Rice BYTEPIX: " + bytePix);
+	}
+
+	try {
+	    // the first pixel is stored uncompressed
+	    int c = 0;
+	    int lastpix = 0;
+	    for (int k=0; k < bytePix; k++) 
+		lastpix = (lastpix << 8) | (in[c++] & 0xff);
+
+	    int b = in[c++] & 0xff;      // the bit buffer
+	    int nbits = 8;               // the number of bits in b
+	    int i = 0;
+	    while (i < n) {
+		// get the split for the next block
+		nbits -= fsbits;
+		while (nbits < 0) {
+		    b = (b << 8) | (in[c++] & 0xff);
+		    nbits += 8;
+		}
+		int fs = (b >>> nbits) - 1;
+		b &= (1 << nbits) - 1;
+		int imax = Math.min(i + blockSize, n);
+
+		if (fs < 0) {
+		    // low entropy: all differences are zero
+		    for ( ; i < imax; i++) out[i] = lastpix;
+		}
+		else if (fs == fsmax) {
+		    // high entropy: the differences are stored directly
+		    for ( ; i < imax; i++) {
+			int k = bbits - nbits;
+			int diff = (k < 32) ? b << k : 0;
+			for (k -= 8; k >= 0; k -= 8) {
+			    b = in[c++] & 0xff;
+			    diff |= b << k;
+			}
+			if (nbits > 0) {
+			    b = in[c++] & 0xff;
+			    diff |= b >>> (-k);
+			    b &= (1 << nbits) - 1;
+			}
+			else {
+			    b = 0;
+			}
+			diff = ((diff & 1) == 0) ? diff >>> 1 : ~(diff >>> 1);
+			lastpix += diff;
+			out[i] = lastpix;
+		    }
+		}
+		else {
+		    for ( ; i < imax; i++) {
+			// the count of leading zeros is the high part
+			while (b == 0) {
+			    nbits += 8;
+			    b = in[c++] & 0xff;
+			}
+			int nzero = nbits - nonzeroCount[b];
+			nbits -= nzero + 1;
+			b ^= 1 << nbits;
+			// and the next fs bits are the low part
+			nbits -= fs;
+			while (nbits < 0) {
+			    b = (b << 8) | (in[c++] & 0xff);
+			    nbits += 8;
+			}
+			int diff = (nzero << fs) | (b >>> nbits);
+			b &= (1 << nbits) - 1;
+			diff = ((diff & 1) == 0) ? diff >>> 1 : ~(diff >>> 1);
+			lastpix += diff;
+			out[i] = lastpix;
+		    }
+		}
+		if (c > inLen) 
+		    throw new IOException("Rice data overrun");
+	    }
+	}
+	catch (ArrayIndexOutOfBoundsException ex) {
+	    throw new IOException("Rice data truncated");
+	}
+    }
+
+    /** Decode a PLIO-compressed tile (an IRAF line list).
+      * @param ll   the line list
+      * @param out  the decoded values
+      * @param n    the number of values to decode
+      */
+    public static void plioDecode(short[] ll, int[] out, int n) 
+	throws IOException 
+    {
+	if (ll.length < 3) throw new IOException("PLIO data truncated");
+
+	// the line list header comes in two forms
+	int len, first;
+	if (ll[2] > 0) {
+	    len = ll[2];
+	    first = 3;
+	} else {
+	    if (ll.length < 5) throw new IOException("PLIO data truncated");
+	    len = (ll[4] << 15) + ll[3];
+	    first = ll[1];
+	}
+	len = Math.min(len, ll.length);
+
+	int op = 0;         // the next output pixel
+	int x1 = 0;         // the position the next instruction starts at
+	int pv = 1;         // the current pixel value
+	for (int ip = first; ip < len && x1 < n; ip++) {
+	    int opcode = ll[ip] / 4096;
+	    int data = ll[ip] & 4095;
+	    switch (opcode) {
+	    case 0:
+	    case 4:
+	    case 5: {
+		// a run of zeros, or of pv, or of zeros ending with pv
+		int x2 = Math.min(x1 + data, n);
+		int v = (opcode == 4) ? pv : 0;
+		for ( ; op < x2; op++) out[op] = v;
+		if (opcode == 5 && x1 + data <= n && data > 0) 
+		    out[op-1] = pv;
+		x1 += data;
+		break;
+	    }
+	    case 1:
+		// set the high value
+		if (ip+1 >= len) throw new IOException("PLIO data truncated");
+		pv = (ll[++ip] << 12) + data;
+		break;
+	    case 2:
+		pv += data;
+		break;
+	    case 3:
+		pv -= data;
+		break;
+	    case 6:
+	    case 7:
+		// change the value and output one pixel
+		pv += (opcode == 6) ? data : -data;
+		if (x1 < n) out[op++] = pv;
+		x1++;
+		break;
+	    default:
+		throw new IOException("bad PLIO opcode: " + opcode);
+	    }
+	}
+	for ( ; op < n; op++) out[op] = 0;
+    }
+
+    /** Decompress gzip (or zlib) data.
+      * @param in       the compressed bytes
+      * @param outLen   the expected size of the uncompressed data, or a
+      *                 guess if it is not known
+      * @return the uncompressed bytes, in an array of exactly the right
+      *         length
+      */
+    public static byte[] inflate(byte[] in, int outLen) throws IOException {
+	ByteArrayOutputStream out = new ByteArrayOutputStream(outLen);
+	byte[] buf = new byte[Math.max(1024, Math.min(outLen, 65536))];
+	if (in.length > 1 && (in[0] & 0xff) == 0x1f && (in[1] & 0xff) == 0x8b) {
+	    GZIPInputStream gz = 
+		new GZIPInputStream(new ByteArrayInputStream(in));
+	    int n;
+	    while ((n = gz.read(buf)) > 0) out.write(buf, 0, n);
+	}
+	else {
+	    Inflater inf = new Inflater();
+	    try {
+		inf.setInput(in);
+		while (! inf.finished()) {
+		    int n = inf.inflate(buf);
+		    if (n == 0 && (inf.needsInput() || inf.needsDictionary()))
+			break;
+		    out.write(buf, 0, n);
+		}
+	    } catch (DataFormatException ex) {
+		throw new IOException("bad compressed data: " + ex.getMessage());
+	    } finally {
+		inf.end();
+	    }
+	}
+	return out.toByteArray();
+    }
+
+    /** Undo the byte shuffling of GZIP_2, which stores the most 
+      * significant bytes of all of the values first, then the next 
+      * most significant, and so on.
+      * @param in        the shuffled bytes
+      * @param elemSize  the size of each value in bytes
+      * @return the bytes in their usual order
+      */
+    public static byte[] unshuffle(byte[] in, int elemSize) {
+	if (elemSize <= 1) return in;
+	int n = in.length / elemSize;
+	byte[] out = new byte[in.length];
+	for (int k=0; k < elemSize; k++) {
+	    int src = k*n;
+	    for (int i=0, dst=k; i < n; i++, dst += elemSize) 
+		out[dst] = in[src+i];
+	}
+	return out;
+    }
+
+    /** Rice-compress a tile.
+      * @param in       the values to encode; for 1- and 2-byte pixels 
+      *                 only the low 8 or 16 bits are significant
+      * @param n        the number of values to encode
+      * @param blockSize the number of pixels coded with each choice of
+      *                 split (the BLOCKSIZE parameter, usually 32)
+      * @param bytePix  the size of the original pixels (BYTEPIX): 1, 2 
+      *                 or 4
+      * @return the compressed bytes, in an array of exactly the right 
+      *         length
+      */
+    public static byte[] riceEncode(int[] in, int n, int blockSize, 
+				    int bytePix) 
+    {
+	int fsbits, fsmax, bbits;
+	switch (bytePix) {
+	case 1:  fsbits = 3; fsmax = 6;  bbits = 8;  break;
+	case 2:  fsbits = 4; fsmax = 14; bbits = 16; break;
+	case 4:  fsbits = 5; fsmax = 25; bbits = 32; break;
+	default:
+	    throw new IllegalArgumentException("unsupported Rice BYTEPIX: " +
+					       bytePix);
+	}
+	if (n <= 0) return new byte[0];
+	long mask = (bbits == 32) ? 0xffffffffL : (1L << bbits) - 1;
+
+	BitOutput out = new BitOutput(bytePix*n + n/blockSize + 16);
+	int lastpix = in[0];
+	out.put(lastpix & mask, bbits);
+
+	long[] diff = new long[blockSize];
+	for (int i=0; i < n; i += blockSize) {
+	    int nb = Math.min(blockSize, n - i);
+
+	    // map the differences to non-negative values: 0, -1, 1, -2...
+	    long sum = 0;
+	    for (int j=0; j < nb; j++) {
+		int next = in[i+j];
+		int d = next - lastpix;
+		if (bbits == 16) d = (short) d;
+		else if (bbits == 8) d = (byte) d;
+		diff[j] = ((d < 0) ? ~(((long) d) << 1) : ((long) d) << 1) 
+		    & mask;
+		sum += diff[j];
+		lastpix = next;
+	    }
+
+	    // choose the split from the mean difference
+	    double dpsum = (sum - (nb/2) - 1) / (double) nb;
+	    if (dpsum < 0) dpsum = 0;
+	    long psum = ((long) dpsum) >> 1;
+	    int fs = 0;
+	    while (psum > 0) {
+		psum >>= 1;
+		fs++;
+	    }
+
+	    if (fs >= fsmax) {
+		// high entropy: store the differences directly
+		out.put(fsmax+1, fsbits);
+		for (int j=0; j < nb; j++) out.put(diff[j], bbits);
+	    }
+	    else if (fs == 0 && sum == 0) {
+		// low entropy: all differences are zero
+		out.put(0, fsbits);
+	    }
+	    else {
+		out.put(fs+1, fsbits);
+		long fsmask = (1L << fs) - 1;
+		for (int j=0; j < nb; j++) {
+		    out.putUnary(diff[j] >>> fs);
+		    if (fs > 0) out.put(diff[j] & fsmask, fs);
+		}
+	    }
+	}
+	return out.toByteArray();
+    }
+
+    /** a growable buffer of bits, filled most significant bit first */
+    private static final class BitOutput {
+	byte[] buf;
+	int len = 0;
+	long bits = 0;    // bits waiting to be written, right-justified
+	int nbits = 0;
+
+	BitOutput(int size) { buf = new byte[Math.max(size, 16)]; }
+
+	void put(long v, int n) {
+	    bits = (bits << n) | v;
+	    nbits += n;
+	    while (nbits >= 8) {
+		nbits -= 8;
+		if (len == buf.length) grow();
+		buf[len++] = (byte) (bits >>> nbits);
+	    }
+	    bits &= (1L << nbits) - 1;
+	}
+
+	// write v zeros followed by a one
+	void putUnary(long v) {
+	    for ( ; v >= 32; v -= 32) put(0, 32);
+	    put(1, (int) v + 1);
+	}
+
+	byte[] toByteArray() {
+	    if (nbits > 0) put(0, 8 - nbits);
+	    byte[] out = new byte[len];
+	    System.arraycopy(buf, 0, out, 0, len);
+	    return out;
+	}
+
+	private void grow() {
+	    byte[] b = new byte[2*buf.length];
+	    System.arraycopy(buf, 0, b, 0, len);
+	    buf = b;
+	}
+    }
+
+    /** Compress data with gzip.
+      * @param in   the bytes to compress
+      * @param off  the index of the first byte
+      * @param len  the number of bytes
+      * @return the compressed bytes
+      */
+    public static byte[] deflate(byte[] in, int off, int len) 
+	throws IOException 
+    {
+	ByteArrayOutputStream out = new ByteArrayOutputStream(len/2 + 64);
+	GZIPOutputStream gz = new GZIPOutputStream(out);
+	gz.write(in, off, len);
+	gz.close();
+	return out.toByteArray();
+    }
+
+    /** Shuffle bytes for GZIP_2, storing the most significant bytes of 
+      * all of the values first, then the next most significant, and so
+      * on; this is undone by unshuffle().
+      * @param in        the bytes in their usual order
+      * @param elemSize  the size of each value in bytes
+      * @return the shuffled bytes
+      */
+    public static byte[] shuffle(byte[] in, int elemSize) {
+	if (elemSize <= 1) return in;
+	int n = in.length / elemSize;
+	byte[] out = new byte[in.length];
+	for (int k=0; k < elemSize; k++) {
+	    int dst = k*n;
+	    for (int i=0, src=k; i < n; i++, src += elemSize) 
+		out[dst+i] = in[src];
+	}
+	return out;
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ */
+
+package ncsa.fits.util;
+
+import java.io.*;
+
+/** An input stream that decompresses bzip2 data as it is read.  Each
+  * compressed block is decoded as it is reached, and the bytes of the 
+  * block are produced from it on demand, so no more than one block 
+  * (at most 900k before its final run-length expansion) is held in 
+  * memory.  Concatenated bzip2 streams, as made by parallel 
+  * compressors such as pbzip2, are read one after another.  Block and
+  * stream checksums are verified.
+  */
+public class Bunzip2InputStream extends InputStream {
+
+    private final static int MAX_GROUPS = 6, GROUP_SIZE = 50, 
+	                     MAX_ALPHA = 258, MAX_CODE_LEN = 23,
+	                     MAX_SELECTORS = 18002;
+    private final static long BLOCK_MAGIC = 0x314159265359L,
+	                      EOS_MAGIC = 0x177245385090L;
+    private final static int[] CRC_TABLE = new int[256];
+    static {
+	for (int i=0; i < 256; i++) {
+	    int c = i << 24;
+	    for (int k=0; k < 8; k++) 
+		c = ((c & 0x80000000) != 0) ? (c << 1) ^ 0x04c11db7 : (c << 1);
+	    CRC_TABLE[i] = c;
+	}
+    }
+
+    private InputStream in;
+    private long bitBuf = 0;
+    private int bitCount = 0;
+    private int blockSize100k;
+
+    // the decoded block: ll holds the bytes of the BWT output and tt 
+    // the inverse permutation
+    private byte[] ll = null;
+    private int[] tt = null;
+    private int tPos, remaining = 0;
+
+    // run length decoding state
+    private int last = -1, runLength = 0, repeat = 0;
+
+    private int blockCRC, storedBlockCRC, combinedCRC = 0;
+    private boolean streamDone = false;
+
+    private byte[] one = new byte[1];
+
+    /** Decompress a bzip2 stream.
+      * @exception IOException if the stream does not start with a 
+      *            bzip2 header
+      */
+    public Bunzip2InputStream(InputStream in) throws IOException {
+	this.in = in;
+	if (! readStreamHeader()) 
+	    throw new IOException("not in bzip2 format");
+    }
+
+    /** read the "BZh" signature and block size of a stream
+      * @return false if the input is at its end
+      */
+    private boolean readStreamHeader() throws IOException {
+	int b = in.read();
+	if (b < 0) return false;
+	if (b != 'B' || in.read() != 'Z' || in.read() != 'h') 
+	    throw new IOException("bad bzip2 stream header");
+	int level = in.read() - '0';
+	if (level < 1 || level > 9) 
+	    throw new IOException("bad bzip2 block size");
+	blockSize100k = level;
+	combinedCRC = 0;
+	bitBuf = 0;
+	bitCount = 0;
+	return true;
+    }
+
+    private int bits(int n) throws IOException {
+	while (bitCount < n) {
+	    int b = in.read();
+	    if (b < 0) throw new EOFException("truncated bzip2 data");
+	    bitBuf = (bitBuf << 8) | b;
+	    bitCount += 8;
+	}
+	bitCount -= n;
+	return (int) (bitBuf >>> bitCount) & ((1 << n) - 1);
+    }
+
+    private boolean bit() throws IOException {
+	return bits(1) != 0;
+    }
+
+    /** decode the next block of the current stream or of a stream that 
+      * follows it.
+      * @return false if there are no more blocks
+      */
+    private boolean nextBlock() throws IOException {
+	while (true) {
+	    long magic = ((long) bits(24) << 24) | bits(24);
+	    if (magic == BLOCK_MAGIC) break;
+	    if (magic != EOS_MAGIC) 
+		throw new IOException("bad bzip2 block header");
+	    int stored = (bits(16) << 16) | bits(16);
+	    if (stored != combinedCRC)
+		throw new IOException("bzip2 stream CRC mismatch");
+	    // streams are byte aligned; another one may follow
+	    if (! readStreamHeader()) return false;
+	}
+
+	storedBlockCRC = (bits(16) << 16) | bits(16);
+	if (bit()) 
+	    throw new IOException("randomized bzip2 blocks are not supported");
+	int origPtr = bits(24);
+
+	// the symbols in use
+	int[] seqToUnseq = new int[256];
+	int nInUse = 0;
+	int used = bits(16);
+	for (int i=0; i < 16; i++) {
+	    if ((used & (0x8000 >>> i)) == 0) continue;
+	    int set = bits(16);
+	    for (int j=0; j < 16; j++) 
+		if ((set & (0x8000 >>> j)) != 0) seqToUnseq[nInUse++] = i*16 + j;
+	}
+	if (nInUse == 0) throw new IOException("bad bzip2 symbol map");
+	int alphaSize = nInUse + 2;
+
+	// the Huffman table selectors, move-to-front coded
+	int nGroups = bits(3);
+	int nSelectors = bits(15);
+	if (nGroups < 2 || nGroups > MAX_GROUPS || nSelectors < 1)
+	    throw new IOException("bad bzip2 table count");
+	byte[] pos = new byte[MAX_GROUPS];
+	for (int i=0; i < nGroups; i++) pos[i] = (byte) i;
+	byte[] selectors = new byte[Math.min(nSelectors, MAX_SELECTORS)];
+	for (int i=0; i < nSelectors; i++) {
+	    int j = 0;
+	    while (bit()) 
+		if (++j >= nGroups) throw new IOException("bad bzip2 selector");
+	    byte v = pos[j];
+	    for (; j > 0; j--) pos[j] = pos[j-1];
+	    pos[0] = v;
+	    if (i < MAX_SELECTORS) selectors[i] = v;
+	}
+	nSelectors = selectors.length;
+
+	// the code lengths, delta coded, and the decoding tables built 
+	// from them
+	int[][] limit = new int[nGroups][MAX_CODE_LEN+2];
+	int[][] base = new int[nGroups][MAX_CODE_LEN+2];
+	int[][] perm = new int[nGroups][MAX_ALPHA];
+	int[] minLens = new int[nGroups];
+	int[] length = new int[alphaSize];
+	for (int t=0; t < nGroups; t++) {
+	    int curr = bits(5);
+	    for (int i=0; i < alphaSize; i++) {
+		while (true) {
+		    if (curr < 1 || curr > 20) 
+			throw new IOException("bad bzip2 code length");
+		    if (! bit()) break;
+		    curr += (bit()) ? -1 : 1;
+		}
+		length[i] = curr;
+	    }
+	    minLens[t] = makeDecodeTable(length, alphaSize, 
+					 limit[t], base[t], perm[t]);
+	}
+
+	// the move-to-front and run length coded block
+	int limitBytes = blockSize100k * 100000;
+	if (ll == null || ll.length < limitBytes) {
+	    ll = new byte[limitBytes];
+	    tt = new int[limitBytes];
+	}
+	int[] counts = new int[256];
+	byte[] yy = new byte[256];
+	for (int i=0; i < 256; i++) yy[i] = (byte) i;
+	int eob = nInUse + 1;
+	int nblock = 0, groupNo = -1, groupPos = 0;
+	int[] glimit = null, gbase = null, gperm = null;
+	int gmin = 0;
+	int runSize = 0, runBit = 1;
+
+	while (true) {
+	    if (groupPos == 0) {
+		if (++groupNo >= nSelectors) 
+		    throw new IOException("bad bzip2 selector count");
+		groupPos = GROUP_SIZE;
+		int g = selectors[groupNo];
+		glimit = limit[g];
+		gbase = base[g];
+		gperm = perm[g];
+		gmin = minLens[g];
+	    }
+	    groupPos--;
+
+	    int zn = gmin;
+	    int zvec = bits(zn);
+	    while (zvec > glimit[zn]) {
+		if (++zn > 20) throw new IOException("bad bzip2 Huffman code");
+		zvec = (zvec << 1) | bits(1);
+	    }
+	    int sym = gperm[zvec - gbase[zn]];
+
+	    if (sym <= 1) {
+		// RUNA and RUNB give the length of a run of the front symbol
+		// in bijective base 2
+		runSize += (sym + 1) * runBit;
+		runBit <<= 1;
+		if (runSize > limitBytes) 
+		    throw new IOException("bad bzip2 run length");
+		continue;
+	    }
+	    if (runSize > 0) {
+		if (nblock + runSize > limitBytes) 
+		    throw new IOException("bzip2 block too long");
+		byte uc = (byte) seqToUnseq[yy[0] & 0xff];
+		counts[uc & 0xff] += runSize;
+		while (runSize-- > 0) ll[nblock++] = uc;
+		runSize = 0;
+		runBit = 1;
+	    }
+	    if (sym == eob) break;
+
+	    if (nblock >= limitBytes) 
+		throw new IOException("bzip2 block too long");
+	    int nn = sym - 1;
+	    byte v = yy[nn];
+	    System.arraycopy(yy, 0, yy, 1, nn);
+	    yy[0] = v;
+	    byte uc = (byte) seqToUnseq[v & 0xff];
+	    counts[uc & 0xff]++;
+	    ll[nblock++] = uc;
+	}
+	if (origPtr < 0 || origPtr >= Math.max(nblock, 1))
+	    throw new IOException("bad bzip2 block origin");
+
+	// invert the Burrows-Wheeler transform
+	int[] cftab = new int[256];
+	for (int i=0, sum=0; i < 256; i++) {
+	    cftab[i] = sum;
+	    sum += counts[i];
+	}
+	for (int i=0; i < nblock; i++) tt[cftab[ll[i] & 0xff]++] = i;
+	tPos = (nblock > 0) ? tt[origPtr] : 0;
+	remaining = nblock;
+
+	last = -1;
+	runLength = 0;
+	repeat = 0;
+	blockCRC = 0xffffffff;
+	return true;
+    }
+
+    /** build the limit, base and permutation tables for canonical 
+      * Huffman decoding of a set of code lengths
+      * @return the shortest code length
+      */
+    private static int makeDecodeTable(int[] length, int alphaSize, 
+				       int[] limit, int[] base, int[] perm) 
+    {
+	int minLen = 32, maxLen = 0;
+	for (int i=0; i < alphaSize; i++) {
+	    if (length[i] > maxLen) maxLen = length[i];
+	    if (length[i] < minLen) minLen = length[i];
+	}
+	int pp = 0;
+	for (int i=minLen; i <= maxLen; i++) 
+	    for (int j=0; j < alphaSize; j++) 
+		if (length[j] == i) perm[pp++] = j;
+
+	for (int i=0; i < base.length; i++) base[i] = 0;
+	for (int i=0; i < alphaSize; i++) base[length[i]+1]++;
+	for (int i=1; i < base.length; i++) base[i] += base[i-1];
+
+	for (int i=0; i < limit.length; i++) limit[i] = -1;
+	int vec = 0;
+	for (int i=minLen; i <= maxLen; i++) {
+	    vec += base[i+1] - base[i];
+	    limit[i] = vec - 1;
+	    vec <<= 1;
+	}
+	for (int i=minLen+1; i <= maxLen; i++) 
+	    base[i] = ((limit[i-1] + 1) << 1) - base[i];
+	return minLen;
+    }
+
+    public int read() throws IOException {
+	int n;
+	while ((n = read(one, 0, 1)) == 0) ;
+	return (n < 0) ? -1 : (one[0] & 0xff);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+	if (streamDone) return -1;
+	int n = 0;
+	int crc = blockCRC;
+	while (n < len) {
+	    int c;
+	    if (repeat > 0) {
+		c = last;
+		repeat--;
+	    }
+	    else if (remaining > 0) {
+		c = ll[tPos] & 0xff;
+		tPos = tt[tPos];
+		remaining--;
+		if (runLength == 4) {
+		    // a count of extra copies follows four equal bytes
+		    repeat = c;
+		    runLength = 0;
+		    continue;
+		}
+		if (c == last) runLength++;
+		else {
+		    last = c;
+		    runLength = 1;
+		}
+	    }
+	    else {
+		blockCRC = crc;
+		if (ll != null && ~blockCRC != storedBlockCRC) 
+		    throw new IOException("bzip2 block CRC mismatch");
+		if (ll != null) 
+		    combinedCRC = ((combinedCRC << 1) | (combinedCRC >>> 31))
+			          ^ storedBlockCRC;
+		if (! nextBlock()) {
+		    streamDone = true;
+		    ll = null;
+		    tt = null;
+		    break;
+		}
+		crc = blockCRC;
+		continue;
+	    }
+	    crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ c) & 0xff];
+	    b[off + n++] = (byte) c;
+	}
+	blockCRC = crc;
+	return (n == 0 && streamDone) ? -1 : n;
+    }
+
+    public void close() throws IOException {
+	ll = null;
+	tt = null;
+	in.close();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ */
+
+package ncsa.fits.util;
+
+import java.io.*;
+import java.util.concurrent.ExecutorService;
+
+/** Recognizes compressed input by its leading bytes and wraps it in a
+  * decompressing stream, so that readers may be handed a gzip or bzip2
+  * compressed FITS file (e.g. a .fits.gz) as if it were the plain file.
+  * The data are decompressed as they are read; nothing is written to a
+  * temporary file.
+  */
+public class CompressedInput {
+
+    /** the input is not compressed */
+    public final static int NONE = 0;
+    /** the input is gzip compressed */
+    public final static int GZIP = 1;
+    /** the input is bzip2 compressed */
+    public final static int BZIP2 = 2;
+
+    private CompressedInput() { }
+
+    /** return the compression of the data starting with the given bytes
+      * @param b  the first bytes of the data
+      * @param n  the number of bytes in b that are valid
+      */
+    public static int detect(byte[] b, int n) {
+	if (n >= 2 && (b[0] & 0xff) == 0x1f && (b[1] & 0xff) == 0x8b) 
+	    return GZIP;
+	if (n >= 4 && b[0] == 'B' && b[1] == 'Z' && b[2] == 'h' && 
+	    b[3] >= '1' && b[3] <= '9')
+	    return BZIP2;
+	return NONE;
+    }
+
+    /** return the compression of a file, judged from its first bytes */
+    public static int detect(File file) throws IOException {
+	byte[] b = new byte[4];
+	int n = 0;
+	InputStream in = new FileInputStream(file);
+	try {
+	    int got;
+	    while (n < b.length && (got = in.read(b, n, b.length-n)) > 0) 
+		n += got;
+	} finally {
+	    in.close();
+	}
+	return detect(b, n);
+    }
+
+    /** return a stream that reads the decompressed contents of a 
+      * stream, or the stream itself (buffered) if it is not compressed.
+      */
+    public static InputStream open(InputStream in) throws IOException {
+	return open(in, null, 1);
+    }
+
+    /** return a stream that reads the decompressed contents of a 
+      * stream, or the stream itself (buffered) if it is not compressed.
+      * @param in           the stream to read
+      * @param exec         an executor that may be used to decompress 
+      *                     in parallel, or null
+      * @param parallelism  the number of threads that exec may use
+      */
+    public static InputStream open(InputStream in, ExecutorService exec,
+				   int parallelism) 
+	throws IOException
+    {
+	if (! in.markSupported()) in = new BufferedInputStream(in, 65536);
+	byte[] b = new byte[4];
+	int n = 0, got;
+	in.mark(b.length);
+	while (n < b.length && (got = in.read(b, n, b.length-n)) > 0) 
+	    n += got;
+	in.reset();
+
+	switch (detect(b, n)) {
+	case GZIP:
+	    return new GunzipInputStream(in, exec, parallelism);
+	case BZIP2:
+	    return new Bunzip2InputStream(in);
+	default:
+	    return in;
+	}
+    }
+
+    /** open a file for reading its decompressed contents */
+    public static InputStream open(File file) throws IOException {
+	return open(new FileInputStream(file));
+    }
+}
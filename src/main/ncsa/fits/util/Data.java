@@ -35,6 +35,9 @@
 package ncsa.fits.util;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
 /** 
   * Data is a generic container class which may be used to store
   * Objects of any type.  It has the following differences from the
@@ -1129,48 +1132,44 @@ public class Data extends Object implements IO, Cloneable {
     }
     
     /** Write all one-dimensional arrays (except bytes).
-      * This routine should probably be optimized in the
-      * way that read1DArray has been, i.e., to
-      * buffer the data internally and avoid multiple
-      * calls to synchronized routines.
+      * The elements are encoded in blocks of up to getBlockSize() bytes
+      * through a big-endian ByteBuffer; each block is then written in a
+      * single call (through the file's channel if os is a 
+      * RandomAccessFile).  Strings are written one at a time.
       * @param os The output stream.
       * @param array The one-dimensional array.
       * @param size The size of the array.
       */
     protected void write1DArray (DataOutput os, Object array, int size) 
       throws IOException {
-        
-        int i;
-        for (i=0; i<size; i += 1) {
-        
-	   switch (type){
-	     case BOOLEAN:
-		os.writeBoolean( ((boolean[]) array)[i]);
-		break;
-	     case CHAR:
-		os.writeChar( ((char[]) array)[i]);
-		break;
-	     case SHORT:
-		os.writeShort( ((short[]) array)[i]);
-		break;
-	     case INT:
-		os.writeInt( ((int []) array)[i]);
-		break;
-	     case LONG:
-		os.writeLong( ((long[]) array)[i]);
-		break;
-	     case FLOAT:
-		os.writeFloat( ((float[]) array)[i]);
-		break;
-	     case DOUBLE:
-		os.writeDouble( ((double[]) array)[i]);
-		break;
-	     case STRING:
+
+	if (type == STRING) {
+	    for (int i=0; i<size; i += 1) {
 		os.writeUTF( ((String[]) array)[i]);
-		break;
-	    default:
-	        throw new IOException("write1DArray called for invalid type "+type);
 	    }
+	    return;
+	}
+	if (type < BOOLEAN || type > DOUBLE || type == BYTE) 
+	    throw new IOException("write1DArray called for invalid type "+type);
+
+	FileChannel ch = null;
+	if (os instanceof RandomAccessFile) 
+	    ch = ((RandomAccessFile) os).getChannel();
+	ByteBuffer buf = getIOBuffer(ch != null);
+	int max = buf.capacity()/atomSize[type];
+	int offset = 0;
+
+	while (offset < size) {
+	    int csize = Math.min(size - offset, max);
+	    buf.clear();
+	    encode(buf, array, offset, csize);
+	    buf.flip();
+	    if (ch != null) {
+		while (buf.hasRemaining()) ch.write(buf);
+	    } else {
+		os.write(buf.array(), 0, buf.limit());
+	    }
+	    offset += csize;
 	}
     }
 
@@ -1240,6 +1239,11 @@ public class Data extends Object implements IO, Cloneable {
       if (array == null) {
 	return null;
       }
+      if (level == dimensionality-2 && type != BYTE && 
+	  type >= BOOLEAN && type <= DOUBLE) {
+	readRows(is, (Object[]) array, dimensions[level+1]);
+	return array;
+      }
       if (level < dimensionality-1) {
 	int i;
 	/* Note that we can't use recursion to the last
@@ -1421,9 +1425,10 @@ public class Data extends Object implements IO, Cloneable {
     }
 
 
-  /** Read a 1-D array.  This calls the specialized <tt> readXArray </tt>
-   * routines possibly breaking 
-   * up a large array read into multiple segments.
+  /** Read a 1-D array.  The data are read in blocks of up to 
+   * getBlockSize() bytes into a big-endian ByteBuffer (directly from 
+   * the file's channel if is is a RandomAccessFile), and each block is
+   * converted with a single bulk transfer from a view of the buffer.
    * 
    * @param is The input stream.
    * @param array The array to be read.
@@ -1431,52 +1436,186 @@ public class Data extends Object implements IO, Cloneable {
    */
   protected void read1DArray (DataInput is, Object array, int size)
                              throws IOException {
-    int max = 32768/atomSize[type];
+    if (type < BOOLEAN || type > DOUBLE || type == BYTE) 
+      throw new IOException("read1DArray called for invalid type "+type);
+
+    FileChannel ch = null;
+    if (is instanceof RandomAccessFile) 
+      ch = ((RandomAccessFile) is).getChannel();
+    ByteBuffer buf = getIOBuffer(ch != null);
+    int max = buf.capacity()/atomSize[type];
     int offset = 0;
-    byte[] ioBuffer;
-    
-    if (size > max) {
-      ioBuffer = new byte[32768];
-    }
-    else {
-      ioBuffer = new byte[size*atomSize[type]];
-    }
 
     while (offset < size) {
-      int csize = size - offset;
-      if (csize > max) {
-	csize = max;
-      }
-        
-      switch (type) {
-      case BOOLEAN: 
-	readBArray(is, ioBuffer, (boolean[]) array, csize, offset);
-	break;
-      case CHAR:
-	readCArray(is, ioBuffer, (char[])array, csize, offset);
-	break;
-      case SHORT:
-	readSArray(is, ioBuffer, (short[])array, csize, offset);
-	break;
-      case INT:
-	readIArray(is, ioBuffer, (int[])array, csize, offset);
-	break;
-      case FLOAT:
-	readFArray(is, ioBuffer, (float[])array, csize, offset);
-	break;
-      case LONG:
-	readLArray(is, ioBuffer, (long[]) array, csize, offset);
-	break;
-      case DOUBLE:
-	readDArray(is, ioBuffer, (double[]) array, csize, offset);
-	break;
-      default:
-	throw new IOException("read1DArray called for invalid type "+type);
+      int csize = Math.min(size - offset, max);
+      int nbytes = csize*atomSize[type];
+      buf.clear();
+      buf.limit(nbytes);
+      if (ch != null) {
+	while (buf.hasRemaining()) {
+	  if (ch.read(buf) < 0) throw new EOFException();
+	}
+	buf.flip();
+      } else {
+	is.readFully(buf.array(), 0, nbytes);
       }
+      decode(buf, array, offset, csize);
       offset += csize;
     }    
   }
 
+  /** Read a set of 1-D arrays that are stored one after another,
+   * filling each block with as many whole rows as will fit so that 
+   * short rows do not each cost a separate read.
+   *
+   * @param is The input stream.
+   * @param rows The arrays to be read.
+   * @param size The size of each array.
+   */
+  protected void readRows (DataInput is, Object[] rows, int size)
+                          throws IOException {
+    int rowbytes = size*atomSize[type];
+    FileChannel ch = null;
+    if (is instanceof RandomAccessFile) 
+      ch = ((RandomAccessFile) is).getChannel();
+    ByteBuffer buf = getIOBuffer(ch != null);
+    int perblock = (rowbytes > 0) ? buf.capacity()/rowbytes : rows.length;
+    if (perblock < 2) {
+      for (int j=0; j < rows.length; j++) read1DArray(is, rows[j], size);
+      return;
+    }
+
+    int j = 0;
+    while (j < rows.length) {
+      int n = Math.min(rows.length - j, perblock);
+      int nbytes = n*rowbytes;
+      buf.clear();
+      buf.limit(nbytes);
+      if (ch != null) {
+	while (buf.hasRemaining()) {
+	  if (ch.read(buf) < 0) throw new EOFException();
+	}
+      } else {
+	is.readFully(buf.array(), 0, nbytes);
+      }
+      for (int k=0; k < n; k++, j++) {
+	buf.limit((k+1)*rowbytes);
+	buf.position(k*rowbytes);
+	decode(buf.slice(), rows[j], 0, size);
+      }
+    }
+  }
+
+  /** Convert the contents of a buffer into size elements of an array
+   * starting at offset.
+   */
+  private final void decode(ByteBuffer buf, Object array, int offset, 
+			    int size) 
+  {
+    switch (type) {
+    case BOOLEAN: 
+      boolean[] b = (boolean[]) array;
+      for (int i=0; i < size; i++) b[i+offset] = (buf.get(i) != 0);
+      break;
+    case CHAR:
+      buf.asCharBuffer().get((char[]) array, offset, size);
+      break;
+    case SHORT:
+      buf.asShortBuffer().get((short[]) array, offset, size);
+      break;
+    case INT:
+      buf.asIntBuffer().get((int[]) array, offset, size);
+      break;
+    case FLOAT:
+      buf.asFloatBuffer().get((float[]) array, offset, size);
+      break;
+    case LONG:
+      buf.asLongBuffer().get((long[]) array, offset, size);
+      break;
+    case DOUBLE:
+      buf.asDoubleBuffer().get((double[]) array, offset, size);
+      break;
+    }
+  }
+
+  /** Convert size elements of an array starting at offset into a 
+   * buffer, leaving its position after the last byte written.
+   */
+  private final void encode(ByteBuffer buf, Object array, int offset, 
+			    int size) 
+  {
+    switch (type) {
+    case BOOLEAN: 
+      boolean[] b = (boolean[]) array;
+      for (int i=0; i < size; i++) buf.put((byte) (b[i+offset] ? 1 : 0));
+      return;
+    case CHAR:
+      buf.asCharBuffer().put((char[]) array, offset, size);
+      break;
+    case SHORT:
+      buf.asShortBuffer().put((short[]) array, offset, size);
+      break;
+    case INT:
+      buf.asIntBuffer().put((int[]) array, offset, size);
+      break;
+    case FLOAT:
+      buf.asFloatBuffer().put((float[]) array, offset, size);
+      break;
+    case LONG:
+      buf.asLongBuffer().put((long[]) array, offset, size);
+      break;
+    case DOUBLE:
+      buf.asDoubleBuffer().put((double[]) array, offset, size);
+      break;
+    }
+    buf.position(size*atomSize[type]);
+  }
+
+  /** the default size, in bytes, of the blocks in which arrays are 
+   * read and written
+   */
+  public final static int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+  private static int blockSize = DEFAULT_BLOCK_SIZE;
+
+  // each thread keeps its own buffers: a direct one for channel 
+  // transfers and one backed by an array for DataInput/DataOutput
+  private static ThreadLocal directBuffer = new ThreadLocal();
+  private static ThreadLocal heapBuffer = new ThreadLocal();
+
+  /** Set the size, in bytes, of the blocks in which arrays are read
+   * and written.  Larger blocks mean fewer calls to the underlying 
+   * stream or channel at the cost of more memory per reading thread.
+   * The size is rounded down to a multiple of 8.
+   * @exception IllegalArgumentException if size is less than 8
+   */
+  public static void setBlockSize(int size) {
+    if (size < 8) 
+      throw new IllegalArgumentException("block size too small: " + size);
+    blockSize = size & ~7;
+  }
+
+  /** Return the size, in bytes, of the blocks in which arrays are read
+   * and written.
+   */
+  public static int getBlockSize() { return blockSize; }
+
+  /** Return this thread's I/O buffer, (re)allocating it if the block
+   * size has changed.
+   */
+  private static ByteBuffer getIOBuffer(boolean direct) {
+    ThreadLocal tl = (direct) ? directBuffer : heapBuffer;
+    ByteBuffer buf = (ByteBuffer) tl.get();
+    int size = blockSize;
+    if (buf == null || buf.capacity() != size) {
+      buf = (direct) ? ByteBuffer.allocateDirect(size) 
+	             : ByteBuffer.allocate(size);
+      buf.order(ByteOrder.BIG_ENDIAN);
+      tl.set(buf);
+    }
+    return buf;
+  }
+
     /** Dump the contents of the Data for its string value.
       */
     public String toString () {
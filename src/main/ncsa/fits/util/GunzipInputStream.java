@@ -0,0 +1,338 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ */
+
+package ncsa.fits.util;
+
+import java.io.*;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/** An input stream that decompresses gzip data as it is read.  Unlike
+  * java.util.zip.GZIPInputStream, every member of a multi-member file 
+  * (as made by concatenating gzip files) is read, and padding after the
+  * last member is ignored.  <p>
+  * 
+  * When given an executor, files written in the blocked gzip format 
+  * (BGZF, as made by bgzip), whose member headers record the compressed
+  * size of each member, are decompressed in parallel: the compressed 
+  * members are read ahead and inflated by the executor's threads while 
+  * the caller consumes the earlier ones.  Ordinary gzip members can 
+  * only be found by decompressing them, so they are always read 
+  * sequentially.
+  */
+public class GunzipInputStream extends InputStream {
+
+    private final static int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    private InputStream in;
+    private byte[] ibuf = new byte[65536];
+    private int ipos = 0, ilen = 0;
+    private boolean eof = false;
+
+    // sequential state
+    private Inflater inf = new Inflater(true);
+    private CRC32 crc = new CRC32();
+    private boolean inMember = false;
+    private boolean done = false;
+
+    // parallel state
+    private ExecutorService exec = null;
+    private int ahead = 0;
+    private LinkedList pending = new LinkedList();
+    private byte[] obuf = null;
+    private int opos = 0;
+
+    private byte[] one = new byte[1];
+
+    /** Decompress a gzip stream sequentially.
+      * @exception IOException if the stream does not start with a 
+      *            gzip header
+      */
+    public GunzipInputStream(InputStream in) throws IOException {
+	this(in, null, 1);
+    }
+
+    /** Decompress a gzip stream, inflating BGZF members in parallel.
+      * @param in           the compressed stream
+      * @param exec         the executor to inflate with, or null to 
+      *                     decompress sequentially
+      * @param parallelism  the number of members to inflate at once
+      * @exception IOException if the stream does not start with a 
+      *            gzip header
+      */
+    public GunzipInputStream(InputStream in, ExecutorService exec, 
+			     int parallelism) 
+	throws IOException
+    {
+	this.in = in;
+	if (headerLength() < 0) throw new ZipException("not in gzip format");
+	if (exec != null && parallelism > 1 && blockSize() > 0) {
+	    this.exec = exec;
+	    ahead = 2*parallelism;
+	}
+    }
+
+    /** make sure that at least need bytes are buffered, unless the end
+      * of the input is reached first.  
+      * @return true if need bytes are available
+      */
+    private boolean fill(int need) throws IOException {
+	if (ilen - ipos >= need) return true;
+	if (ipos > 0) {
+	    System.arraycopy(ibuf, ipos, ibuf, 0, ilen-ipos);
+	    ilen -= ipos;
+	    ipos = 0;
+	}
+	if (need > ibuf.length) {
+	    byte[] tmp = new byte[Math.max(need, 2*ibuf.length)];
+	    System.arraycopy(ibuf, 0, tmp, 0, ilen);
+	    ibuf = tmp;
+	}
+	while (ilen < need && ! eof) {
+	    int n = in.read(ibuf, ilen, ibuf.length - ilen);
+	    if (n < 0) eof = true;
+	    else ilen += n;
+	}
+	return (ilen - ipos >= need);
+    }
+
+    /** return the length of the member header at the current position,
+      * or -1 if there is no gzip header there.
+      */
+    private int headerLength() throws IOException {
+	if (! fill(10)) return -1;
+	if ((ibuf[ipos] & 0xff) != 0x1f || (ibuf[ipos+1] & 0xff) != 0x8b)
+	    return -1;
+	if (ibuf[ipos+2] != 8) 
+	    throw new ZipException("unsupported gzip compression method");
+	int flg = ibuf[ipos+3] & 0xff;
+	int len = 10;
+	if ((flg & FEXTRA) != 0) {
+	    if (! fill(len+2)) throw new EOFException();
+	    len += 2 + ((ibuf[ipos+len] & 0xff) | 
+			((ibuf[ipos+len+1] & 0xff) << 8));
+	}
+	if ((flg & FNAME) != 0) len = skipString(len);
+	if ((flg & FCOMMENT) != 0) len = skipString(len);
+	if ((flg & FHCRC) != 0) len += 2;
+	if (! fill(len)) throw new EOFException();
+	return len;
+    }
+
+    private int skipString(int off) throws IOException {
+	while (true) {
+	    if (! fill(off+1)) throw new EOFException();
+	    if (ibuf[ipos + off++] == 0) return off;
+	}
+    }
+
+    /** return the total size of the BGZF member at the current 
+      * position, or -1 if the member there is not a BGZF member.
+      */
+    private int blockSize() throws IOException {
+	if (headerLength() < 0 || (ibuf[ipos+3] & FEXTRA) == 0) return -1;
+	int xlen = (ibuf[ipos+10] & 0xff) | ((ibuf[ipos+11] & 0xff) << 8);
+	int p = ipos + 12, end = p + xlen;
+	while (p + 4 <= end) {
+	    int slen = (ibuf[p+2] & 0xff) | ((ibuf[p+3] & 0xff) << 8);
+	    if (ibuf[p] == 'B' && ibuf[p+1] == 'C' && slen == 2 && p+6 <= end)
+		return ((ibuf[p+4] & 0xff) | ((ibuf[p+5] & 0xff) << 8)) + 1;
+	    p += 4 + slen;
+	}
+	return -1;
+    }
+
+    public int read() throws IOException {
+	int n;
+	while ((n = read(one, 0, 1)) == 0) ;
+	return (n < 0) ? -1 : (one[0] & 0xff);
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+	if (len == 0) return 0;
+	while (exec != null) {
+	    if (obuf != null && opos < obuf.length) {
+		int n = Math.min(len, obuf.length - opos);
+		System.arraycopy(obuf, opos, b, off, n);
+		opos += n;
+		return n;
+	    }
+	    if (! nextBlock()) {
+		// the rest, if anything, is not BGZF
+		exec = null;
+		break;
+	    }
+	}
+	return readSequential(b, off, len);
+    }
+
+    /** move on to the next inflated BGZF member, queuing more members 
+      * to be inflated.
+      * @return false if there are no more BGZF members
+      */
+    private boolean nextBlock() throws IOException {
+	while (pending.size() < ahead) {
+	    int size = blockSize();
+	    if (size < 0) break;
+	    if (! fill(size)) throw new EOFException();
+	    final byte[] block = new byte[size];
+	    System.arraycopy(ibuf, ipos, block, 0, size);
+	    ipos += size;
+	    final int hlen = headerLength(block);
+	    pending.addLast(exec.submit(new Callable() {
+		public Object call() throws IOException {
+		    return inflateMember(block, hlen);
+		}
+	    }));
+	}
+	if (pending.isEmpty()) return false;
+
+	Future f = (Future) pending.removeFirst();
+	try {
+	    obuf = (byte[]) f.get();
+	    opos = 0;
+	}
+	catch (InterruptedException ex) {
+	    throw new InterruptedIOException("gzip decompression interrupted");
+	}
+	catch (ExecutionException ex) {
+	    Throwable t = ex.getCause();
+	    if (t instanceof IOException) throw (IOException) t;
+	    if (t instanceof RuntimeException) throw (RuntimeException) t;
+	    if (t instanceof Error) throw (Error) t;
+	    throw new InternalError(t.toString());
+	}
+	return true;
+    }
+
+    /** return the header length of a member held in an array */
+    private static int headerLength(byte[] block) throws IOException {
+	int flg = block[3] & 0xff;
+	int len = 12 + ((block[10] & 0xff) | ((block[11] & 0xff) << 8));
+	if ((flg & FNAME) != 0) while (block[len++] != 0) ;
+	if ((flg & FCOMMENT) != 0) while (block[len++] != 0) ;
+	if ((flg & FHCRC) != 0) len += 2;
+	return len;
+    }
+
+    /** inflate a complete gzip member and check its trailer */
+    private static byte[] inflateMember(byte[] block, int hlen) 
+	throws IOException
+    {
+	int t = block.length - 8;
+	int size = getInt(block, t+4);
+	byte[] out = new byte[size];
+	Inflater inf = new Inflater(true);
+	try {
+	    inf.setInput(block, hlen, t - hlen);
+	    int n = 0;
+	    while (n < size) {
+		int got = inf.inflate(out, n, size - n);
+		if (got == 0 && (inf.finished() || inf.needsInput())) 
+		    throw new ZipException("gzip member is shorter than " + 
+					   "its recorded size");
+		n += got;
+	    }
+	} catch (DataFormatException ex) {
+	    throw new ZipException(ex.getMessage());
+	} finally {
+	    inf.end();
+	}
+	CRC32 crc = new CRC32();
+	crc.update(out);
+	if ((int) crc.getValue() != getInt(block, t))
+	    throw new ZipException("gzip CRC mismatch");
+	return out;
+    }
+
+    private static int getInt(byte[] b, int p) {
+	return (b[p] & 0xff) | ((b[p+1] & 0xff) << 8) | 
+	       ((b[p+2] & 0xff) << 16) | ((b[p+3] & 0xff) << 24);
+    }
+
+    private int readSequential(byte[] b, int off, int len) 
+	throws IOException
+    {
+	while (! done) {
+	    if (! inMember) {
+		int hlen = headerLength();
+		if (hlen < 0) {
+		    // end of input, or padding after the last member
+		    done = true;
+		    break;
+		}
+		ipos += hlen;
+		inf.reset();
+		crc.reset();
+		inMember = true;
+	    }
+
+	    if (inf.needsInput()) {
+		if (! fill(1)) throw new EOFException("truncated gzip data");
+		inf.setInput(ibuf, ipos, ilen - ipos);
+		ipos = ilen;
+	    }
+	    int n;
+	    try {
+		n = inf.inflate(b, off, len);
+	    } catch (DataFormatException ex) {
+		throw new ZipException(ex.getMessage());
+	    }
+	    if (n > 0) {
+		crc.update(b, off, n);
+		return n;
+	    }
+	    if (inf.finished()) {
+		ipos = ilen - inf.getRemaining();
+		if (! fill(8)) throw new EOFException("truncated gzip data");
+		if ((int) crc.getValue() != getInt(ibuf, ipos))
+		    throw new ZipException("gzip CRC mismatch");
+		if ((inf.getBytesWritten() & 0xffffffffL) != 
+		    (getInt(ibuf, ipos+4) & 0xffffffffL))
+		    throw new ZipException("gzip size mismatch");
+		ipos += 8;
+		inMember = false;
+	    }
+	    else if (inf.needsDictionary()) {
+		throw new ZipException("bad gzip data");
+	    }
+	}
+	return -1;
+    }
+
+    public int available() throws IOException {
+	if (exec != null && obuf != null) return obuf.length - opos;
+	return 0;
+    }
+
+    public void close() throws IOException {
+	while (! pending.isEmpty()) 
+	    ((Future) pending.removeFirst()).cancel(false);
+	inf.end();
+	in.close();
+    }
+}
@@ -26,6 +26,8 @@
 
 package ncsa.horizon.awt.image;
 
+import java.awt.image.IndexColorModel;
+
 /**
  * Lookup table which converts a int or int array ranges 
  * from 0 to table size - 1 a byte or int or byte or int 
@@ -45,6 +47,8 @@ public abstract class Lut {
    */
   private static Lut[] concreteLuts = new Lut[7];
 
+  private IndexColorModel colorModel = null;
+
   public byte[] getBlue() {
     return null;
   }
@@ -61,6 +65,20 @@ public abstract class Lut {
     return null;
   }
 
+  /**
+   * Return an 8-bit IndexColorModel with the colors of the table.
+   * The same object is returned each time, so that a view whose 
+   * color model is merely switched to another Lut's can be recognized
+   * (see SliceRenderer) and recolored without being rendered again.
+   */
+  public synchronized IndexColorModel getIndexColorModel() {
+    if (colorModel == null) {
+      colorModel = new IndexColorModel(8, 256, getRed(), getGreen(), 
+				       getBlue());
+    }
+    return colorModel;
+  }
+
   /**
    * return size of the table
    */
@@ -40,11 +40,27 @@ import java.util.Vector;
 import ncsa.horizon.util.ArrayTypeConverter;
 import ncsa.horizon.util.JavaType;
 import ncsa.horizon.util.Slice;
+import ncsa.horizon.util.IOPool;
 import ncsa.horizon.data.NdArrayMath;
 import ncsa.horizon.data.NdArrayData;
+import ncsa.horizon.data.NdArrayStatistics;
+import ncsa.horizon.data.StatisticsEngine;
+import ncsa.horizon.data.UpdatedRegion;
 
 /**
- * An image producer.  It produce a image represent a slice.
+ * An image producer.  It produce a image represent a slice. <p>
+ *
+ * Production is driven by events rather than by a thread of its own:
+ * startProduction() and each update from the (incomplete) source data
+ * schedule a production task on the IOPool (as reading the data may 
+ * block, e.g. on tiles of a remote file), and the task exits as soon 
+ * as it has delivered what is pending.  Updates that arrive while a 
+ * frame is being produced are coalesced into the next one.  When the 
+ * data reports which region was updated (see 
+ * NdArrayData.regionUpdated()), only the rows of the image that cover 
+ * it are regenerated and sent to the consumers, unless the scaling of
+ * the image has changed as a result.  Nothing runs while the data is 
+ * not changing.
  */
 public class SliceImageSource implements ImageProducer, Observer, Runnable {
   /**
@@ -55,26 +71,50 @@ public class SliceImageSource implements ImageProducer, Observer, Runnable {
    * A vector of ImageConsumers
    */
   protected Vector consumers;
+  /**
+   * the consumers that have yet to be sent the image dimensions, 
+   * color model, and a full frame
+   */
+  protected Vector newConsumers;
   /**
    * The source data.
    */
   protected NdArrayData dataVolume;
-  protected Thread thread;
   /**
    * The flag indicating that whether the source data
    * is just updated.
    */
   protected boolean flag_update;
   /**
-   * The flag used to get argument from the Observance.
+   * The flag indicating that the source data is complete.
+   */
+  protected boolean flag_complete;
+  /**
+   * the first and (one past the) last image rows that have changed since
+   * the last frame was delivered
    */
-  protected Boolean flag_complete;
+  protected int dirtyTop, dirtyBottom;
   protected Hashtable properties;
   /**
    * The color model, with which this ImageProducer produces image
    */
   protected ColorModel colorModel;
 
+  /**
+   * the image dimensions
+   */
+  protected int width, height;
+
+  /**
+   * true while a production task is scheduled or running
+   */
+  private boolean scheduled = false;
+
+  /**
+   * the range that the current pixels were scaled with
+   */
+  private double scaleMin = Double.NaN, scaleMax = Double.NaN;
+
   /**
    * 
    */
@@ -89,13 +129,14 @@ public class SliceImageSource implements ImageProducer, Observer, Runnable {
     this.slice = slice;
     dataVolume = volume;
     consumers = new Vector();
-    flag_update = true; // volume has just been updated
-    flag_complete = new Boolean(dataVolume.isComplete());
+    newConsumers = new Vector();
+    width = (int) slice.getLength(slice.getXaxis());
+    height = (int) slice.getLength(slice.getYaxis());
+    flag_update = false;
+    flag_complete = dataVolume.isComplete();
     properties = new Hashtable();
     if (cm == null) {
-      Lut aLut = Lut.getRainbowLut();
-      colorModel = new IndexColorModel(8, 256, aLut.getRed(),
-			       aLut.getGreen(), aLut.getBlue());
+      colorModel = Lut.getRainbowLut().getIndexColorModel();
     } else {
       colorModel = cm;
     }
@@ -114,8 +155,10 @@ public class SliceImageSource implements ImageProducer, Observer, Runnable {
    * ncsa.horizon.awt.image.SliceImageSource.startProduction: 71 
    */
   public synchronized void addConsumer(ImageConsumer ic) {
-    if(isConsumer(ic) == false)
+    if(isConsumer(ic) == false) {
       consumers.addElement(ic);
+      newConsumers.addElement(ic);
+    }
   }
 
   public boolean isConsumer(ImageConsumer ic) {
@@ -131,16 +174,16 @@ public class SliceImageSource implements ImageProducer, Observer, Runnable {
    * then this method is called with ic = 
    *    sun.awt.image.ImageInfoGrabber
    */
-  public void removeConsumer(ImageConsumer ic) {
-    if(isConsumer(ic) == true)
-      consumers.removeElement(ic);
+  public synchronized void removeConsumer(ImageConsumer ic) {
+    consumers.removeElement(ic);
+    newConsumers.removeElement(ic);
   }
 
   /**
-   * We don't observer this request.
+   * resend the whole image to a consumer
    */
   public void requestTopDownLeftRightResend(ImageConsumer ic) {
-    ;
+    startProduction(ic);
   }
  
   /**
@@ -148,120 +191,242 @@ public class SliceImageSource implements ImageProducer, Observer, Runnable {
    * separate thread.  The application itself is free to go on
    * with life.
    */
-  /* startProduction must be mutual-excluded from run.
-   * This is because if run is runing addComumer will
-   * not take effect.   In the run method, comsumers'
-   * clone v is used to represent consumer vector.
-   * Also, thread != null.  So, startProduction won't start a
-   * thread to produce.
-   */
   public synchronized void startProduction(ImageConsumer ic) {
-    addConsumer(ic);
+    if (isConsumer(ic)) {
+      if (! newConsumers.contains(ic)) newConsumers.addElement(ic);
+    }
+    else {
+      addConsumer(ic);
+    }
+    schedule();
+  }
+
+  /**
+   * make sure that a production task will run 
+   */
+  private synchronized void schedule() {
+    if (scheduled) return;
+    scheduled = true;
+    IOPool.getExecutor().execute(this);
+  }
 
-    if (thread == null) {
-      thread = new Thread(this, "sliceimageproducer thread");
-      thread.start();
+  /**
+   * deliver whatever is pending: a full frame to consumers that have 
+   * just been added and the changed rows to the others.  This returns 
+   * when there is nothing more to deliver.  If production fails, every
+   * consumer is sent IMAGEERROR so that none is left waiting.
+   */
+  public void run() {
+    try {
+      while (produce()) ;
+    }
+    catch (RuntimeException ex) {
+      Vector v;
+      synchronized (this) {
+	scheduled = false;
+	newConsumers.removeAllElements();
+	v = (Vector) consumers.clone();
+      }
+      System.err.println(getClass().getName() + ": " + ex);
+      sendStatus(v, ImageConsumer.IMAGEERROR);
     }
   }
 
-  public synchronized void run() {
-    int naxis = slice.getNaxes();
-    int xaxis = slice.getXaxis();
-    int yaxis = slice.getYaxis();
-    int width = (int) slice.getLength(xaxis);
-    int height = (int) slice.getLength(yaxis);
+  /**
+   * produce one frame
+   * @return false if there was nothing to do
+   */
+  private boolean produce() {
+    Vector fresh, old;
+    int top, bottom;
+    boolean complete;
+    synchronized (this) {
+      if (newConsumers.isEmpty() && ! flag_update) {
+	scheduled = false;
+	return false;
+      }
+      fresh = (Vector) newConsumers.clone();
+      newConsumers.removeAllElements();
+      old = (Vector) consumers.clone();
+      for(Enumeration e = fresh.elements(); e.hasMoreElements(); )
+	old.removeElement(e.nextElement());
+      if (! flag_update) old.removeAllElements();
+      top = Math.max(dirtyTop, 0);
+      bottom = Math.min(dirtyBottom, height);
+      flag_update = false;
+      dirtyTop = dirtyBottom = 0;
+      complete = flag_complete = (flag_complete || dataVolume.isComplete());
+    }
+
+    // a change in scaling requires all rows to be regenerated
+    if (prepareFrame()) {
+      top = 0;
+      bottom = height;
+    }
+    if (fresh.isEmpty() && top >= bottom) {
+      // nothing visible changed; just mark the end of the frame 
+      sendDone(old, complete);
+      return true;
+    }
+
+    // fill out the pixels array
+    int rtop = (fresh.isEmpty()) ? top : 0;
+    int rbottom = (fresh.isEmpty()) ? bottom : height;
+    int[] pixels = getRows(rtop, rbottom - rtop);
+    if (pixels == null) {
+      System.err.println(getClass().getName() + 
+			 ": required slice out of range of volume");
+      old.addAll(fresh);
+      sendStatus(old, ImageConsumer.IMAGEERROR);
+      return true;
+    }
 
     ImageConsumer ic;
-    Vector v = (Vector)consumers.clone();
-    // Vector v = consumers;
     Enumeration e;
-
-    /* Tell each image consumer the dimensions of the image
-     * and the color model we will use.  Since we don't say
-     * otherwise, they won't expect pixels to arrive in
-     * any particular order (RANDOMPIXELORDER is the
-     * default).
-     */
-    for(e = v.elements(); e.hasMoreElements(); ) {
+    int hints = ImageConsumer.TOPDOWNLEFTRIGHT | 
+                ImageConsumer.COMPLETESCANLINES;
+    if (complete) 
+      hints |= ImageConsumer.SINGLEPASS | ImageConsumer.SINGLEFRAME;
+    for(e = fresh.elements(); e.hasMoreElements(); ) {
       ic = (ImageConsumer)e.nextElement();
-      
       if(consumers.contains(ic))
 	ic.setDimensions(width, height);
       if(consumers.contains(ic))
 	ic.setProperties(properties);
       if(consumers.contains(ic))
 	ic.setColorModel(colorModel);
-      if(consumers.contains(ic)) {
-	if(flag_complete.booleanValue())
-	  ic.setHints(ImageConsumer.TOPDOWNLEFTRIGHT |
-		      ImageConsumer.COMPLETESCANLINES |
-		      ImageConsumer.SINGLEPASS |
-		      ImageConsumer.SINGLEFRAME);
-	else
-	  ic.setHints(ImageConsumer.TOPDOWNLEFTRIGHT |
-		      ImageConsumer.COMPLETESCANLINES);
-      }
+      if(consumers.contains(ic))
+	ic.setHints(hints);
+      if(consumers.contains(ic))
+	ic.setPixels(0, 0, width, height, colorModel, pixels, 0, width);
     }
-    boolean in_loop = true;
-    while(in_loop) {
-      synchronized(flag_complete) {
-	if(flag_update | flag_complete.booleanValue()) {
-	  // fill out the pixels array
-	  double[] location = slice.getLocation();
-	  int[] startCoord = ArrayTypeConverter.arrayDoubleToInt(location);
-	  int[] sliceSize = ArrayTypeConverter.arrayDoubleToInt(slice.getSize());
-	  Object values = dataVolume.getValue(startCoord, sliceSize);
-	  if (values == null) {
-	    System.err.println(getClass().getName() + "required slice out of range of volume");
-	  } else {
-	    JavaType javaType = dataVolume.getType();
-	    int[] pixels = NdArrayMath.scaleTo(values, 0,
-					       ((IndexColorModel) colorModel).getMapSize() - 1, javaType);
-	    for (e = v.elements(); e.hasMoreElements(); ) {
-	      ic = (ImageConsumer)e.nextElement();  
-	      if(consumers.contains(ic))
-		ic.setPixels(0, 0, width, height, colorModel, pixels, 0, width);
-	    }
-	  }
-	  
-	  // Tell each image consumer that a frame or the 
-	  // whole image has been delivered.
-	  
-	  for (e = v.elements(); e.hasMoreElements(); ) {
-	    ic = (ImageConsumer)e.nextElement();
-            if(consumers.contains(ic)) {
-	      if(flag_complete.booleanValue()) {
-	        ic.imageComplete(ImageConsumer.STATICIMAGEDONE);
-	      }
-	      else {
-	        ic.imageComplete(ImageConsumer.SINGLEFRAMEDONE);
-	        thread.setPriority(Thread.MIN_PRIORITY);
-	      }
-            }
-	  }
-	  flag_update = false;
-	  
-	  if(flag_complete.booleanValue())
-	    in_loop = false;
-	} // end synchronized(flag_complete)
+    if (top < bottom) {
+      for(e = old.elements(); e.hasMoreElements(); ) {
+	ic = (ImageConsumer)e.nextElement();  
+	if(consumers.contains(ic))
+	  ic.setPixels(0, top, width, bottom - top, colorModel, pixels, 
+		       (top - rtop) * width, width);
       }
     }
-    thread = null;
-  } // end SliceImageSource.run
+
+    // Tell each image consumer that a frame or the 
+    // whole image has been delivered.
+    old.addAll(fresh);
+    sendDone(old, complete);
+    return true;
+  }
+
+  private void sendDone(Vector v, boolean complete) {
+    sendStatus(v, (complete) ? ImageConsumer.STATICIMAGEDONE 
+		             : ImageConsumer.SINGLEFRAMEDONE);
+  }
+
+  private void sendStatus(Vector v, int status) {
+    for(Enumeration e = v.elements(); e.hasMoreElements(); ) {
+      ImageConsumer ic = (ImageConsumer)e.nextElement();
+      if(consumers.contains(ic)) 
+	ic.imageComplete(status);
+    }
+  }
+
+  /**
+   * get ready to produce a frame; this implementation determines the 
+   * range of the values in the slice, which is mapped onto the color
+   * model.  
+   * @return true if all rows must be regenerated because the 
+   *         scaling has changed since the last frame
+   */
+  protected boolean prepareFrame() {
+    // the range of the slice is cached (and, while the data are 
+    // loading, brought up to date with each part that arrives), so 
+    // producing the same slice again does not require rescanning it.
+    NdArrayStatistics stats = 
+      StatisticsEngine.getStatistics(dataVolume, slice);
+    double mn = stats.getMinimum(), mx = stats.getMaximum();
+    if (stats.getCount() == 0) mn = mx = 0.0;
+    synchronized (this) {
+      boolean changed = ! (mn == scaleMin && mx == scaleMax);
+      scaleMin = mn;
+      scaleMax = mx;
+      return changed;
+    }
+  }
+
+  /**
+   * return the pixels for a range of image rows
+   * @param top     the first row
+   * @param nrows   the number of rows
+   * @return the pixels, or null if the rows are out of the range of 
+   *         the data
+   */
+  protected int[] getRows(int top, int nrows) {
+    int[] startCoord = 
+      ArrayTypeConverter.arrayDoubleToInt(slice.getLocation());
+    int[] sliceSize = ArrayTypeConverter.arrayDoubleToInt(slice.getSize());
+    int yaxis = slice.getYaxis();
+    startCoord[yaxis] += top;
+    sliceSize[yaxis] = nrows;
+    return getPixels(startCoord, sliceSize);
+  }
+
+  /**
+   * return the pixel values for a region of the data
+   * @return the pixels, or null if the region is out of the range of 
+   *         the data
+   */
+  protected int[] getPixels(int[] startCoord, int[] size) {
+    Object values = dataVolume.getValue(startCoord, size);
+    if (values == null) return null;
+    double mn, mx;
+    synchronized (this) {
+      mn = scaleMin;
+      mx = scaleMax;
+    }
+    return NdArrayMath.scaleTo(values, 0, 
+			       ((IndexColorModel) colorModel).getMapSize() - 1, 
+			       dataVolume.getType(), mn, mx);
+  }
 
   public void update(Observable o, Object arg) {
-    if(o == dataVolume) {
-      if(dataVolume.isComplete()) {
-	synchronized (flag_complete) {
-	  flag_complete = Boolean.TRUE;
+    if(o != dataVolume) return;
+    synchronized (this) {
+      int top = 0, bottom = height;
+      if (arg instanceof UpdatedRegion) {
+	// only the rows covering the region have changed
+	UpdatedRegion r = (UpdatedRegion) arg;
+	int[] startCoord = 
+	  ArrayTypeConverter.arrayDoubleToInt(slice.getLocation());
+	int[] sliceSize = 
+	  ArrayTypeConverter.arrayDoubleToInt(slice.getSize());
+	if (! r.intersects(startCoord, sliceSize)) {
+	  top = bottom = 0;
+	}
+	else {
+	  int yaxis = slice.getYaxis();
+	  top = Math.max(0, r.getStart()[yaxis] - startCoord[yaxis]);
+	  bottom = Math.min(height, r.getStart()[yaxis] + r.getSize()[yaxis]
+			            - startCoord[yaxis]);
+	}
+      }
+      if (top < bottom) {
+	if (dirtyTop >= dirtyBottom) {
+	  dirtyTop = top;
+	  dirtyBottom = bottom;
+	}
+	else {
+	  dirtyTop = Math.min(dirtyTop, top);
+	  dirtyBottom = Math.max(dirtyBottom, bottom);
 	}
       }
-      flag_update = true;
-      if(thread != null) {
-	thread.setPriority(Thread.NORM_PRIORITY);
+      if (dataVolume.isComplete()) {
+	flag_complete = true;
+	dataVolume.deleteObserver(this);
+      }
+      if (top < bottom || flag_complete) {
+	flag_update = true;
+	if (! consumers.isEmpty()) schedule();
       }
     }
   } // end SliceImageSource.update
 
 } // end SliceImageSource
-
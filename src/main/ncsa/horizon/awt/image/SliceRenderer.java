@@ -0,0 +1,695 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.awt.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ncsa.horizon.util.Cancellation;
+import ncsa.horizon.util.JavaType;
+import ncsa.horizon.util.Slice;
+import ncsa.horizon.util.Volume;
+import ncsa.horizon.util.WorkerPool;
+import ncsa.horizon.data.ImagePyramid;
+import ncsa.horizon.data.NdArrayData;
+import ncsa.horizon.data.NumericTransferFunction;
+import ncsa.horizon.data.TransferFunction;
+
+/**
+ * an object that renders slices of an NdArrayData directly into an 
+ * 8-bit indexed BufferedImage.  This is an alternative to passing a 
+ * SliceImageSource through a FlippingFilter and a CropImageFilter: the
+ * color indices are written straight into the image's raster, with the
+ * crop and the vertical flip (so that the first row of data appears at 
+ * the bottom of the image) handled by the index arithmetic, and the 
+ * value buffer is reused from one frame to the next, so that 
+ * rendering a frame of the same size allocates little beyond the 
+ * image itself. <p>
+ *
+ * The values of the planes rendered at full resolution are retained 
+ * in a cache of limited size (see setCacheSize()), so that rendering 
+ * another view of a recent plane, whether panned, cropped, or with a 
+ * changed transfer function, only converts the values to color indices
+ * and does not read the data again.  Float, short, and byte data are 
+ * kept as floats, other types as doubles.  The cache is emptied when 
+ * the data notifies its observers of a change.  A plane too large for
+ * the cache is read afresh for each view, only the slice's part of it 
+ * being read.  Large images are converted in horizontal stripes by 
+ * the threads of the WorkerPool. <p>
+ *
+ * If the Cancellation attached to the thread calling render() is 
+ * cancelled (e.g. by a RenderScheduler whose request has been 
+ * superseded), or the thread is interrupted, the rendering stops at 
+ * the next group of rows and render() returns null, leaving the 
+ * thread's interrupt status set.  The rows drawn are discarded with 
+ * the new image; the last image returned is untouched. <p>
+ *
+ * The color indices of the last image are retained too.  If the next 
+ * render() is for the same slice, with the same transfer function (or
+ * range) and a different color model of the same size, as when the 
+ * user merely selects another Lut, the image returned shares the 
+ * previous image's raster and nothing is computed.  (Lut returns the 
+ * same IndexColorModel each time, so that the images for each color 
+ * model are themselves reused.)  A transfer function is taken to be 
+ * the same if it is the same NumericTransferFunction object and its 
+ * getRevision() has not changed. <p>
+ *
+ * A slice whose sampling along both of its axes is 2 or more is 
+ * rendered at the reduced resolution (i.e. the image has one pixel 
+ * for every sampling data pixels), using the appropriate level of the
+ * plane's ImagePyramid, so that the time taken depends on the size of 
+ * the image rather than that of the slice.  Smaller samplings are 
+ * ignored; the slice is rendered at full resolution. <p>
+ *
+ * Each image returned by render() is left alone by later calls, so it
+ * can be displayed (or kept) for as long as needed, unless 
+ * setImageReuse(true) has been called.  The data must be complete; a 
+ * progressively loaded volume should be displayed via SliceImageSource
+ * until it is.
+ */
+public class SliceRenderer {
+
+  /**
+   * the default limit on the memory used to retain planes: 128 Mbytes
+   */
+  public final static long DEFAULT_CACHE_SIZE = 128L*1024*1024;
+
+  /**
+   * the smallest image worth converting in parallel stripes
+   */
+  public final static int PARALLEL_MIN = 1 << 18;
+
+  // the rows converted between checks for cancellation
+  private final static int CHECK_ROWS = 64;
+
+  protected NdArrayData data;
+
+  // reusable buffers
+  private double[] values = null, transposed = null;
+  private int[] columns = null;
+  private BufferedImage image = null;
+
+  private int reduction = ImagePyramid.MEAN;
+  private boolean reuseImage = false;
+
+  // what the indices in image's raster were computed from; lastSlice
+  // is null if they must be computed again
+  private Slice lastSlice = null;
+  private TransferFunction lastTf = null;
+  private long lastRevision = 0;
+  private double lastMin, lastMax;
+  private int lastHigh;
+
+  // the images that share image's raster, by color model
+  private HashMap recolored = new HashMap();
+
+  // plane key -> Plane, least recently used first
+  private LinkedHashMap planes = new LinkedHashMap(8, 0.75f, true);
+  private long cacheSize = DEFAULT_CACHE_SIZE, cacheUsed = 0;
+  private int hits = 0, misses = 0;
+
+  private Observer invalidator = new Observer() {
+    public void update(Observable o, Object arg) {
+      clearCache();
+    }
+  };
+
+  /**
+   * the values of a plane at full resolution, in the orientation they 
+   * are displayed: element y*width + x holds the value at position x 
+   * along the x axis and y along the y axis, counting from the origin
+   * of the data.
+   */
+  private static class Plane {
+    float[] fvalues;
+    double[] dvalues;
+    int width, height;
+
+    long bytes() {
+      return (fvalues != null) ? 4L*fvalues.length : 8L*dvalues.length;
+    }
+  }
+
+  /**
+   * create a renderer for a data volume
+   */
+  public SliceRenderer(NdArrayData data) {
+    this.data = data;
+    data.addObserver(invalidator);
+  }
+
+  /**
+   * return the data being rendered
+   */
+  public NdArrayData getData() { return data; }
+
+  /**
+   * set how data pixels are combined when a slice is rendered at 
+   * reduced resolution
+   * @param method  ImagePyramid.MEAN (the default), MAXIMUM, or MINIMUM
+   */
+  public synchronized void setReduction(int method) {
+    if (method < ImagePyramid.MEAN || method > ImagePyramid.MINIMUM) 
+      throw new IllegalArgumentException("Unknown reduction method: " + 
+					 method);
+    if (method != reduction) lastSlice = null;
+    reduction = method;
+  }
+
+  /**
+   * return how data pixels are combined when a slice is rendered at 
+   * reduced resolution
+   */
+  public synchronized int getReduction() { return reduction; }
+
+  /**
+   * choose whether render() draws each image into the last one, when 
+   * it is of the same size, rather than into a new one (the default).
+   * Reuse saves allocating an image per frame, but the image returned
+   * earlier then changes, even while it is displayed, and a render 
+   * that is interrupted leaves it partly drawn; so it suits only a 
+   * renderer whose images are shown by a single display, which 
+   * replaces each image before drawing it again.
+   */
+  public synchronized void setImageReuse(boolean yes) { 
+    reuseImage = yes; 
+    lastSlice = null;
+  }
+
+  /**
+   * return true if render() draws into the last image
+   */
+  public synchronized boolean isImageReuse() { return reuseImage; }
+
+  /**
+   * set the limit on the memory used to retain the values of planes 
+   * rendered at full resolution
+   * @param bytes  the limit; 0 turns off the cache
+   */
+  public synchronized void setCacheSize(long bytes) {
+    cacheSize = Math.max(0, bytes);
+    trimCache();
+  }
+
+  /**
+   * return the limit on the memory used to retain the values of planes
+   */
+  public synchronized long getCacheSize() { return cacheSize; }
+
+  /**
+   * discard the retained planes and color indices
+   */
+  public synchronized void clearCache() {
+    planes.clear();
+    cacheUsed = 0;
+    lastSlice = null;
+  }
+
+  /**
+   * return the number of full-resolution renders whose values were 
+   * found in the cache
+   */
+  public synchronized int getCacheHits() { return hits; }
+
+  /**
+   * return the number of full-resolution renders that had to read 
+   * their values from the data
+   */
+  public synchronized int getCacheMisses() { return misses; }
+
+  /**
+   * render a slice of the data, converting values to color indices 
+   * with a transfer function
+   * @param slice  the region to render; it is clipped to the data
+   * @param cm     the color model for the image
+   * @param tf     the transfer function
+   * @return the image, or null if the slice does not overlap the data
+   */
+  public synchronized BufferedImage render(Slice slice, IndexColorModel cm,
+					   TransferFunction tf) 
+  {
+    return render(slice, cm, tf, 0.0, 0.0);
+  }
+
+  /**
+   * render a slice of the data, mapping values between min and max 
+   * linearly onto the color indices.  Values at or below min (and NaNs)
+   * get index 0, and those at or above max get the highest index, as 
+   * with NdArrayMath.scaleTo().
+   * @param slice  the region to render; it is clipped to the data
+   * @param cm     the color model for the image
+   * @return the image, or null if the slice does not overlap the data
+   */
+  public synchronized BufferedImage render(Slice slice, IndexColorModel cm,
+					   double min, double max) 
+  {
+    return render(slice, cm, null, min, max);
+  }
+
+  private BufferedImage render(Slice slice, IndexColorModel cm, 
+			       TransferFunction tf, double min, double max) 
+  {
+    Cancellation cancel = Cancellation.current();
+
+    // the region of the data to read
+    Slice s = (Slice) slice.clone();
+    s.makeLengthsPositive();
+    int xaxis = s.getXaxis(), yaxis = s.getYaxis();
+    Volume dv = data.getVolume();
+    int naxes = dv.getNaxes();
+    double[] loc = s.getLocation(), dloc = dv.getLocation();
+    int[] start = new int[naxes], size = new int[naxes];
+    for(int i=0; i < naxes; i++) {
+      double lo = loc[i], hi = loc[i] + 1;
+      if (i == xaxis || i == yaxis) {
+	lo = Math.max(lo, dloc[i]);
+	hi = Math.min(loc[i] + s.getLength(i), dloc[i] + dv.getLength(i));
+      }
+      if (hi <= lo || lo < dloc[i] || 
+	  lo >= dloc[i] + dv.getLength(i))  return null;
+      start[i] = (int) lo;
+      size[i] = (int) (hi - lo);
+    }
+    // if only the color model has changed, the indices are still good
+    int high = cm.getMapSize() - 1;
+    long revision = (tf instanceof NumericTransferFunction) ? 
+      ((NumericTransferFunction) tf).getRevision() : 0;
+    if (image != null && lastSlice != null && 
+	(tf == null || tf instanceof NumericTransferFunction) && 
+	tf == lastTf && revision == lastRevision && high == lastHigh &&
+	(tf != null || (min == lastMin && max == lastMax)) && 
+	xaxis == lastSlice.getXaxis() && yaxis == lastSlice.getYaxis() &&
+	s.equals(lastSlice)) 
+    {
+      return recolor(cm);
+    }
+    lastSlice = null;
+
+    int w = size[xaxis], h = size[yaxis], n = w*h;
+    double sx = Math.abs(s.getStep(xaxis)), sy = Math.abs(s.getStep(yaxis));
+
+    // the values are taken from rows inStride apart, starting at from
+    Object v;
+    int from = 0, inStride;
+    boolean reduced = (sx >= 2.0 && sy >= 2.0 && w >= 2 && h >= 2);
+    Plane plane = null;
+    if (reduced) {
+      w = Math.max(1, (int) (w / sx));
+      h = Math.max(1, (int) (h / sy));
+      n = w*h;
+      if (values == null || values.length < n) values = new double[n];
+      v = values;
+      inStride = w;
+      sample(s, start, w, h, sx, sy);
+    }
+    else if ((plane = getPlane(s)) != null) {
+      v = (plane.fvalues != null) ? (Object) plane.fvalues 
+	                          : (Object) plane.dvalues;
+      inStride = plane.width;
+      from = (start[yaxis] - (int) dloc[yaxis]) * plane.width + 
+	     (start[xaxis] - (int) dloc[xaxis]);
+    }
+    else {
+      if (values == null || values.length < n) values = new double[n];
+      v = values;
+      inStride = w;
+      data.readInto(values, start, size);
+      if (xaxis > yaxis) {
+	// the y values are the ones that are contiguous
+	if (transposed == null || transposed.length < n) 
+	  transposed = new double[n];
+	transpose(values, w, h, transposed);
+	v = transposed;
+      }
+    }
+
+    // a new image is published only once it is complete
+    BufferedImage img;
+    boolean fresh = (image == null || image.getWidth() != w || 
+		     image.getHeight() != h || ! reuseImage);
+    if (fresh) 
+      img = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_INDEXED, cm);
+    else 
+      img = recolor(cm);
+    byte[] pixels = 
+      ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+    if (isStopped(cancel, Thread.currentThread())) return null;
+
+    // the first row of data becomes the last row of the image
+    if (tf != null && ! (tf instanceof NumericTransferFunction)) {
+      int l, last = (h-1)*w;
+      for(int y=0; y < h; y++) {
+	if (isStopped(cancel, Thread.currentThread())) return null;
+	for(int x=0; x < w; x++) {
+	  int i = from + y*inStride + x;
+	  double val = (v instanceof float[]) ? ((float[]) v)[i] 
+	                                      : ((double[]) v)[i];
+	  l = tf.getLevel(new Double(val));
+	  pixels[last - y*w + x] = (byte) ((l > 255) ? 255 : l);
+	}
+      }
+    }
+    else if (! convert(v, from, inStride, w, h, pixels, 
+		       (NumericTransferFunction) tf, high, min, max, cancel)) {
+      return null;
+    }
+
+    if (fresh) {
+      image = img;
+      recolored.clear();
+      recolored.put(cm, image);
+    }
+    lastSlice = s;
+    lastTf = tf;
+    lastRevision = revision;
+    lastMin = min;
+    lastMax = max;
+    lastHigh = high;
+    return image;
+  }
+
+  /**
+   * make image an image with the given color model and the current 
+   * raster (reusing the one made for that color model earlier, if any)
+   * and return it
+   */
+  private BufferedImage recolor(IndexColorModel cm) {
+    if (image.getColorModel() == cm) return image;
+    BufferedImage img = (BufferedImage) recolored.get(cm);
+    if (img == null) {
+      WritableRaster r = image.getRaster();
+      if (cm.isCompatibleRaster(r)) {
+	img = new BufferedImage(cm, r, false, null);
+      } 
+      else {
+	// the color model needs a raster of its own
+	img = new BufferedImage(image.getWidth(), image.getHeight(), 
+				BufferedImage.TYPE_BYTE_INDEXED, cm);
+	img.setData(r);
+	recolored.clear();
+      }
+      recolored.put(cm, img);
+    }
+    image = img;
+    return image;
+  }
+
+  /**
+   * return the retained values of the plane containing a slice, 
+   * reading them if necessary, or null if the plane is too large to 
+   * retain
+   */
+  private Plane getPlane(Slice s) {
+    int xaxis = s.getXaxis(), yaxis = s.getYaxis();
+    Volume dv = data.getVolume();
+    int naxes = dv.getNaxes();
+    int width = (int) dv.getLength(xaxis), height = (int) dv.getLength(yaxis);
+    JavaType type = data.getType();
+    boolean single = (type == JavaType.FLOAT || type == JavaType.SHORT || 
+		      type == JavaType.BYTE);
+    if ((long) width * height * (single ? 4 : 8) > cacheSize) return null;
+
+    // the plane covers the data along the slice's axes
+    int[] start = new int[naxes], size = new int[naxes];
+    double[] loc = s.getLocation(), dloc = dv.getLocation();
+    StringBuffer sb = new StringBuffer();
+    for(int i=0; i < naxes; i++) {
+      if (i == xaxis || i == yaxis) {
+	start[i] = (int) dloc[i];
+	size[i] = (int) dv.getLength(i);
+      } else {
+	start[i] = (int) loc[i];
+	size[i] = 1;
+      }
+      sb.append(start[i]).append(',');
+    }
+    sb.append(xaxis).append(',').append(yaxis);
+    String key = sb.toString();
+
+    Plane plane = (Plane) planes.get(key);
+    if (plane != null) {
+      hits++;
+      return plane;
+    }
+    misses++;
+
+    plane = new Plane();
+    plane.width = width;
+    plane.height = height;
+    int n = width*height;
+    if (single) {
+      plane.fvalues = new float[n];
+      data.readInto(plane.fvalues, start, size);
+      if (xaxis > yaxis) {
+	float[] t = new float[n];
+	transpose(plane.fvalues, width, height, t);
+	plane.fvalues = t;
+      }
+    }
+    else {
+      plane.dvalues = new double[n];
+      data.readInto(plane.dvalues, start, size);
+      if (xaxis > yaxis) {
+	double[] t = new double[n];
+	transpose(plane.dvalues, width, height, t);
+	plane.dvalues = t;
+      }
+    }
+    planes.put(key, plane);
+    cacheUsed += plane.bytes();
+    trimCache();
+    return plane;
+  }
+
+  /**
+   * discard the least recently used planes until the cache is within
+   * its limit
+   */
+  private void trimCache() {
+    Iterator it = planes.entrySet().iterator();
+    while (cacheUsed > cacheSize && it.hasNext()) {
+      Plane p = (Plane) ((Map.Entry) it.next()).getValue();
+      cacheUsed -= p.bytes();
+      it.remove();
+    }
+  }
+
+  /**
+   * transpose values read with the y axis varying fastest (h values 
+   * for each of w columns) into rows of w values
+   */
+  private static void transpose(double[] in, int w, int h, double[] out) {
+    for(int y=0; y < h; y++) 
+      for(int x=0; x < w; x++) out[y*w + x] = in[x*h + y];
+  }
+
+  private static void transpose(float[] in, int w, int h, float[] out) {
+    for(int y=0; y < h; y++) 
+      for(int x=0; x < w; x++) out[y*w + x] = in[x*h + y];
+  }
+
+  /**
+   * convert the values to color indices, flipping the image vertically,
+   * in horizontal stripes on the WorkerPool if the image is large.  
+   * The stripes stop early if the rendering is cancelled or the 
+   * calling thread is interrupted.
+   * @return false if the conversion was stopped
+   */
+  private static boolean convert(final Object v, final int from, 
+			      final int inStride, final int w, final int h,
+			      final byte[] pixels, 
+			      final NumericTransferFunction tf, 
+			      final int high, final double min, 
+			      final double max, final Cancellation cancel) 
+  {
+    int nthreads = Math.min(WorkerPool.getParallelism(), 
+			    (int) ((long) w * h / (PARALLEL_MIN / 4)));
+    nthreads = Math.max(1, Math.min(nthreads, h));
+    if ((long) w * h < PARALLEL_MIN) nthreads = 1;
+    final int rows = (h + nthreads - 1) / nthreads;
+    final Thread caller = Thread.currentThread();
+
+    // set if the caller's interrupt is consumed while it waits
+    final AtomicBoolean stop = new AtomicBoolean(false);
+
+    Runnable[] stripes = new Runnable[nthreads];
+    for(int k=0; k < nthreads; k++) {
+      final int y0 = k*rows, ny = Math.min(rows, h - y0);
+      stripes[k] = new Runnable() {
+	public void run() {
+	  for(int y=y0; y < y0+ny; y += CHECK_ROWS) {
+	    if (stop.get() || isStopped(cancel, caller)) return;
+	    int n = Math.min(CHECK_ROWS, y0 + ny - y);
+	    int in = from + y*inStride, out = (h-1-y)*w;
+	    if (tf != null) {
+	      if (v instanceof float[]) 
+		tf.getLevels((float[]) v, in, inStride, w, n, 
+			     pixels, out, -w);
+	      else 
+		tf.getLevels((double[]) v, in, inStride, w, n, 
+			     pixels, out, -w);
+	    }
+	    else if (v instanceof float[]) {
+	      scale((float[]) v, in, inStride, w, n, pixels, out, -w, 
+		    high, min, max);
+	    }
+	    else {
+	      scale((double[]) v, in, inStride, w, n, pixels, out, -w, 
+		    high, min, max);
+	    }
+	  }
+	}
+      };
+    }
+
+    ExecutorService exec = WorkerPool.getExecutor();
+    ArrayList futures = new ArrayList();
+    for(int k=1; k < nthreads; k++) futures.add(exec.submit(stripes[k]));
+    stripes[0].run();
+    boolean interrupted = false;
+    for(int k=0; k < futures.size(); k++) {
+      Future f = (Future) futures.get(k);
+
+      // a stripe that never got started is done here
+      if (f.cancel(false)) {
+	stripes[k+1].run();
+	continue;
+      }
+
+      // the started stripes write into pixels, so they must finish (or
+      // stop) before the image can be used again
+      while (true) {
+	try {
+	  f.get();
+	  break;
+	} catch (InterruptedException ex) {
+	  interrupted = true;
+	  stop.set(true);
+	} catch (ExecutionException ex) {
+	  Throwable cause = ex.getCause();
+	  if (cause instanceof RuntimeException) 
+	    throw (RuntimeException) cause;
+	  if (cause instanceof Error) throw (Error) cause;
+	  throw new InternalError("rendering failed: " + cause);
+	}
+      }
+    }
+    if (interrupted) caller.interrupt();
+    return ! isStopped(cancel, caller);
+  }
+
+  /**
+   * return true if a rendering by a thread is to stop
+   */
+  private static boolean isStopped(Cancellation cancel, Thread caller) {
+    return cancel.isCancelled() || caller.isInterrupted();
+  }
+
+  /**
+   * fill values with a reduced-resolution view from the plane's pyramid
+   */
+  private void sample(Slice s, int[] start, int w, int h, 
+		      double sx, double sy) 
+  {
+    int xaxis = s.getXaxis(), yaxis = s.getYaxis();
+    int level = ImagePyramid.levelFor(Math.min(sx, sy));
+    ImagePyramid pyr = ImagePyramid.getPyramid(data, s, reduction);
+    level = Math.min(level, pyr.getLevelCount()-1);
+    float[] pix = pyr.getLevel(level);
+    int lw = pyr.getWidth(level), lh = pyr.getHeight(level);
+    double f = 1 << level;
+
+    // the pyramid's origin is that of the data
+    Volume dv = data.getVolume();
+    double x0 = start[xaxis] - dv.axisPos(xaxis), 
+           y0 = start[yaxis] - dv.axisPos(yaxis);
+
+    if (columns == null || columns.length < w) columns = new int[w];
+    for(int i=0; i < w; i++) 
+      columns[i] = Math.min(lw-1, (int) ((x0 + (i + 0.5)*sx) / f));
+    for(int j=0; j < h; j++) {
+      int row = Math.min(lh-1, (int) ((y0 + (j + 0.5)*sy) / f)) * lw;
+      int o = j*w;
+      for(int i=0; i < w; i++) values[o+i] = pix[row + columns[i]];
+    }
+  }
+
+  private static void scale(double[] v, int from, int inStride, 
+			    int w, int h, byte[] out, 
+			    int outFrom, int outStride, int high, 
+			    double min, double max) 
+  {
+    double factor = high / (max - min);
+    boolean flat = ! (max - min > 0.0);
+    double val;
+    byte top = (byte) high;
+    for(int y=0; y < h; y++) {
+      int in = from + y*inStride, o = outFrom + y*outStride;
+      for(int x=0; x < w; x++) {
+	val = v[in + x];
+	if (flat || ! (val > min)) 
+	  out[o + x] = 0;
+	else if (val >= max) 
+	  out[o + x] = top;
+	else 
+	  out[o + x] = (byte) (int) (factor * (val - min));
+      }
+    }
+  }
+
+  private static void scale(float[] v, int from, int inStride, 
+			    int w, int h, byte[] out, 
+			    int outFrom, int outStride, int high, 
+			    double min, double max) 
+  {
+    double factor = high / (max - min);
+    boolean flat = ! (max - min > 0.0);
+    double val;
+    byte top = (byte) high;
+    for(int y=0; y < h; y++) {
+      int in = from + y*inStride, o = outFrom + y*outStride;
+      for(int x=0; x < w; x++) {
+	val = v[in + x];
+	if (flat || ! (val > min)) 
+	  out[o + x] = 0;
+	else if (val >= max) 
+	  out[o + x] = top;
+	else 
+	  out[o + x] = (byte) (int) (factor * (val - min));
+      }
+    }
+  }
+}
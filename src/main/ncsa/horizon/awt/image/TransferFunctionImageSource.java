@@ -33,8 +33,6 @@ import ncsa.horizon.util.JavaType;
 import ncsa.horizon.util.ArrayTypeConverter;
 
 import java.awt.image.*;
-import java.util.Vector;
-import java.util.Enumeration;
 
 /**
  * an ImageProducer that uses a TransferFunction to create images
@@ -72,102 +70,24 @@ public class TransferFunctionImageSource extends SliceImageSource {
 	tf = f; 
     }
 
-    public synchronized void run() {
-
-	if (tf == null) {
-	    super.run();
-	    return;
-	}
-
-	int naxis = slice.getNaxes();
-	int xaxis = slice.getXaxis();
-	int yaxis = slice.getYaxis();
-	int width = (int) slice.getLength(xaxis);
-	int height = (int) slice.getLength(yaxis);
-
-	ImageConsumer ic;
-	Vector v = (Vector)consumers.clone();
-	// Vector v = consumers;
-	Enumeration e;
-
-	/* Tell each image consumer the dimensions of the image
-	 * and the color model we will use.  Since we don't say
-	 * otherwise, they won't expect pixels to arrive in
-	 * any particular order (RANDOMPIXELORDER is the
-	 * default).
-	 */
-	for(e = v.elements(); e.hasMoreElements(); ) {
-	    ic = (ImageConsumer)e.nextElement();
-      
-	    if(consumers.contains(ic))
-		ic.setDimensions(width, height);
-	    if(consumers.contains(ic))
-		ic.setProperties(properties);
-	    if(consumers.contains(ic))
-		ic.setColorModel(colorModel);
-	    if(consumers.contains(ic)) {
-		if(flag_complete.booleanValue())
-		    ic.setHints(ImageConsumer.TOPDOWNLEFTRIGHT |
-				ImageConsumer.COMPLETESCANLINES |
-				ImageConsumer.SINGLEPASS |
-				ImageConsumer.SINGLEFRAME);
-		else
-		    ic.setHints(ImageConsumer.TOPDOWNLEFTRIGHT |
-				ImageConsumer.COMPLETESCANLINES);
-	    }
-	}
-
-	// begin sending data
-	boolean in_loop = true;
-	while(in_loop) {
-
-	    synchronized(flag_complete) {
-		if(flag_update | flag_complete.booleanValue()) {
-
-		    // fill out the pixels array
-		    double[] location = slice.getLocation();
-		    int[] startCoord = 
-			ArrayTypeConverter.arrayDoubleToInt(location);
-		    int[] sliceSize = 
-			ArrayTypeConverter.arrayDoubleToInt(slice.getSize());
-
-		    int[] pixels = getLevels(startCoord, sliceSize);
+    /**
+     * get ready to produce a frame.  With a transfer function attached, 
+     * the levels of a value do not depend on the rest of the data, so 
+     * rows that have not changed never need to be regenerated.
+     */
+    protected boolean prepareFrame() {
+	if (getTransferFunction() == null) return super.prepareFrame();
+	return false;
+    }
 
-		  if (pixels == null) {
-		      System.err.println(getClass().getName() + 
-			       " required slice out of range of volume");
-		  } else {
-		    for (e = v.elements(); e.hasMoreElements(); ) {
-			ic = (ImageConsumer)e.nextElement();  
-			if(consumers.contains(ic))
-			    ic.setPixels(0, 0, width, height, colorModel, 
-					 pixels, 0, width);
-		    }
-		  }
-	  
-		    // Tell each image consumer that a frame or the 
-		    // whole image has been delivered.
-		    for (e = v.elements(); e.hasMoreElements(); ) {
-			ic = (ImageConsumer)e.nextElement();
-			if(consumers.contains(ic)) {
-			    if(flag_complete.booleanValue()) {
-				ic.imageComplete(ImageConsumer.STATICIMAGEDONE);
-			    }
-			    else {
-				ic.imageComplete(ImageConsumer.SINGLEFRAMEDONE);
-				thread.setPriority(Thread.MIN_PRIORITY);
-			    }
-			}
-		    }
-		    flag_update = false;
-	  
-		    if(flag_complete.booleanValue())
-			in_loop = false;
-		} 
-	    }
-	}
-	thread = null;
-    } 
+    /**
+     * return the pixel values for a region of the data
+     */
+    protected int[] getPixels(int[] startCoord, int[] size) {
+	if (getTransferFunction() == null) 
+	    return super.getPixels(startCoord, size);
+	return getLevels(startCoord, size);
+    }
 
     /**
      * map data to an array of integers using the attached TransferFunction
@@ -178,7 +98,7 @@ public class TransferFunctionImageSource extends SliceImageSource {
 	if (values == null) return null;
 
 	try {
-	    return tf.getLevels(values, type);
+	    return getTransferFunction().getLevels(values, type);
 	}
 	catch (IllegalArgumentException ex) {
 	    return null;
@@ -0,0 +1,89 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.data;
+
+import java.io.IOException;
+import ncsa.fits.fits.CompressedImage;
+import ncsa.horizon.util.*;
+
+/**
+ * a TileSource that reads the tiles of a FITS tile-compressed image, 
+ * decompressing each tile only when it is requested.  The tiles are 
+ * those of the compressed image, so a TiledNdArrayData built on this 
+ * source decompresses exactly the tiles that a request overlaps.
+ * Values are converted with a FITSImageDecoder (applying BSCALE, BZERO
+ * and BLANK) as for an uncompressed image.
+ */
+public class CompressedImageTileSource implements TileSource {
+
+  protected CompressedImage image;
+  protected FITSImageDecoder decoder;
+
+  /**
+   * create a tile source
+   * @param image    the compressed image
+   * @param decoder  the conversion to apply to the tile values; its 
+   *                 stored type must match the image's ZBITPIX.
+   */
+  public CompressedImageTileSource(CompressedImage image, 
+				   FITSImageDecoder decoder) 
+  {
+    this.image = image;
+    this.decoder = decoder;
+  }
+
+  /**
+   * return the number of axes in the array
+   */
+  public int getNaxes() { return image.getSize().length; }
+
+  /**
+   * return the length of each axis of the whole array
+   */
+  public int[] getSize() { return image.getSize(); }
+
+  /**
+   * return the length of each axis of a (full) tile
+   */
+  public int[] getTileSize() { return image.getTileSize(); }
+
+  /**
+   * return the type of the values returned by readTile()
+   */
+  public JavaType getType() { return decoder.getType(); }
+
+  /**
+   * decompress a tile.  The origin must be that of one of the image's
+   * tiles.
+   */
+  public Object readTile(int[] origin, int[] size) throws IOException {
+    int tile = image.getTileNumber(origin);
+    Object raw = image.readTile(tile);
+    if (! decoder.isScaled()) return raw;
+
+    int n = (int) NdArrayMath.size(size);
+    Object out = decoder.getType().allocateArray(n);
+    decoder.convert(raw, 0, out, 0, n);
+    return out;
+  }
+}
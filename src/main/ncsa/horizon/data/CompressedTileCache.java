@@ -0,0 +1,264 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import ncsa.horizon.util.*;
+
+/**
+ * a TileSource that keeps a deflate-compressed copy of the tiles of 
+ * another TileSource in a local cache file.  The first time a tile is
+ * requested it is read from the underlying source and appended to the
+ * cache file; after that it is read back from the cache.  This is 
+ * useful when the underlying source is slow (e.g. remote or stored in
+ * a compressed format that is expensive to decode). <p>
+ *
+ * The cache file holds a small header describing the array and a 
+ * table giving the position of each tile that has been stored.  When
+ * a cache is created over an existing file whose header matches the
+ * underlying source, the tiles already in it are reused; otherwise the
+ * file is overwritten.
+ */
+public class CompressedTileCache implements TileSource {
+
+  protected final static int MAGIC = 0x48544c43;   // "HTLC"
+  protected final static int VERSION = 1;
+
+  protected TileSource source;
+  protected File file;
+  protected RandomAccessFile raf;
+  protected int naxes;
+  protected int[] size, tileSize, ntiles;
+  protected JavaType type;
+  protected int elemSize;
+
+  // the position of the tile table in the file
+  protected long tableOffset;
+
+  // the location and compressed length of each tile; a zero length 
+  // means the tile has not been cached yet
+  protected long[] offsets;
+  protected int[] lengths;
+
+  private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private Inflater inflater = new Inflater();
+
+  /**
+   * create a cache of the tiles from a source
+   * @param source  the source of the tiles
+   * @param file    the file to store the compressed tiles in
+   * @exception IOException if the file cannot be opened or initialized
+   * @exception IllegalArgumentException if the source's data type is 
+   *                not numeric
+   */
+  public CompressedTileCache(TileSource source, File file) 
+    throws IOException
+  {
+    this.source = source;
+    this.file = file;
+    type = source.getType();
+    elemSize = elementSize(type);
+    naxes = source.getNaxes();
+    size = source.getSize();
+    tileSize = source.getTileSize();
+
+    ntiles = new int[naxes];
+    long n = 1;
+    for(int i=0; i < naxes; i++) {
+      ntiles[i] = (size[i] + tileSize[i] - 1) / tileSize[i];
+      n *= ntiles[i];
+    }
+    if (n > Integer.MAX_VALUE) 
+      throw new IllegalArgumentException("too many tiles: " + n);
+    offsets = new long[(int) n];
+    lengths = new int[(int) n];
+    tableOffset = 16 + 8*naxes;
+
+    raf = new RandomAccessFile(file, "rw");
+    if (! loadTable()) initFile();
+  }
+
+  private static int elementSize(JavaType type) {
+    switch (type.code()) {
+    case 3: return 1;
+    case 4: return 2;
+    case 5: return 4;
+    case 6: return 8;
+    case 7: return 4;
+    case 8: return 8;
+    default:
+      throw new IllegalArgumentException("unsupported data type: " + 
+					 type.name());
+    }
+  }
+
+  /**
+   * read an existing tile table, returning false if the file is not
+   * a cache for an array like this one.
+   */
+  private boolean loadTable() throws IOException {
+    if (raf.length() < tableOffset + 12L*offsets.length) return false;
+    raf.seek(0);
+    if (raf.readInt() != MAGIC || raf.readInt() != VERSION ||
+	raf.readInt() != type.code() || raf.readInt() != naxes)
+      return false;
+    for(int i=0; i < naxes; i++) 
+      if (raf.readInt() != size[i]) return false;
+    for(int i=0; i < naxes; i++) 
+      if (raf.readInt() != tileSize[i]) return false;
+
+    byte[] buf = new byte[12*offsets.length];
+    raf.readFully(buf);
+    ByteBuffer bb = ByteBuffer.wrap(buf);
+    for(int i=0; i < offsets.length; i++) {
+      offsets[i] = bb.getLong();
+      lengths[i] = bb.getInt();
+    }
+    return true;
+  }
+
+  private void initFile() throws IOException {
+    raf.setLength(0);
+    ByteBuffer bb = ByteBuffer.allocate((int) tableOffset);
+    bb.putInt(MAGIC).putInt(VERSION).putInt(type.code()).putInt(naxes);
+    for(int i=0; i < naxes; i++) bb.putInt(size[i]);
+    for(int i=0; i < naxes; i++) bb.putInt(tileSize[i]);
+    raf.seek(0);
+    raf.write(bb.array());
+    raf.write(new byte[12*offsets.length]);
+  }
+
+  public int getNaxes() { return naxes; }
+
+  public int[] getSize() { return (int[]) size.clone(); }
+
+  public int[] getTileSize() { return (int[]) tileSize.clone(); }
+
+  public JavaType getType() { return type; }
+
+  /**
+   * return the file holding the cached tiles
+   */
+  public File getFile() { return file; }
+
+  /**
+   * read a tile, from the cache file if it has been stored there or 
+   * else from the underlying source.
+   */
+  public synchronized Object readTile(int[] origin, int[] tsize) 
+    throws IOException
+  {
+    int which = 0;
+    for(int i=naxes-1; i >= 0; i--) 
+      which = which*ntiles[i] + origin[i]/tileSize[i];
+    int nvals = (int) NdArrayMath.size(tsize);
+
+    if (lengths[which] > 0) {
+      byte[] zbuf = new byte[lengths[which]];
+      raf.seek(offsets[which]);
+      raf.readFully(zbuf);
+      byte[] buf = new byte[nvals*elemSize];
+      inflater.reset();
+      inflater.setInput(zbuf);
+      try {
+	if (inflater.inflate(buf) != buf.length) 
+	  throw new IOException("corrupted tile in cache file " + file);
+      } catch (DataFormatException ex) {
+	throw new IOException("corrupted tile in cache file " + file + 
+			      ": " + ex.getMessage());
+      }
+      return decode(buf, nvals);
+    }
+
+    Object tile = source.readTile(origin, tsize);
+    store(which, encode(tile, nvals));
+    return tile;
+  }
+
+  private void store(int which, byte[] buf) throws IOException {
+    deflater.reset();
+    deflater.setInput(buf);
+    deflater.finish();
+    byte[] zbuf = new byte[buf.length + buf.length/1000 + 64];
+    int zlen = 0;
+    while (! deflater.finished()) {
+      if (zlen == zbuf.length) {
+	byte[] tmp = new byte[2*zbuf.length];
+	System.arraycopy(zbuf, 0, tmp, 0, zlen);
+	zbuf = tmp;
+      }
+      zlen += deflater.deflate(zbuf, zlen, zbuf.length - zlen);
+    }
+
+    long pos = raf.length();
+    raf.seek(pos);
+    raf.write(zbuf, 0, zlen);
+    raf.seek(tableOffset + 12L*which);
+    raf.writeLong(pos);
+    raf.writeInt(zlen);
+    offsets[which] = pos;
+    lengths[which] = zlen;
+  }
+
+  private byte[] encode(Object tile, int n) {
+    ByteBuffer bb = ByteBuffer.allocate(n*elemSize);
+    switch (type.code()) {
+    case 3: bb.put((byte[]) tile, 0, n); break;
+    case 4: bb.asShortBuffer().put((short[]) tile, 0, n); break;
+    case 5: bb.asIntBuffer().put((int[]) tile, 0, n); break;
+    case 6: bb.asLongBuffer().put((long[]) tile, 0, n); break;
+    case 7: bb.asFloatBuffer().put((float[]) tile, 0, n); break;
+    case 8: bb.asDoubleBuffer().put((double[]) tile, 0, n); break;
+    }
+    return bb.array();
+  }
+
+  private Object decode(byte[] buf, int n) {
+    Object out = type.allocateArray(n);
+    ByteBuffer bb = ByteBuffer.wrap(buf);
+    switch (type.code()) {
+    case 3: bb.get((byte[]) out, 0, n); break;
+    case 4: bb.asShortBuffer().get((short[]) out, 0, n); break;
+    case 5: bb.asIntBuffer().get((int[]) out, 0, n); break;
+    case 6: bb.asLongBuffer().get((long[]) out, 0, n); break;
+    case 7: bb.asFloatBuffer().get((float[]) out, 0, n); break;
+    case 8: bb.asDoubleBuffer().get((double[]) out, 0, n); break;
+    }
+    return out;
+  }
+
+  /**
+   * close the cache file.  The tiles stored so far remain in it.
+   */
+  public synchronized void close() throws IOException {
+    raf.close();
+    deflater.end();
+    inflater.end();
+  }
+}
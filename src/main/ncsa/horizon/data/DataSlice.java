@@ -100,6 +100,15 @@ public class DataSlice {
     return javaType.wrappedValueFromArray(array, y*xLength + x);
   }
 
+  /**
+   * (x, y) are coord regard to slice's origin; the value is returned 
+   * as a double without being wrapped in an object.
+   * @exception NumberFormatException if the data are not numeric
+   */
+  public double getDouble(int x, int y) {
+    return javaType.doubleFromArray(array, y*xLength + x);
+  }
+
   /**
    * Get all the element as one-d array.  The reference
    * to the memory array is returned.
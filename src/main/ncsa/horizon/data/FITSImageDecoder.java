@@ -0,0 +1,390 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.data;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import ncsa.fits.util.Data;
+import ncsa.horizon.util.*;
+
+/**
+ * converts the values of a FITS image array into a flat Java array,
+ * applying BSCALE, BZERO and BLANK.  Integer data are scaled to floats 
+ * (BITPIX 8 and 16) or doubles (BITPIX 32 and 64), with values equal to
+ * BLANK becoming NaN; BITPIX 8 values are treated as unsigned, as the 
+ * FITS standard requires, and so are always converted: unscaled, to 
+ * shorts from 0 to 255.  Floating-point data keep their type and are
+ * scaled only if BSCALE or BZERO is not the identity.  Other unscaled
+ * data are copied unchanged. <p>
+ *
+ * When the data are in a local file, read() splits the data segment 
+ * into chunks that are read and converted in parallel by the threads 
+ * of the WorkerPool, each writing straight into its part of the 
+ * output array.  Data from a stream are read and converted a block at
+ * a time.
+ */
+public class FITSImageDecoder {
+
+  /**
+   * the smallest number of values worth handing to a separate thread
+   */
+  public final static int MIN_CHUNK = 1 << 16;
+
+  protected JavaType storedType, outType;
+  protected boolean scaled = false;
+  protected double bscale = 1.0, bzero = 0.0;
+  protected boolean hasBlank = false;
+  protected long blank = 0;
+
+  /**
+   * create a decoder
+   * @param bitpix   the value of BITPIX
+   * @param bscale   the value of BSCALE or null if not present
+   * @param bzero    the value of BZERO or null if not present
+   * @param blank    the value of BLANK or null if not present; it is 
+   *                 ignored for floating-point data
+   * @exception IllegalArgumentException if bitpix is not a legal value
+   */
+  public FITSImageDecoder(int bitpix, Double bscale, Double bzero, 
+			  Long blank) 
+  {
+    storedType = typeFor(bitpix);
+    if (bscale != null) this.bscale = bscale.doubleValue();
+    if (bzero != null) this.bzero = bzero.doubleValue();
+
+    if (bitpix > 0) {
+      if (blank != null) {
+	hasBlank = true;
+	this.blank = blank.longValue();
+      }
+      scaled = (bscale != null || bzero != null || hasBlank);
+      if (scaled) 
+	outType = (bitpix <= 16) ? JavaType.FLOAT : JavaType.DOUBLE;
+      else if (bitpix == 8) {
+	// Java bytes are signed
+	scaled = true;
+	outType = JavaType.SHORT;
+      }
+      else 
+	outType = storedType;
+    }
+    else {
+      scaled = (this.bscale != 1.0 || this.bzero != 0.0);
+      outType = storedType;
+    }
+  }
+
+  /**
+   * return the Java type used to store values with a given BITPIX
+   * @exception IllegalArgumentException if bitpix is not a legal value
+   */
+  public static JavaType typeFor(int bitpix) {
+    switch(bitpix) {
+    case 8:   return JavaType.BYTE;
+    case 16:  return JavaType.SHORT;
+    case 32:  return JavaType.INT;
+    case 64:  return JavaType.LONG;
+    case -32: return JavaType.FLOAT;
+    case -64: return JavaType.DOUBLE;
+    default:
+      throw new IllegalArgumentException("Unable to parse BITPIX value:" + 
+					 bitpix);
+    }
+  }
+
+  /**
+   * return the type of the values as stored in the file
+   */
+  public JavaType getStoredType() { return storedType; }
+
+  /**
+   * return the number of bytes each value occupies in the file
+   */
+  public int getStoredSize() { return atomSize(storedType); }
+
+  /**
+   * return the type of the converted values
+   */
+  public JavaType getType() { return outType; }
+
+  /**
+   * return true if the values are changed by the conversion
+   */
+  public boolean isScaled() { return scaled; }
+
+  /**
+   * read n values from a file channel starting at a given byte offset,
+   * converting them into a flat array.  The channel's position is not 
+   * changed.
+   * @param ch      the channel to read from
+   * @param offset  the byte offset of the first value
+   * @param out     the array to write into, of type getType()
+   * @param n       the number of values to read
+   */
+  public void read(final FileChannel ch, final long offset, 
+		   final Object out, int n) 
+    throws IOException
+  {
+    int nchunks = Math.max(1, Math.min(WorkerPool.getParallelism(), 
+				       n / MIN_CHUNK));
+    if (nchunks == 1) {
+      readChunk(ch, offset, out, 0, n);
+      return;
+    }
+
+    ExecutorService exec = WorkerPool.getExecutor();
+    ArrayList futures = new ArrayList(nchunks-1);
+    int per = (n + nchunks - 1) / nchunks;
+    for(int c=1; c < nchunks; c++) {
+      final int from = c*per, count = Math.min(per, n - from);
+      if (count <= 0) break;
+      futures.add(exec.submit(new java.util.concurrent.Callable() {
+	public Object call() throws IOException {
+	  readChunk(ch, offset, out, from, count);
+	  return null;
+	}
+      }));
+    }
+
+    try {
+      readChunk(ch, offset, out, 0, Math.min(per, n));
+      for(int i=0; i < futures.size(); i++) 
+	WorkerPool.getUninterruptibly((Future) futures.get(i));
+    }
+    catch (ExecutionException ex) {
+      Throwable t = ex.getCause();
+      if (t instanceof IOException) throw (IOException) t;
+      if (t instanceof RuntimeException) throw (RuntimeException) t;
+      if (t instanceof Error) throw (Error) t;
+      throw new InternalError(t.toString());
+    }
+    finally {
+      for(int i=0; i < futures.size(); i++) 
+	((Future) futures.get(i)).cancel(false);
+    }
+  }
+
+  /**
+   * read n values from a stream, converting them into a flat array.
+   * The values are read sequentially, a block at a time, so this 
+   * suits data that arrive through a network or decompressing stream.
+   * @param in      the stream, positioned at the first value
+   * @param out     the array to write into, of type getType()
+   * @param n       the number of values to read
+   */
+  public void read(DataInput in, Object out, int n) throws IOException {
+    int atom = atomSize(storedType);
+    int max = Math.max(1, Data.getBlockSize() / atom);
+    byte[] bytes = new byte[Math.min(max, Math.max(n, 1)) * atom];
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    Object tmp = (scaled) ? storedType.allocateArray(bytes.length/atom) 
+                          : null;
+    int from = 0;
+
+    while (from < n) {
+      int csize = Math.min(max, n - from);
+      in.readFully(bytes, 0, csize*atom);
+      buf.clear();
+      buf.limit(csize*atom);
+      if (scaled) {
+	get(buf, tmp, 0, csize);
+	convert(tmp, 0, out, from, csize);
+      }
+      else {
+	get(buf, out, from, csize);
+      }
+      from += csize;
+    }
+  }
+
+  /**
+   * read and convert count values starting with value number from
+   */
+  private void readChunk(FileChannel ch, long offset, Object out, 
+			 int from, int count) 
+    throws IOException
+  {
+    int atom = atomSize(storedType);
+    int max = Math.max(1, Data.getBlockSize() / atom);
+    ByteBuffer buf = ByteBuffer.allocate(Math.min(max, count) * atom);
+    buf.order(ByteOrder.BIG_ENDIAN);
+    Object tmp = (scaled) ? storedType.allocateArray(buf.capacity()/atom) 
+                          : null;
+    long pos = offset + ((long) from)*atom;
+
+    while (count > 0) {
+      int csize = Math.min(max, count);
+      buf.clear();
+      buf.limit(csize*atom);
+      while (buf.hasRemaining()) {
+	int nread = ch.read(buf, pos);
+	if (nread < 0) throw new EOFException();
+	pos += nread;
+      }
+      buf.flip();
+      if (scaled) {
+	get(buf, tmp, 0, csize);
+	convert(tmp, 0, out, from, csize);
+      }
+      else {
+	get(buf, out, from, csize);
+      }
+      from += csize;
+      count -= csize;
+    }
+  }
+
+  private static int atomSize(JavaType type) {
+    switch(type.code()) {
+    case 3:  return 1;
+    case 4:  return 2;
+    case 5:
+    case 7:  return 4;
+    default: return 8;
+    }
+  }
+
+  /**
+   * copy n values of the stored type out of a buffer
+   */
+  private void get(ByteBuffer buf, Object array, int start, int n) {
+    switch(storedType.code()) {
+    case 3:
+      buf.get((byte[]) array, start, n);
+      break;
+    case 4:
+      buf.asShortBuffer().get((short[]) array, start, n);
+      break;
+    case 5:
+      buf.asIntBuffer().get((int[]) array, start, n);
+      break;
+    case 6:
+      buf.asLongBuffer().get((long[]) array, start, n);
+      break;
+    case 7:
+      buf.asFloatBuffer().get((float[]) array, start, n);
+      break;
+    case 8:
+      buf.asDoubleBuffer().get((double[]) array, start, n);
+      break;
+    }
+  }
+
+  /**
+   * convert n values from a 1-d array of the stored type into the 
+   * output array.
+   * @param in        the input values, of type getStoredType()
+   * @param inStart   the index of the first input value
+   * @param out       the array to write into, of type getType()
+   * @param outStart  the index in out of the first converted value
+   * @param n         the number of values to convert
+   */
+  public void convert(Object in, int inStart, Object out, int outStart, 
+		      int n) 
+  {
+    if (! scaled) {
+      System.arraycopy(in, inStart, out, outStart, n);
+      return;
+    }
+
+    int i, j;
+    double bs = bscale, bz = bzero;
+    if (outType == JavaType.SHORT) {
+      byte[] ina = (byte[]) in;
+      short[] outa = (short[]) out;
+      for(i=inStart, j=outStart; i < inStart+n; i++, j++) 
+	outa[j] = (short) (ina[i] & 0xff);
+    }
+    else if (outType == JavaType.FLOAT) {
+      float[] outa = (float[]) out;
+      switch(storedType.code()) {
+      case 3: {
+	byte[] ina = (byte[]) in;
+	int blnk = (hasBlank) ? (int) blank : -1;
+	for(i=inStart, j=outStart; i < inStart+n; i++, j++) {
+	  int v = ina[i] & 0xff;
+	  outa[j] = (v == blnk) ? Float.NaN : (float) (bz + bs*v);
+	}
+	break;
+      }
+      case 4: {
+	short[] ina = (short[]) in;
+	int blnk = (hasBlank) ? (int) blank : Integer.MIN_VALUE;
+	for(i=inStart, j=outStart; i < inStart+n; i++, j++) {
+	  int v = ina[i];
+	  outa[j] = (v == blnk) ? Float.NaN : (float) (bz + bs*v);
+	}
+	break;
+      }
+      case 7: {
+	float[] ina = (float[]) in;
+	for(i=inStart, j=outStart; i < inStart+n; i++, j++) 
+	  outa[j] = (float) (bz + bs*ina[i]);
+	break;
+      }
+      default:
+	throw new ClassCastException("bad intype-outtype combo");
+      }
+    }
+    else {
+      double[] outa = (double[]) out;
+      switch(storedType.code()) {
+      case 5: {
+	int[] ina = (int[]) in;
+	long blnk = (hasBlank) ? blank : Long.MIN_VALUE;
+	for(i=inStart, j=outStart; i < inStart+n; i++, j++) {
+	  int v = ina[i];
+	  outa[j] = (v == blnk) ? Double.NaN : bz + bs*v;
+	}
+	break;
+      }
+      case 6: {
+	long[] ina = (long[]) in;
+	long blnk = blank;
+	boolean hb = hasBlank;
+	for(i=inStart, j=outStart; i < inStart+n; i++, j++) {
+	  long v = ina[i];
+	  outa[j] = (hb && v == blnk) ? Double.NaN : bz + bs*v;
+	}
+	break;
+      }
+      case 8: {
+	double[] ina = (double[]) in;
+	for(i=inStart, j=outStart; i < inStart+n; i++, j++) 
+	  outa[j] = bz + bs*ina[i];
+	break;
+      }
+      default:
+	throw new ClassCastException("bad intype-outtype combo");
+      }
+    }
+  }
+}
@@ -29,31 +29,70 @@
 
 package ncsa.horizon.data;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Vector;
 import ncsa.fits.fits.*;
 import ncsa.fits.util.*;
 import ncsa.horizon.coordinates.FITSCoordMetadata;
 import ncsa.horizon.util.*;
 
 /**
- * NdArrayReader implementation for on-disk FITS file.
+ * NdArrayReader implementation for on-disk FITS file.  When reading a
+ * local file, every image array in the file (the primary array and any
+ * IMAGE extensions) is available; they are numbered from 0 in file 
+ * order, skipping HDUs that have no image data.  The HDUs are located
+ * with a FitsIndex, whose entries describe each array's type and 
+ * shape, so opening a file reads no headers at all; the header of an 
+ * array is only read when its metadata are requested, and its data 
+ * only when they are requested.  Images stored with the FITS tiled 
+ * image compression convention are available too; their data are 
+ * returned as a TiledNdArrayData that decompresses tiles only as they
+ * are needed. <p>
+ *
+ * A file compressed with gzip or bzip2 (such as a .fits.gz) and data 
+ * read from a URL cannot be read at random, so they are read in one 
+ * pass through a decompressing stream (see CompressedInput), keeping
+ * the converted data of every image array in memory; no temporary 
+ * file is written.  Gzip files made of independently compressed 
+ * blocks (BGZF) are decompressed in parallel on the WorkerPool. <p>
+ *
+ * If setProgressive(true) is called, getNdArrayData() returns the 
+ * image arrays of an uncompressed local file before their data are 
+ * read; a FITSNdArrayUpdater then loads them plane by plane in the 
+ * background, notifying the data's observers as each part arrives.
  */
 public class FITSNdArrayReader extends NdArrayReader {
 
-  private InputStream inputStream;
-  private Fits fits;
-  private HDU primaryHdu;
-  private Header primaryHeader;
-  private Data primaryData;
-  private Object convertedData = null;
-  private JavaType javaType, storedType;
+  private File file = null;
+  private URL url = null;
+  private FitsIndex index = null;
+  private ImageArray[] arrays;
+  private boolean progressive = false;
 
-  private Double bzero, bscale;
-  private Integer blank;
-  private Metadata md = null;
+  /**
+   * the state kept for each available image array
+   */
+  private class ImageArray {
+    int hdunum;
+    FitsIndex.Entry entry = null;
+    Header header = null;
+    int bitpix;
+    int[] size;
+    Object convertedData = null;
+    JavaType javaType;
+    FITSImageDecoder decoder;
+    CompressedImage compressed = null;
+    FITSNdArrayUpdater updater = null;
+    Metadata md = null;
+  }
 
   /**
    * Disabled.  No argument constructor, do nothing. It is protected
@@ -68,9 +107,11 @@ public class FITSNdArrayReader extends NdArrayReader {
    */
   public FITSNdArrayReader(String name) throws InstantiationException {
     try {
-      inputStream = new FileInputStream(name);
-      fits = new Fits(name);
-      constructVariables();
+      file = new File(name);
+      if (CompressedInput.detect(file) == CompressedInput.NONE) 
+	constructVariables();
+      else
+	readStream(new FileInputStream(file));
     } catch (IOException e) { // can't open file
       System.err.println(getClass().getName() + ": " + e);
       throw new InstantiationException(getClass().getName() + ": " + e +
@@ -84,6 +125,10 @@ public class FITSNdArrayReader extends NdArrayReader {
       System.err.println(getClass().getName() + ": " + e);
       throw new InstantiationException(getClass().getName() + e + 
 			  " Maybe file is not a good FITS file.");
+    } catch (IllegalArgumentException e) { // e.g. a bad BITPIX value
+      System.err.println(getClass().getName() + ": " + e);
+      throw new InstantiationException(getClass().getName() + ": " + e + 
+				       " Maybe file is not a good FITS file.");
     } catch (OutOfMemoryError e) {  /* not enough memory to create Fits
 				     * object with data */
       System.err.println(getClass().getName() + ": " + e);
@@ -99,9 +144,8 @@ public class FITSNdArrayReader extends NdArrayReader {
    */
   public FITSNdArrayReader(URL url) throws InstantiationException {
     try {
-      inputStream = url.openStream();
-      fits = new Fits(url);
-      constructVariables();
+      this.url = url;
+      readStream(url.openStream());
     }
     catch(IOException e) {
       System.err.println(getClass().getName() + ": " + e);
@@ -113,6 +157,10 @@ public class FITSNdArrayReader extends NdArrayReader {
       System.err.println(getClass().getName() + e);
       throw new InstantiationException(getClass().getName() + ": " + e + 
 				       " Maybe remote file is not found or not a good FITS file.");
+    } catch (IllegalArgumentException e) { // e.g. a bad BITPIX value
+      System.err.println(getClass().getName() + ": " + e);
+      throw new InstantiationException(getClass().getName() + ": " + e + 
+				       " Maybe remote file is not a good FITS file.");
     } catch (OutOfMemoryError e) {  /* not enough memory to create Fits
 				     * object with data */
       System.err.println(getClass().getName() + ": " + e);
@@ -121,73 +169,243 @@ public class FITSNdArrayReader extends NdArrayReader {
     }
   }
 
-  // works only for constructor
-  private void constructType() {
-    int type = primaryData.getType();
-    switch(type) {
-    case 1:
-      storedType = JavaType.BOOLEAN;
-      break;
-    case 2:
-      storedType = JavaType.BYTE;
-      break;
-    case 3:
-      storedType = JavaType.CHAR;
-      break;
-    case 7:
-      storedType = JavaType.FLOAT;
-      break;
-    case 8:
-      storedType = JavaType.DOUBLE;
-      break;
-    case 4:
-      storedType = JavaType.SHORT;
-      break;
-    case 5:
-      storedType = JavaType.INT;
-      break;
-    case 6:
-      storedType = JavaType.LONG;
-      break;
+  // works only for readStream and describe
+  private void constructType(ImageArray a) {
+    Double bzero = null, bscale = null;
+    Long blank = null;
+    if (a.header.hasKey("BZERO")) 
+      bzero  = new Double(a.header.getDValue("BZERO"));
+    if (a.header.hasKey("BSCALE")) 
+      bscale = new Double(a.header.getDValue("BSCALE"));
+    if (a.header.hasKey("BLANK")) 
+      blank = new Long(a.header.getLValue("BLANK"));
+    constructType(a, (int) a.header.getLValue("BITPIX", 0), 
+		  getSize(a.header), bscale, bzero, blank);
+  }
+
+  private void constructType(ImageArray a, int bitpix, int[] size,
+			     Double bscale, Double bzero, Long blank) 
+  {
+    a.bitpix = bitpix;
+    a.size = size;
+    FITSImageDecoder decoder = 
+      new FITSImageDecoder(bitpix, bscale, bzero, blank);
+    a.javaType = decoder.getType();
+    a.decoder = decoder;
+  }    
+
+  /**
+   * Works only for constructors: find the image arrays of a local file.
+   * Plain image arrays are described from the index alone; a 
+   * tile-compressed image is only recorded here and is opened the 
+   * first time it is asked about (see describe()).
+   */
+  private void constructVariables() throws IOException, 
+					   InstantiationException 
+  {
+    index = FitsIndex.forFile(file);
+    Vector found = new Vector();
+    for(int i=0; i < index.size(); i++) {
+      FitsIndex.Entry e = index.getEntry(i);
+      ImageArray a = new ImageArray();
+      a.hdunum = i;
+      a.entry = e;
+      if (e.isImage()) {
+	constructType(a, e.getBitpix(), e.getAxes(), e.getBscale(), 
+		      e.getBzero(), e.getBlank());
+      }
+      else if (! e.isCompressedImage()) {
+	continue;
+      }
+      found.addElement(a);
     }
-      
-    int sc = storedType.code();
-    if (sc >= 4 && sc <= 6) {
-	if (md == null) getMetadata(); 
+    setArrays(found);
+  }
+
+  /**
+   * open the compressed image table of an array of a local file if it 
+   * has not been opened yet, filling in its description
+   */
+  private void describe(ImageArray a) {
+    synchronized (a) {
+      if (a.decoder != null) return;
+      try {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
 	try {
-	    bzero  = (Double) md.getMetadatum("NativeMetadata.BZERO");
-	    bscale = (Double) md.getMetadatum("NativeMetadata.BSCALE");
-	} catch (ClassCastException ex) { bzero = bscale = null; }
+	  a.compressed = new CompressedImage(index.readTable(raf, a.hdunum));
+	} finally {
+	  raf.close();
+	}
+      } catch (IOException ex) {
+	throw new InternalError(getClass().getName() + 
+				": unable to read compressed image: " + ex);
+      }
+      a.header = a.compressed.getImageHeader();
+      constructType(a);
+    }
+  }
+
+  /**
+   * return the header of an array, reading it from the local file if 
+   * necessary
+   */
+  private Header header(ImageArray a) {
+    synchronized (a) {
+      if (a.header != null) return a.header;
+      try {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
 	try {
-	    blank = (Integer) md.getMetadatum("NativeMetadata.BLANK");
-	} catch (ClassCastException ex) { blank = null; }
+	  a.header = index.readHeader(raf, a.hdunum);
+	} finally {
+	  raf.close();
+	}
+      } catch (IOException ex) {
+	throw new InternalError(getClass().getName() + 
+				": unable to read header: " + ex);
+      }
+      return a.header;
     }
-    if (sc >= 4 && sc <= 6 && 
-	bscale != null && bzero != null) 
-    {
-//	System.err.println("bscale=" + bscale + ", bzero=" + bzero);
-	javaType = (sc == 4) ? JavaType.FLOAT : JavaType.DOUBLE;
-    } else {
-	javaType = storedType;
+  }
+
+  /**
+   * Works only for constructors: read every image array from a 
+   * (possibly compressed) stream in one pass, converting the data as 
+   * they arrive.
+   */
+  private void readStream(InputStream in) throws IOException,
+						 InstantiationException 
+  {
+    DataInputStream dis = new DataInputStream(
+	CompressedInput.open(in, WorkerPool.getExecutor(), 
+			     WorkerPool.getParallelism()));
+    Vector found = new Vector();
+    try {
+      Header header = new Header();
+      for(int i=0; header.readHeader(dis); i++) {
+	long size = header.dataSize();
+	ImageArray a = new ImageArray();
+	a.hdunum = i;
+	a.header = header;
+	if (isImage(header, i)) {
+	  constructType(a);
+	  int n = (int) checkedSize(NdArrayMath.size(getSize(header)), 
+				    "image array in HDU " + i);
+	  a.convertedData = a.javaType.allocateArray(n);
+	  a.decoder.read(dis, a.convertedData, n);
+	  size -= ((long) n) * Math.abs(header.getLValue("BITPIX", 0))/8;
+	}
+	else if (i > 0 && "BINTABLE".equals(xtension(header)) && 
+		 header.getBValue("ZIMAGE", false)) {
+	  byte[] table = new byte[(int) checkedSize(size, 
+				"compressed image table in HDU " + i)];
+	  dis.readFully(table);
+	  size = 0;
+	  a.compressed = new CompressedImage(
+	      new BinaryTable(ByteBuffer.wrap(table), header));
+	  a.header = a.compressed.getImageHeader();
+	  constructType(a);
+	}
+	else {
+	  a = null;
+	}
+	if (a != null) found.addElement(a);
+
+	while (size > 0) {
+	  int skipped = dis.skipBytes((int) Math.min(size, 1 << 30));
+	  if (skipped <= 0) throw new EOFException("truncated FITS data");
+	  size -= skipped;
+	}
+	header = new Header();
+      }
+    } finally {
+      dis.close();
     }
-  }    
+    setArrays(found);
+  }
+
+  /**
+   * return the trimmed value of XTENSION, or null if it is missing
+   */
+  static String xtension(Header header) {
+    if (! header.hasKey("XTENSION")) return null;
+    String xt = header.getSValue("XTENSION");
+    return (xt == null) ? null : xt.trim();
+  }
+
+  /**
+   * return true if the header of the which'th HDU describes an image
+   * array with data
+   */
+  static boolean isImage(Header header, int which) {
+    if (which > 0 && ! "IMAGE".equals(xtension(header))) return false;
+    if (header.getLValue("GCOUNT", 1) != 1 || 
+	header.getLValue("PCOUNT", 0) != 0) 
+      return false;
+    int[] size = getSize(header);
+    if (size.length == 0) return false;
+    for(int i=0; i < size.length; i++) 
+      if (size[i] <= 0) return false;
+    return true;
+  }
+
+  /**
+   * return n if an array of that length can be held in memory; 
+   * readStream() keeps every array it reads in a Java array.
+   * @exception InstantiationException if n exceeds Integer.MAX_VALUE
+   */
+  private long checkedSize(long n, String what) 
+       throws InstantiationException 
+  {
+    if (n > Integer.MAX_VALUE) 
+      throw new InstantiationException(getClass().getName() + ": " + 
+				       what + " is too large to read " +
+				       "from a stream (" + n + ")");
+    return n;
+  }
+
+  private void setArrays(Vector found) throws InstantiationException {
+    if (found.size() == 0) 
+      throw new InstantiationException(getClass().getName() + 
+				       ": no image data found");
+    arrays = new ImageArray[found.size()];
+    found.copyInto(arrays);
+  }
 
   /**
-   * Works only for constructors
+   * return the state for the which_array nd array
+   * @exception IllegalArgumentException if which_array is out of range
    */
-  private void constructVariables() {
-    primaryHdu = fits.readHDU();
-    primaryHeader = primaryHdu.getHeader();
-    primaryData = primaryHdu.getData();
-    constructType();
+  private ImageArray array(int which_array) {
+    if (which_array < 0 || which_array >= arrays.length)
+      throw new IllegalArgumentException("no such nd array: " + which_array);
+    ImageArray a = arrays[which_array];
+    if (a.entry != null && a.entry.isCompressedImage()) describe(a);
+    return a;
   }
 
+  /**
+   * read and convert the data for an array from the local file
+   */
+  private void readData(ImageArray a, Object out, int n) {
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+	a.decoder.read(raf.getChannel(), 
+		       index.getEntry(a.hdunum).getDataOffset(), out, n);
+      } finally {
+	raf.close();
+      }
+    } catch (IOException ex) {
+      throw new InternalError(getClass().getName() + 
+			      ": unable to read data: " + ex);
+    }
+  }
   
   /**
    * Return how many nd arrays is available
    */
   public int NumberOfNdarray() {
-    return 1;
+    return arrays.length;
   }
 
   /**
@@ -199,7 +417,15 @@ public class FITSNdArrayReader extends NdArrayReader {
    * -1 will be returned.
    */
   public int dataSize() {
-    return (int) primaryHeader.getLValue("BITPIX", -1);
+    return dataSize(0);
+  }
+
+  /**
+   * Return the data size in byte for the 
+   * which_array Nd array.
+   */
+  public int dataSize(int which_array) {
+    return array(which_array).bitpix;
   }
 
   /**
@@ -209,8 +435,18 @@ public class FITSNdArrayReader extends NdArrayReader {
    * to hold all the data.
    */
   public NdArrayData getNdArrayData() {
-    int naxes = getNaxes();
-    double[] size = ArrayTypeConverter.arrayIntToDouble(getSize());
+    return getNdArrayData(0);
+  }
+
+  /**
+   * Return a NdArrayData for the which_array nd array.  This 
+   * method may return null if there is not enough memory 
+   * to hold all the data.
+   */
+  public NdArrayData getNdArrayData(int which_array) {
+    int naxes = getNaxes(which_array);
+    double[] size = 
+      ArrayTypeConverter.arrayIntToDouble(getSize(which_array));
     double[] loc = new double[naxes];
     double[] sampling = new double[naxes];
     for (int i = 0; i < naxes; i++) {
@@ -218,39 +454,53 @@ public class FITSNdArrayReader extends NdArrayReader {
       sampling[i] = 1.0;
     }
     Volume aVolume = new Volume(naxes, loc, size, sampling);
+    ImageArray a = array(which_array);
+    if (a.compressed != null) 
+      return new TiledNdArrayData(
+	  new CompressedImageTileSource(a.compressed, a.decoder), aVolume);
+
     NdArrayData aNdArrayData = null;
+    boolean isFinal = isFinal(which_array);
     try {
-      aNdArrayData = new InMemoryData(aVolume, getType());
-      aNdArrayData.setValues(getValue());
+      aNdArrayData = new InMemoryData(aVolume, getType(which_array));
+      if (isFinal) aNdArrayData.setValues(getValue(which_array));
     } catch (InstantiationException e) {
       System.err.println(getClass().getName() + e);
       return null;
     }
-    if(isFinal()) {
+    if(isFinal) {
       aNdArrayData.setComplete();
     } else {
-      NdArrayDataUpdater dvu = getUpdater();
-      dvu.update(aNdArrayData);
+      synchronized (a) {
+	if (a.updater != null && a.updater.isStarted()) a.updater = null;
+	getUpdater(which_array).update(aNdArrayData);
+      }
     }
     return aNdArrayData;
   }
 
   public Metadata getMetadata() {
-      if (md == null) {
+    return getMetadata(0);
+  }
+
+  public Metadata getMetadata(int which_array) {
+      ImageArray a = array(which_array);
+      if (a.md == null) {
 	  
 	  FITSMetadata aFITSmd = new FITSMetadata();
 	  // FITSCoordMetadata horizonmd = new FITSCoordMetadata();
-	  int ncards = (int) primaryHeader.getCardSize();
+	  Header header = header(a);
+	  int ncards = (int) header.getCardSize();
 	  for (int i = 0; i < ncards; i++) {
-	      aFITSmd.scanHeaderCard(primaryHeader.getCard(i), true);
+	      aFITSmd.scanHeaderCard(header.getCard(i), true);
 	  }
 	  // FITSMetadata.convertToHorizon(aFITSmd, horizonmd);
 	  aFITSmd.setHorizonMetadata();
 
-	  md = aFITSmd;
+	  a.md = aFITSmd;
       }
 
-      return md;
+      return a.md;
   }
 
   /**
@@ -259,34 +509,123 @@ public class FITSNdArrayReader extends NdArrayReader {
    * -1 will be returned.
    */
   public int getNaxes() {
-    return (int) primaryHeader.getLValue("NAXIS", -1);
+    return getNaxes(0);
+  }
+
+  /**
+   * Return the number of axes for the which_array Nd array.
+   */
+  public int getNaxes(int which_array) {
+    return array(which_array).size.length;
   }
 
   /**
    * Return the axis sizes of the first Nd-array
    */
   public int[] getSize() {
-    int naxes = getNaxes();
-    int[] size = new int[naxes];
+    return getSize(0);
+  }
+
+  /**
+   * Return the axis sizes of the which_array Nd-array
+   */
+  public int[] getSize(int which_array) {
+    return (int[]) array(which_array).size.clone();
+  }
+
+  static int[] getSize(Header header) {
+    int naxes = (int) header.getLValue("NAXIS", -1);
+    int[] size = new int[Math.max(naxes, 0)];
     for(int i = 0; i < naxes; i++) {
       String key = "NAXIS" + (i + 1);
-      size[i] = (int) primaryHeader.getLValue(key, -1);
+      size[i] = (int) header.getLValue(key, -1);
     }
     return size;
   }
 
   /**
-   * Return stream of the reading content
+   * Return a new stream positioned at the start of the (decompressed)
+   * content, or null if it cannot be opened.
    */
   public InputStream getStream() {
-    return inputStream;
+    try {
+      if (file != null) return CompressedInput.open(file);
+      return CompressedInput.open(url.openStream());
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * choose whether getNdArrayData() loads the data of an uncompressed
+   * local file in the background rather than before returning.  The 
+   * default is false.
+   */
+  public void setProgressive(boolean yes) { progressive = yes; }
+
+  /**
+   * return true if getNdArrayData() loads data in the background
+   */
+  public boolean isProgressive() { return progressive; }
+
+  /**
+   * return false if getNdArrayData(0) will return data that are still 
+   * being loaded
+   */
+  public boolean isFinal() {
+    return isFinal(0);
+  }
+
+  /**
+   * return false if getNdArrayData(which_array) will return data that
+   * are still being loaded; this is the case for an array of an 
+   * uncompressed local file when setProgressive(true) has been called 
+   * and the array has not already been read with getValue().
+   */
+  public boolean isFinal(int which_array) {
+    ImageArray a = array(which_array);
+    return ! (progressive && index != null && a.compressed == null && 
+	      a.convertedData == null);
+  }
+
+  /**
+   * return the updater for the first nd array; see 
+   * getUpdater(int)
+   */
+  public NdArrayDataUpdater getUpdater() {
+    return getUpdater(0);
+  }
+
+  /**
+   * return the FITSNdArrayUpdater loading the data most recently 
+   * returned by getNdArrayData(which_array), or a new one if there 
+   * is none yet.  Null is returned if isFinal(which_array) is true.
+   */
+  public NdArrayDataUpdater getUpdater(int which_array) {
+    if (isFinal(which_array)) return null;
+    ImageArray a = array(which_array);
+    synchronized (a) {
+      if (a.updater == null) 
+	a.updater = new FITSNdArrayUpdater(file, 
+			 index.getEntry(a.hdunum).getDataOffset(), 
+			 a.decoder, getSize(which_array));
+      return a.updater;
+    }
   }
 
   /**
    * return data type of the first nd array
    */
   public JavaType getType() {
-    return javaType;
+    return getType(0);
+  }
+
+  /**
+   * return data type of the which_array nd array
+   */
+  public JavaType getType(int which_array) {
+    if (which_array < 0 || which_array >= arrays.length) return null;
+    return array(which_array).javaType;
   }
     
   /**
@@ -297,24 +636,22 @@ public class FITSNdArrayReader extends NdArrayReader {
    */
   public double getValue(int[] coord) throws
   IllegalArgumentException {
-    int dim = primaryData.getDimensions().length;
-    switch(dim){
-    case 1:
-      break;
-    case 2: {
-      float[][] data = (float[][])primaryData.getData();
-      return data[coord[1]][coord[0]]; }
-    case 3: {
-      float[][][] data = (float[][][])primaryData.getData();
-      return data[coord[2]][coord[1]][coord[0]]; }
-    case 4: {
-      float[][][][] data = (float[][][][])primaryData.getData();
-      return data[coord[3]][coord[2]][coord[1]][coord[0]]; }
-    case 5: {
-      float[][][][][] data = (float[][][][][])primaryData.getData();
-      return data[coord[4]][coord[3]][coord[2]][coord[1]][coord[0]]; }
-    }
-    return 0;
+    return getValue(coord, 0);
+  }
+
+  /**
+   * Return the double value at location coord 
+   * of the which_array nd array.
+   * IllegalArgumentException will be thrown if
+   * coord is out of bound of int[] getSize.
+   */
+  public double getValue(int[] coord, int which_array) throws
+  IllegalArgumentException {
+    int index = (int) NdArrayMath.indexArrayToNumber(coord, 
+						    getSize(which_array));
+    Object value = getType(which_array).
+      wrappedValueFromArray(getValue(which_array), index);
+    return ((Number) value).doubleValue();
   }
 
   /**
@@ -323,211 +660,31 @@ public class FITSNdArrayReader extends NdArrayReader {
    * Likely to throw OutOfMemoryError if the first nd array is too large
    */
   public Object getValue() {
-      if (convertedData == null) {
-	  if (primaryData == null) 
-	      throw new InternalError("Forgot primary data too soon!");
-
-	  convertedData = 
-	      javaType.allocateArray((int) NdArrayMath.size(getSize()));
-	  int dim = primaryData.getDimensions().length;
-	  int[] size = getSize();
-
-	  Object inarray = primaryData.getData();
-	  fillArray(inarray, storedType, dim, 
-		    convertedData, javaType, 0, size);
-
-	  primaryData = null;
-	  System.gc();
-      }
-
-      return convertedData;
+    return getValue(0);
   }
 
-  private void fillArray(Object ndarray, JavaType intype, int dim,
-			 Object outarray, JavaType outtype, int start, 
-			 int[] size) 
-  {
-      int i;
-
-      if (dim >= 2) {
-	  int[] subsz = new int[size.length-1];
-	  System.arraycopy(size, 0, subsz, 0, subsz.length);
-	  int rest = subsz[0];
-	  for(i=1; i < subsz.length; i++) rest *= subsz[i];
-
-	  for(i=0; i < size[size.length-1]; i++) {
-	      fillArray(subArray(ndarray, intype, dim, i), intype, dim-1,
-			outarray, outtype, start+(i*rest), subsz);
-	  }
-      }
-      else if (intype == outtype) {
-	  System.arraycopy(ndarray, 0, outarray, start, size[0]);
-      }
-      else if (intype == JavaType.SHORT && outtype == JavaType.FLOAT) {
-	  short[] ina = (short[]) ndarray;
-	  float[] outa = (float[]) outarray;
-
-	  if (bzero == null || bscale == null) {
-	      for(i=0; i < size[0]; i++) outa[i+start] = (float) ina[i];
-	  }
-	  else {
-	      float bs = bscale.floatValue(),
-                    bz = bzero.floatValue();
-	      int blnk = (blank == null) ? -40000 : blank.intValue();
-
-	      for(i=0; i < size[0]; i++) 
-		  outa[i+start] = (ina[i] == blnk) ? Float.NaN : 
-                                                     bz + bs*ina[i];
-	  }
-      }
-      else if ((intype == JavaType.INT || intype == JavaType.LONG) &&
-	       outtype == JavaType.DOUBLE) {
-	  double[] outa = (double[]) outarray;
-
-	  if (bzero == null || bscale == null) {
-	      if (intype == JavaType.INT) {
-		  int[] ina = (int[]) ndarray;
-		  for(i=0; i < size[0]; i++) outa[i+start] = (double) ina[i];
-	      }
-	      else {
-		  long[] ina = (long[]) ndarray;
-		  for(i=0; i < size[0]; i++) outa[i+start] = (double) ina[i];
-	      }
+  /**
+   * Return the 1d array representation
+   * of the which_array nd array.
+   * Likely to throw OutOfMemoryError if the nd array is too large
+   */
+  public Object getValue(int which_array) {
+      ImageArray a = array(which_array);
+      if (a.convertedData == null) {
+	  // arrays read from a stream were converted when read
+	  Object out;
+	  if (a.compressed != null) {
+	      out = getNdArrayData(which_array).getValue();
 	  }
 	  else {
-	      double bs = bscale.doubleValue(),
-                     bz = bzero.doubleValue();
-	      long blnk = (blank == null) ? Long.MIN_VALUE : blank.longValue();
-
-	      if (intype == JavaType.INT) {
-		  int[] ina = (int[]) ndarray;
-		  for(i=0; i < size[0]; i++) 
-		      outa[i+start] = (ina[i] == blnk) ? 
-			                 Double.NaN : (double) ina[i];
-	      }
-	      else {
-		  long[] ina = (long[]) ndarray;
-		  for(i=0; i < size[0]; i++) 
-		      outa[i+start] = (ina[i] == blnk) ? 
-			                 Double.NaN : (double) ina[i];
-	      }
+	      int n = (int) NdArrayMath.size(getSize(which_array));
+	      out = a.javaType.allocateArray(n);
+	      readData(a, out, n);
 	  }
+	  a.convertedData = out;
       }
-      else {
-	  throw new ClassCastException("bad intype-outtype combo");
-      }
-  }
 
-  private Object subArray(Object ndarray, JavaType type, int dim, int which) {
-      switch(type.code()) {
-      case 1:
-	  switch(dim) {
-	  case 2:
-	      return ((boolean[][])ndarray)[which];
-	  case 3:
-	      return ((boolean[][][])ndarray)[which];
-	  case 4:
-	      return ((boolean[][][][])ndarray)[which];
-	  case 5:
-	      return ((boolean[][][][][])ndarray)[which];
-	  default:
-	      throw new InternalError("cast algorithm logic error");
-	  }
-      case 2:
-	  switch(dim) {
-	  case 2:
-	      return ((char[][])ndarray)[which];
-	  case 3:
-	      return ((char[][][])ndarray)[which];
-	  case 4:
-	      return ((char[][][][])ndarray)[which];
-	  case 5:
-	      return ((char[][][][][])ndarray)[which];
-	  default:
-	      throw new InternalError("cast algorithm logic error");
-	  }
-      case 3:
-	  switch(dim) {
-	  case 2:
-	      return ((byte[][])ndarray)[which];
-	  case 3:
-	      return ((byte[][][])ndarray)[which];
-	  case 4:
-	      return ((byte[][][][])ndarray)[which];
-	  case 5:
-	      return ((byte[][][][][])ndarray)[which];
-	  default:
-	      throw new InternalError("cast algorithm logic error");
-	  }
-      case 4:
-	  switch(dim) {
-	  case 2:
-	      return ((short[][])ndarray)[which];
-	  case 3:
-	      return ((short[][][])ndarray)[which];
-	  case 4:
-	      return ((short[][][][])ndarray)[which];
-	  case 5:
-	      return ((short[][][][][])ndarray)[which];
-	  default:
-	      throw new InternalError("cast algorithm logic error");
-	  }
-      case 5:
-	  switch(dim) {
-	  case 2:
-	      return ((int[][])ndarray)[which];
-	  case 3:
-	      return ((int[][][])ndarray)[which];
-	  case 4:
-	      return ((int[][][][])ndarray)[which];
-	  case 5:
-	      return ((int[][][][][])ndarray)[which];
-	  default:
-	      throw new InternalError("cast algorithm logic error");
-	  }
-      case 6:
-	  switch(dim) {
-	  case 2:
-	      return ((long[][])ndarray)[which];
-	  case 3:
-	      return ((long[][][])ndarray)[which];
-	  case 4:
-	      return ((long[][][][])ndarray)[which];
-	  case 5:
-	      return ((long[][][][][])ndarray)[which];
-	  default:
-	      throw new InternalError("cast algorithm logic error");
-	  }
-      case 7:
-	  switch(dim) {
-	  case 2:
-	      return ((float[][])ndarray)[which];
-	  case 3:
-	      return ((float[][][])ndarray)[which];
-	  case 4:
-	      return ((float[][][][])ndarray)[which];
-	  case 5:
-	      return ((float[][][][][])ndarray)[which];
-	  default:
-	      throw new InternalError("cast algorithm logic error");
-	  }
-      case 8:
-	  switch(dim) {
-	  case 2:
-	      return ((double[][])ndarray)[which];
-	  case 3:
-	      return ((double[][][])ndarray)[which];
-	  case 4:
-	      return ((double[][][][])ndarray)[which];
-	  case 5:
-	      return ((double[][][][][])ndarray)[which];
-	  default:
-	      throw new InternalError("cast algorithm logic error");
-	  }
-      default:
-	  throw new InternalError("unknown JavaType");
-      }
+      return a.convertedData;
   }
 
-
 }
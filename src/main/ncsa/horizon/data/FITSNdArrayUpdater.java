@@ -0,0 +1,251 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+package ncsa.horizon.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import ncsa.horizon.util.*;
+
+/**
+ * loads the data of a FITS image array into an NdArrayData in the 
+ * background, so that a viewer can show the first pixels of a large 
+ * file long before all of it has been read.  The data are read a unit
+ * at a time: a plane of a cube (the first two axes), or a band of rows
+ * when a plane is large.  After each unit is set with 
+ * NdArrayData.setValue(int, int, Object), the data's observers are 
+ * sent an UpdatedRegion covering it (see NdArrayData.regionUpdated()),
+ * and the statistics of the data are maintained incrementally via 
+ * StatisticsEngine.trackUpdates().  The data is marked complete just 
+ * before the last unit is reported. <p>
+ *
+ * Units are read in file order, except that those in the region given
+ * to prioritize() (typically the plane being viewed) are read first.
+ */
+public class FITSNdArrayUpdater extends NdArrayDataUpdater 
+  implements Runnable 
+{
+  /**
+   * the number of values aimed for in each unit read
+   */
+  public final static int BAND_VALUES = 1 << 18;
+
+  protected File file;
+  protected long dataOffset;
+  protected FITSImageDecoder decoder;
+  protected int[] size;
+
+  private int nx, ny, planeSize, nplanes, bandRows, bandsPerPlane, nunits;
+  private BitSet loaded;
+  private int nloaded = 0, cursor = 0;
+  private int[] priority = new int[0];
+  private NdArrayData data = null;
+  private Thread thread = null;
+  private volatile boolean cancelled = false;
+
+  /**
+   * create an updater for an image array in a local file
+   * @param file        the file
+   * @param dataOffset  the byte offset of the array's data segment
+   * @param decoder     the decoder for the array's values
+   * @param size        the length of each axis of the array
+   */
+  public FITSNdArrayUpdater(File file, long dataOffset, 
+			    FITSImageDecoder decoder, int[] size) 
+  {
+    this.file = file;
+    this.dataOffset = dataOffset;
+    this.decoder = decoder;
+    this.size = (int[]) size.clone();
+
+    nx = (size.length > 0) ? size[0] : 1;
+    ny = (size.length > 1) ? size[1] : 1;
+    planeSize = nx * ny;
+    nplanes = 0;
+    if (planeSize > 0) 
+      nplanes = (int) (NdArrayMath.size(size) / planeSize);
+    bandRows = Math.max(1, Math.min(ny, BAND_VALUES / Math.max(nx, 1)));
+    bandsPerPlane = (ny + bandRows - 1) / bandRows;
+    nunits = nplanes * bandsPerPlane;
+    loaded = new BitSet(nunits);
+  }
+
+  /**
+   * start loading the data into an NdArrayData in a background thread.
+   * The data should have the size and type of the image array (as 
+   * returned by FITSNdArrayReader.getType()).
+   * @exception IllegalStateException if this updater has already been
+   *            started
+   */
+  public synchronized void update(NdArrayData dataVolume) {
+    if (data != null) 
+      throw new IllegalStateException("updater already started");
+    data = dataVolume;
+    if (nunits == 0) {
+      data.setComplete();
+      return;
+    }
+    StatisticsEngine.trackUpdates(data);
+    thread = new Thread(this, "FITS loader: " + file.getName());
+    thread.setDaemon(true);
+    thread.setPriority(Math.max(Thread.MIN_PRIORITY, 
+				Thread.currentThread().getPriority() - 1));
+    thread.start();
+  }
+
+  /**
+   * return true if update() has been called
+   */
+  public synchronized boolean isStarted() { return (data != null); }
+
+  /**
+   * return true if all of the data have been loaded
+   */
+  public synchronized boolean isDone() { return (nloaded == nunits); }
+
+  /**
+   * read the units that intersect a region before any others.  This 
+   * replaces the region given in any previous call.
+   * @param startCoord  the position of the first value of the region, 
+   *                    in the coordinates of the data's volume (i.e. 
+   *                    starting at 1)
+   * @param rsize       the length of each axis of the region
+   */
+  public synchronized void prioritize(int[] startCoord, int[] rsize) {
+    int y0 = (startCoord.length > 1) ? startCoord[1] - 1 : 0;
+    int y1 = (startCoord.length > 1) ? y0 + rsize[1] : ny;
+    y0 = Math.max(0, y0);
+    y1 = Math.min(ny, y1);
+    if (y0 >= y1 || nplanes == 0) {
+      priority = new int[0];
+      return;
+    }
+
+    // count the planes in the region, clipped to the array
+    int n = 1;
+    int[] first = new int[size.length];
+    int[] last = new int[size.length];
+    for(int i=2; i < size.length; i++) {
+      first[i] = (i < startCoord.length) ? Math.max(0, startCoord[i]-1) : 0;
+      last[i] = (i < startCoord.length) 
+	? Math.min(size[i], startCoord[i]-1 + rsize[i]) : size[i];
+      if (first[i] >= last[i]) {
+	priority = new int[0];
+	return;
+      }
+      n *= last[i] - first[i];
+    }
+
+    // list the units of those planes that cover the rows of the region
+    int b0 = y0 / bandRows, b1 = (y1 - 1) / bandRows;
+    int[] units = new int[n * (b1 - b0 + 1)];
+    int[] pos = (int[]) first.clone();
+    int k = 0;
+    for(int p=0; p < n; p++) {
+      int plane = 0;
+      for(int i=size.length-1; i >= 2; i--) plane = plane*size[i] + pos[i];
+      for(int b=b0; b <= b1; b++) units[k++] = plane*bandsPerPlane + b;
+      for(int i=2; i < size.length; i++) {
+	if (++pos[i] < last[i]) break;
+	pos[i] = first[i];
+      }
+    }
+    priority = units;
+  }
+
+  /**
+   * stop loading; the data will remain incomplete
+   */
+  public void cancel() { cancelled = true; }
+
+  /**
+   * wait until the loading finishes or is cancelled
+   */
+  public void waitFor() throws InterruptedException {
+    Thread t;
+    synchronized (this) { t = thread; }
+    if (t != null) t.join();
+  }
+
+  /**
+   * return the next unit to load, or -1 if there are no more
+   */
+  private synchronized int nextUnit() {
+    for(int i=0; i < priority.length; i++) 
+      if (! loaded.get(priority[i])) return priority[i];
+    cursor = loaded.nextClearBit(cursor);
+    return (cursor < nunits) ? cursor : -1;
+  }
+
+  public void run() {
+    JavaType type = decoder.getType();
+    int atom = decoder.getStoredSize();
+    Object buf = type.allocateArray(bandRows * nx);
+    int[] start = new int[size.length];
+    int[] usize = new int[size.length];
+
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+	FileChannel ch = raf.getChannel();
+	int unit;
+	while (! cancelled && (unit = nextUnit()) >= 0) {
+	  int plane = unit / bandsPerPlane;
+	  int row = (unit % bandsPerPlane) * bandRows;
+	  int nrows = Math.min(bandRows, ny - row);
+	  int first = plane*planeSize + row*nx;
+	  int n = nrows * nx;
+
+	  decoder.read(ch, dataOffset + ((long) first)*atom, buf, n);
+	  data.setValue(first, n, buf);
+
+	  // describe the unit as a region
+	  start[0] = 1;
+	  usize[0] = nx;
+	  if (size.length > 1) {
+	    start[1] = row + 1;
+	    usize[1] = nrows;
+	  }
+	  for(int i=2, p=plane; i < size.length; i++) {
+	    start[i] = p % size[i] + 1;
+	    usize[i] = 1;
+	    p /= size[i];
+	  }
+
+	  boolean last;
+	  synchronized (this) {
+	    loaded.set(unit);
+	    last = (++nloaded == nunits);
+	  }
+	  if (last) data.setComplete();
+	  data.regionUpdated(start, usize);
+	}
+      } finally {
+	raf.close();
+      }
+    } catch (IOException ex) {
+      System.err.println(getClass().getName() + ": " + ex);
+    }
+  }
+}
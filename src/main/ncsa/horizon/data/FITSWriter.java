@@ -0,0 +1,1175 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+package ncsa.horizon.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import ncsa.fits.fits.CompressedImage;
+import ncsa.fits.fits.Header;
+import ncsa.fits.fits.TileCompression;
+import ncsa.horizon.util.*;
+
+/**
+ * writes an NdArrayData, or a subvolume of one, to a FITS file along
+ * with its metadata.  The data are read a band of rows at a time and
+ * converted into a byte buffer with bulk puts, so large arrays are
+ * written with a small, fixed amount of memory. <p>
+ *
+ * The header is built from the native FITS metadata (the
+ * "NativeMetadata" of a FITSMetadata list, as returned by
+ * FITSNdArrayReader.getMetadata()), or failing that from the axes of
+ * the "CoordinateSystem" metadatum.  The keywords describing the
+ * array are replaced, and when a subvolume is written the reference
+ * pixels (CRPIXn) are shifted so that the world coordinates of the
+ * cutout are those of the original. <p>
+ *
+ * FITS stores 8-bit values unsigned, so byte data are written with 
+ * BZERO = -128 and their sign bits flipped, the standard convention 
+ * for signed bytes; they read back with their original values. <p>
+ *
+ * Floating-point data can be quantized into 16- or 32-bit integers
+ * (see setQuantization()); BSCALE and BZERO are then chosen to span
+ * the range of the values written, with NaNs stored as BLANK.  The
+ * image can also be written as a tile-compressed binary table
+ * extension (see setCompression()), which FITSNdArrayReader reads
+ * back transparently.  Tiles are compressed in parallel by the threads
+ * of the WorkerPool and written to the file's heap as they are 
+ * finished, so only a few compressed tiles are held in memory at once;
+ * the table's header and tile descriptors are filled in afterwards.  A
+ * compressed image written to a stream is therefore assembled in a 
+ * temporary file first.
+ */
+public class FITSWriter {
+
+  /**
+   * the Rice compression algorithm, for integer (or quantized) data
+   */
+  public final static String RICE_1 = "RICE_1";
+
+  /**
+   * gzip compression of the values' bytes
+   */
+  public final static String GZIP_1 = "GZIP_1";
+
+  /**
+   * gzip compression of the values' bytes, after shuffling them so
+   * that bytes of equal significance are together
+   */
+  public final static String GZIP_2 = "GZIP_2";
+
+  /**
+   * the number of values aimed for in each read from the data
+   */
+  public final static int CHUNK_VALUES = 1 << 16;
+
+  private final static int BLOCK = 2880;
+
+  // uncompressed images larger than this get 64-bit (1QB) tile 
+  // descriptors, leaving room for tiles that do not compress
+  private final static long WIDE_HEAP = Integer.MAX_VALUE / 2;
+
+  // the BZERO of signed bytes
+  private final static int BYTE_ZERO = -128;
+
+  // keywords that describe the array rather than what it holds
+  private final static String[] arrayKeys = {
+    "SIMPLE", "XTENSION", "BITPIX", "NAXIS", "EXTEND", "PCOUNT", "GCOUNT",
+    "BSCALE", "BZERO", "BLANK", "EXTNAME", "CHECKSUM", "DATASUM", "END",
+    "HISTORY", "COMMENT"
+  };
+
+  protected int quantize = 0;
+  protected String compression = null;
+  protected int[] tileSize = null;
+  protected int blockSize = 32;
+
+  /**
+   * create a writer that writes data in their own type, uncompressed
+   */
+  public FITSWriter() { }
+
+  /**
+   * set whether floating-point data are quantized into integers
+   * @param bits  16 or 32 to quantize into that many bits, or 0 to
+   *              write the values as they are
+   * @exception IllegalArgumentException if bits is not 0, 16 or 32
+   */
+  public void setQuantization(int bits) {
+    if (bits != 0 && bits != 16 && bits != 32)
+      throw new IllegalArgumentException("quantization must be 0, 16 " +
+					 "or 32 bits: " + bits);
+    quantize = bits;
+  }
+
+  /**
+   * return the number of bits that floating-point data are quantized
+   * into, or 0 if they are not
+   */
+  public int getQuantization() { return quantize; }
+
+  /**
+   * set the tile compression algorithm.  Floating-point data that are
+   * not quantized, and 64-bit integers, cannot be Rice-compressed;
+   * GZIP_2 is used for them instead.
+   * @param cmptype  RICE_1, GZIP_1, GZIP_2, or null to write the image
+   *                 uncompressed
+   * @exception IllegalArgumentException if cmptype is not recognized
+   */
+  public void setCompression(String cmptype) {
+    if (cmptype != null && ! cmptype.equals(RICE_1) &&
+	! cmptype.equals(GZIP_1) && ! cmptype.equals(GZIP_2))
+      throw new IllegalArgumentException("unsupported compression: " +
+					 cmptype);
+    compression = cmptype;
+  }
+
+  /**
+   * return the tile compression algorithm, or null if images are
+   * written uncompressed
+   */
+  public String getCompression() { return compression; }
+
+  /**
+   * set the size of the compressed tiles.  By default each tile is a
+   * band of whole rows holding about CHUNK_VALUES values, so that the
+   * small planes of a cutout are compressed whole.
+   * @param size  the length of each axis of a tile (axes not given
+   *              are 1), or null for the default
+   */
+  public void setTileSize(int[] size) {
+    tileSize = (size == null) ? null : (int[]) size.clone();
+  }
+
+  /**
+   * return the size of the compressed tiles, or null if the default
+   * is used
+   */
+  public int[] getTileSize() {
+    return (tileSize == null) ? null : (int[]) tileSize.clone();
+  }
+
+  /**
+   * write all of an NdArrayData to a file
+   * @param data  the data to write
+   * @param md    the data's metadata, or null
+   * @param file  the file to create; it is removed if the data cannot
+   *              be written
+   * @exception IllegalArgumentException if the data are not numeric
+   */
+  public void write(NdArrayData data, Metadata md, File file)
+    throws IOException
+  {
+    write(data, null, md, file);
+  }
+
+  /**
+   * write a subvolume of an NdArrayData to a file
+   * @param data  the data to write
+   * @param cut   the subvolume to write, in the data's coordinates
+   *              (as for NdArrayData.getNdArrayData(Volume)); if null,
+   *              all of the data are written
+   * @param md    the data's metadata, or null
+   * @param file  the file to create; it is removed if the data cannot
+   *              be written
+   * @exception IllegalArgumentException if the data are not numeric or
+   *              the subvolume does not overlap them
+   */
+  public void write(NdArrayData data, Volume cut, Metadata md, File file)
+    throws IOException
+  {
+    if (compression == null) {
+      OutputStream out = new FileOutputStream(file);
+      boolean ok = false;
+      try {
+	write(data, cut, md, out);
+	ok = true;
+      } finally {
+	out.close();
+	if (! ok) file.delete();
+      }
+      return;
+    }
+
+    Box box = new Box(data, cut);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    boolean ok = false;
+    try {
+      raf.setLength(0);
+      writeCompressed(data, box.start, box.size, 
+		      metadataCards(md, box.offset), raf);
+      ok = true;
+    } finally {
+      raf.close();
+      if (! ok) file.delete();
+    }
+  }
+
+  /**
+   * write a subvolume of an NdArrayData to a stream.  The stream is
+   * flushed but not closed.  A compressed image is written to a 
+   * temporary file and then copied to the stream.
+   * @param data  the data to write
+   * @param cut   the subvolume to write, in the data's coordinates; if
+   *              null, all of the data are written
+   * @param md    the data's metadata, or null
+   * @param out   the stream to write to
+   * @exception IllegalArgumentException if the data are not numeric or
+   *              the subvolume does not overlap them
+   */
+  public void write(NdArrayData data, Volume cut, Metadata md,
+		    OutputStream out)
+    throws IOException
+  {
+    if (compression != null) {
+      File tmp = File.createTempFile("fitswriter", ".fits");
+      try {
+	write(data, cut, md, tmp);
+	InputStream in = new FileInputStream(tmp);
+	try {
+	  byte[] buf = new byte[1 << 16];
+	  int n;
+	  while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+	} finally {
+	  in.close();
+	}
+      } finally {
+	tmp.delete();
+      }
+      out.flush();
+      return;
+    }
+
+    Box box = new Box(data, cut);
+    DataOutputStream dos =
+      new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    writeImage(data, box.start, box.size, metadataCards(md, box.offset), 
+	       dos);
+    dos.flush();
+  }
+
+  /**
+   * the part of an NdArrayData to be written
+   */
+  private static class Box {
+    int[] start, size, offset;
+
+    /**
+     * find the box to write
+     * @exception IllegalArgumentException if the data are not numeric 
+     *              or the subvolume does not overlap them
+     */
+    Box(NdArrayData data, Volume cut) {
+      JavaType type = data.getType();
+      if (type != JavaType.BYTE && type != JavaType.SHORT &&
+	  type != JavaType.INT && type != JavaType.LONG &&
+	  type != JavaType.FLOAT && type != JavaType.DOUBLE)
+	throw new IllegalArgumentException("unsupported (non-numeric) " +
+					   "data type");
+
+      int naxes = data.getNaxes();
+      int[] isize = data.getSize();
+      int[] origin =
+	ArrayTypeConverter.arrayDoubleToInt(data.getVolume().getLocation());
+      start = (int[]) origin.clone();
+      size = (int[]) isize.clone();
+      if (cut != null) {
+	double[] cloc = cut.getLocation();
+	int[] csize = cut.getTrueSize();
+	for(int i=0; i < naxes && i < cloc.length; i++) {
+	  int lo = Math.max(origin[i], (int) Math.floor(cloc[i]));
+	  int hi = Math.min(origin[i] + isize[i],
+			    (int) Math.floor(cloc[i]) + csize[i]);
+	  if (hi <= lo)
+	    throw new IllegalArgumentException("the subvolume does not " +
+					       "overlap the data");
+	  start[i] = lo;
+	  size[i] = hi - lo;
+	}
+      }
+      offset = new int[naxes];
+      for(int i=0; i < naxes; i++) offset[i] = start[i] - origin[i];
+    }
+  }
+
+  /**
+   * write the box as the primary array
+   */
+  private void writeImage(NdArrayData data, int[] start, int[] size,
+			  Vector mdcards, DataOutputStream out)
+    throws IOException
+  {
+    JavaType type = data.getType();
+    boolean quantized = isQuantized(type);
+    int bitpix = quantized ? quantize : bitpixFor(type);
+
+    // choose the scaling from the range of the values
+    double bscale = 1.0, bzero = 0.0;
+    long blank = 0;
+    if (quantized) {
+      double[] range = range(data, start, size);
+      double levels = (bitpix == 16) ? 32767.0 : 2147483646.0;
+      blank = (bitpix == 16) ? Short.MIN_VALUE : Integer.MIN_VALUE;
+      bzero = (range[0] + range[1]) / 2;
+      bscale = (range[1] > range[0]) ? (range[1] - range[0]) / (2*levels)
+	                             : 1.0;
+    }
+
+    Vector cards = new Vector();
+    cards.addElement(card("SIMPLE", Boolean.TRUE));
+    cards.addElement(card("BITPIX", new Integer(bitpix)));
+    cards.addElement(card("NAXIS", new Integer(size.length)));
+    for(int i=0; i < size.length; i++)
+      cards.addElement(card("NAXIS" + (i+1), new Integer(size[i])));
+    if (quantized) {
+      cards.addElement(card("BSCALE", new Double(bscale)));
+      cards.addElement(card("BZERO", new Double(bzero)));
+      cards.addElement(card("BLANK", new Long(blank)));
+    }
+    else if (type == JavaType.BYTE) {
+      cards.addElement(card("BZERO", new Integer(BYTE_ZERO)));
+    }
+    writeHeader(cards, mdcards, out);
+
+    // the buffer holds a whole number of values
+    int elemSize = Math.abs(bitpix) / 8;
+    ByteBuffer buf = ByteBuffer.allocate(CHUNK_VALUES * 8);
+    long total = elemSize * NdArrayMath.size(size);
+    Chunks chunks = new Chunks(data, start, size);
+    Object values;
+    Object scratch = null;
+    while ((values = chunks.next()) != null) {
+      int n = chunks.length();
+      if (quantized) {
+	if (scratch == null)
+	  scratch = (bitpix == 16) ? (Object) new short[CHUNK_VALUES]
+	                           : (Object) new int[CHUNK_VALUES];
+	if (java.lang.reflect.Array.getLength(scratch) < n)
+	  scratch = (bitpix == 16) ? (Object) new short[n]
+	                           : (Object) new int[n];
+	quantize(values, n, scratch, bscale, bzero, (int) blank);
+	values = scratch;
+      }
+      else if (type == JavaType.BYTE) {
+	values = toUnsigned((byte[]) values, n);
+      }
+      put(values, n, elemSize, buf, out);
+    }
+    flush(buf, out);
+    writePadding(total, out);
+  }
+
+  /**
+   * write the box as a tile-compressed image, after an empty primary
+   * array.  The tiles are written to the heap as they are compressed;
+   * the table's header and descriptors are written once the size of 
+   * the heap is known.
+   */
+  private void writeCompressed(NdArrayData data, int[] start, int[] size,
+			       Vector mdcards, RandomAccessFile out)
+    throws IOException
+  {
+    final JavaType type = data.getType();
+    final int bitpix = bitpixFor(type);
+    final boolean quantized = isQuantized(type);
+    final boolean rice = compression.equals(RICE_1) &&
+      (quantized || (bitpix > 0 && bitpix < 64));
+    final String cmptype = (compression.equals(RICE_1) && ! rice) ?
+      GZIP_2 : compression;
+
+    // tile the box
+    final int naxes = size.length;
+    final int[] tsize = new int[naxes];
+    int[] ntiles = new int[naxes];
+    int count = 1;
+    for(int i=0; i < naxes; i++) {
+      if (tileSize != null && i < tileSize.length && tileSize[i] > 0)
+	tsize[i] = Math.min(tileSize[i], size[i]);
+      else if (i == 0)
+	tsize[i] = size[0];
+      else if (i == 1 && tileSize == null)
+	tsize[i] = Math.max(1, Math.min(size[1], CHUNK_VALUES / size[0]));
+      else
+	tsize[i] = 1;
+      ntiles[i] = (size[i] + tsize[i] - 1) / tsize[i];
+      count *= ntiles[i];
+    }
+    final int ntile = count;
+
+    // the primary array is empty
+    Vector cards = new Vector();
+    cards.addElement(card("SIMPLE", Boolean.TRUE));
+    cards.addElement(card("BITPIX", new Integer(8)));
+    cards.addElement(card("NAXIS", new Integer(0)));
+    cards.addElement(card("EXTEND", Boolean.TRUE));
+    writeHeader(cards, new Vector(), out);
+
+    // reserve room for the table's header and its rows, which hold a 
+    // descriptor (and the scaling) for each tile
+    boolean wide = NdArrayMath.size(size) * Math.abs(bitpix)/8 > WIDE_HEAP;
+    int rowlen = (wide ? 16 : 8) + (quantized ? 16 : 0);
+    long hdrpos = out.getFilePointer();
+    cards = tableCards(ntile, rowlen, wide, 0, 0, cmptype, bitpix, size, 
+		       tsize, rice, quantized);
+    writeHeader(cards, mdcards, out);
+    long tablepos = out.getFilePointer();
+    long heappos = tablepos + rowlen * (long) ntile;
+    out.setLength(heappos);
+    out.seek(heappos);
+
+    // compress the tiles in parallel
+    final double[] zscale = quantized ? new double[ntile] : null;
+    final double[] zzero = quantized ? new double[ntile] : null;
+    final HeapWriter heap = 
+      new HeapWriter(out, ntile, 4 * WorkerPool.getParallelism());
+    final NdArrayData fdata = data;
+    final int[] fstart = start, fsize = size, fntiles = ntiles;
+    final AtomicInteger next = new AtomicInteger(0);
+    Callable compressor = new Callable() {
+      public Object call() throws IOException {
+	boolean ok = false;
+	try {
+	  int t;
+	  while ((t = next.getAndIncrement()) < ntile) {
+	    if (! heap.await(t)) break;
+	    int[] tstart = new int[naxes];
+	    int[] tsz = new int[naxes];
+	    int k = t;
+	    for(int i=0; i < naxes; i++) {
+	      int p = k % fntiles[i];
+	      k /= fntiles[i];
+	      tstart[i] = fstart[i] + p*tsize[i];
+	      tsz[i] = Math.min(tsize[i], fstart[i] + fsize[i] - tstart[i]);
+	    }
+	    Object values = readBox(fdata, tstart, tsz);
+	    heap.put(t, compressTile(values, type, cmptype, rice, quantized,
+				     zscale, zzero, t));
+	  }
+	  ok = true;
+	} finally {
+	  if (! ok) heap.fail();
+	}
+	return null;
+      }
+    };
+    runInParallel(compressor, ntile);
+    if (! wide && heap.size > Integer.MAX_VALUE)
+      throw new IOException("compressed heap too large for 32-bit " +
+			    "descriptors: " + heap.size + " bytes");
+    writePadding(rowlen * (long) ntile + heap.size, out);
+
+    // now fill in the header and the descriptors
+    out.seek(hdrpos);
+    cards = tableCards(ntile, rowlen, wide, heap.size, heap.maxlen, cmptype, 
+		       bitpix, size, tsize, rice, quantized);
+    writeHeader(cards, mdcards, out);
+    if (out.getFilePointer() != tablepos) 
+      throw new InternalError("table header changed length");
+
+    ByteBuffer buf = ByteBuffer.allocate(CHUNK_VALUES * 8);
+    for(int t=0; t < ntile; t++) {
+      if (wide) {
+	buf.putLong(heap.length[t]);
+	buf.putLong(heap.offset[t]);
+      }
+      else {
+	buf.putInt((int) heap.length[t]);
+	buf.putInt((int) heap.offset[t]);
+      }
+      if (quantized) {
+	buf.putDouble(zscale[t]);
+	buf.putDouble(zzero[t]);
+      }
+      if (buf.remaining() < rowlen) flush(buf, out);
+    }
+    flush(buf, out);
+  }
+
+  /**
+   * build the header cards of a tile-compressed image's table
+   */
+  private Vector tableCards(int ntile, int rowlen, boolean wide, long heap,
+			    int maxlen, String cmptype, int bitpix, 
+			    int[] size, int[] tsize, boolean rice, 
+			    boolean quantized)
+  {
+    int naxes = size.length;
+    Vector cards = new Vector();
+    cards.addElement(card("XTENSION", "BINTABLE"));
+    cards.addElement(card("BITPIX", new Integer(8)));
+    cards.addElement(card("NAXIS", new Integer(2)));
+    cards.addElement(card("NAXIS1", new Integer(rowlen)));
+    cards.addElement(card("NAXIS2", new Integer(ntile)));
+    cards.addElement(card("PCOUNT", new Long(heap)));
+    cards.addElement(card("GCOUNT", new Integer(1)));
+    cards.addElement(card("TFIELDS", new Integer(quantized ? 3 : 1)));
+    cards.addElement(card("TTYPE1", "COMPRESSED_DATA"));
+    cards.addElement(card("TFORM1", (wide ? "1QB(" : "1PB(") + maxlen + ")"));
+    if (quantized) {
+      cards.addElement(card("TTYPE2", "ZSCALE"));
+      cards.addElement(card("TFORM2", "1D"));
+      cards.addElement(card("TTYPE3", "ZZERO"));
+      cards.addElement(card("TFORM3", "1D"));
+    }
+    cards.addElement(card("ZIMAGE", Boolean.TRUE));
+    cards.addElement(card("ZCMPTYPE", cmptype));
+    cards.addElement(card("ZBITPIX", new Integer(bitpix)));
+    cards.addElement(card("ZNAXIS", new Integer(naxes)));
+    for(int i=0; i < naxes; i++)
+      cards.addElement(card("ZNAXIS" + (i+1), new Integer(size[i])));
+    for(int i=0; i < naxes; i++)
+      cards.addElement(card("ZTILE" + (i+1), new Integer(tsize[i])));
+    if (rice) {
+      cards.addElement(card("ZNAME1", "BLOCKSIZE"));
+      cards.addElement(card("ZVAL1", new Integer(blockSize)));
+      cards.addElement(card("ZNAME2", "BYTEPIX"));
+      cards.addElement(card("ZVAL2",
+			    new Integer(quantized ? 4 : bitpix/8)));
+    }
+    if (quantized) {
+      cards.addElement(card("ZQUANTIZ", "NO_DITHER"));
+      cards.addElement(card("ZBLANK",
+			    new Integer(CompressedImage.NULL_VALUE)));
+    }
+    if (bitpix == 8) 
+      cards.addElement(card("BZERO", new Integer(BYTE_ZERO)));
+    return cards;
+  }
+
+  /**
+   * writes compressed tiles to the heap in tile order as they become 
+   * available, recording where each one went.  A tile finished ahead 
+   * of its turn waits in memory, and a compressor that gets too far 
+   * ahead of the writing waits before starting another tile.
+   */
+  private static class HeapWriter {
+    RandomAccessFile out;
+    long[] length, offset;
+    long size = 0;
+    int maxlen = 0;
+    int window;
+    int next = 0;
+    boolean failed = false;
+    HashMap pending = new HashMap();
+
+    HeapWriter(RandomAccessFile out, int ntile, int window) {
+      this.out = out;
+      this.window = window;
+      length = new long[ntile];
+      offset = new long[ntile];
+    }
+
+    /**
+     * wait until tile t may be compressed
+     * @return false if another compressor has failed
+     */
+    synchronized boolean await(int t) throws InterruptedIOException {
+      try {
+	while (! failed && t >= next + window) wait();
+      } catch (InterruptedException ex) {
+	throw new InterruptedIOException("tile compression interrupted");
+      }
+      return ! failed;
+    }
+
+    /**
+     * hand over a compressed tile, writing it and any tiles waiting 
+     * for it
+     */
+    synchronized void put(int t, byte[] tile) throws IOException {
+      pending.put(new Integer(t), tile);
+      byte[] b;
+      while ((b = (byte[]) pending.remove(new Integer(next))) != null) {
+	out.write(b);
+	offset[next] = size;
+	length[next] = b.length;
+	size += b.length;
+	maxlen = Math.max(maxlen, b.length);
+	next++;
+      }
+      notifyAll();
+    }
+
+    /**
+     * release the compressors waiting for a tile that will not come
+     */
+    synchronized void fail() {
+      failed = true;
+      pending.clear();
+      notifyAll();
+    }
+  }
+
+  /**
+   * compress the values of a tile
+   */
+  private byte[] compressTile(Object values, JavaType type, String cmptype,
+			      boolean rice, boolean quantized,
+			      double[] zscale, double[] zzero, int tile)
+    throws IOException
+  {
+    int n = java.lang.reflect.Array.getLength(values);
+    int bytePix;
+    int[] ivals = null;
+    if (quantized) {
+      // scale each tile to its own range
+      double[] range = new double[] { Double.MAX_VALUE, -Double.MAX_VALUE };
+      range(values, n, range);
+      if (range[0] > range[1]) range[0] = range[1] = 0.0;
+      double levels = (quantize == 16) ? 32767.0 : 2147483645.0;
+      zzero[tile] = (range[0] + range[1]) / 2;
+      zscale[tile] = (range[1] > range[0]) ?
+	(range[1] - range[0]) / (2*levels) : 1.0;
+      ivals = new int[n];
+      quantize(values, n, ivals, zscale[tile], zzero[tile],
+	       CompressedImage.NULL_VALUE);
+      bytePix = 4;
+    }
+    else {
+      bytePix = bitpixFor(type) / 8;
+      if (type == JavaType.BYTE) values = toUnsigned((byte[]) values, n);
+      if (rice) ivals = toInts(values, n);
+    }
+    if (bytePix < 0) bytePix = -bytePix;
+
+    if (rice)
+      return TileCompression.riceEncode(ivals, n, blockSize, bytePix);
+
+    ByteBuffer buf = ByteBuffer.allocate(n*bytePix);
+    putValues((ivals != null) ? (Object) ivals : values, 0, n, buf);
+    byte[] b = buf.array();
+    if (cmptype.equals(GZIP_2)) b = TileCompression.shuffle(b, bytePix);
+    return TileCompression.deflate(b, 0, b.length);
+  }
+
+  /**
+   * run a task in parallel on the WorkerPool, the calling thread
+   * running one copy itself
+   */
+  private static void runInParallel(Callable task, int count)
+    throws IOException
+  {
+    int nthreads = Math.min(WorkerPool.getParallelism(), count);
+    ExecutorService exec = WorkerPool.getExecutor();
+    ArrayList futures = new ArrayList();
+    for(int i=1; i < nthreads; i++) futures.add(exec.submit(task));
+
+    IOException failure = null;
+    try {
+      task.call();
+    } catch (IOException ex) {
+      failure = ex;
+    } catch (RuntimeException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      failure = new IOException(ex.toString());
+    }
+    for(int i=0; i < futures.size(); i++) {
+      Future f = (Future) futures.get(i);
+
+      // a helper that never got started has nothing left to do
+      if (f.cancel(false)) continue;
+      try {
+	f.get();
+      } catch (InterruptedException ex) {
+	throw new InterruptedIOException("tile compression interrupted");
+      } catch (ExecutionException ex) {
+	Throwable cause = ex.getCause();
+	if (cause instanceof RuntimeException)
+	  throw (RuntimeException) cause;
+	if (cause instanceof Error) throw (Error) cause;
+	if (cause instanceof IOException && failure == null)
+	  failure = (IOException) cause;
+      }
+    }
+    if (failure != null) throw failure;
+  }
+
+  /**
+   * return true if values of a type will be quantized
+   */
+  private boolean isQuantized(JavaType type) {
+    return quantize != 0 &&
+      (type == JavaType.FLOAT || type == JavaType.DOUBLE);
+  }
+
+  /**
+   * return the BITPIX that stores values of a type
+   */
+  public static int bitpixFor(JavaType type) {
+    if (type == JavaType.BYTE)   return 8;
+    if (type == JavaType.SHORT)  return 16;
+    if (type == JavaType.INT)    return 32;
+    if (type == JavaType.LONG)   return 64;
+    if (type == JavaType.FLOAT)  return -32;
+    if (type == JavaType.DOUBLE) return -64;
+    throw new IllegalArgumentException("no BITPIX for type " + type);
+  }
+
+  /**
+   * reads a box of an NdArrayData in chunks of whole rows along the
+   * first axis, in the order they are stored in a FITS file.  When the
+   * rows span the data, several are read at once.
+   */
+  private static class Chunks {
+    NdArrayData data;
+    int[] start, size, pos, csize;
+    int rows;
+    boolean first = true;
+
+    Chunks(NdArrayData data, int[] start, int[] size) {
+      this.data = data;
+      this.start = start;
+      this.size = size;
+      pos = (int[]) start.clone();
+      csize = new int[size.length];
+      Arrays.fill(csize, 1);
+      csize[0] = size[0];
+      rows = 1;
+      if (size.length > 1 && size[0] == data.getSize()[0])
+	rows = Math.max(1, Math.min(size[1], CHUNK_VALUES / size[0]));
+    }
+
+    /**
+     * return the values of the next chunk, or null if there are no
+     * more
+     */
+    Object next() throws IOException {
+      if (! first && ! advance()) return null;
+      first = false;
+      if (csize.length > 1)
+	csize[1] = Math.min(rows, start[1] + size[1] - pos[1]);
+      Object out = data.getValue(pos, csize);
+      if (out == null)
+	throw new IOException("unable to read the data");
+      return out;
+    }
+
+    /**
+     * return the number of values in the last chunk
+     */
+    int length() {
+      return (csize.length > 1) ? csize[0]*csize[1] : csize[0];
+    }
+
+    private boolean advance() {
+      if (pos.length < 2) return false;
+      pos[1] += csize[1];
+      if (pos[1] < start[1] + size[1]) return true;
+      pos[1] = start[1];
+      for(int i=2; i < pos.length; i++) {
+	if (++pos[i] < start[i] + size[i]) return true;
+	pos[i] = start[i];
+      }
+      return false;
+    }
+  }
+
+  /**
+   * read a box of an NdArrayData into a single array
+   */
+  private static Object readBox(NdArrayData data, int[] start, int[] size)
+    throws IOException
+  {
+    int n = (int) NdArrayMath.size(size);
+    Object out = null;
+    int at = 0;
+    Chunks chunks = new Chunks(data, start, size);
+    Object values;
+    while ((values = chunks.next()) != null) {
+      int len = chunks.length();
+      if (at == 0 && len == n) return values;
+      if (out == null) out = data.getType().allocateArray(n);
+      System.arraycopy(values, 0, out, at, len);
+      at += len;
+    }
+    return out;
+  }
+
+  /**
+   * find the range of the finite values in a box
+   * @return the minimum and maximum, both 0 if there are no finite
+   *         values
+   */
+  private static double[] range(NdArrayData data, int[] start, int[] size)
+    throws IOException
+  {
+    double[] range = new double[] { Double.MAX_VALUE, -Double.MAX_VALUE };
+    Chunks chunks = new Chunks(data, start, size);
+    Object values;
+    while ((values = chunks.next()) != null)
+      range(values, chunks.length(), range);
+    if (range[0] > range[1]) range[0] = range[1] = 0.0;
+    return range;
+  }
+
+  /**
+   * widen range to include the finite values in a float or double
+   * array
+   */
+  private static void range(Object values, int n, double[] range) {
+    double min = range[0], max = range[1];
+    if (values instanceof float[]) {
+      float[] a = (float[]) values;
+      for(int i=0; i < n; i++) {
+	float v = a[i];
+	if (v != v || Float.isInfinite(v)) continue;
+	if (v < min) min = v;
+	if (v > max) max = v;
+      }
+    }
+    else {
+      double[] a = (double[]) values;
+      for(int i=0; i < n; i++) {
+	double v = a[i];
+	if (v != v || Double.isInfinite(v)) continue;
+	if (v < min) min = v;
+	if (v > max) max = v;
+      }
+    }
+    range[0] = min;
+    range[1] = max;
+  }
+
+  /**
+   * quantize float or double values into a short or int array, NaNs
+   * becoming blank
+   */
+  private static void quantize(Object values, int n, Object out,
+			       double scale, double zero, int blank)
+  {
+    double lo = (out instanceof short[]) ? -32767.0 : -2147483646.0;
+    double hi = -lo;
+    double[] d = null;
+    float[] f = null;
+    if (values instanceof float[]) f = (float[]) values;
+    else d = (double[]) values;
+    short[] s = (out instanceof short[]) ? (short[]) out : null;
+    int[] iv = (s == null) ? (int[]) out : null;
+
+    for(int i=0; i < n; i++) {
+      double v = (f != null) ? f[i] : d[i];
+      int q;
+      if (v != v) {
+	q = blank;
+      } else {
+	v = Math.floor((v - zero) / scale + 0.5);
+	q = (int) ((v < lo) ? lo : (v > hi) ? hi : v);
+      }
+      if (s != null) s[i] = (short) q;
+      else iv[i] = q;
+    }
+  }
+
+  /**
+   * return n signed bytes as stored with BZERO = -128, in a new array
+   */
+  private static byte[] toUnsigned(byte[] values, int n) {
+    byte[] out = new byte[n];
+    for(int i=0; i < n; i++) out[i] = (byte) (values[i] ^ 0x80);
+    return out;
+  }
+
+  /**
+   * widen byte, short or int values to ints; bytes are unsigned
+   */
+  private static int[] toInts(Object values, int n) {
+    if (values instanceof int[]) return (int[]) values;
+    int[] out = new int[n];
+    if (values instanceof short[]) {
+      short[] a = (short[]) values;
+      for(int i=0; i < n; i++) out[i] = a[i];
+    }
+    else {
+      byte[] a = (byte[]) values;
+      for(int i=0; i < n; i++) out[i] = a[i] & 0xff;
+    }
+    return out;
+  }
+
+  /**
+   * put n values into the buffer, writing it out whenever it fills
+   */
+  private static void put(Object values, int n, int elemSize,
+			  ByteBuffer buf, DataOutput out)
+    throws IOException
+  {
+    int done = 0;
+    while (done < n) {
+      int k = Math.min(n - done, buf.remaining() / elemSize);
+      if (k == 0) {
+	flush(buf, out);
+	continue;
+      }
+      putValues(values, done, k, buf);
+      done += k;
+    }
+  }
+
+  /**
+   * put values from an array into a buffer with a bulk put
+   */
+  private static void putValues(Object values, int off, int n,
+				ByteBuffer buf)
+  {
+    int pos = buf.position();
+    if (values instanceof byte[]) {
+      buf.put((byte[]) values, off, n);
+      return;
+    }
+    if (values instanceof short[]) {
+      buf.asShortBuffer().put((short[]) values, off, n);
+      buf.position(pos + 2*n);
+    }
+    else if (values instanceof int[]) {
+      buf.asIntBuffer().put((int[]) values, off, n);
+      buf.position(pos + 4*n);
+    }
+    else if (values instanceof long[]) {
+      buf.asLongBuffer().put((long[]) values, off, n);
+      buf.position(pos + 8*n);
+    }
+    else if (values instanceof float[]) {
+      buf.asFloatBuffer().put((float[]) values, off, n);
+      buf.position(pos + 4*n);
+    }
+    else {
+      buf.asDoubleBuffer().put((double[]) values, off, n);
+      buf.position(pos + 8*n);
+    }
+  }
+
+  private static void flush(ByteBuffer buf, DataOutput out)
+    throws IOException
+  {
+    out.write(buf.array(), 0, buf.position());
+    buf.clear();
+  }
+
+  /**
+   * pad a data segment of a given length to a whole number of blocks
+   */
+  private static void writePadding(long length, DataOutput out)
+    throws IOException
+  {
+    int pad = (int) ((BLOCK - length % BLOCK) % BLOCK);
+    if (pad > 0) out.write(new byte[pad]);
+  }
+
+  /**
+   * write a header made of the given cards followed by the metadata
+   * cards
+   */
+  private static void writeHeader(Vector cards, Vector mdcards,
+				  DataOutput out)
+    throws IOException
+  {
+    String[] all = new String[cards.size() + mdcards.size() + 1];
+    int n = 0;
+    for(int i=0; i < cards.size(); i++)
+      all[n++] = (String) cards.elementAt(i);
+    for(int i=0; i < mdcards.size(); i++)
+      all[n++] = (String) mdcards.elementAt(i);
+    all[n] = card("END", null);
+    new Header(all).writeClass(out);
+  }
+
+  /**
+   * build the header cards that carry a data set's metadata
+   * @param md      the metadata, or null
+   * @param offset  the position of the first value written relative
+   *                to the origin of the data, for shifting CRPIXn
+   */
+  protected Vector metadataCards(Metadata md, int[] offset) {
+    Vector out = new Vector();
+    if (md == null) return out;
+
+    Metadata fmd = null;
+    if ("FITS".equals(md.getMetadatum(Metadata.schema))) {
+      fmd = md;
+    } else {
+      try {
+	fmd = (Metadata) md.getMetadatum("NativeMetadata");
+      } catch (ClassCastException ex) { fmd = null; }
+    }
+
+    if (fmd != null) {
+      // sort the keywords so that the header is the same every time
+      Vector keys = new Vector();
+      for(Enumeration e = fmd.metadatumNames(); e.hasMoreElements(); ) {
+	Object key = e.nextElement();
+	if (key instanceof String && isUserKey((String) key))
+	  keys.addElement(key);
+      }
+      String[] sorted = new String[keys.size()];
+      keys.copyInto(sorted);
+      Arrays.sort(sorted);
+
+      for(int i=0; i < sorted.length; i++) {
+	Object val = fmd.getMetadatum(sorted[i]);
+	int axis = axisOf(sorted[i], "CRPIX");
+	if (axis > 0 && axis <= offset.length && val instanceof Number)
+	  val = new Double(((Number) val).doubleValue() - offset[axis-1]);
+	String c = card(sorted[i], val);
+	if (c != null) out.addElement(c);
+      }
+
+      Object his = fmd.getMetadatum("HISTORY");
+      if (his != null) commentary(his.toString(), out);
+      his = fmd.getMetadatum("historyBuffer");
+      if (his != null) commentary(his.toString(), out);
+      return out;
+    }
+
+    // no native metadata: describe the axes of the coordinate system
+    Metadata cs = null;
+    try {
+      cs = (Metadata) md.getMetadatum("CoordinateSystem");
+    } catch (ClassCastException ex) { cs = null; }
+    if (cs != null) {
+      for(int i=0; i < offset.length; i++) {
+	String ax = "Axes[" + i + "].";
+	Object v = cs.getMetadatum(ax + "label");
+	if (v instanceof String)
+	  out.addElement(card("CTYPE" + (i+1), v));
+	v = cs.getMetadatum(ax + "refvalue");
+	if (v instanceof Number)
+	  out.addElement(card("CRVAL" + (i+1), v));
+	v = cs.getMetadatum(ax + "refposition");
+	if (v instanceof Number)
+	  out.addElement(card("CRPIX" + (i+1),
+	       new Double(((Number) v).doubleValue() - offset[i])));
+	v = cs.getMetadatum(ax + "stepsize");
+	if (v instanceof Number)
+	  out.addElement(card("CDELT" + (i+1), v));
+      }
+    }
+    Object unit = md.getMetadatum("measurementUnit");
+    if (unit instanceof String) out.addElement(card("BUNIT", unit));
+    return out;
+  }
+
+  /**
+   * return true if a metadatum is a FITS keyword that should be copied
+   * into the header
+   */
+  private static boolean isUserKey(String key) {
+    if (key.length() == 0 || key.length() > 8) return false;
+    for(int i=0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (! (c >= 'A' && c <= 'Z') && ! (c >= '0' && c <= '9') &&
+	  c != '_' && c != '-')
+	return false;
+    }
+    for(int i=0; i < arrayKeys.length; i++)
+      if (key.equals(arrayKeys[i])) return false;
+    return axisOf(key, "NAXIS") < 0;
+  }
+
+  /**
+   * return the axis number of an indexed keyword (e.g. 2 for CRPIX2),
+   * or -1 if the keyword does not have the given root
+   */
+  private static int axisOf(String key, String root) {
+    if (! key.startsWith(root) || key.length() == root.length())
+      return -1;
+    try {
+      return Integer.parseInt(key.substring(root.length()));
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * add HISTORY (or COMMENT) cards for each line of text
+   */
+  private static void commentary(String text, Vector out) {
+    StringTokenizer st = new StringTokenizer(text, "\n");
+    while (st.hasMoreTokens()) {
+      String line = st.nextToken().trim();
+      if (line.length() == 0) continue;
+      if (! line.startsWith("COMMENT ")) line = "HISTORY " + line;
+      out.addElement(pad(line));
+    }
+  }
+
+  /**
+   * format a header card.  Strings are quoted, and numbers and logical
+   * values right-justified in the fixed format.
+   * @return the card, or null if the value cannot be written
+   */
+  public static String card(String key, Object value) {
+    StringBuffer sb = new StringBuffer(key);
+    while (sb.length() < 8) sb.append(' ');
+    if (value == null) return pad(sb.toString());
+
+    String v;
+    if (value instanceof String) {
+      StringBuffer q = new StringBuffer("'");
+      String s = (String) value;
+      for(int i=0; i < s.length() && q.length() < 68; i++) {
+	char c = s.charAt(i);
+	q.append((c < ' ' || c > '~') ? ' ' : c);
+	if (c == '\'') q.append('\'');
+      }
+      while (q.length() < 9) q.append(' ');
+      q.append('\'');
+      sb.append("= ").append(q);
+      return pad(sb.toString());
+    }
+    else if (value instanceof Boolean) {
+      v = ((Boolean) value).booleanValue() ? "T" : "F";
+    }
+    else if (value instanceof Double || value instanceof Float) {
+      double d = ((Number) value).doubleValue();
+      if (d != d || Double.isInfinite(d)) return null;
+      v = Double.toString(d);
+    }
+    else if (value instanceof Number) {
+      v = value.toString();
+    }
+    else {
+      return null;
+    }
+    sb.append("= ");
+    for(int i=v.length(); i < 20; i++) sb.append(' ');
+    sb.append(v);
+    return pad(sb.toString());
+  }
+
+  private static String pad(String card) {
+    if (card.length() >= 80) return card.substring(0, 80);
+    StringBuffer sb = new StringBuffer(card);
+    while (sb.length() < 80) sb.append(' ');
+    return sb.toString();
+  }
+}
@@ -0,0 +1,233 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.data;
+
+/**
+ * a histogram of values with a fixed number of equal-width bins.  
+ * Values that fall below or above the range of the bins are counted as
+ * underflow or overflow, unless the histogram has been made growable,
+ * in which case the range is doubled (pairs of bins are combined) as 
+ * often as needed to include them.  A growable histogram can thus be 
+ * built up from data whose range is not known in advance, such as a 
+ * volume that is loaded a piece at a time. <p>
+ *
+ * Histograms built from separate parts of a data set can be combined 
+ * with merge().
+ */
+public class Histogram {
+
+  protected long[] counts;
+  protected double lo, width;
+  protected long underflow = 0, overflow = 0;
+  protected boolean growable = false;
+
+  /**
+   * create an empty histogram
+   * @param nbins  the number of bins; for a growable histogram, this is
+   *               rounded up to an even number.
+   * @param lo     the lower edge of the first bin
+   * @param hi     the upper edge of the last bin; if this is not greater
+   *               than lo, a bin width of one is used.
+   */
+  public Histogram(int nbins, double lo, double hi) {
+    if (nbins < 1) 
+      throw new IllegalArgumentException("bad number of bins: " + nbins);
+    counts = new long[nbins];
+    this.lo = lo;
+    width = (hi > lo) ? (hi - lo) / nbins : 1.0;
+  }
+
+  /**
+   * set whether the range of the histogram should grow to include 
+   * values outside of it
+   */
+  public void setGrowable(boolean yes) { 
+    if (yes && counts.length % 2 == 1) {
+      long[] tmp = new long[counts.length+1];
+      System.arraycopy(counts, 0, tmp, 0, counts.length);
+      counts = tmp;
+    }
+    growable = yes; 
+  }
+
+  /**
+   * return true if the range grows to include values outside of it
+   */
+  public boolean isGrowable() { return growable; }
+
+  /**
+   * return the number of bins
+   */
+  public int getBinCount() { return counts.length; }
+
+  /**
+   * return the lower edge of the first bin
+   */
+  public double getLowerBound() { return lo; }
+
+  /**
+   * return the upper edge of the last bin
+   */
+  public double getUpperBound() { return lo + width*counts.length; }
+
+  /**
+   * return the width of each bin
+   */
+  public double getBinWidth() { return width; }
+
+  /**
+   * return the number of values in a bin
+   */
+  public long getCount(int bin) { return counts[bin]; }
+
+  /**
+   * return a copy of the bin counts
+   */
+  public long[] getCounts() { return (long[]) counts.clone(); }
+
+  /**
+   * return the number of values below the lower bound
+   */
+  public long getUnderflow() { return underflow; }
+
+  /**
+   * return the number of values at or above the upper bound
+   */
+  public long getOverflow() { return overflow; }
+
+  /**
+   * return the total number of values added, including underflow 
+   * and overflow
+   */
+  public long getTotal() {
+    long n = underflow + overflow;
+    for(int i=0; i < counts.length; i++) n += counts[i];
+    return n;
+  }
+
+  /**
+   * add a value.  NaNs and infinities are ignored.
+   */
+  public void add(double v) {
+    if (v - v != 0.0) return;
+    int bin = (int) Math.floor((v - lo) / width);
+    if (bin < 0 || bin >= counts.length) {
+      if (! growable) {
+	if (bin < 0) underflow++; else overflow++;
+	return;
+      }
+      grow(v);
+      bin = (int) Math.floor((v - lo) / width);
+      if (bin >= counts.length) bin = counts.length-1;
+      if (bin < 0) bin = 0;
+    }
+    counts[bin]++;
+  }
+
+  /**
+   * add the first n values of an array.  NaNs and infinities are ignored.
+   */
+  public void add(double[] values, int n) {
+    int nbins = counts.length, bin;
+    double scale = 1.0 / width, v;
+    for(int i=0; i < n; i++) {
+      v = values[i];
+      bin = (int) ((v - lo) * scale);
+      if (v - lo >= 0.0 && bin < nbins) 
+	counts[bin]++;
+      else 
+	add(v);
+    }
+  }
+
+  /**
+   * double the range of the histogram (combining pairs of bins) until 
+   * it includes v
+   */
+  protected void grow(double v) {
+    int nbins = counts.length, half = nbins/2;
+    while (v < lo || v >= lo + width*nbins) {
+      long[] tmp = new long[nbins];
+      if (v < lo) {
+	// existing bins move to the upper half
+	for(int i=0; i < nbins; i++) tmp[half + i/2] += counts[i];
+	lo -= width*nbins;
+      }
+      else {
+	for(int i=0; i < nbins; i++) tmp[i/2] += counts[i];
+      }
+      width *= 2;
+      counts = tmp;
+    }
+  }
+
+  /**
+   * add the counts from another histogram to this one.  If the bins of 
+   * the two histograms are not aligned, each of the other histogram's 
+   * bins is added to the bin containing its center.
+   */
+  public void merge(Histogram that) {
+    underflow += that.underflow;
+    overflow += that.overflow;
+    if (growable && that.getTotal() > that.underflow + that.overflow) {
+      grow(that.lo + that.width/2);
+      grow(that.getUpperBound() - that.width/2);
+    }
+    int bin;
+    double center;
+    for(int i=0; i < that.counts.length; i++) {
+      if (that.counts[i] == 0) continue;
+      center = that.lo + (i + 0.5)*that.width;
+      bin = (int) Math.floor((center - lo) / width);
+      if (bin < 0) 
+	underflow += that.counts[i];
+      else if (bin >= counts.length) 
+	overflow += that.counts[i];
+      else
+	counts[bin] += that.counts[i];
+    }
+  }
+
+  /**
+   * return an estimate of the value below which a given fraction of the
+   * values fall, interpolating within the bin that contains it.  NaN 
+   * is returned if the value falls within the underflow or overflow.
+   * @param q  the fraction, between 0 and 1
+   */
+  public double getQuantile(double q) {
+    long total = getTotal();
+    if (total == 0) return Double.NaN;
+    double rank = q * total;
+    if (rank < underflow || rank > total - overflow) return Double.NaN;
+
+    double below = underflow;
+    for(int i=0; i < counts.length; i++) {
+      if (below + counts[i] >= rank) {
+	double frac = (counts[i] == 0) ? 0.0 : (rank - below) / counts[i];
+	return lo + (i + frac) * width;
+      }
+      below += counts[i];
+    }
+    return getUpperBound();
+  }
+}
@@ -0,0 +1,335 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.data;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import ncsa.horizon.util.*;
+
+/**
+ * a set of successively reduced versions of a 2-dimensional plane of an 
+ * NdArrayData, for displaying the plane at less than full resolution.
+ * Level 0 is the plane itself (which is not copied); each pixel of 
+ * level n combines a 2^n by 2^n block of pixels of the plane, by taking
+ * their mean, maximum, or minimum (ignoring NaNs).  A view of the plane
+ * sampled every s pixels can then be drawn from level levelFor(s), so 
+ * that the work done is proportional to the number of pixels displayed
+ * rather than to the size of the plane. <p>
+ *
+ * Levels are built on demand, from the closest lower level already built
+ * (or from the data), with the work split across the WorkerPool 
+ * threads.  getPyramid() keeps the pyramids of the most recently used 
+ * planes of each data object; they are discarded when the data notifies
+ * its observers of a change.
+ */
+public class ImagePyramid {
+
+  /** each reduced pixel is the mean of the pixels it covers */
+  public final static int MEAN = 0;
+
+  /** each reduced pixel is the maximum of the pixels it covers */
+  public final static int MAXIMUM = 1;
+
+  /** each reduced pixel is the minimum of the pixels it covers */
+  public final static int MINIMUM = 2;
+
+  /**
+   * the number of pyramids getPyramid() keeps for each data object
+   */
+  protected final static int CACHE_SIZE = 4;
+
+  /**
+   * the maximum number of values read from the source at once by each
+   * thread
+   */
+  protected final static int BLOCK_SIZE = 1 << 16;
+
+  // NdArrayData -> LinkedHashMap (plane key -> ImagePyramid)
+  private static WeakHashMap cache = new WeakHashMap();
+
+  private static Observer invalidator = new Observer() {
+    public void update(Observable o, Object arg) {
+      synchronized (cache) {
+	cache.remove(o);
+      }
+      o.deleteObserver(this);
+    }
+  };
+
+  protected NdArrayData data;
+  protected int[] start;
+  protected int xaxis, yaxis, width, height, method;
+  protected float[][] levels;
+
+  /**
+   * create a pyramid for a plane of a data object
+   * @param data    the data
+   * @param start   the position of the first value of the plane, in the 
+   *                data's coordinates
+   * @param xaxis   the index of the plane's horizontal axis
+   * @param yaxis   the index of the plane's vertical axis
+   * @param width   the length of the plane along xaxis
+   * @param height  the length of the plane along yaxis
+   * @param method  how pixels are combined: MEAN, MAXIMUM, or MINIMUM
+   */
+  public ImagePyramid(NdArrayData data, int[] start, int xaxis, int yaxis,
+		      int width, int height, int method) 
+  {
+    if (method < MEAN || method > MINIMUM) 
+      throw new IllegalArgumentException("Unknown reduction method: " + 
+					 method);
+    if (width <= 0 || height <= 0) 
+      throw new IllegalArgumentException("Empty plane");
+    this.data = data;
+    this.start = (int[]) start.clone();
+    this.xaxis = xaxis;
+    this.yaxis = yaxis;
+    this.width = width;
+    this.height = height;
+    this.method = method;
+
+    int n = 1;
+    while ((width-1 >> n-1) > 0 || (height-1 >> n-1) > 0) n++;
+    levels = new float[n][];
+  }
+
+  /**
+   * return the (cached) pyramid for the plane of a data object 
+   * containing a slice.  The pyramid covers the whole extent of the 
+   * data along the slice's axes.
+   * @param method  how pixels are combined: MEAN, MAXIMUM, or MINIMUM
+   */
+  public static ImagePyramid getPyramid(NdArrayData data, Slice slice, 
+					int method) 
+  {
+    int xaxis = slice.getXaxis(), yaxis = slice.getYaxis();
+    Volume dv = data.getVolume();
+    int[] start = ArrayTypeConverter.arrayDoubleToInt(slice.getLocation());
+    int[] dstart = ArrayTypeConverter.arrayDoubleToInt(dv.getLocation());
+    start[xaxis] = dstart[xaxis];
+    start[yaxis] = dstart[yaxis];
+
+    StringBuffer sb = new StringBuffer();
+    for(int i=0; i < start.length; i++) sb.append(start[i]).append(',');
+    sb.append(xaxis).append(',').append(yaxis).append(',').append(method);
+    String key = sb.toString();
+
+    synchronized (cache) {
+      Map planes = (Map) cache.get(data);
+      if (planes == null) {
+	planes = new LinkedHashMap(2*CACHE_SIZE, 0.75f, true) {
+	  protected boolean removeEldestEntry(Map.Entry eldest) {
+	    return size() > CACHE_SIZE;
+	  }
+	};
+	cache.put(data, planes);
+	data.addObserver(invalidator);
+      }
+      ImagePyramid out = (ImagePyramid) planes.get(key);
+      if (out == null) {
+	out = new ImagePyramid(data, start, xaxis, yaxis, 
+			       (int) dv.getLength(xaxis), 
+			       (int) dv.getLength(yaxis), method);
+	planes.put(key, out);
+      }
+      return out;
+    }
+  }
+
+  /**
+   * return the level from which a view sampled every sampling pixels 
+   * should be drawn; this is the largest n for which 2^n does not 
+   * exceed sampling.
+   */
+  public static int levelFor(double sampling) {
+    int n = 0;
+    while (sampling >= 2.0) {
+      sampling /= 2.0;
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * return the number of levels, including level 0; the last level 
+   * is a single pixel.
+   */
+  public int getLevelCount() { return levels.length; }
+
+  /**
+   * return the width of a level
+   */
+  public int getWidth(int level) { 
+    return (int) ((width + (1L << level) - 1) >> level);
+  }
+
+  /**
+   * return the height of a level
+   */
+  public int getHeight(int level) { 
+    return (int) ((height + (1L << level) - 1) >> level);
+  }
+
+  /**
+   * return the method used to combine pixels
+   */
+  public int getMethod() { return method; }
+
+  /**
+   * return the pixels of a level, building it if necessary.  The 
+   * pixels are stored a row at a time, with the first row at the start
+   * of the plane's y axis.  The returned array must not be modified.
+   * @param level  the level, between 1 and getLevelCount()-1
+   */
+  public synchronized float[] getLevel(int level) {
+    if (level < 1 || level >= levels.length) 
+      throw new IllegalArgumentException("No such level: " + level);
+    if (levels[level] == null) {
+      int from = level-1;
+      while (from > 0 && levels[from] == null) from--;
+      levels[level] = reduce(from, level);
+    }
+    return levels[level];
+  }
+
+  /**
+   * build one level from another
+   */
+  private float[] reduce(int from, int to) {
+    float[] out = new float[getWidth(to) * getHeight(to)];
+    AtomicInteger nextRow = new AtomicInteger(0);
+
+    int nthreads = Math.min(WorkerPool.getParallelism(), getHeight(to));
+    ArrayList futures = new ArrayList();
+    if (nthreads > 1) {
+      ExecutorService exec = WorkerPool.getExecutor();
+      for(int i=1; i < nthreads; i++) 
+	futures.add(exec.submit(new Reducer(from, to, out, nextRow)));
+    }
+    new Reducer(from, to, out, nextRow).run();
+
+    for(Iterator it = futures.iterator(); it.hasNext(); ) {
+      Future f = (Future) it.next();
+      if (f.cancel(false)) continue;
+      try {
+	WorkerPool.getUninterruptibly(f);
+      } catch (ExecutionException ex) {
+	Throwable cause = ex.getCause();
+	if (cause instanceof RuntimeException) 
+	  throw (RuntimeException) cause;
+	if (cause instanceof Error) throw (Error) cause;
+	throw new InternalError("pyramid construction failed: " + cause);
+      }
+    }
+    return out;
+  }
+
+  /**
+   * a task that builds rows of a level until there are none left
+   */
+  class Reducer implements Runnable {
+    int f, sw, sh, w, h;
+    float[] src, out;
+    AtomicInteger nextRow;
+
+    Reducer(int from, int to, float[] out, AtomicInteger nextRow) {
+      f = 1 << (to - from);
+      sw = getWidth(from);
+      sh = getHeight(from);
+      w = getWidth(to);
+      h = getHeight(to);
+      src = (from > 0) ? levels[from] : null;
+      this.out = out;
+      this.nextRow = nextRow;
+    }
+
+    public void run() {
+      double[] acc = new double[w];
+      int[] count = new int[w];
+
+      // read the source (if it is the data) a few rows at a time
+      int chunk = Math.max(1, Math.min(f, BLOCK_SIZE / sw));
+      float[] buf = (src == null) ? new float[chunk * sw] : null;
+      int[] bstart = (int[]) start.clone();
+      int[] bsize = new int[start.length];
+      for(int i=0; i < bsize.length; i++) bsize[i] = 1;
+      bsize[xaxis] = sw;
+
+      int r;
+      while ((r = nextRow.getAndIncrement()) < h) {
+	for(int i=0; i < w; i++) {
+	  count[i] = 0;
+	  acc[i] = (method == MEAN) ? 0.0 : Double.NaN;
+	}
+
+	int y0 = r*f, y1 = Math.min(sh, y0 + f);
+	for(int y=y0; y < y1; y += chunk) {
+	  int ny = Math.min(chunk, y1 - y);
+	  if (src == null) {
+	    bstart[yaxis] = start[yaxis] + y;
+	    bsize[yaxis] = ny;
+	    data.readInto(buf, bstart, bsize);
+	  }
+	  for(int j=0; j < ny; j++) {
+	    for(int x=0; x < sw; x++) {
+	      float v;
+	      if (src != null) 
+		v = src[(y+j)*sw + x];
+	      else if (xaxis < yaxis) 
+		v = buf[j*sw + x];
+	      else 
+		v = buf[x*ny + j];
+	      if (v != v) continue;      // NaN
+	      int i = x / f;
+	      if (method == MEAN) 
+		acc[i] += v;
+	      else if (count[i] == 0 || 
+		       ((method == MAXIMUM) ? v > acc[i] : v < acc[i])) 
+		acc[i] = v;
+	      count[i]++;
+	    }
+	  }
+	}
+
+	int o = r*w;
+	for(int i=0; i < w; i++) {
+	  if (count[i] == 0) 
+	    out[o+i] = Float.NaN;
+	  else if (method == MEAN) 
+	    out[o+i] = (float) (acc[i] / count[i]);
+	  else
+	    out[o+i] = (float) acc[i];
+	}
+      }
+    }
+  }
+}
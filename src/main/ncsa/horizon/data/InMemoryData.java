@@ -24,6 +24,8 @@
  *  97jun06  Wei Xie     1st edition
  *  97Nov26  Wei Xie     implement getNdArrayData(Volume vol);
  *  98Jan19  Ray Plante  moved from ncsa.horizon.util to ncsa.horizon.data
+ *    17-Oct-2026 agent       copy regions with StridedCopy; add 
+ *                            getValue(Slice) and setValue(Slice, Object)
  */
 
 package ncsa.horizon.data;
@@ -39,7 +41,13 @@ import ncsa.horizon.util.*;
  * initial on-memory data are defaults or primitive
  * approximation of real data.  Then
  * the data are updated from a approximation to
- * real data.
+ * real data. <p>
+ *
+ * Regions are copied in and out of memory by StridedCopy: any box can
+ * be read or set with getValue(int[], int[]) and 
+ * setValue(int[], int[], Object), and a 2-dimensional view along any 
+ * pair of axes, decimated or resampled, with getValue(Slice) and 
+ * setValue(Slice, Object).
  */
 public class InMemoryData extends NdArrayData {
   // this one is used to return volume
@@ -54,6 +62,8 @@ public class InMemoryData extends NdArrayData {
   // if it's true, then on-memory data are 
   // complete.
   private boolean flag_complete;
+  // the distance in array between successive elements along each axis
+  private int[] strides;
 
   /**
    * Disabled.
@@ -102,6 +112,7 @@ public class InMemoryData extends NdArrayData {
 		      JavaType type, Object data, boolean isFinal) {
     this.naxes = naxes;
     this.isize = isize;
+    size = (int) NdArrayMath.size(isize);
     javaType = type;
     array = data;
     flag_complete = isFinal;
@@ -180,43 +191,62 @@ public class InMemoryData extends NdArrayData {
    * May return null if the required sub nd array out of range of this
    * volume.   */
   public Object getValue(int[] startCoord, int[] out_size) {
-    int length = (int) NdArrayMath.size(out_size);
-    Object outArray = javaType.allocateArray(length);
-    int[] realStartCoord = realStartCoord(startCoord);
-    int src_position = (int) NdArrayMath.indexArrayToNumber(realStartCoord, isize);
-    int dst_position = 0;
-    // find the largest continue unit of data
-    int unitLength = 1;
-    int jumpLength = 1;
-    for(int i = 0; i < out_size.length; i++) {
-      unitLength *= out_size[i];
-      if(out_size[i] < isize[i]) {
-        jumpLength *= isize[i];
-        break;
-      }
-      else if(out_size[i] > isize[i]) {
-        System.err.println(getClass().getName() +
-                                   "size out of range.");
-        return null;
-      }
-      else
-        jumpLength = unitLength;
-    }
+    int[] start;
     try {
-      while(length > 0) {
-        System.arraycopy(array, src_position, outArray, dst_position, unitLength);
-        src_position += jumpLength;
-        dst_position += unitLength;
-        length -= unitLength;
-      }
-    } catch (ArrayIndexOutOfBoundsException e) {
-      System.err.println(getClass().getName() +
-                         "size out of range.");
+      start = checkRegion(startCoord, out_size);
+    } catch (IllegalArgumentException e) {
+      System.err.println(getClass().getName() + ": size out of range.");
       return null;
     }
+    Object outArray = javaType.allocateArray((int) NdArrayMath.size(out_size));
+    StridedCopy.copy(array, offset(start), getStrides(),
+		     outArray, 0, contiguousStrides(out_size), out_size);
     return outArray;
   }
 
+  /**
+   * Return the values of a 2-dimensional view of the data along the 
+   * slice's x and y axes, through the plane containing the slice's 
+   * location, as a 1d array of the data's type.  The values are 
+   * stored a row at a time: value (i, j), at index j*w + i, where w is 
+   * the slice's true length along its x axis, is taken from the data 
+   * at the slice's location plus i times its sampling along its x axis
+   * and j times its sampling along its y axis.  So the rows run along 
+   * the slice's x axis whatever the order of the axes in the data, 
+   * e.g. for a position-velocity plane.  A negative sampling starts 
+   * from the far end of the slice's side. <p>
+   *
+   * If the slice's CAN_INTERPOLATE flag is set, the values are 
+   * interpolated bilinearly at the center of the area each covers;
+   * otherwise each is the nearest value at or before its position, so 
+   * that an integer sampling decimates the data and a sampling less 
+   * than one repeats values.
+   * @return  the values, or null if the slice is not within the data
+   */
+  public Object getValue(Slice slice) {
+    SliceView v = new SliceView(slice);
+    if (v.w <= 0 || v.h <= 0) return javaType.allocateArray(0);
+    if (! v.within()) {
+      System.err.println(getClass().getName() + ": slice out of range.");
+      return null;
+    }
+    Object out = javaType.allocateArray(v.w * v.h);
+    if (v.isStrided()) {
+      StridedCopy.copy(array, v.base + v.first(), v.srcStrides(),
+		       out, 0, new int[] { 1, v.w }, 
+		       new int[] { v.w, v.h });
+    } 
+    else {
+      double cx = v.interpolate ? (Math.abs(v.dx) - 1) / 2 : 0.0;
+      double cy = v.interpolate ? (Math.abs(v.dy) - 1) / 2 : 0.0;
+      StridedCopy.resample(array, v.base, strides[v.xaxis], 
+			   strides[v.yaxis], isize[v.xaxis], 
+			   isize[v.yaxis], v.x0 + cx, v.y0 + cy, v.dx, v.dy,
+			   v.interpolate, out, 0, v.w, v.h);
+    }
+    return out;
+  }
+
   /**
    * Get all the element as one-d array.  The reference
    * to the memory array is returned.
@@ -246,7 +276,7 @@ public class InMemoryData extends NdArrayData {
   }
 
   protected int[] realStartCoord(int[] startCoord) {
-    double[] volumeStart = volume.getLocation();
+    double[] volumeStart = getVolume().getLocation();
     int[] realStartCoord = new int[naxes];
     for (int i = 0; i < naxes; i++) {
       realStartCoord[i] = startCoord[i] - (int) volumeStart[i];
@@ -297,8 +327,34 @@ public class InMemoryData extends NdArrayData {
    * Set elements of a sub nd array starting at startCoord 
    * with size to be value.  The element
    * is located by coord.
+   * @exception IllegalArgumentException if the region is not within 
+   *            the data
    */
   public void setValue(int[] startCoord, int[] size, Object value){
+    int[] start = checkRegion(startCoord, size);
+    StridedCopy.copy(value, 0, contiguousStrides(size), 
+		     array, offset(start), getStrides(), size);
+    setChanged();
+  }
+
+  /**
+   * Set the values of a 2-dimensional view of the data, stored as 
+   * getValue(Slice) returns them.  The slice's sampling must be a 
+   * whole number along both of its axes, so that each value has an 
+   * element of its own.
+   * @exception IllegalArgumentException if the slice is not within the
+   *            data or its sampling is fractional
+   */
+  public void setValue(Slice slice, Object value) {
+    SliceView v = new SliceView(slice);
+    if (v.w <= 0 || v.h <= 0) return;
+    if (! v.within()) 
+      throw new IllegalArgumentException("slice out of range");
+    if (! v.isWholeNumbered()) 
+      throw new IllegalArgumentException("fractional sampling");
+    StridedCopy.copy(value, 0, new int[] { 1, v.w }, 
+		     array, v.base + v.first(), v.srcStrides(), 
+		     new int[] { v.w, v.h });
     setChanged();
   }
 
@@ -323,4 +379,199 @@ public class InMemoryData extends NdArrayData {
     setChanged();
   }
 
+  /**
+   * Return the data element at index (for the 1-d array) as a double,
+   * reading it directly from the array.
+   */
+  public double getDouble(long index) {
+    if (index < 0 || index >= size)
+      throw new IllegalArgumentException("index out of range: " + index);
+    return javaType.doubleFromArray(array, (int) index);
+  }
+
+  /**
+   * Return the data element at coord as a double.
+   * @exception IllegalArgumentException if coord is out of range
+   */
+  public double getDouble(int[] coord) {
+    return getDouble(NdArrayMath.indexArrayToNumber(realStartCoord(coord), 
+						    isize));
+  }
+
+  /**
+   * Copy the elements of a sub nd array starting at startCoord 
+   * with size to be size into dst, converting them to floats.
+   */
+  public void readInto(float[] dst, int[] startCoord, int[] out_size) {
+    int[] start = checkRegion(startCoord, out_size);
+    int rowlen = out_size[0];
+    int[] pos = (int[]) start.clone();
+    int dst_position = 0;
+    long length = NdArrayMath.size(out_size);
+    while (dst_position < length) {
+      NdArrayMath.copyToFloat(array, 
+		     (int) NdArrayMath.indexArrayToNumber(pos, isize),
+		     dst, dst_position, rowlen);
+      dst_position += rowlen;
+      if (! nextRow(pos, start, out_size)) break;
+    }
+  }
+
+  /**
+   * Copy the elements of a sub nd array starting at startCoord 
+   * with size to be size into dst, converting them to doubles.
+   */
+  public void readInto(double[] dst, int[] startCoord, int[] out_size) {
+    int[] start = checkRegion(startCoord, out_size);
+    int rowlen = out_size[0];
+    int[] pos = (int[]) start.clone();
+    int dst_position = 0;
+    long length = NdArrayMath.size(out_size);
+    while (dst_position < length) {
+      NdArrayMath.copyToDouble(array, 
+		     (int) NdArrayMath.indexArrayToNumber(pos, isize),
+		     dst, dst_position, rowlen);
+      dst_position += rowlen;
+      if (! nextRow(pos, start, out_size)) break;
+    }
+  }
+
+  /**
+   * return the distance in the array between successive elements along
+   * each axis
+   */
+  private int[] getStrides() {
+    if (strides == null) strides = contiguousStrides(isize);
+    return strides;
+  }
+
+  private static int[] contiguousStrides(int[] size) {
+    int[] out = new int[size.length];
+    int s = 1;
+    for(int i = 0; i < size.length; i++) {
+      out[i] = s;
+      s *= size[i];
+    }
+    return out;
+  }
+
+  /**
+   * return the index in the array of the element at a position 
+   * relative to the origin of the array
+   */
+  private int offset(int[] pos) {
+    int[] st = getStrides();
+    int off = 0;
+    for(int i = 0; i < naxes; i++) off += pos[i] * st[i];
+    return off;
+  }
+
+  /**
+   * a slice's view of the data: where its first value is, and the 
+   * steps between values, relative to the origin of the array
+   */
+  private class SliceView {
+    int xaxis, yaxis, w, h, base = 0;
+    double x0, y0, dx, dy;
+    boolean interpolate, inPlane = true;
+
+    SliceView(Slice slice) {
+      double[] origin = getVolume().getLocation();
+      int[] st = getStrides();
+      xaxis = slice.getXaxis();
+      yaxis = slice.getYaxis();
+      interpolate = (slice.flags & Volume.CAN_INTERPOLATE) != 0;
+      w = slice.getTrueLength(xaxis);
+      h = slice.getTrueLength(yaxis);
+      for(int i = 0; i < naxes; i++) {
+	if (i == xaxis || i == yaxis) continue;
+	int p = (int) Math.floor(Math.min(slice.axisPos(i), 
+			slice.axisPos(i) + slice.getLength(i)) - origin[i]);
+	if (p < 0 || p >= isize[i]) inPlane = false;
+	base += p * st[i];
+      }
+
+      // the position of the first value and the step to the next
+      dx = slice.getStep(xaxis);
+      dy = slice.getStep(yaxis);
+      x0 = start(slice, xaxis, w, dx) - origin[xaxis];
+      y0 = start(slice, yaxis, h, dy) - origin[yaxis];
+    }
+
+    private double start(Slice slice, int ax, int n, double step) {
+      double lo = Math.min(slice.axisPos(ax), 
+			   slice.axisPos(ax) + slice.getLength(ax));
+      return (step < 0) ? lo + (n-1)*Math.abs(step) : lo;
+    }
+
+    /**
+     * return true if the values are taken from within the data
+     */
+    boolean within() {
+      if (! inPlane || w <= 0 || h <= 0) return false;
+      return inside(x0, dx, w, isize[xaxis]) && 
+	     inside(y0, dy, h, isize[yaxis]);
+    }
+
+    private boolean inside(double p0, double dp, int n, int len) {
+      double a = Math.floor(p0), b = Math.floor(p0 + (n-1)*dp);
+      return Math.min(a, b) >= 0 && Math.max(a, b) < len;
+    }
+
+    /**
+     * return true if the values can be copied with a strided copy: 
+     * not interpolated, and at whole-numbered positions and steps
+     */
+    boolean isStrided() {
+      return ! interpolate && isWholeNumbered();
+    }
+
+    /**
+     * return true if the positions and steps are whole numbers
+     */
+    boolean isWholeNumbered() {
+      return isWhole(x0) && isWhole(y0) && isWhole(dx) && isWhole(dy);
+    }
+
+    private boolean isWhole(double d) { return d == Math.floor(d); }
+
+    int first() {
+      return (int) x0 * strides[xaxis] + (int) y0 * strides[yaxis];
+    }
+
+    int[] srcStrides() {
+      return new int[] { (int) dx * strides[xaxis], 
+			 (int) dy * strides[yaxis] };
+    }
+  }
+
+  /**
+   * convert a region's start to an offset from the origin of the array,
+   * checking that the region is within the array.
+   */
+  private int[] checkRegion(int[] startCoord, int[] out_size) {
+    int[] start = realStartCoord(startCoord);
+    if (out_size.length < naxes) 
+      throw new IllegalArgumentException("region out of range");
+    for(int i = 0; i < naxes; i++) {
+      if (start[i] < 0 || out_size[i] < 0 ||
+	  start[i] + out_size[i] > isize[i])
+	throw new IllegalArgumentException("region out of range");
+    }
+    return start;
+  }
+
+  /**
+   * advance pos to the start of the next row (along the first axis)
+   * of a region, returning false if there are no more rows.
+   */
+  private boolean nextRow(int[] pos, int[] start, int[] out_size) {
+    for(int ax = 1; ax < naxes; ax++) {
+      pos[ax]++;
+      if (pos[ax] < start[ax] + out_size[ax]) return true;
+      pos[ax] = start[ax];
+    }
+    return false;
+  }
+
 } //end InMemoryData
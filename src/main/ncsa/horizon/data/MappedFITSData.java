@@ -0,0 +1,539 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+package ncsa.horizon.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import ncsa.horizon.util.*;
+
+/**
+ * An NdArrayData whose values are decoded on demand from the data
+ * segment of a FITS HDU that has been memory-mapped.  Nothing is read
+ * from the file when this object is created; a value is only decoded
+ * (from its big-endian BITPIX representation) when it is asked for, so
+ * extracting a single plane of a large cube touches only the pages
+ * holding that plane. <p>
+ *
+ * Values are converted with the same rules FITSNdArrayReader uses (see
+ * FITSImageDecoder):  BSCALE and BZERO are applied to integer and
+ * floating-point data alike, scaled 8- and 16-bit data become floats
+ * and scaled 32- and 64-bit data become doubles, BLANK values become
+ * NaN, and unscaled 8-bit data are returned as unsigned shorts. <p>
+ *
+ * The data are read-only; the setValue methods will throw an
+ * UnsupportedOperationException.
+ */
+public class MappedFITSData extends NdArrayData {
+
+  /**
+   * the maximum number of bytes covered by a single mapping.  This is
+   * a multiple of every FITS element size so that no value straddles
+   * two mappings.
+   */
+  protected final static long SEGMENT_SIZE = 1L << 30;
+
+  protected FileChannel channel;
+  protected long dataOffset;
+  protected int bitpix;
+  protected int bytesPerValue;
+  protected int naxes;
+  protected int[] isize;
+  protected long nvalues;
+  protected Volume volume;
+
+  protected JavaType storedType, javaType;
+  protected boolean scaled = false;
+  protected double bscale = 1.0, bzero = 0.0;
+  protected boolean hasBlank = false;
+  protected long blank = 0;
+  protected FITSImageDecoder decoder;
+
+  // created lazily; see getSegment()
+  private MappedByteBuffer[] segments;
+
+  /**
+   * Disabled.
+   */
+  protected MappedFITSData() { }
+
+  /**
+   * create a MappedFITSData for a data segment within an open file
+   * @param channel   the open file containing the data
+   * @param offset    the byte offset of the start of the data segment
+   * @param bitpix    the FITS BITPIX value of the data
+   * @param size      the axis lengths (NAXIS1, NAXIS2, ...)
+   * @param bscale    the BSCALE value or null if not present
+   * @param bzero     the BZERO value or null if not present
+   * @param blank     the BLANK value or null if not present
+   * @exception IllegalArgumentException if bitpix is not a legal value
+   */
+  public MappedFITSData(FileChannel channel, long offset, int bitpix,
+			int[] size, Double bscale, Double bzero, Long blank)
+    throws IllegalArgumentException
+  {
+    this.channel = channel;
+    this.dataOffset = offset;
+    this.bitpix = bitpix;
+    naxes = size.length;
+    isize = new int[naxes];
+    System.arraycopy(size, 0, isize, 0, naxes);
+    nvalues = NdArrayMath.size(isize);
+
+    decoder = new FITSImageDecoder(bitpix, bscale, bzero, blank);
+    storedType = decoder.getStoredType();
+    javaType = decoder.getType();
+    scaled = decoder.isScaled();
+    bytesPerValue = Math.abs(bitpix) / 8;
+
+    if (bscale != null) this.bscale = bscale.doubleValue();
+    if (bzero != null)  this.bzero  = bzero.doubleValue();
+    if (blank != null && bitpix > 0) {
+      hasBlank = true;
+      this.blank = blank.longValue();
+    }
+
+    double[] loc = new double[naxes];
+    double[] sampling = new double[naxes];
+    for (int i = 0; i < naxes; i++) {
+      loc[i] = 1.0;
+      sampling[i] = 1.0;
+    }
+    volume = new Volume(naxes, loc,
+			ArrayTypeConverter.arrayIntToDouble(isize), sampling);
+
+    long nbytes = nvalues * bytesPerValue;
+    segments = new MappedByteBuffer[(int) ((nbytes + SEGMENT_SIZE - 1) /
+					   SEGMENT_SIZE)];
+  }
+
+  /**
+   * return the mapping holding the given segment, mapping it if
+   * necessary
+   */
+  protected synchronized MappedByteBuffer getSegment(int which) {
+    if (segments[which] == null) {
+      long start = which * SEGMENT_SIZE;
+      long length = Math.min(SEGMENT_SIZE, nvalues*bytesPerValue - start);
+      try {
+	segments[which] = channel.map(FileChannel.MapMode.READ_ONLY,
+				      dataOffset + start, length);
+      } catch (IOException ex) {
+	throw new InternalError(getClass().getName() +
+				": unable to map data segment: " + ex);
+      }
+      segments[which].order(ByteOrder.BIG_ENDIAN);
+    }
+    return segments[which];
+  }
+
+  /**
+   * Return the intersected part of this NdArrayData as an InMemoryData
+   * object.  Null is returned if there is not enough memory to hold it.
+   */
+  public NdArrayData getNdArrayData(Volume vol) {
+    NdArrayData out = null;
+    try {
+      Volume intersectVolume = volume.intersection(vol);
+      out = new InMemoryData(intersectVolume, getType());
+      int startCoord[] =
+	ArrayTypeConverter.arrayDoubleToInt(intersectVolume.getLocation());
+      int out_size[] = intersectVolume.getTrueSize();
+      Object values = getValue(startCoord, out_size);
+      if (values == null) return null;
+      out.setValues(values);
+      out.setComplete();
+    } catch (InstantiationException e) {
+      System.err.println(e);
+      return null;
+    }
+    return out;
+  }
+
+  /**
+   * Get the number of axes of this nd data array
+   */
+  public int getNaxes() {
+    return naxes;
+  }
+
+  /**
+   * Return a int array represent the
+   * dimensions of the volume.
+   */
+  public int[] getSize() {
+    int[] out = new int[naxes];
+    System.arraycopy(isize, 0, out, 0, naxes);
+    return out;
+  }
+
+  /**
+   * Return the data type.  This is the type after conversion via
+   * BSCALE and BZERO.
+   */
+  public JavaType getType() {
+    return javaType;
+  }
+
+  /**
+   * return the raw integer stored at the given index.  Only valid for
+   * integer BITPIX values.
+   */
+  protected long rawLong(long index) {
+    long pos = index * bytesPerValue;
+    ByteBuffer seg = getSegment((int) (pos / SEGMENT_SIZE));
+    int off = (int) (pos % SEGMENT_SIZE);
+    switch (bitpix) {
+    case 8:
+      return seg.get(off) & 0xff;
+    case 16:
+      return seg.getShort(off);
+    case 32:
+      return seg.getInt(off);
+    default:
+      return seg.getLong(off);
+    }
+  }
+
+  /**
+   * return the value at the given index converted to a double, applying
+   * BSCALE, BZERO, and BLANK if necessary
+   */
+  protected double valueAt(long index) {
+    if (bitpix < 0) {
+      long pos = index * bytesPerValue;
+      ByteBuffer seg = getSegment((int) (pos / SEGMENT_SIZE));
+      int off = (int) (pos % SEGMENT_SIZE);
+      double v = (bitpix == -32) ? (double) seg.getFloat(off) :
+	                           seg.getDouble(off);
+      return (scaled) ? bzero + bscale*v : v;
+    }
+
+    long raw = rawLong(index);
+    if (hasBlank && raw == blank) return Double.NaN;
+    return bzero + bscale*raw;
+  }
+
+  /**
+   * Return the value at the index.  The element
+   * is located by treating the whole nd array
+   * as 1d array.
+   */
+  public Object getValue(int index) {
+    if (index < 0 || index >= nvalues) return null;
+    switch (javaType.code()) {
+    case 3:
+      return javaType.wrap((byte) rawLong(index));
+    case 4:
+      return javaType.wrap((short) rawLong(index));
+    case 5:
+      return javaType.wrap((int) rawLong(index));
+    case 6:
+      return javaType.wrap(rawLong(index));
+    case 7:
+      return javaType.wrap((float) valueAt(index));
+    default:
+      return javaType.wrap(valueAt(index));
+    }
+  }
+
+  /**
+   * Return the value at the coord.  Null is returned if coord is out
+   * of range.
+   */
+  public Object getValue(int[] coord) {
+    int[] realCoord = realStartCoord(coord);
+    long number = 0;
+    try {
+      number = NdArrayMath.indexArrayToNumber(realCoord, isize);
+    } catch(IllegalArgumentException e) {
+      return null;
+    }
+    if (number > Integer.MAX_VALUE) return null;
+    return getValue((int) number);
+  }
+
+  /**
+   * Get 1d array elements of a sub nd array starting at startCoord
+   * with size to be size.  Only the pages of the file that hold the
+   * requested values are read.
+   * May return null if the required sub nd array out of range of this
+   * volume.
+   */
+  public Object getValue(int[] startCoord, int[] out_size) {
+    int[] start = realStartCoord(startCoord);
+    for(int i = 0; i < naxes; i++) {
+      if (start[i] < 0 || out_size[i] < 0 ||
+	  start[i] + out_size[i] > isize[i])
+      {
+	System.err.println(getClass().getName() + ": size out of range.");
+	return null;
+      }
+    }
+    long length = NdArrayMath.size(out_size);
+    if (length > Integer.MAX_VALUE) {
+      System.err.println(getClass().getName() +
+			 ": requested region too large for a single array");
+      return null;
+    }
+    Object out = javaType.allocateArray((int) length);
+    if (length == 0) return out;
+
+    // copy one row (along the first axis) at a time
+    int rowlen = out_size[0];
+    int[] pos = new int[naxes];
+    System.arraycopy(start, 0, pos, 0, naxes);
+    int dst = 0;
+    while (dst < length) {
+      decodeRun(NdArrayMath.indexArrayToNumber(pos, isize), rowlen, out, dst);
+      dst += rowlen;
+
+      // advance to the next row
+      int ax;
+      for(ax = 1; ax < naxes; ax++) {
+	pos[ax]++;
+	if (pos[ax] < start[ax] + out_size[ax]) break;
+	pos[ax] = start[ax];
+      }
+      if (ax >= naxes) break;
+    }
+
+    return out;
+  }
+
+  /**
+   * decode n contiguous values starting at index into the output
+   * array (of type getType()) starting at dstpos.
+   */
+  protected void decodeRun(long index, int n, Object out, int dstpos) {
+    Object raw = null;
+    while (n > 0) {
+      long pos = index * bytesPerValue;
+      ByteBuffer seg = getSegment((int) (pos / SEGMENT_SIZE));
+      int off = (int) (pos % SEGMENT_SIZE);
+      int count = Math.min(n, (seg.capacity() - off) / bytesPerValue);
+
+      if (scaled) {
+	// stage the stored values in a bounded buffer and let the
+	// decoder convert them, so both FITS readers agree
+	count = Math.min(count, FITSImageDecoder.MIN_CHUNK);
+	if (raw == null) 
+	  raw = storedType.allocateArray(Math.min(n, 
+						  FITSImageDecoder.MIN_CHUNK));
+	decodeRaw(seg, off, count, raw, 0);
+	decoder.convert(raw, 0, out, dstpos, count);
+      }
+      else
+	decodeRaw(seg, off, count, out, dstpos);
+
+      index += count;
+      dstpos += count;
+      n -= count;
+    }
+  }
+
+  private void decodeRaw(ByteBuffer seg, int off, int n,
+			 Object out, int dstpos)
+  {
+    ByteBuffer buf = seg.duplicate();
+    buf.order(ByteOrder.BIG_ENDIAN);
+    buf.position(off);
+    switch (bitpix) {
+    case 8:
+      buf.get((byte[]) out, dstpos, n);
+      break;
+    case 16:
+      buf.asShortBuffer().get((short[]) out, dstpos, n);
+      break;
+    case 32:
+      buf.asIntBuffer().get((int[]) out, dstpos, n);
+      break;
+    case 64:
+      buf.asLongBuffer().get((long[]) out, dstpos, n);
+      break;
+    case -32:
+      buf.asFloatBuffer().get((float[]) out, dstpos, n);
+      break;
+    case -64:
+      buf.asDoubleBuffer().get((double[]) out, dstpos, n);
+      break;
+    }
+  }
+
+  /**
+   * Get all the element as one-d array.  Note that this will decode the
+   * entire data segment into memory; null is returned if it is too
+   * large to fit into a single Java array.
+   */
+  public Object getValue() {
+    int[] start = ArrayTypeConverter.arrayDoubleToInt(volume.getLocation());
+    return getValue(start, isize);
+  }
+
+  /**
+   * Return the value at the index as a double, decoding it directly
+   * from the mapped file.
+   */
+  public double getDouble(long index) {
+    if (index < 0 || index >= nvalues)
+      throw new IllegalArgumentException("index out of range: " + index);
+    return valueAt(index);
+  }
+
+  /**
+   * Return the value at the coord as a double.
+   * @exception IllegalArgumentException if coord is out of range
+   */
+  public double getDouble(int[] coord) {
+    return valueAt(NdArrayMath.indexArrayToNumber(realStartCoord(coord), 
+						  isize));
+  }
+
+  /**
+   * Copy the elements of a sub nd array starting at startCoord 
+   * with size to be size into dst, converting them to floats.  The
+   * values are decoded directly from the mapped file into dst.
+   */
+  public void readInto(float[] dst, int[] startCoord, int[] out_size) {
+    readInto((Object) dst, JavaType.FLOAT, startCoord, out_size);
+  }
+
+  /**
+   * Copy the elements of a sub nd array starting at startCoord 
+   * with size to be size into dst, converting them to doubles.  The
+   * values are decoded directly from the mapped file into dst.
+   */
+  public void readInto(double[] dst, int[] startCoord, int[] out_size) {
+    readInto((Object) dst, JavaType.DOUBLE, startCoord, out_size);
+  }
+
+  private void readInto(Object outArray, JavaType dstType, 
+			int[] startCoord, int[] out_size) 
+  {
+    int[] start = realStartCoord(startCoord);
+    for(int i = 0; i < naxes; i++) {
+      if (start[i] < 0 || out_size[i] < 0 ||
+	  start[i] + out_size[i] > isize[i])
+	throw new IllegalArgumentException("region out of range");
+    }
+    long length = NdArrayMath.size(out_size);
+    int rowlen = out_size[0];
+    int[] pos = (int[]) start.clone();
+    int dst = 0;
+    while (dst < length) {
+      long index = NdArrayMath.indexArrayToNumber(pos, isize);
+      if (dstType == javaType) {
+	decodeRun(index, rowlen, outArray, dst);
+      }
+      else if (dstType == JavaType.FLOAT) {
+	float[] out = (float[]) outArray;
+	for(int i=0; i < rowlen; i++) 
+	  out[dst+i] = (float) valueAt(index+i);
+      }
+      else {
+	double[] out = (double[]) outArray;
+	for(int i=0; i < rowlen; i++) 
+	  out[dst+i] = valueAt(index+i);
+      }
+      dst += rowlen;
+
+      // advance to the next row
+      int ax;
+      for(ax = 1; ax < naxes; ax++) {
+	pos[ax]++;
+	if (pos[ax] < start[ax] + out_size[ax]) break;
+	pos[ax] = start[ax];
+      }
+      if (ax >= naxes) break;
+    }
+  }
+
+  /**
+   * Return a copy of the volume.
+   */
+  public Volume getVolume() {
+    return new Volume(volume);
+  }
+
+  /**
+   * return true; the data in the file are always complete.
+   */
+  public boolean isComplete() {
+    return true;
+  }
+
+  /**
+   * does nothing as the data are always complete.
+   */
+  public void setComplete() { }
+
+  protected int[] realStartCoord(int[] startCoord) {
+    double[] volumeStart = volume.getLocation();
+    int[] realStartCoord = new int[naxes];
+    for (int i = 0; i < naxes; i++) {
+      realStartCoord[i] = startCoord[i] - (int) volumeStart[i];
+    }
+    return realStartCoord;
+  }
+
+  /**
+   * not supported; the mapped data are read-only
+   */
+  public void setValue(int startIndex, int length, Object value) {
+    throw new UnsupportedOperationException(getClass().getName() +
+					    ": data are read-only");
+  }
+
+  /**
+   * not supported; the mapped data are read-only
+   */
+  public void setValue(int index, Object value) {
+    throw new UnsupportedOperationException(getClass().getName() +
+					    ": data are read-only");
+  }
+
+  /**
+   * not supported; the mapped data are read-only
+   */
+  public void setValue(int[] coord, Object value) {
+    throw new UnsupportedOperationException(getClass().getName() +
+					    ": data are read-only");
+  }
+
+  /**
+   * not supported; the mapped data are read-only
+   */
+  public void setValue(int[] startCoord, int[] size, Object value) {
+    throw new UnsupportedOperationException(getClass().getName() +
+					    ": data are read-only");
+  }
+
+  /**
+   * not supported; the mapped data are read-only
+   */
+  public void setValues(Object data) {
+    throw new UnsupportedOperationException(getClass().getName() +
+					    ": data are read-only");
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+package ncsa.horizon.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import ncsa.fits.fits.*;
+import ncsa.horizon.util.*;
+
+/**
+ * NdArrayReader implementation for an on-disk FITS file that does not
+ * read the primary array into memory.  Only the header is read when
+ * the reader is created; the NdArrayData returned by getNdArrayData()
+ * is a MappedFITSData that decodes values directly from a memory
+ * mapping of the file as they are requested.  This makes it possible
+ * to browse cubes that are larger than the available heap.
+ */
+public class MappedFITSNdArrayReader extends NdArrayReader {
+
+  private File file;
+  private RandomAccessFile raf;
+  private Header primaryHeader;
+  private MappedFITSData data;
+  private Metadata md = null;
+
+  /**
+   * Disabled.  No argument constructor, do nothing. It is protected
+   * so cannot be instanticated this way.
+   */
+  protected MappedFITSNdArrayReader() {
+  }
+
+  /**
+   * Construct a NdArrayReader to read the local file Filename: name.
+   * Exception throws if the file is not find or not in FITS format.
+   */
+  public MappedFITSNdArrayReader(String name) throws InstantiationException {
+    this(new File(name));
+  }
+
+  /**
+   * Construct a NdArrayReader to read the given local file.
+   * Exception throws if the file is not find or not in FITS format.
+   */
+  public MappedFITSNdArrayReader(File file) throws InstantiationException {
+    this.file = file;
+    try {
+      raf = new RandomAccessFile(file, "r");
+      constructVariables();
+    } catch (IOException e) { // can't open file
+      System.err.println(getClass().getName() + ": " + e);
+      throw new InstantiationException(getClass().getName() + ": " + e +
+				       "Maybe FileNotFound: " + file);
+    } catch (SecurityException e) { // not allowed to read the file
+      System.err.println(getClass().getName() + ": " + e);
+      throw new InstantiationException(getClass().getName() + ": " + e +
+				       "Maybe you don't have the access to file: " +
+				       file);
+    } catch (IllegalArgumentException e) { // unsupported BITPIX
+      System.err.println(getClass().getName() + ": " + e);
+      throw new InstantiationException(getClass().getName() + ": " + e +
+			  " Maybe file is not a good FITS file.");
+    }
+  }
+
+  /**
+   * Works only for constructors
+   */
+  private void constructVariables() throws IOException {
+    primaryHeader = new Header(raf);
+    if (! primaryHeader.validHeader())
+      throw new IOException("not a FITS file: " + file);
+
+    int naxes = getNaxes();
+    if (naxes <= 0)
+      throw new IOException("no primary array in " + file);
+
+    long offset = primaryHeader.getSize();
+    long nbytes = NdArrayMath.size(getSize()) * Math.abs(dataSize()) / 8;
+    if (offset + nbytes > raf.length())
+      throw new IOException("FITS file appears truncated: " + file);
+
+    data = new MappedFITSData(raf.getChannel(), offset,
+			      (int) primaryHeader.getLValue("BITPIX", 0),
+			      getSize(), getDouble("BSCALE"),
+			      getDouble("BZERO"), getLong("BLANK"));
+  }
+
+  private Double getDouble(String key) {
+    if (! primaryHeader.hasKey(key)) return null;
+    return new Double(primaryHeader.getDValue(key));
+  }
+
+  private Long getLong(String key) {
+    if (! primaryHeader.hasKey(key)) return null;
+    return new Long(primaryHeader.getLValue(key));
+  }
+
+  /**
+   * Return the data size in byte for the
+   * first Nd array.  For example,
+   * if data type is unsigned integers,
+   * dataSize will return 8.
+   * If no such information from the fits file,
+   * -1 will be returned.
+   */
+  public int dataSize() {
+    return (int) primaryHeader.getLValue("BITPIX", -1);
+  }
+
+  /**
+   * Return the NdArrayData for the primary array.  The data are not
+   * read into memory.
+   */
+  public NdArrayData getNdArrayData() {
+    return data;
+  }
+
+  /**
+   * Return a TiledNdArrayData view of the primary array that reads 
+   * the mapped data a tile at a time and keeps the most recently used
+   * tiles decoded in memory.
+   * @param tileSize  the length of each axis of a tile
+   * @param cacheSize the maximum number of bytes of decoded tiles to 
+   *                  keep in memory
+   */
+  public TiledNdArrayData getTiledNdArrayData(int[] tileSize, 
+					      long cacheSize) 
+  {
+    return new TiledNdArrayData(new NdArrayDataTileSource(data, tileSize),
+				data.getVolume(), cacheSize);
+  }
+
+  public Metadata getMetadata() {
+    if (md == null) {
+      FITSMetadata aFITSmd = new FITSMetadata();
+      int ncards = (int) primaryHeader.getCardSize();
+      for (int i = 0; i < ncards; i++) {
+	aFITSmd.scanHeaderCard(primaryHeader.getCard(i), true);
+      }
+      aFITSmd.setHorizonMetadata();
+      md = aFITSmd;
+    }
+    return md;
+  }
+
+  /**
+   * Return the number of axes for the first Nd array.
+   * If no such information from the fits file,
+   * -1 will be returned.
+   */
+  public int getNaxes() {
+    return (int) primaryHeader.getLValue("NAXIS", -1);
+  }
+
+  /**
+   * Return the axis sizes of the first Nd-array
+   */
+  public int[] getSize() {
+    int naxes = getNaxes();
+    int[] size = new int[naxes];
+    for(int i = 0; i < naxes; i++) {
+      String key = "NAXIS" + (i + 1);
+      size[i] = (int) primaryHeader.getLValue(key, -1);
+    }
+    return size;
+  }
+
+  /**
+   * Return a new stream positioned at the start of the file, or null
+   * if it cannot be opened.
+   */
+  public InputStream getStream() {
+    try {
+      return new FileInputStream(file);
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * return data type of the first nd array
+   */
+  public JavaType getType() {
+    return data.getType();
+  }
+
+  /**
+   * Return the double value at location coord (counting from zero)
+   * of the first nd array.
+   * IllegalArgumentException will be thrown if
+   * coord is out of bound of int[] getSize.
+   */
+  public double getValue(int[] coord) throws IllegalArgumentException {
+    return data.valueAt(NdArrayMath.indexArrayToNumber(coord, getSize()));
+  }
+
+  /**
+   * Return the 1d array representation of the first nd array.  This
+   * decodes the entire array into memory and is likely to throw
+   * OutOfMemoryError if the array is large.
+   */
+  public Object getValue() {
+    return data.getValue();
+  }
+
+  /**
+   * close the underlying file.  Data obtained from this reader should
+   * not be used after this is called.
+   */
+  public void close() throws IOException {
+    raf.close();
+  }
+}
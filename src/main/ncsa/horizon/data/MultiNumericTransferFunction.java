@@ -41,6 +41,8 @@ public class MultiNumericTransferFunction extends NumericTransferFunction {
     /** exponential mode */
     public final static int EXP = 2;
 
+    private final static double LN2 = Math.log(2.0);
+
     /**
      * the current mode
      */
@@ -111,6 +113,7 @@ public class MultiNumericTransferFunction extends NumericTransferFunction {
 	Integer mode_ = (Integer) modeids.get(name); 
 	if (mode_ == null || mode_.intValue() == mode) return false;
 	mode = mode_.intValue();
+	levelsChanged();
 	return true;
     }
 
@@ -124,16 +127,23 @@ public class MultiNumericTransferFunction extends NumericTransferFunction {
 	if (mode_ == mode || mode_ < 0 || mode_ >= modeids.size()) 
 	    return false;
 	mode = mode_;
+	levelsChanged();
 	return true;
     }
 
+    /**
+     * return true if the current mode is LINEAR
+     */
+    protected boolean isLinear() { return (mode == LINEAR); }
+
     /**
      * return the integer bin level for the given input value using 
-     * a simple linear increasing function.  See getLevel(Object) 
-     * for mapping rules.
+     * the function for the current mode; in each mode, the minimum 
+     * maps to level 2 and the maximum to getDynamicRange()-2.  See 
+     * getLevel(Object) for mapping rules.
      */
     public int getLevel(double value) {
-	if (value == Double.NaN) 
+	if (value != value)         // NaN
 	    return 0;
 	else if (value < min) 
 	    return 1;
@@ -147,10 +157,10 @@ public class MultiNumericTransferFunction extends NumericTransferFunction {
 		return (int) Math.round(1.0*(dynarange-4) * linval) + 2;
 	    else if (mode == LOG) 
 		return (int) Math.round(1.0*(dynarange-4)*
-					Math.log(linval+1)) + 2;
+					Math.log(linval+1)/LN2) + 2;
 	    else if (mode == EXP) 
 		return (int) Math.round(1.0*(dynarange-4)*
-					Math.exp(linval)) + 2;
+					(Math.exp(linval)-1)/(Math.E-1)) + 2;
 	    else 
 		return 0;
 	}
@@ -154,4 +154,92 @@ public abstract class NdArrayData extends Observable {
    *             0 to data.length
    */
   public abstract void setValues(Object data);
+
+  /**
+   * Return the value at the index as a double.  The element is 
+   * located by treating the whole nd array as 1d array.  Unlike 
+   * getValue(int), this does not wrap the value in an object; 
+   * subclasses override this default implementation (which calls 
+   * getValue(int)) to read directly from their storage.
+   * @exception IllegalArgumentException if index is out of range
+   * @exception ClassCastException if the data are not numeric
+   */
+  public double getDouble(long index) {
+    if (index < 0 || index > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("index out of range: " + index);
+    return ((Number) getValue((int) index)).doubleValue();
+  }
+
+  /**
+   * Return the value at the coord as a double.  
+   * @exception IllegalArgumentException if coord is out of range
+   * @exception ClassCastException if the data are not numeric
+   */
+  public double getDouble(int[] coord) {
+    Object value = getValue(coord);
+    if (value == null) 
+      throw new IllegalArgumentException("coord out of range");
+    return ((Number) value).doubleValue();
+  }
+
+  /**
+   * Return the value at the index as a float.  
+   * @see #getDouble(long)
+   */
+  public float getFloat(long index) {
+    return (float) getDouble(index);
+  }
+
+  /**
+   * Return the value at the coord as a float.  
+   * @see #getDouble(int[])
+   */
+  public float getFloat(int[] coord) {
+    return (float) getDouble(coord);
+  }
+
+  /**
+   * Copy the elements of a sub nd array starting at startCoord 
+   * with size to be size into dst, converting them to floats.  
+   * This default implementation copies the array returned by 
+   * getValue(int[], int[]).
+   * @exception IllegalArgumentException if the region is out of range
+   * @exception ArrayIndexOutOfBoundsException if dst is too small
+   */
+  public void readInto(float[] dst, int[] startCoord, int[] size) {
+    Object values = getValue(startCoord, size);
+    if (values == null) 
+      throw new IllegalArgumentException("region out of range");
+    NdArrayMath.copyToFloat(values, 0, dst, 0, 
+			    (int) NdArrayMath.size(size));
+  }
+
+  /**
+   * Copy the elements of a sub nd array starting at startCoord 
+   * with size to be size into dst, converting them to doubles.  
+   * This default implementation copies the array returned by 
+   * getValue(int[], int[]).
+   * @exception IllegalArgumentException if the region is out of range
+   * @exception ArrayIndexOutOfBoundsException if dst is too small
+   */
+  public void readInto(double[] dst, int[] startCoord, int[] size) {
+    Object values = getValue(startCoord, size);
+    if (values == null) 
+      throw new IllegalArgumentException("region out of range");
+    NdArrayMath.copyToDouble(values, 0, dst, 0, 
+			     (int) NdArrayMath.size(size));
+  }
+
+  /**
+   * tell this object's observers that the values in a region have just
+   * been set.  Observers are passed an UpdatedRegion describing the 
+   * region.  This is meant to be called by an NdArrayDataUpdater after 
+   * it sets a piece of a progressively loaded volume.
+   * @param startCoord  the position of the first value in the region
+   * @param size        the length of each axis of the region
+   */
+  public void regionUpdated(int[] startCoord, int[] size) {
+    setChanged();
+    notifyObservers(new UpdatedRegion(startCoord, size));
+  }
 }
@@ -0,0 +1,83 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.data;
+
+import java.io.IOException;
+import ncsa.horizon.util.*;
+
+/**
+ * a TileSource that extracts its tiles from another NdArrayData.  
+ * Wrapping a MappedFITSData this way lets a TiledNdArrayData page 
+ * through a memory-mapped FITS array a tile at a time; wrapping an 
+ * InMemoryData is mainly useful for testing.
+ */
+public class NdArrayDataTileSource implements TileSource {
+
+  protected NdArrayData data;
+  protected int[] tileSize;
+  protected int[] location;
+
+  /**
+   * create a tile source
+   * @param data      the array to extract tiles from
+   * @param tileSize  the length of each axis of a tile
+   * @exception IllegalArgumentException if tileSize does not have one
+   *                positive length for each axis of data
+   */
+  public NdArrayDataTileSource(NdArrayData data, int[] tileSize) {
+    int naxes = data.getNaxes();
+    if (tileSize.length != naxes) 
+      throw new IllegalArgumentException("tileSize has wrong number of " +
+					 "axes: " + tileSize.length);
+    for(int i=0; i < naxes; i++) {
+      if (tileSize[i] <= 0) 
+	throw new IllegalArgumentException("non-positive tile length: " +
+					   tileSize[i]);
+    }
+
+    this.data = data;
+    this.tileSize = (int[]) tileSize.clone();
+    location = ArrayTypeConverter.arrayDoubleToInt(
+					   data.getVolume().getLocation());
+  }
+
+  public int getNaxes() { return data.getNaxes(); }
+
+  public int[] getSize() { return (int[]) data.getSize().clone(); }
+
+  public int[] getTileSize() { return (int[]) tileSize.clone(); }
+
+  public JavaType getType() { return data.getType(); }
+
+  public Object readTile(int[] origin, int[] size) throws IOException {
+    int[] start = new int[origin.length];
+    for(int i=0; i < start.length; i++) 
+      start[i] = origin[i] + location[i];
+
+    Object out = data.getValue(start, size);
+    if (out == null) 
+      throw new IOException("unable to extract tile at " + 
+			    origin[0] + "...");
+    return out;
+  }
+}
@@ -36,4 +36,13 @@ package ncsa.horizon.data;
  */
 public abstract class NdArrayDataUpdater {
   public abstract void update(NdArrayData dataVolume);
+
+  /**
+   * ask that the values in a region be updated before any others, as 
+   * when the region is about to be displayed.  This default 
+   * implementation does nothing.
+   * @param startCoord  the position of the first value of the region
+   * @param size        the length of each axis of the region
+   */
+  public void prioritize(int[] startCoord, int[] size) { }
 }
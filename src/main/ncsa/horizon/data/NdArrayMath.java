@@ -177,8 +177,9 @@ public final class NdArrayMath
     float min = Float.POSITIVE_INFINITY;
     float max = Float.NEGATIVE_INFINITY;
     for(int i = 0; i < array.length; i++) {
-      if (min > array[i] && min != Float.NaN) min = array[i];
-      if (max < array[i] && max != Float.NaN) max = array[i];
+      if (Float.isNaN(array[i])) continue;
+      if (min > array[i]) min = array[i];
+      if (max < array[i]) max = array[i];
     }
     if (min == Float.POSITIVE_INFINITY) min = max = 0.0f;
     float[] limits = {min, max};
@@ -187,16 +188,59 @@ public final class NdArrayMath
 
   public static double[] minMax1d(double[] array) {
     double min = Double.POSITIVE_INFINITY;
-    double max = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
     for(int i = 0; i < array.length; i++) {
-      if (min > array[i] && min != Double.NaN) min = array[i];
-      if (max < array[i] && max != Double.NaN) max = array[i];
+      if (Double.isNaN(array[i])) continue;
+      if (min > array[i]) min = array[i];
+      if (max < array[i]) max = array[i];
     }
     if (min == Double.POSITIVE_INFINITY) min = max = 0.0;
     double[] limits = {min, max};
     return limits;
   }
 
+  /**
+   * scale the values in a 1d array into integers between low and high
+   * using a given range of values rather than the range of the array 
+   * itself (which would have to be found by scanning it).  Values below
+   * min map to low, values above max map to high, and NaNs map to low.
+   * @param arrayObject  the array of values, of type jp
+   * @param min          the value that maps to low
+   * @param max          the value that maps to high
+   */
+  public static int[] scaleTo(Object arrayObject, int low, int high, 
+			      JavaType jp, double min, double max) 
+  {
+    int size = java.lang.reflect.Array.getLength(arrayObject);
+    int[] results = new int[size];
+    double scalefrom = max - min;
+    if (scalefrom <= 0.0 || Double.isNaN(scalefrom)) {
+      for(int i = 0; i < size; i++) results[i] = low;
+      return results;
+    }
+    double factor = (double) (high - low) / scalefrom;
+    double val;
+    float[] fa = (arrayObject instanceof float[]) ? 
+                 (float[]) arrayObject : null;
+    double[] da = (arrayObject instanceof double[]) ? 
+                  (double[]) arrayObject : null;
+    for(int i = 0; i < size; i++) {
+      if (fa != null) 
+	val = fa[i];
+      else if (da != null) 
+	val = da[i];
+      else
+	val = jp.doubleFromArray(arrayObject, i);
+      if (val <= min || Double.isNaN(val)) 
+	results[i] = low;
+      else if (val >= max) 
+	results[i] = high;
+      else
+	results[i] = low + (int) (factor * (val - min));
+    }
+    return results;
+  }
+
   public static int[] scaleTo(Object arrayObject,
 			      int low, int high, JavaType jp) {
     // limits[0] is min(array)
@@ -298,4 +342,88 @@ public final class NdArrayMath
   public static long size(int[] size) {
     return indexHigh(size) + 1;
   }
+
+  /**
+   * copy length values from a 1d array of any numeric primitive type 
+   * into a float array, converting each value.
+   * @exception ClassCastException if src is not a numeric array
+   */
+  public static void copyToFloat(Object src, int srcPos, 
+				 float[] dst, int dstPos, int length) 
+  {
+    int i;
+    if (src instanceof float[]) {
+      System.arraycopy(src, srcPos, dst, dstPos, length);
+    }
+    else if (src instanceof double[]) {
+      double[] a = (double[]) src;
+      for(i=0; i < length; i++) dst[dstPos+i] = (float) a[srcPos+i];
+    }
+    else if (src instanceof int[]) {
+      int[] a = (int[]) src;
+      for(i=0; i < length; i++) dst[dstPos+i] = (float) a[srcPos+i];
+    }
+    else if (src instanceof short[]) {
+      short[] a = (short[]) src;
+      for(i=0; i < length; i++) dst[dstPos+i] = (float) a[srcPos+i];
+    }
+    else if (src instanceof byte[]) {
+      byte[] a = (byte[]) src;
+      for(i=0; i < length; i++) dst[dstPos+i] = (float) a[srcPos+i];
+    }
+    else if (src instanceof long[]) {
+      long[] a = (long[]) src;
+      for(i=0; i < length; i++) dst[dstPos+i] = (float) a[srcPos+i];
+    }
+    else if (src instanceof char[]) {
+      char[] a = (char[]) src;
+      for(i=0; i < length; i++) dst[dstPos+i] = (float) a[srcPos+i];
+    }
+    else {
+      throw new ClassCastException("not a numeric array: " + 
+				   src.getClass().getName());
+    }
+  }
+
+  /**
+   * copy length values from a 1d array of any numeric primitive type 
+   * into a double array, converting each value.
+   * @exception ClassCastException if src is not a numeric array
+   */
+  public static void copyToDouble(Object src, int srcPos, 
+				  double[] dst, int dstPos, int length) 
+  {
+    int i;
+    if (src instanceof double[]) {
+      System.arraycopy(src, srcPos, dst, dstPos, length);
+    }
+    else if (src instanceof float[]) {
+      float[] a = (float[]) src;
+      for(i=0; i < length; i++) dst[dstPos+i] = (double) a[srcPos+i];
+    }
+    else if (src instanceof int[]) {
+      int[] a = (int[]) src;
+      for(i=0; i < length; i++) dst[dstPos+i] = (double) a[srcPos+i];
+    }
+    else if (src instanceof short[]) {
+      short[] a = (short[]) src;
+      for(i=0; i < length; i++) dst[dstPos+i] = (double) a[srcPos+i];
+    }
+    else if (src instanceof byte[]) {
+      byte[] a = (byte[]) src;
+      for(i=0; i < length; i++) dst[dstPos+i] = (double) a[srcPos+i];
+    }
+    else if (src instanceof long[]) {
+      long[] a = (long[]) src;
+      for(i=0; i < length; i++) dst[dstPos+i] = (double) a[srcPos+i];
+    }
+    else if (src instanceof char[]) {
+      char[] a = (char[]) src;
+      for(i=0; i < length; i++) dst[dstPos+i] = (double) a[srcPos+i];
+    }
+    else {
+      throw new ClassCastException("not a numeric array: " + 
+				   src.getClass().getName());
+    }
+  }
 }
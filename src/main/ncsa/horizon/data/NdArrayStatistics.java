@@ -0,0 +1,244 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.data;
+
+/**
+ * the summary statistics of the values in an NdArrayData (or a 
+ * sub-volume of one), as computed by StatisticsEngine or 
+ * StreamingStatistics.  The minimum, maximum, mean, and standard 
+ * deviation are computed from the finite values only; NaNs and 
+ * infinities are counted separately. <p>
+ *
+ * Percentiles are estimated from a histogram of the finite values when
+ * its bins were chosen to cover the bulk of the values (as 
+ * StatisticsEngine does when it scans a whole region); otherwise, they
+ * come from a quantile sketch, which is accurate in rank to a fraction
+ * of a percent.  The percentiles are the basis for the robust display 
+ * ranges returned by getClipRange() and getZScaleRange(), which, unlike
+ * the minimum and maximum, are not thrown off by a few extreme pixels.
+ */
+public class NdArrayStatistics {
+
+  /**
+   * the number of histogram bins 
+   */
+  public final static int HISTOGRAM_BINS = 4096;
+
+  /**
+   * the default contrast parameter for getZScaleRange()
+   */
+  public final static double ZSCALE_CONTRAST = 0.25;
+
+  protected long count = 0;
+  protected long nanCount = 0;
+  protected long infCount = 0;
+  protected double min = Double.NaN, max = Double.NaN;
+  protected double mean = Double.NaN, sigma = Double.NaN;
+  protected Histogram histogram = null;
+  protected QuantileSketch sketch = null;
+  protected boolean preciseHistogram = false;
+
+  /**
+   * create a statistics object.  This is normally done by 
+   * StatisticsEngine or StreamingStatistics.
+   * @param histogram  a histogram of the finite values, or null
+   * @param sketch     a quantile sketch of the finite values, or null
+   * @param precise    true if the histogram's bins cover the bulk of 
+   *                   the values finely enough that it should be used 
+   *                   for percentiles in preference to the sketch
+   */
+  protected NdArrayStatistics(long count, long nanCount, long infCount,
+			      double min, double max, double mean, 
+			      double sigma, Histogram histogram, 
+			      QuantileSketch sketch, boolean precise) 
+  {
+    this.count = count;
+    this.nanCount = nanCount;
+    this.infCount = infCount;
+    this.min = min;
+    this.max = max;
+    this.mean = mean;
+    this.sigma = sigma;
+    this.histogram = histogram;
+    this.sketch = sketch;
+    preciseHistogram = precise && histogram != null;
+  }
+
+  /**
+   * return the number of finite values
+   */
+  public long getCount() { return count; }
+
+  /**
+   * return the number of NaN (undefined) values
+   */
+  public long getNaNCount() { return nanCount; }
+
+  /**
+   * return the number of infinite values
+   */
+  public long getInfiniteCount() { return infCount; }
+
+  /**
+   * return the minimum finite value, or NaN if there are none
+   */
+  public double getMinimum() { return min; }
+
+  /**
+   * return the maximum finite value, or NaN if there are none
+   */
+  public double getMaximum() { return max; }
+
+  /**
+   * return the mean of the finite values, or NaN if there are none
+   */
+  public double getMean() { return mean; }
+
+  /**
+   * return the standard deviation of the finite values, or NaN if 
+   * there are none
+   */
+  public double getSigma() { return sigma; }
+
+  /**
+   * return the histogram of the finite values, or null if there are 
+   * none.  The histogram should not be modified.
+   */
+  public Histogram getHistogram() { return histogram; }
+
+  /**
+   * return an estimate of the value below which a given percentage of
+   * the finite values fall.  getPercentile(0) returns the minimum and 
+   * getPercentile(100) the maximum.
+   * @param pct  the percentage, between 0 and 100
+   * @return the value, or NaN if there are no finite values
+   */
+  public double getPercentile(double pct) {
+    if (count == 0) return Double.NaN;
+    if (pct <= 0.0) return min;
+    if (pct >= 100.0) return max;
+
+    double out = Double.NaN;
+    if (preciseHistogram) out = histogram.getQuantile(pct / 100.0);
+    if (Double.isNaN(out) && sketch != null) 
+      out = sketch.getQuantile(pct / 100.0);
+    if (Double.isNaN(out) && histogram != null) 
+      out = histogram.getQuantile(pct / 100.0);
+    if (Double.isNaN(out)) return (pct < 50.0) ? min : max;
+    return Math.max(min, Math.min(max, out));
+  }
+
+  /**
+   * return the range of values that excludes the most extreme values 
+   * at either end, keeping the given percentage of the values in 
+   * between.  For example, getClipRange(99.5) excludes the lowest and 
+   * highest 0.25%.
+   * @return a two-element array holding the low and high values
+   */
+  public double[] getClipRange(double pct) {
+    double tail = (100.0 - pct) / 2.0;
+    double[] out = { getPercentile(tail), getPercentile(100.0 - tail) };
+    return out;
+  }
+
+  /**
+   * return the display range computed with the "zscale" algorithm 
+   * (as used by IRAF's display task and ds9) with the default contrast.
+   * @return a two-element array holding the low and high values
+   */
+  public double[] getZScaleRange() {
+    return getZScaleRange(ZSCALE_CONTRAST);
+  }
+
+  /**
+   * return the display range computed with the "zscale" algorithm:
+   * a line is fit (with iterative rejection of outliers) to a sorted 
+   * sample of the values, and the range is set by the median and 
+   * the slope of the line divided by the contrast.  The sample is 
+   * drawn from the percentiles of the data.
+   * @param contrast  the contrast parameter; smaller values give a 
+   *                  wider range.
+   * @return a two-element array holding the low and high values
+   */
+  public double[] getZScaleRange(double contrast) {
+    double[] out = { min, max };
+    if (count < 2) return out;
+
+    int npix = (int) Math.min(600, count);
+    double[] y = new double[npix];
+    for(int i=0; i < npix; i++) 
+      y[i] = getPercentile(100.0 * (i + 0.5) / npix);
+
+    int center = npix / 2;
+    double median = y[center];
+
+    // fit a line to the sorted sample, rejecting outliers
+    boolean[] good = new boolean[npix];
+    for(int i=0; i < npix; i++) good[i] = true;
+    int ngood = npix, minpix = Math.max(5, npix/2);
+    double slope = 0.0, intercept = median;
+    for(int iter=0; iter < 5; iter++) {
+      double sx=0, sy=0, sxx=0, sxy=0;
+      for(int i=0; i < npix; i++) {
+	if (! good[i]) continue;
+	sx += i;  sy += y[i];  sxx += (double) i*i;  sxy += i*y[i];
+      }
+      double det = ngood*sxx - sx*sx;
+      if (det == 0.0) break;
+      slope = (ngood*sxy - sx*sy) / det;
+      intercept = (sy - slope*sx) / ngood;
+
+      double ss = 0.0, r;
+      for(int i=0; i < npix; i++) {
+	if (! good[i]) continue;
+	r = y[i] - (intercept + slope*i);
+	ss += r*r;
+      }
+      double thresh = 2.5 * Math.sqrt(ss / ngood);
+      int nreject = 0;
+      for(int i=0; i < npix; i++) {
+	if (good[i] && 
+	    Math.abs(y[i] - (intercept + slope*i)) > thresh) 
+	{
+	  good[i] = false;
+	  nreject++;
+	}
+      }
+      ngood -= nreject;
+      if (nreject == 0 || ngood < minpix) break;
+    }
+
+    if (ngood >= minpix && contrast > 0.0) {
+      slope /= contrast;
+      out[0] = Math.max(min, median - center*slope);
+      out[1] = Math.min(max, median + (npix - 1 - center)*slope);
+    }
+    return out;
+  }
+
+  public String toString() {
+    return "count=" + count + " NaN=" + nanCount + " inf=" + infCount + 
+	   " min=" + min + " max=" + max + " mean=" + mean + 
+	   " sigma=" + sigma;
+  }
+}
@@ -40,6 +40,24 @@ import java.awt.Event;
  * and arrays of Number objects or any of the corresponding primitive 
  * types (integer, long, float, and double).  <p>
  *
+ * The range that calcRange() returns depends on the range method (see 
+ * setRangeMethod()): RANGE_MINMAX gives the full range of the data; 
+ * RANGE_CLIP excludes a small fraction of the most extreme values 
+ * (so that a few hot pixels do not compress everything else into a 
+ * couple of levels); RANGE_ZSCALE gives the IRAF-style z-scale range.
+ * The latter two are computed from the histogram kept by 
+ * StatisticsEngine. <p>
+ *
+ * The array forms of getLevels() are meant for converting whole images
+ * and avoid calling getLevel() for each value: byte and short arrays 
+ * are converted through a lookup table holding the level of every 
+ * possible value, and the other types through an inlined form of the
+ * linear function (or, for subclasses whose isLinear() returns false, 
+ * a table giving the level of each of many small intervals across the
+ * range; only values in an interval that straddles two levels need a 
+ * call to getLevel()).  The tables are rebuilt when the range, dynamic
+ * range, or function changes. <p>
+ *
  * See also: <br>
  * @see #TransformFunction
  *
@@ -62,6 +80,44 @@ public class NumericTransferFunction extends TransferFunction {
      */
     protected double max;
 
+    /** calcRange() returns the full range of the data */
+    public final static int RANGE_MINMAX = 0;
+
+    /** calcRange() returns the range containing getClipPercent() of 
+     *  the data */
+    public final static int RANGE_CLIP = 1;
+
+    /** calcRange() returns the z-scale range of the data */
+    public final static int RANGE_ZSCALE = 2;
+
+    /**
+     * the method calcRange() uses; one of RANGE_MINMAX, RANGE_CLIP, 
+     * or RANGE_ZSCALE
+     */
+    protected int rangeMethod = RANGE_MINMAX;
+
+    /**
+     * the percentage of the values that the RANGE_CLIP range contains
+     */
+    protected double clipPercent = 99.5;
+
+    /**
+     * the number of intervals the range is divided into by the table 
+     * used to convert non-byte, non-short values when isLinear() is 
+     * false
+     */
+    protected final static int FRACTION_TABLE_SIZE = 1 << 16;
+
+    // the lookup tables used by the array getLevels() methods; each is
+    // built on first use for the range, dynamic range, and function 
+    // recorded in tableMin, tableMax, and tableRange
+    private int[] byteTable = null, shortTable = null, fractionTable = null;
+    private double tableMin = Double.NaN, tableMax = Double.NaN;
+    private int tableRange = 0;
+
+    // incremented whenever the function changes
+    private long revision = 0;
+
     /**
      * create a NumericTransferFunction with a dynamic range of 256
      * and a range of 0 to 252
@@ -126,7 +182,7 @@ public class NumericTransferFunction extends TransferFunction {
      * for mapping rules.
      */
     public int getLevel(double value) {
-	if (value == Double.NaN) 
+	if (value != value)         // NaN
 	    return 0;
 	else if (value < min) 
 	    return 1;
@@ -227,11 +283,11 @@ public class NumericTransferFunction extends TransferFunction {
      * apply a linear transfer function to an array of input values.  See
      * getLevel(Object) for mapping rules.
      */
-    public synchronized int[] getLevels(double[] values) {
+    public int[] getLevels(double[] values) {
 	int[] out = new int[values.length];
-	for (int i=0; i < values.length; i++) {
-	    out[i] = getLevel( values[i] );
-	}
+	Mapping m = getMapping();
+	for (int i=0; i < values.length; i++) 
+	    out[i] = m.level(values[i]);
 	return out;
     }
 
@@ -239,11 +295,11 @@ public class NumericTransferFunction extends TransferFunction {
      * apply a linear transfer function to an array of input values.  See
      * getLevel(Object) for mapping rules.
      */
-    public synchronized int[] getLevels(float[] values) {
+    public int[] getLevels(float[] values) {
 	int[] out = new int[values.length];
-	for (int i=0; i < values.length; i++) {
-	    out[i] = getLevel( (double) values[i] );
-	}
+	Mapping m = getMapping();
+	for (int i=0; i < values.length; i++) 
+	    out[i] = m.level(values[i]);
 	return out;
     }
 
@@ -251,11 +307,11 @@ public class NumericTransferFunction extends TransferFunction {
      * apply a linear transfer function to an array of input values.  See
      * getLevel(Object) for mapping rules.
      */
-    public synchronized int[] getLevels(int[] values) {
+    public int[] getLevels(int[] values) {
 	int[] out = new int[values.length];
-	for (int i=0; i < values.length; i++) {
-	    out[i] = getLevel( (double) values[i] );
-	}
+	Mapping m = getMapping();
+	for (int i=0; i < values.length; i++) 
+	    out[i] = m.level(values[i]);
 	return out;
     }
 
@@ -263,14 +319,88 @@ public class NumericTransferFunction extends TransferFunction {
      * apply a linear transfer function to an array of input values.  See
      * getLevel(Object) for mapping rules.
      */
-    public synchronized int[] getLevels(long[] values) {
+    public int[] getLevels(long[] values) {
 	int[] out = new int[values.length];
-	for(int i=0; i < values.length; i++) {
-	    out[i] = getLevel( (double) values[i] );
-	}
+	Mapping m = getMapping();
+	for(int i=0; i < values.length; i++) 
+	    out[i] = m.level(values[i]);
 	return out;
     }
 
+    /**
+     * convert a block of values to levels, storing them as unsigned 
+     * bytes (e.g. indices into an 8-bit IndexColorModel); levels above 
+     * 255 are stored as 255.  The values are taken as nrows rows of 
+     * ncols values each, laid out contiguously; the rows of levels are 
+     * stored outStride bytes apart, which may be negative (e.g. to flip
+     * an image vertically as it is stored).  Nothing is allocated per 
+     * value or per row.
+     * @param values    the input values
+     * @param from      the index of the first value
+     * @param ncols     the number of values in a row
+     * @param nrows     the number of rows
+     * @param out       the output array
+     * @param outFrom   the index in out of the first level of the first row
+     * @param outStride the distance in out between the starts of 
+     *                  successive rows
+     */
+    public void getLevels(double[] values, int from, int ncols, int nrows, 
+			  byte[] out, int outFrom, int outStride) 
+    {
+	getLevels(values, from, ncols, ncols, nrows, out, outFrom, outStride);
+    }
+
+    /**
+     * convert a block of values to levels, storing them as unsigned 
+     * bytes, as getLevels(double[], int, int, int, byte[], int, int) 
+     * does, but taking the rows of values from inStride values apart 
+     * (e.g. to convert a region of a larger plane).
+     * @param values    the input values
+     * @param from      the index of the first value
+     * @param inStride  the distance in values between the starts of 
+     *                  successive rows
+     * @param ncols     the number of values in a row
+     * @param nrows     the number of rows
+     * @param out       the output array
+     * @param outFrom   the index in out of the first level of the first row
+     * @param outStride the distance in out between the starts of 
+     *                  successive rows
+     */
+    public void getLevels(double[] values, int from, int inStride, 
+			  int ncols, int nrows, 
+			  byte[] out, int outFrom, int outStride) 
+    {
+	Mapping m = getMapping();
+	int l;
+	for(int j=0; j < nrows; j++) {
+	    int in = from + j*inStride, o = outFrom + j*outStride;
+	    for(int i=0; i < ncols; i++) {
+		l = m.level(values[in+i]);
+		out[o+i] = (byte) ((l > 255) ? 255 : l);
+	    }
+	}
+    }
+
+    /**
+     * convert a block of float values to levels, storing them as 
+     * unsigned bytes; see getLevels(double[], int, int, int, int, 
+     * byte[], int, int).
+     */
+    public void getLevels(float[] values, int from, int inStride, 
+			  int ncols, int nrows, 
+			  byte[] out, int outFrom, int outStride) 
+    {
+	Mapping m = getMapping();
+	int l;
+	for(int j=0; j < nrows; j++) {
+	    int in = from + j*inStride, o = outFrom + j*outStride;
+	    for(int i=0; i < ncols; i++) {
+		l = m.level(values[in+i]);
+		out[o+i] = (byte) ((l > 255) ? 255 : l);
+	    }
+	}
+    }
+
     /**
      * return a value that is representative of the input bin level
      */
@@ -280,25 +410,27 @@ public class NumericTransferFunction extends TransferFunction {
 
     /**
      * apply a linear transfer function to an array of input values.  See
-     * getLevel(Object) for mapping rules.
+     * getLevel(Object) for mapping rules.  The levels are looked up in a
+     * table of all 256 possible values.
      */
-    public synchronized int[] getLevels(byte[] values) {
+    public int[] getLevels(byte[] values) {
         int[] out = new int[values.length];
-        for (int i=0; i < values.length; i++) {
-            out[i] = getLevel( (double) values[i] );
-        }
+	int[] table = getByteTable();
+        for (int i=0; i < values.length; i++) 
+            out[i] = table[values[i] + 128];
         return out;
     }
 
     /**
      * apply a linear transfer function to an array of input values.  See
-     * getLevel(Object) for mapping rules.
+     * getLevel(Object) for mapping rules.  The levels are looked up in a
+     * table of all 65536 possible values.
      */
-    public synchronized int[] getLevels(short[] values) {
+    public int[] getLevels(short[] values) {
         int[] out = new int[values.length];
-        for(int i=0; i < values.length; i++) {
-            out[i] = getLevel( (double) values[i] );
-        }
+	int[] table = getShortTable();
+        for(int i=0; i < values.length; i++) 
+            out[i] = table[values[i] + 32768];
         return out;
     }
 
@@ -379,6 +511,141 @@ public class NumericTransferFunction extends TransferFunction {
     public Object getMaximum() { return new Double(max); }
     public double getMaxAsDouble() { return max; }
 
+    /**
+     * return true if getLevel(double) is the linear function implemented
+     * by this class.  A subclass that overrides getLevel(double) with a 
+     * different (monotonically increasing) function must override this
+     * to return false when that function is in use, so that the array
+     * forms of getLevels() use a table sampled from getLevel(double) 
+     * rather than the inlined linear function.
+     */
+    protected boolean isLinear() { return true; }
+
+    /**
+     * discard the lookup tables used by getLevels().  Changes to the 
+     * range and dynamic range are detected automatically; a subclass 
+     * should call this whenever it changes the function in some other 
+     * way (e.g. by switching modes).
+     */
+    protected synchronized void levelsChanged() {
+	byteTable = shortTable = fractionTable = null;
+	revision++;
+    }
+
+    /**
+     * return a number that changes whenever the function does (i.e. 
+     * its range, dynamic range, or mode), so that levels computed 
+     * earlier can be known to be still valid if it is the same as 
+     * when they were computed.
+     */
+    public synchronized long getRevision() {
+	checkTables();
+	return revision;
+    }
+
+    // discard the tables if the range has changed since they were built
+    private void checkTables() {
+	if (tableMin != min || tableMax != max || tableRange != dynarange) {
+	    levelsChanged();
+	    tableMin = min;
+	    tableMax = max;
+	    tableRange = dynarange;
+	}
+    }
+
+    private synchronized int[] getByteTable() {
+	checkTables();
+	if (byteTable == null) {
+	    int[] table = new int[256];
+	    for(int i=0; i < table.length; i++) 
+		table[i] = getLevel((double) (i - 128));
+	    byteTable = table;
+	}
+	return byteTable;
+    }
+
+    private synchronized int[] getShortTable() {
+	checkTables();
+	if (shortTable == null) {
+	    int[] table = new int[65536];
+	    for(int i=0; i < table.length; i++) 
+		table[i] = getLevel((double) (i - 32768));
+	    shortTable = table;
+	}
+	return shortTable;
+    }
+
+    /**
+     * capture the current function for converting an array 
+     */
+    private synchronized Mapping getMapping() {
+	checkTables();
+	int[] table = null;
+	if (! isLinear() && max > min) {
+	    if (fractionTable == null) {
+		// table[i] is the level of the values in the i-th of 
+		// FRACTION_TABLE_SIZE equal intervals of the range, or -1 
+		// if the interval spans more than one level
+		table = new int[FRACTION_TABLE_SIZE+1];
+		double step = (max - min) / FRACTION_TABLE_SIZE;
+		int prev = getLevel(min), next;
+		for(int i=0; i < FRACTION_TABLE_SIZE; i++) {
+		    next = getLevel(min + (i+1)*step);
+		    table[i] = (next == prev) ? prev : -1;
+		    prev = next;
+		}
+		table[FRACTION_TABLE_SIZE] = getLevel(max);
+		fractionTable = table;
+	    }
+	    table = fractionTable;
+	}
+	return new Mapping(this, table);
+    }
+
+    /**
+     * a snapshot of the transfer function used to convert one array; 
+     * level() does what getLevel(double) does without a method call 
+     * per value (beyond level() itself, which is small enough to be 
+     * inlined).
+     */
+    static class Mapping {
+	final double lo, hi, scale, offset;
+	final int top;
+	final int[] table;
+	final NumericTransferFunction tf;
+
+	Mapping(NumericTransferFunction tf, int[] table) {
+	    this.tf = tf;
+	    this.table = table;
+	    lo = tf.min;
+	    hi = tf.max;
+	    top = tf.dynarange-1;
+	    if (table != null) {
+		scale = FRACTION_TABLE_SIZE / (hi - lo);
+		offset = 0.0;
+	    }
+	    else if (hi > lo) {
+		scale = (tf.dynarange-4) / (hi - lo);
+		offset = 2.5;
+	    }
+	    else {
+		scale = 0.0;
+		offset = (tf.dynarange-4)/2 + 2.5;
+	    }
+	}
+
+	final int level(double v) {
+	    if (v >= lo) {
+		if (v > hi) return top;
+		int l = (int) (scale*(v - lo) + offset);
+		if (table == null) return l;
+		l = table[l];
+		return (l < 0) ? tf.getLevel(v) : l;
+	    }
+	    return (v < lo) ? 1 : 0;    // 0 for NaN
+	}
+    }
+
     /**
      * return a string representation of the input value
      */
@@ -387,6 +654,42 @@ public class NumericTransferFunction extends TransferFunction {
 	    val.toString() : Double.toString(Double.NaN);
     }
 
+    /**
+     * set the method calcRange() uses to determine the range.  
+     * @param method  one of RANGE_MINMAX, RANGE_CLIP, or RANGE_ZSCALE
+     * @exception IllegalArgumentException if method is not recognized
+     */
+    public void setRangeMethod(int method) {
+	if (method < RANGE_MINMAX || method > RANGE_ZSCALE) 
+	    throw new IllegalArgumentException("Unrecognized range method: "
+					       + method);
+	rangeMethod = method;
+    }
+
+    /**
+     * return the method calcRange() uses to determine the range
+     */
+    public int getRangeMethod() { return rangeMethod; }
+
+    /**
+     * set the percentage of the values that the RANGE_CLIP range 
+     * will contain; equal fractions are excluded from each end.
+     * @exception IllegalArgumentException if pct is not greater than 0
+     *            and no greater than 100
+     */
+    public void setClipPercent(double pct) {
+	if (! (pct > 0.0 && pct <= 100.0)) 
+	    throw new IllegalArgumentException("Clip percentage out of " +
+					       "range: " + pct);
+	clipPercent = pct;
+    }
+
+    /**
+     * return the percentage of the values that the RANGE_CLIP range 
+     * contains
+     */
+    public double getClipPercent() { return clipPercent; }
+
     /**
      * return a two element array that gives the minimum and maximum 
      * values for in a viewable dataset or null if the viewable cannot 
@@ -398,8 +701,6 @@ public class NumericTransferFunction extends TransferFunction {
     public Object[] calcRange(Viewable v) {
 	NdArrayData data = v.getData();
 	if (data == null) return null;
-	Volume vol = data.getVolume();
-	int[] sz = vol.getTrueSize();
 
 	JavaType t = data.getType();
 	if (t != JavaType.DOUBLE && t != JavaType.FLOAT &&
@@ -408,43 +709,58 @@ public class NumericTransferFunction extends TransferFunction {
 	    throw new IllegalArgumentException("Viewable does not contain " +
 					       "numeric data");
 
-	double mnval = Double.POSITIVE_INFINITY, 
-	       mxval = Double.NEGATIVE_INFINITY,
-	       val;
-	Object wrap;
-	
-	int[] vx;
-	int i,j;
-	long npts = sz[0];
-	for(i=1; i < sz.length; i++) npts *= sz[i];
-	for(i=0; i < npts; i++) {
-//	    vx = NdArrayMath.indexNumberToArray(i, sz);
-	    try {
-		val = ((Number) data.getValue(i)).doubleValue();
-	    }
-	    catch (ClassCastException ex) {
-//		System.err.println("data type: " + data.getClass().getName());
-		throw new IllegalArgumentException("Viewable does not " +
-						   "contain numeric data");
-	    }
+	// the (cached) statistics exclude NaNs and infinities
+	NdArrayStatistics stats;
+	try {
+	    stats = StatisticsEngine.getStatistics(data);
+	}
+	catch (ClassCastException ex) {
+	    throw new IllegalArgumentException("Viewable does not " +
+					       "contain numeric data");
+	}
+	catch (NumberFormatException ex) {
+	    throw new IllegalArgumentException("Viewable does not " +
+					       "contain numeric data");
+	}
 
-	    if (val != Double.NaN && val != Float.NaN && 
-		val != Double.NEGATIVE_INFINITY && 
-		val != Double.POSITIVE_INFINITY &&
-		val != Float.NEGATIVE_INFINITY  && 
-		val != Float.POSITIVE_INFINITY) 
-	    {
-		if (val < mnval) mnval = val;
-		if (val > mxval) mxval = val;
-	    }
+	return rangeFrom(stats);
+    }
+
+    /**
+     * return a two element array that gives the range of the values 
+     * within a region of an NdArrayData (e.g. the slice currently being
+     * displayed), as determined by the current range method.  
+     * @exceptions IllegalArgumentException if the data are not numeric
+     */
+    public Object[] calcRange(NdArrayData data, Volume region) {
+	NdArrayStatistics stats;
+	try {
+	    stats = StatisticsEngine.getStatistics(data, region);
 	}
-	if (mnval == Double.POSITIVE_INFINITY &&
-	    mxval == Double.POSITIVE_INFINITY)   mnval = mxval = 0.0;
+	catch (ClassCastException ex) {
+	    throw new IllegalArgumentException("Data are not numeric");
+	}
+	catch (NumberFormatException ex) {
+	    throw new IllegalArgumentException("Data are not numeric");
+	}
+
+	return rangeFrom(stats);
+    }
+
+    private Object[] rangeFrom(NdArrayStatistics stats) {
+	double[] range;
+	if (stats.getCount() == 0) 
+	    range = new double[] { 0.0, 0.0 };
+	else if (rangeMethod == RANGE_CLIP) 
+	    range = stats.getClipRange(clipPercent);
+	else if (rangeMethod == RANGE_ZSCALE) 
+	    range = stats.getZScaleRange();
+	else 
+	    range = new double[] { stats.getMinimum(), stats.getMaximum() };
 
 	Object[] out = new Object[2];
-	System.err.println("range = " + mnval + ", " + mxval);
-	out[0] = JavaType.DOUBLE.wrap(mnval);
-	out[1] = JavaType.DOUBLE.wrap(mxval);
+	out[0] = JavaType.DOUBLE.wrap(range[0]);
+	out[1] = JavaType.DOUBLE.wrap(range[1]);
 
 	return out;
     }
@@ -0,0 +1,234 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.data;
+
+import java.util.Arrays;
+
+/**
+ * a compact, mergeable summary of a stream of values from which 
+ * approximate quantiles can be estimated.  The sketch keeps a series 
+ * of buffers ("compactors"), each holding up to k values; a value in 
+ * the buffer at level h stands for 2^h of the original values.  When a
+ * buffer fills, it is sorted and every other value (starting at a 
+ * randomly chosen position) is promoted to the next level.  The rank 
+ * error of a quantile estimate is proportional to 
+ * log2(n/k)/k, where n is the number of values added; with the default
+ * k of 512 it is well under one percent for any practical n. <p>
+ *
+ * Sketches built from separate parts of a data set (e.g. by different
+ * threads) can be combined with merge(). <p>
+ *
+ * NaNs must not be added to the sketch.
+ */
+public class QuantileSketch {
+
+  /**
+   * the default buffer size
+   */
+  public final static int DEFAULT_K = 512;
+
+  protected int k;
+  protected double[][] levels = new double[4][];
+  protected int[] fill = new int[4];
+  protected int nlevels = 0;
+  protected long count = 0;
+  protected double min = Double.POSITIVE_INFINITY;
+  protected double max = Double.NEGATIVE_INFINITY;
+
+  // for choosing which half of a buffer to promote
+  private long seed;
+
+  /**
+   * create an empty sketch with the default buffer size
+   */
+  public QuantileSketch() { this(DEFAULT_K); }
+
+  /**
+   * create an empty sketch
+   * @param k  the number of values held at each level; larger values 
+   *           give more accurate estimates.  It is rounded up to an 
+   *           even number.
+   */
+  public QuantileSketch(int k) {
+    if (k < 2) throw new IllegalArgumentException("k too small: " + k);
+    this.k = k + (k % 2);
+    seed = System.identityHashCode(this) ^ 0x5DEECE66DL;
+  }
+
+  /**
+   * return the number of values that have been added
+   */
+  public long getCount() { return count; }
+
+  /**
+   * return the smallest value added
+   */
+  public double getMinimum() { return min; }
+
+  /**
+   * return the largest value added
+   */
+  public double getMaximum() { return max; }
+
+  private double[] level(int h) {
+    if (h >= levels.length) {
+      int n = levels.length;
+      while (n <= h) n *= 2;
+      double[][] tmp = new double[n][];
+      System.arraycopy(levels, 0, tmp, 0, levels.length);
+      levels = tmp;
+      int[] itmp = new int[n];
+      System.arraycopy(fill, 0, itmp, 0, fill.length);
+      fill = itmp;
+    }
+    if (levels[h] == null) {
+      levels[h] = new double[k];
+      if (h >= nlevels) nlevels = h+1;
+    }
+    return levels[h];
+  }
+
+  /**
+   * add a value to the sketch
+   */
+  public void add(double value) {
+    count++;
+    if (value < min) min = value;
+    if (value > max) max = value;
+    insert(0, value);
+  }
+
+  /**
+   * add the first n values of an array, skipping NaNs and infinities
+   */
+  public void add(double[] values, int n) {
+    double v;
+    for(int i=0; i < n; i++) {
+      v = values[i];
+      if (v - v == 0.0) add(v);
+    }
+  }
+
+  private void insert(int h, double value) {
+    double[] buf = level(h);
+    buf[fill[h]++] = value;
+    if (fill[h] == k) compact(h);
+  }
+
+  /**
+   * sort a full level and promote half of it to the next level
+   */
+  private void compact(int h) {
+    double[] buf = levels[h];
+    int n = fill[h];
+    Arrays.sort(buf, 0, n);
+    seed = seed * 6364136223846793005L + 1442695040888963407L;
+    int offset = (int) ((seed >>> 33) & 1);
+    fill[h] = 0;
+    for(int i=offset; i < n; i += 2) insert(h+1, buf[i]);
+  }
+
+  /**
+   * add the contents of another sketch to this one
+   */
+  public void merge(QuantileSketch that) {
+    count += that.count;
+    if (that.min < min) min = that.min;
+    if (that.max > max) max = that.max;
+    for(int h=0; h < that.nlevels; h++) {
+      for(int i=0; i < that.fill[h]; i++) insert(h, that.levels[h][i]);
+    }
+  }
+
+  /**
+   * return an estimate of the value below which the given fraction of 
+   * the added values fall.
+   * @param q   the fraction, between 0 and 1
+   * @return the estimate, or NaN if the sketch is empty
+   */
+  public double getQuantile(double q) {
+    double[] out = getQuantiles(new double[] { q });
+    return out[0];
+  }
+
+  /**
+   * return estimates of several quantiles at once.  This is cheaper 
+   * than calling getQuantile() for each.
+   * @param q   the fractions, each between 0 and 1, in increasing order
+   */
+  public double[] getQuantiles(double[] q) {
+    double[] out = new double[q.length];
+    if (count == 0) {
+      Arrays.fill(out, Double.NaN);
+      return out;
+    }
+
+    // gather the retained values with their weights, in sorted order
+    int n = 0;
+    for(int h=0; h < nlevels; h++) n += fill[h];
+    double[] vals = new double[n];
+    long[] wts = new long[n];
+    int j = 0;
+    for(int h=0; h < nlevels; h++) {
+      for(int i=0; i < fill[h]; i++) {
+	vals[j] = levels[h][i];
+	wts[j++] = 1L << h;
+      }
+    }
+    sortByValue(vals, wts);
+    long total = 0;
+    for(int i=0; i < n; i++) total += wts[i];
+
+    int i = 0;
+    long below = 0;
+    for(int iq=0; iq < q.length; iq++) {
+      if (q[iq] <= 0.0) { out[iq] = min; continue; }
+      if (q[iq] >= 1.0) { out[iq] = max; continue; }
+      double rank = q[iq] * total;
+      while (i < n-1 && below + wts[i] < rank) below += wts[i++];
+      out[iq] = vals[i];
+    }
+    return out;
+  }
+
+  private static void sortByValue(double[] vals, long[] wts) {
+    int n = vals.length;
+    Integer[] idx = new Integer[n];
+    for(int i=0; i < n; i++) idx[i] = new Integer(i);
+    final double[] v = vals;
+    Arrays.sort(idx, new java.util.Comparator() {
+      public int compare(Object a, Object b) {
+	return Double.compare(v[((Integer) a).intValue()], 
+			      v[((Integer) b).intValue()]);
+      }
+    });
+    double[] sv = new double[n];
+    long[] sw = new long[n];
+    for(int i=0; i < n; i++) {
+      sv[i] = vals[idx[i].intValue()];
+      sw[i] = wts[idx[i].intValue()];
+    }
+    System.arraycopy(sv, 0, vals, 0, n);
+    System.arraycopy(sw, 0, wts, 0, n);
+  }
+}
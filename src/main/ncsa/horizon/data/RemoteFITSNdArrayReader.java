@@ -0,0 +1,334 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+package ncsa.horizon.data;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Vector;
+import ncsa.fits.fits.*;
+import ncsa.horizon.util.*;
+
+/**
+ * NdArrayReader implementation for a FITS file on an HTTP server that
+ * supports Range requests.  Only the headers are fetched when the 
+ * reader is created; the NdArrayData returned by getNdArrayData() is a
+ * TiledNdArrayData that fetches the bytes of the tiles (bands of rows)
+ * a request covers, through a RemoteFile with a block cache.  Viewing
+ * one plane of a large remote cube therefore transfers about one 
+ * plane of data.  Every image array in the file (the primary array and
+ * any IMAGE extensions) is available, numbered from 0 in file order.
+ * Tile-compressed images are not; a FITSNdArrayReader reading the URL
+ * as a stream can be used for those, and for servers without Range
+ * support.
+ */
+public class RemoteFITSNdArrayReader extends NdArrayReader {
+
+  private RemoteFile remote;
+  private ImageArray[] arrays;
+
+  /**
+   * the state kept for each available image array
+   */
+  private class ImageArray {
+    Header header;
+    long dataOffset;
+    FITSImageDecoder decoder;
+    Metadata md = null;
+  }
+
+  /**
+   * Disabled.  No argument constructor, do nothing. It is protected
+   * so cannot be instanticated this way.
+   */
+  protected RemoteFITSNdArrayReader() {
+  }
+
+  /**
+   * Construct a NdArrayReader for a remote file, without a disk cache.
+   * Exception throws if the server can't be reached, does not support
+   * Range requests, or the file is not in FITS format.
+   */
+  public RemoteFITSNdArrayReader(URL url) throws InstantiationException {
+    this(url, null);
+  }
+
+  /**
+   * Construct a NdArrayReader for a remote file, caching the blocks
+   * fetched in a directory.
+   * Exception throws if the server can't be reached, does not support
+   * Range requests, or the file is not in FITS format.
+   * @param url       the file's URL
+   * @param cacheDir  the directory for the block cache, or null for 
+   *                  none
+   */
+  public RemoteFITSNdArrayReader(URL url, File cacheDir) 
+    throws InstantiationException 
+  {
+    this(url, cacheDir, RemoteFile.DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Construct a NdArrayReader for a remote file, caching the blocks
+   * fetched in a directory and fetching blocks of a given size.
+   * Exception throws if the server can't be reached, does not support
+   * Range requests, or the file is not in FITS format.
+   * @param url        the file's URL
+   * @param cacheDir   the directory for the block cache, or null for 
+   *                   none
+   * @param blockSize  the number of bytes fetched in each block (see 
+   *                   RemoteFile)
+   */
+  public RemoteFITSNdArrayReader(URL url, File cacheDir, int blockSize) 
+    throws InstantiationException 
+  {
+    try {
+      remote = new RemoteFile(url, cacheDir, blockSize,
+			      RemoteFile.DEFAULT_MEMORY_CACHE);
+      constructVariables();
+    } catch (IOException e) {
+      System.err.println(getClass().getName() + ": " + e);
+      throw new InstantiationException(getClass().getName() + ": " + e);
+    } catch (IllegalArgumentException e) { // unsupported BITPIX
+      System.err.println(getClass().getName() + ": " + e);
+      throw new InstantiationException(getClass().getName() + ": " + e +
+			  " Maybe file is not a good FITS file.");
+    }
+  }
+
+  /**
+   * Works only for constructors: read the headers, skipping over the
+   * data segments
+   */
+  private void constructVariables() throws IOException {
+    Vector found = new Vector();
+    long offset = 0;
+    for(int i=0; offset < remote.length(); i++) {
+      Header header = new Header();
+      if (! header.readHeader(
+		 new DataInputStream(remote.openStream(offset))) ||
+	  ! header.validHeader()) 
+      {
+	if (i == 0) throw new IOException("not a FITS file: " + 
+					  remote.getURL());
+	break;
+      }
+      long dataOffset = offset + header.getSize();
+      if (FITSNdArrayReader.isImage(header, i)) {
+	ImageArray a = new ImageArray();
+	a.header = header;
+	a.dataOffset = dataOffset;
+	Double bzero = null, bscale = null;
+	Long blank = null;
+	if (header.hasKey("BZERO")) 
+	  bzero  = new Double(header.getDValue("BZERO"));
+	if (header.hasKey("BSCALE")) 
+	  bscale = new Double(header.getDValue("BSCALE"));
+	if (header.hasKey("BLANK")) 
+	  blank = new Long(header.getLValue("BLANK"));
+	a.decoder = new FITSImageDecoder(
+			(int) header.getLValue("BITPIX", 0), bscale, bzero, 
+			blank);
+	found.addElement(a);
+      }
+      offset = dataOffset + header.dataSize();
+    }
+    if (found.size() == 0) 
+      throw new IOException("no image data found in " + remote.getURL());
+    arrays = new ImageArray[found.size()];
+    found.copyInto(arrays);
+  }
+
+  /**
+   * return the state for the which_array nd array
+   * @exception IllegalArgumentException if which_array is out of range
+   */
+  private ImageArray array(int which_array) {
+    if (which_array < 0 || which_array >= arrays.length)
+      throw new IllegalArgumentException("no such nd array: " + which_array);
+    return arrays[which_array];
+  }
+
+  /**
+   * return the remote file the data are read from
+   */
+  public RemoteFile getRemoteFile() { return remote; }
+
+  /**
+   * Return how many nd arrays is available
+   */
+  public int NumberOfNdarray() {
+    return arrays.length;
+  }
+
+  /**
+   * Return the value of BITPIX for the first Nd array.
+   */
+  public int dataSize() {
+    return dataSize(0);
+  }
+
+  /**
+   * Return the value of BITPIX for the which_array Nd array.
+   */
+  public int dataSize(int which_array) {
+    return (int) array(which_array).header.getLValue("BITPIX", -1);
+  }
+
+  /**
+   * Return the NdArrayData for the first nd array.  The data are 
+   * fetched as they are requested.
+   */
+  public NdArrayData getNdArrayData() {
+    return getNdArrayData(0);
+  }
+
+  /**
+   * Return the NdArrayData for the which_array nd array.  The data 
+   * are fetched as they are requested.
+   */
+  public NdArrayData getNdArrayData(int which_array) {
+    ImageArray a = array(which_array);
+    int[] size = getSize(which_array);
+    double[] loc = new double[size.length];
+    double[] sampling = new double[size.length];
+    for (int i = 0; i < size.length; i++) {
+      loc[i] = 1.0;
+      sampling[i] = 1.0;
+    }
+    Volume aVolume = new Volume(size.length, loc, 
+			   ArrayTypeConverter.arrayIntToDouble(size), sampling);
+    return new TiledNdArrayData(
+	new RemoteImageTileSource(remote, a.dataOffset, a.decoder, size), 
+	aVolume);
+  }
+
+  public Metadata getMetadata() {
+    return getMetadata(0);
+  }
+
+  public Metadata getMetadata(int which_array) {
+    ImageArray a = array(which_array);
+    if (a.md == null) {
+      FITSMetadata aFITSmd = new FITSMetadata();
+      int ncards = (int) a.header.getCardSize();
+      for (int i = 0; i < ncards; i++) {
+	aFITSmd.scanHeaderCard(a.header.getCard(i), true);
+      }
+      aFITSmd.setHorizonMetadata();
+      a.md = aFITSmd;
+    }
+    return a.md;
+  }
+
+  /**
+   * Return the number of axes for the first Nd array.
+   */
+  public int getNaxes() {
+    return getNaxes(0);
+  }
+
+  /**
+   * Return the number of axes for the which_array Nd array.
+   */
+  public int getNaxes(int which_array) {
+    return (int) array(which_array).header.getLValue("NAXIS", -1);
+  }
+
+  /**
+   * Return the axis sizes of the first Nd-array
+   */
+  public int[] getSize() {
+    return getSize(0);
+  }
+
+  /**
+   * Return the axis sizes of the which_array Nd-array
+   */
+  public int[] getSize(int which_array) {
+    return FITSNdArrayReader.getSize(array(which_array).header);
+  }
+
+  /**
+   * Return a new stream positioned at the start of the file.
+   */
+  public InputStream getStream() {
+    return remote.openStream(0);
+  }
+
+  /**
+   * return data type of the first nd array
+   */
+  public JavaType getType() {
+    return getType(0);
+  }
+
+  /**
+   * return data type of the which_array nd array
+   */
+  public JavaType getType(int which_array) {
+    if (which_array < 0 || which_array >= arrays.length) return null;
+    return arrays[which_array].decoder.getType();
+  }
+
+  /**
+   * Return the double value at location coord 
+   * of the first nd array.
+   * IllegalArgumentException will be thrown if
+   * coord is out of bound of int[] getSize.
+   */
+  public double getValue(int[] coord) throws IllegalArgumentException {
+    return getValue(coord, 0);
+  }
+
+  /**
+   * Return the double value at location coord 
+   * of the which_array nd array.  Only the tile holding the value is
+   * fetched.
+   * IllegalArgumentException will be thrown if
+   * coord is out of bound of int[] getSize.
+   */
+  public double getValue(int[] coord, int which_array) 
+    throws IllegalArgumentException 
+  {
+    long index = NdArrayMath.indexArrayToNumber(coord, getSize(which_array));
+    return getNdArrayData(which_array).getDouble(index);
+  }
+
+  /**
+   * Return the 1d array representation of the first nd array.
+   * The whole array is fetched.
+   */
+  public Object getValue() {
+    return getValue(0);
+  }
+
+  /**
+   * Return the 1d array representation of the which_array nd array.
+   * The whole array is fetched.
+   */
+  public Object getValue(int which_array) {
+    return getNdArrayData(which_array).getValue();
+  }
+}
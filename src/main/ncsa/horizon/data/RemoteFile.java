@@ -0,0 +1,413 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+package ncsa.horizon.data;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import ncsa.horizon.util.IOPool;
+
+/**
+ * random access to the bytes of a remote file through HTTP Range 
+ * requests.  The file is divided into fixed-size blocks; only the 
+ * blocks covering the bytes asked for are fetched, adjacent missing 
+ * blocks being fetched with a single request.  Fetched blocks are kept
+ * in a memory cache of limited size and, optionally, in a directory on
+ * the local disk, where they survive from one session to the next.  
+ * Blocks cached on disk are tied to the file's length and 
+ * Last-Modified or ETag value, so a changed remote file is not served 
+ * from a stale cache.  prefetch() fetches blocks in the background on 
+ * the IOPool, so that waiting on the network ties up none of the 
+ * WorkerPool's threads.
+ */
+public class RemoteFile {
+
+  /**
+   * the default block size: 256 kbytes
+   */
+  public final static int DEFAULT_BLOCK_SIZE = 1 << 18;
+
+  /**
+   * the default size of the memory cache: 32 Mbytes
+   */
+  public final static long DEFAULT_MEMORY_CACHE = 32L*1024*1024;
+
+  protected URL url;
+  protected long length;
+  protected int blockSize;
+  protected File cacheDir;
+  protected String cacheKey;
+
+  private LinkedHashMap blocks;
+  private int maxBlocks;
+  private Set fetching = new HashSet();
+  private long requests = 0, bytesFetched = 0;
+
+  /**
+   * open a remote file with the default block size and memory cache 
+   * and no disk cache
+   * @exception IOException if the server cannot be reached or does not
+   *            support range requests
+   */
+  public RemoteFile(URL url) throws IOException {
+    this(url, null, DEFAULT_BLOCK_SIZE, DEFAULT_MEMORY_CACHE);
+  }
+
+  /**
+   * open a remote file
+   * @param url          the file's URL (http or https)
+   * @param cacheDir     the directory in which to cache blocks on disk,
+   *                     or null for no disk cache; it is created if 
+   *                     necessary
+   * @param blockSize    the number of bytes fetched in each block
+   * @param memoryCache  the number of bytes of blocks to keep in memory
+   * @exception IOException if the server cannot be reached or does not
+   *            support range requests
+   */
+  public RemoteFile(URL url, File cacheDir, int blockSize, long memoryCache)
+    throws IOException
+  {
+    this.url = url;
+    this.blockSize = blockSize;
+    maxBlocks = (int) Math.max(2, memoryCache / blockSize);
+    blocks = new LinkedHashMap(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+	return size() > maxBlocks;
+      }
+    };
+
+    // ask for the first block, which also tells us the length
+    HttpURLConnection conn = open(0, blockSize-1);
+    DataInputStream in = null;
+    try {
+      String range = conn.getHeaderField("Content-Range");
+      int slash = (range == null) ? -1 : range.lastIndexOf('/');
+      if (slash < 0 || range.endsWith("*")) 
+	throw new IOException("unable to find the length of " + url);
+      length = Long.parseLong(range.substring(slash+1).trim());
+
+      String version = conn.getHeaderField("ETag");
+      if (version == null) version = conn.getHeaderField("Last-Modified");
+      cacheKey = Integer.toHexString(url.toString().hashCode()) + "-" + 
+	Integer.toHexString(String.valueOf(version).hashCode()) + "-" + 
+	length + "-" + blockSize;
+      if (cacheDir != null) {
+	cacheDir.mkdirs();
+	if (cacheDir.isDirectory()) this.cacheDir = cacheDir;
+      }
+
+      int n = (int) Math.min(blockSize, length);
+      byte[] first = new byte[n];
+      in = new DataInputStream(conn.getInputStream());
+      readBody(in, first, 0, n);
+      store(0, first);
+    } finally {
+      if (in != null) in.close();
+      conn.disconnect();
+    }
+  }
+
+  /**
+   * request a range of bytes 
+   * @exception IOException if the server does not return the range
+   */
+  private HttpURLConnection open(long first, long last) throws IOException {
+    URLConnection uc = url.openConnection();
+    if (! (uc instanceof HttpURLConnection)) 
+      throw new IOException("not an HTTP URL: " + url);
+    HttpURLConnection conn = (HttpURLConnection) uc;
+    conn.setRequestProperty("Range", "bytes=" + first + "-" + last);
+    conn.setUseCaches(false);
+    int code = conn.getResponseCode();
+    if (code != HttpURLConnection.HTTP_PARTIAL) {
+      conn.disconnect();
+      if (code == HttpURLConnection.HTTP_OK) 
+	throw new IOException("server does not support range requests: " +
+			      url);
+      throw new IOException("HTTP error " + code + " for " + url);
+    }
+    synchronized (this) {
+      requests++;
+    }
+    return conn;
+  }
+
+  private void readBody(DataInputStream in, byte[] b, int off, int len)
+    throws IOException
+  {
+    in.readFully(b, off, len);
+    synchronized (this) {
+      bytesFetched += len;
+    }
+  }
+
+  /**
+   * return the length of the file in bytes
+   */
+  public long length() { return length; }
+
+  /**
+   * return the URL of the file
+   */
+  public URL getURL() { return url; }
+
+  /**
+   * return the number of range requests made so far
+   */
+  public synchronized long getRequestCount() { return requests; }
+
+  /**
+   * return the number of bytes fetched from the server so far
+   */
+  public synchronized long getBytesFetched() { return bytesFetched; }
+
+  /**
+   * read bytes from the file
+   * @param pos  the position in the file of the first byte
+   * @param b    the array to read into
+   * @param off  the position in b of the first byte
+   * @param len  the number of bytes to read
+   * @exception EOFException if the range extends past the end of the 
+   *            file
+   */
+  public void read(long pos, byte[] b, int off, int len) throws IOException {
+    if (pos < 0 || pos + len > length) 
+      throw new EOFException("read past the end of " + url);
+    if (len == 0) return;
+    int first = (int) (pos / blockSize);
+    int last = (int) ((pos + len - 1) / blockSize);
+    fetch(first, last);
+
+    for(int i=first; i <= last; i++) {
+      byte[] block = getBlock(i);
+      if (block == null) {
+	// evicted already, e.g. by a very large read
+	fetch(i, i);
+	block = getBlock(i);
+      }
+      long bstart = ((long) i) * blockSize;
+      int from = (int) Math.max(0, pos - bstart);
+      int to = (int) Math.min(block.length, pos + len - bstart);
+      System.arraycopy(block, from, b, off + (int) (bstart + from - pos), 
+		       to - from);
+    }
+  }
+
+  /**
+   * return a stream that reads the file sequentially from a given 
+   * position
+   */
+  public InputStream openStream(final long start) {
+    return new InputStream() {
+      long pos = start;
+      byte[] one = new byte[1];
+
+      public int read() throws IOException {
+	return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+	if (pos >= length) return -1;
+	// stop at the end of a block, so each call fetches at most one
+	long bend = (pos / blockSize + 1) * blockSize;
+	len = (int) Math.min(len, Math.min(length, bend) - pos);
+	RemoteFile.this.read(pos, b, off, len);
+	pos += len;
+	return len;
+      }
+
+      public long skip(long n) {
+	n = Math.max(0, Math.min(n, length - pos));
+	pos += n;
+	return n;
+      }
+    };
+  }
+
+  /**
+   * start fetching the blocks covering a range of bytes in the 
+   * background, if they are not already cached
+   */
+  public void prefetch(long pos, long len) {
+    pos = Math.max(0, pos);
+    len = Math.min(len, length - pos);
+    if (len <= 0) return;
+    final int first = (int) (pos / blockSize);
+    final int last = (int) ((pos + len - 1) / blockSize);
+    if (isCached(first, last)) return;
+
+    ExecutorService exec = IOPool.getExecutor();
+    exec.submit(new Runnable() {
+      public void run() {
+	try {
+	  fetch(first, last);
+	} catch (IOException ex) {
+	  // the blocks will be fetched again when they are read
+	}
+      }
+    });
+  }
+
+  private synchronized boolean isCached(int first, int last) {
+    for(int i=first; i <= last; i++) 
+      if (! blocks.containsKey(new Integer(i))) return false;
+    return true;
+  }
+
+  private synchronized byte[] getBlock(int i) {
+    return (byte[]) blocks.get(new Integer(i));
+  }
+
+  /**
+   * make sure that the blocks first through last are cached, fetching
+   * runs of missing blocks with one request each
+   */
+  private void fetch(int first, int last) throws IOException {
+    int i = first;
+    while (i <= last) {
+      // claim a run of blocks that are neither cached nor being fetched
+      int run0, run1;
+      synchronized (this) {
+	while (i <= last && blocks.containsKey(new Integer(i))) i++;
+	if (i > last) return;
+	if (fetching.contains(new Integer(i))) {
+	  // another thread is fetching it; wait for it
+	  try {
+	    wait();
+	  } catch (InterruptedException ex) {
+	    throw new InterruptedIOException("fetch interrupted");
+	  }
+	  continue;
+	}
+	run0 = i;
+	while (i <= last && ! blocks.containsKey(new Integer(i)) && 
+	       ! fetching.contains(new Integer(i))) 
+	  fetching.add(new Integer(i++));
+	run1 = i-1;
+      }
+
+      try {
+	// blocks on disk need not be fetched
+	int k = run0;
+	while (k <= run1 && loadFromDisk(k)) k++;
+	if (k <= run1) fetchRun(k, run1);
+      } finally {
+	synchronized (this) {
+	  for(int k=run0; k <= run1; k++) fetching.remove(new Integer(k));
+	  notifyAll();
+	}
+      }
+    }
+  }
+
+  /**
+   * fetch the blocks first through last with a single request
+   */
+  private void fetchRun(int first, int last) throws IOException {
+    long start = ((long) first) * blockSize;
+    long end = Math.min(length, ((long) last + 1) * blockSize);
+    HttpURLConnection conn = open(start, end-1);
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(conn.getInputStream());
+      for(int i=first; i <= last; i++) {
+	long bstart = ((long) i) * blockSize;
+	int n = (int) Math.min(blockSize, length - bstart);
+	byte[] block = new byte[n];
+	readBody(in, block, 0, n);
+	store(i, block);
+      }
+    } finally {
+      if (in != null) in.close();
+      conn.disconnect();
+    }
+  }
+
+  /**
+   * add a block to the memory cache and save it to the disk cache
+   */
+  private void store(int i, byte[] block) {
+    synchronized (this) {
+      blocks.put(new Integer(i), block);
+    }
+    if (cacheDir == null) return;
+    File f = blockFile(i);
+    if (f.exists()) return;
+    try {
+      File tmp = new File(cacheDir, f.getName() + ".tmp" + 
+			  Thread.currentThread().hashCode());
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+	out.write(block);
+      } finally {
+	out.close();
+      }
+      if (! tmp.renameTo(f)) tmp.delete();
+    } catch (IOException ex) {
+      // caching on disk is only an optimization
+    }
+  }
+
+  /**
+   * load a block from the disk cache into memory
+   * @return false if the block is not in the disk cache
+   */
+  private boolean loadFromDisk(int i) {
+    if (cacheDir == null) return false;
+    File f = blockFile(i);
+    long bstart = ((long) i) * blockSize;
+    int n = (int) Math.min(blockSize, length - bstart);
+    if (f.length() != n) return false;
+    try {
+      byte[] block = new byte[n];
+      DataInputStream in = new DataInputStream(new FileInputStream(f));
+      try {
+	in.readFully(block);
+      } finally {
+	in.close();
+      }
+      synchronized (this) {
+	blocks.put(new Integer(i), block);
+      }
+      return true;
+    } catch (IOException ex) {
+      return false;
+    }
+  }
+
+  private File blockFile(int i) {
+    return new File(cacheDir, cacheKey + "-" + i);
+  }
+
+  /**
+   * forget the blocks held in memory
+   */
+  public synchronized void clearMemoryCache() {
+    blocks.clear();
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+package ncsa.horizon.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import ncsa.horizon.util.*;
+
+/**
+ * a TileSource that reads the tiles of a FITS image array from a 
+ * RemoteFile, so that only the bytes covering the requested part of 
+ * a remote image are transferred.  The tiles are bands of whole rows 
+ * within a plane, each a contiguous range of the data segment.  When
+ * a tile is read, the same band of the next plane along the third 
+ * axis is prefetched in the background, anticipating a viewer 
+ * stepping through the planes of a cube.
+ */
+public class RemoteImageTileSource implements TileSource {
+
+  protected RemoteFile remote;
+  protected long dataOffset;
+  protected FITSImageDecoder decoder;
+  protected int[] size, tileSize;
+  protected boolean readAhead = true;
+
+  /**
+   * create a tile source
+   * @param remote      the remote file
+   * @param dataOffset  the byte offset of the image's data segment
+   * @param decoder     the decoder for the image's values
+   * @param size        the length of each axis of the image
+   */
+  public RemoteImageTileSource(RemoteFile remote, long dataOffset,
+			       FITSImageDecoder decoder, int[] size) 
+  {
+    this.remote = remote;
+    this.dataOffset = dataOffset;
+    this.decoder = decoder;
+    this.size = (int[]) size.clone();
+
+    tileSize = new int[size.length];
+    for(int i=0; i < size.length; i++) tileSize[i] = 1;
+    tileSize[0] = size[0];
+    if (size.length > 1) 
+      tileSize[1] = Math.max(1, Math.min(size[1], 
+		      FITSNdArrayUpdater.BAND_VALUES / Math.max(size[0], 1)));
+  }
+
+  /**
+   * choose whether reading a tile prefetches the same tile of the 
+   * next plane.  The default is true.
+   */
+  public void setReadAhead(boolean yes) { readAhead = yes; }
+
+  /**
+   * return the number of axes in the array
+   */
+  public int getNaxes() { return size.length; }
+
+  /**
+   * return the length of each axis of the whole array
+   */
+  public int[] getSize() { return (int[]) size.clone(); }
+
+  /**
+   * return the length of each axis of a (full) tile
+   */
+  public int[] getTileSize() { return (int[]) tileSize.clone(); }
+
+  /**
+   * return the type of the values returned by readTile()
+   */
+  public JavaType getType() { return decoder.getType(); }
+
+  /**
+   * return the index of the first value of the tile at origin
+   */
+  private long firstIndex(int[] origin) {
+    long index = 0;
+    for(int i=size.length-1; i >= 0; i--) index = index*size[i] + origin[i];
+    return index;
+  }
+
+  /**
+   * read a tile of values.  The origin must be that of one of the 
+   * tiles.
+   */
+  public Object readTile(int[] origin, int[] tsize) throws IOException {
+    int atom = decoder.getStoredSize();
+    int n = (int) NdArrayMath.size(tsize);
+    long offset = dataOffset + firstIndex(origin)*atom;
+
+    if (readAhead && size.length > 2 && origin[2] + 1 < size[2]) {
+      long planeBytes = ((long) size[0]) * size[1] * atom;
+      remote.prefetch(offset + planeBytes, ((long) n) * atom);
+    }
+
+    // fetch the whole tile at once, so that its missing blocks are 
+    // requested together
+    byte[] bytes = new byte[n*atom];
+    remote.read(offset, bytes, 0, bytes.length);
+    Object out = decoder.getType().allocateArray(n);
+    decoder.read(new DataInputStream(new ByteArrayInputStream(bytes)), 
+		 out, n);
+    return out;
+  }
+}
@@ -0,0 +1,508 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.data;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import ncsa.horizon.util.*;
+
+/**
+ * a facility for computing the statistics (min, max, mean, sigma, 
+ * NaN count, and percentiles) of an NdArrayData or a sub-volume of one.
+ * The region is divided into blocks that are read with 
+ * NdArrayData.readInto() and scanned in parallel using the threads of
+ * the shared WorkerPool. <p>
+ *
+ * Results are cached per data object and region, so asking again for 
+ * the statistics of the same plane or cube does not rescan the data.  
+ * The engine observes each data object it has cached results for; a 
+ * notification from the data (i.e. a call to its notifyObservers()) 
+ * discards the cached results for the regions overlapping the 
+ * UpdatedRegion it reports (see NdArrayData.regionUpdated()), or all
+ * of them if it reports none.  Code that changes the values of an 
+ * NdArrayData should therefore call notifyObservers() when it is done. 
+ * <p>
+ *
+ * For a volume that is loaded progressively, trackUpdates() can be 
+ * used to have the statistics of the whole volume maintained 
+ * incrementally: each UpdatedRegion the data reports is added to a 
+ * StreamingStatistics accumulator as it arrives, so the volume is 
+ * never rescanned.  The statistics of a region asked for meanwhile 
+ * (e.g. the plane being displayed) are maintained the same way: the 
+ * first request scans the parts of the region loaded so far, and the 
+ * updates overlapping it are added as they arrive. <p>
+ *
+ * When a whole region is scanned, the values are read twice: the first
+ * pass gathers the moments and a quantile sketch; the second builds a
+ * histogram whose bins span the range between the sketch's 0.1 and 
+ * 99.9 percentiles, so that a few extreme values do not spoil the 
+ * resolution of the percentiles.
+ */
+public class StatisticsEngine {
+
+  /**
+   * the maximum number of values read into memory at once by each thread
+   */
+  protected final static int BLOCK_SIZE = 1 << 16;
+
+  /**
+   * the sketch size used when tracking updates.  Without a second pass
+   * to refine them, the percentiles come straight from the sketch, so 
+   * a larger one than the default is used.
+   */
+  protected final static int TRACKING_SKETCH_SIZE = 4096;
+
+  // NdArrayData -> Hashtable (region key -> Region)
+  private static WeakHashMap cache = new WeakHashMap();
+
+  // NdArrayData -> Tracker, for data whose statistics are being 
+  // maintained incrementally
+  private static WeakHashMap trackers = new WeakHashMap();
+
+  private static Observer invalidator = new Observer() {
+    public void update(Observable o, Object arg) {
+      NdArrayData data = (NdArrayData) o;
+      Tracker tracker;
+      int[][] r;
+      synchronized (cache) {
+	if (! (arg instanceof UpdatedRegion)) {
+	  // we don't know what changed, so start over
+	  cache.remove(data);
+	  trackers.remove(data);
+	  return;
+	}
+	UpdatedRegion u = (UpdatedRegion) arg;
+	r = new int[][] { toStart(data, u.getStart()), u.getSize() };
+
+	// only the regions overlapping the update have changed
+	Hashtable results = (Hashtable) cache.get(data);
+	if (results != null) {
+	  for(Iterator it = results.values().iterator(); it.hasNext(); ) 
+	    if (((Region) it.next()).intersection(r[0], r[1]) != null) 
+	      it.remove();
+	}
+	tracker = (Tracker) trackers.get(data);
+      }
+      if (tracker != null) tracker.add(data, r[0], r[1]);
+    }
+  };
+
+  private StatisticsEngine() { }
+
+  /**
+   * return the statistics of all of the values in a data object
+   */
+  public static NdArrayStatistics getStatistics(NdArrayData data) {
+    Tracker tracker;
+    synchronized (cache) {
+      tracker = (Tracker) trackers.get(data);
+    }
+    if (tracker != null) return tracker.getStatistics();
+    return getStatistics(data, data.getVolume());
+  }
+
+  /**
+   * start maintaining the statistics of the whole of a data object 
+   * incrementally.  The data is assumed to hold no values yet (i.e. 
+   * it is about to be loaded progressively); from now on, each region
+   * the data reports as updated is added to its statistics, which 
+   * getStatistics(data) will then return.  The tracking stops if the 
+   * data sends a notification that is not an UpdatedRegion.
+   */
+  public static void trackUpdates(NdArrayData data) {
+    synchronized (cache) {
+      cache.remove(data);
+      trackers.put(data, new Tracker());
+      data.addObserver(invalidator);
+    }
+  }
+
+  /**
+   * return the statistics of the values in the part of a data object 
+   * that falls within a volume.  The volume is given in the same 
+   * coordinates as the data's own volume (as with 
+   * NdArrayData.getNdArrayData(Volume)).
+   */
+  public static NdArrayStatistics getStatistics(NdArrayData data, 
+						Volume vol) 
+  {
+    int naxes = data.getNaxes();
+    int[] dsize = data.getSize();
+    int[] dloc = ArrayTypeConverter.arrayDoubleToInt(
+					   data.getVolume().getLocation());
+
+    // clip the requested volume to the data
+    Volume pos = (Volume) vol.clone();
+    pos.makeLengthsPositive();
+    int[] loc = ArrayTypeConverter.arrayDoubleToInt(pos.getLocation());
+    int[] sz = pos.getTrueSize();
+    int[] start = new int[naxes];
+    int[] size = new int[naxes];
+    for(int i=0; i < naxes; i++) {
+      int lo = (i < loc.length) ? loc[i] - dloc[i] : 0;
+      int hi = (i < loc.length) ? lo + sz[i] : dsize[i];
+      lo = Math.max(0, lo);
+      hi = Math.min(dsize[i], hi);
+      start[i] = lo;
+      size[i] = Math.max(0, hi - lo);
+    }
+
+    StringBuffer sb = new StringBuffer();
+    for(int i=0; i < naxes; i++) 
+      sb.append(start[i]).append(':').append(size[i]).append(',');
+    String key = sb.toString();
+
+    Tracker tracker;
+    synchronized (cache) {
+      tracker = (Tracker) trackers.get(data);
+      Hashtable results = (Hashtable) cache.get(data);
+      if (tracker == null && results != null) {
+	Region r = (Region) results.get(key);
+	if (r != null) return r.stats;
+      }
+    }
+    if (tracker != null) 
+      return tracker.getStatistics(data, key, start, size);
+
+    NdArrayStatistics out = computeStatistics(data, start, size);
+
+    synchronized (cache) {
+      Hashtable results = (Hashtable) cache.get(data);
+      if (results == null) {
+	results = new Hashtable();
+	cache.put(data, results);
+	data.addObserver(invalidator);
+      }
+      Region r = new Region(start, size);
+      r.stats = out;
+      results.put(key, r);
+    }
+    return out;
+  }
+
+  /**
+   * convert a position in the coordinates of a data object's volume 
+   * to a zero-based one
+   */
+  private static int[] toStart(NdArrayData data, int[] coord) {
+    int[] loc = ArrayTypeConverter.arrayDoubleToInt(
+					    data.getVolume().getLocation());
+    int[] out = new int[coord.length];
+    for(int i=0; i < out.length; i++) 
+      out[i] = coord[i] - ((i < loc.length) ? loc[i] : 0);
+    return out;
+  }
+
+  /**
+   * a region of a data object, with zero-based start, and its 
+   * statistics: either computed by scanning it (stats) or maintained 
+   * from the updates of the data (acc)
+   */
+  static class Region {
+    int[] start, size;
+    NdArrayStatistics stats = null;
+    StreamingStatistics acc = null;
+
+    Region(int[] start, int[] size) {
+      this.start = start;
+      this.size = size;
+    }
+
+    /**
+     * return the zero-based start and the size of the part of another
+     * region that falls within this one, or null if they do not overlap
+     */
+    int[][] intersection(int[] ostart, int[] osize) {
+      int n = Math.min(start.length, ostart.length);
+      int[][] out = new int[2][n];
+      for(int i=0; i < n; i++) {
+	int lo = Math.max(start[i], ostart[i]);
+	int hi = Math.min(start[i] + size[i], ostart[i] + osize[i]);
+	if (hi <= lo) return null;
+	out[0][i] = lo;
+	out[1][i] = hi - lo;
+      }
+      return out;
+    }
+
+    /**
+     * add the values of the part of an updated region (zero-based) 
+     * that falls within this one to acc
+     */
+    void add(NdArrayData data, int[] ustart, int[] usize) {
+      int[][] part = intersection(ustart, usize);
+      if (part == null) return;
+      int[] loc = ArrayTypeConverter.arrayDoubleToInt(
+					    data.getVolume().getLocation());
+      for(int i=0; i < part[0].length; i++) part[0][i] += loc[i];
+      acc.add(data, part[0], part[1]);
+    }
+  }
+
+  /**
+   * the statistics of a progressively loaded data object, maintained 
+   * from the regions it reports as updated: those of the whole, and 
+   * those of each region asked for so far.  The updates seen are 
+   * remembered so that a region asked for later can be brought up to
+   * date by scanning only the parts of it that have been loaded.
+   */
+  static class Tracker {
+    StreamingStatistics whole = 
+      new StreamingStatistics(TRACKING_SKETCH_SIZE);
+    Vector updates = new Vector();
+    Hashtable regions = new Hashtable();
+
+    synchronized NdArrayStatistics getStatistics() {
+      return whole.getStatistics();
+    }
+
+    /**
+     * return the statistics of a region, with zero-based start, 
+     * starting to maintain them if necessary
+     */
+    synchronized NdArrayStatistics getStatistics(NdArrayData data, 
+						 String key, int[] start, 
+						 int[] size) 
+    {
+      Region r = (Region) regions.get(key);
+      if (r == null) {
+	r = new Region(start, size);
+	r.acc = new StreamingStatistics(TRACKING_SKETCH_SIZE);
+	for(int i=0; i < updates.size(); i++) {
+	  int[][] u = (int[][]) updates.elementAt(i);
+	  r.add(data, u[0], u[1]);
+	}
+	regions.put(key, r);
+      }
+      return r.acc.getStatistics();
+    }
+
+    /**
+     * add the values of an updated region, with zero-based start
+     */
+    synchronized void add(NdArrayData data, int[] start, int[] size) {
+      int[] loc = ArrayTypeConverter.arrayDoubleToInt(
+					    data.getVolume().getLocation());
+      int[] vstart = new int[start.length];
+      for(int i=0; i < vstart.length; i++) vstart[i] = start[i] + loc[i];
+      whole.add(data, vstart, size);
+      updates.addElement(new int[][] { start, size });
+      for(Iterator it = regions.values().iterator(); it.hasNext(); ) 
+	((Region) it.next()).add(data, start, size);
+    }
+  }
+
+  /**
+   * discard any cached statistics for a data object
+   */
+  public static void invalidate(NdArrayData data) {
+    synchronized (cache) {
+      cache.remove(data);
+      trackers.remove(data);
+    }
+  }
+
+  /**
+   * compute (without caching) the statistics of a region of a data 
+   * object.  
+   * @param start  the zero-based position of the first value in the 
+   *               region (i.e. not accounting for the location of the 
+   *               data's volume)
+   * @param size   the length of each axis of the region
+   */
+  public static NdArrayStatistics computeStatistics(NdArrayData data, 
+						    int[] start, int[] size)
+  {
+    int[] loc = ArrayTypeConverter.arrayDoubleToInt(
+					    data.getVolume().getLocation());
+
+    // first pass: count, min, max, mean, sigma, and a quantile sketch
+    StreamingStatistics acc = (StreamingStatistics) 
+      runPass(data, new Blocks(start, size, loc), null);
+    if (acc.getCount() == 0) return acc.getStatistics();
+
+    // second pass: a histogram covering the bulk of the values
+    double[] q = acc.getSketch().getQuantiles(new double[] {0.001, 0.999});
+    double pad = 0.05 * (q[1] - q[0]);
+    double lo = Math.max(acc.min, q[0] - pad), 
+	   hi = Math.min(acc.max, q[1] + pad);
+    if (! (hi > lo)) return acc.getStatistics();
+    Histogram hist = (Histogram) 
+      runPass(data, new Blocks(start, size, loc), new double[] {lo, hi});
+
+    return acc.getStatistics(hist);
+  }
+
+  /**
+   * scan all the blocks, using as many threads as are available.  The
+   * calling thread takes part, so this completes even if all the pool
+   * threads are busy.
+   * @param range  null for the first pass, or the lower and upper 
+   *               bounds of the histogram for the second
+   * @return a StreamingStatistics for the first pass, or a Histogram 
+   *         for the second
+   */
+  private static Object runPass(NdArrayData data, Blocks blocks, 
+				double[] range) 
+  {
+    int nthreads = (int) Math.min(WorkerPool.getParallelism(), 
+				  blocks.count);
+    ArrayList futures = new ArrayList();
+    if (nthreads > 1) {
+      ExecutorService exec = WorkerPool.getExecutor();
+      for(int i=1; i < nthreads; i++) 
+	futures.add(exec.submit(new Scanner(data, blocks, range)));
+    }
+
+    Object out = new Scanner(data, blocks, range).call();
+    for(int i=0; i < futures.size(); i++) {
+      Future f = (Future) futures.get(i);
+
+      // a helper that never got started has nothing to contribute
+      if (f.cancel(false)) continue;
+      Object part;
+      try {
+	part = WorkerPool.getUninterruptibly(f);
+      } catch (ExecutionException ex) {
+	Throwable cause = ex.getCause();
+	if (cause instanceof RuntimeException) 
+	  throw (RuntimeException) cause;
+	if (cause instanceof Error) throw (Error) cause;
+	throw new InternalError("statistics calculation failed: " + cause);
+      }
+      if (out instanceof Histogram) 
+	((Histogram) out).merge((Histogram) part);
+      else
+	((StreamingStatistics) out).merge((StreamingStatistics) part);
+    }
+    return out;
+  }
+
+  /**
+   * the division of a region into blocks of no more than BLOCK_SIZE 
+   * values.  A block covers the full extent of the region along the 
+   * first few axes, a run of positions along the next axis, and a 
+   * single position along the rest.
+   */
+  static class Blocks {
+    int[] start, size, loc;
+    int axis, run, nalong;
+    long count;
+    private long next = 0;
+
+    Blocks(int[] start, int[] size, int[] loc) {
+      this.start = start;
+      this.size = size;
+      this.loc = loc;
+
+      long below = 1;
+      axis = 0;
+      while (axis < size.length-1 && below * size[axis] <= BLOCK_SIZE) 
+	below *= size[axis++];
+      run = (int) Math.max(1, Math.min(size[axis], BLOCK_SIZE / below));
+      nalong = (size[axis] + run - 1) / run;
+
+      count = nalong;
+      for(int i=axis+1; i < size.length; i++) count *= size[i];
+      if (NdArrayMath.size(size) == 0) count = 0;
+    }
+
+    /**
+     * return the next block number to process, or -1 if there are none
+     */
+    synchronized long next() {
+      return (next < count) ? next++ : -1;
+    }
+
+    /**
+     * set the (volume) start and size of a block
+     */
+    void getBlock(long which, int[] bstart, int[] bsize) {
+      for(int i=0; i < axis; i++) {
+	bstart[i] = start[i] + loc[i];
+	bsize[i] = size[i];
+      }
+      int k = (int) (which % nalong);
+      which /= nalong;
+      bstart[axis] = start[axis] + k*run + loc[axis];
+      bsize[axis] = Math.min(run, size[axis] - k*run);
+      for(int i=axis+1; i < size.length; i++) {
+	bstart[i] = start[i] + (int) (which % size[i]) + loc[i];
+	bsize[i] = 1;
+	which /= size[i];
+      }
+    }
+  }
+
+  /**
+   * a task that processes blocks until there are none left.  If range 
+   * is null, the values are added to a StreamingStatistics; otherwise,
+   * to a Histogram between range[0] and range[1].
+   */
+  static class Scanner implements Callable {
+    NdArrayData data;
+    Blocks blocks;
+    double[] range;
+
+    Scanner(NdArrayData data, Blocks blocks, double[] range) {
+      this.data = data;
+      this.blocks = blocks;
+      this.range = range;
+    }
+
+    public Object call() {
+      StreamingStatistics acc = null;
+      Histogram hist = null;
+      if (range == null) 
+	acc = new StreamingStatistics();
+      else 
+	hist = new Histogram(NdArrayStatistics.HISTOGRAM_BINS, 
+			     range[0], range[1]);
+
+      double[] buf = new double[BLOCK_SIZE];
+      int naxes = blocks.size.length;
+      int[] bstart = new int[naxes];
+      int[] bsize = new int[naxes];
+      long which;
+      while ((which = blocks.next()) >= 0) {
+	blocks.getBlock(which, bstart, bsize);
+	data.readInto(buf, bstart, bsize);
+	int n = (int) NdArrayMath.size(bsize);
+	if (acc != null) 
+	  acc.add(buf, n);
+	else
+	  hist.add(buf, n);
+      }
+      return (acc != null) ? (Object) acc : (Object) hist;
+    }
+  }
+}
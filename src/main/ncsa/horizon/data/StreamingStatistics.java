@@ -0,0 +1,218 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.data;
+
+import ncsa.horizon.util.*;
+
+/**
+ * an accumulator of statistics (moments, a histogram, and a quantile 
+ * sketch) that can be fed values a piece at a time.  It is used by 
+ * StatisticsEngine to gather partial results in each thread, and by 
+ * itself to keep the statistics of a progressively loaded volume up 
+ * to date as each piece arrives, without rescanning what has already
+ * been seen.  The histogram is growable, starting with the range of 
+ * the first values added. <p>
+ *
+ * Only finite values contribute to the moments, histogram, and sketch;
+ * NaNs and infinities are just counted.
+ */
+public class StreamingStatistics {
+
+  protected long n = 0, nan = 0, inf = 0;
+  protected double min = Double.POSITIVE_INFINITY;
+  protected double max = Double.NEGATIVE_INFINITY;
+  protected double mean = 0.0, m2 = 0.0;
+  protected Histogram histogram = null;
+  protected QuantileSketch sketch;
+
+  /**
+   * create an empty accumulator
+   */
+  public StreamingStatistics() { 
+    this(QuantileSketch.DEFAULT_K);
+  }
+
+  /**
+   * create an empty accumulator
+   * @param sketchSize  the buffer size of the quantile sketch; the 
+   *           error of the percentiles estimated from it is roughly 
+   *           inversely proportional to this.
+   */
+  public StreamingStatistics(int sketchSize) { 
+    sketch = new QuantileSketch(sketchSize);
+  }
+
+  /**
+   * add the first len values of an array
+   */
+  public synchronized void add(double[] buf, int len) {
+    long bn = 0;
+    double bmin = Double.POSITIVE_INFINITY, 
+	   bmax = Double.NEGATIVE_INFINITY,
+	   sum = 0.0, v;
+
+    for(int i=0; i < len; i++) {
+      v = buf[i];
+      if (v - v != 0.0) {          // NaN or infinite
+	if (Double.isNaN(v)) nan++; else inf++;
+	continue;
+      }
+      bn++;
+      sum += v;
+      if (v < bmin) bmin = v;
+      if (v > bmax) bmax = v;
+    }
+    if (bn == 0) return;
+
+    // second sweep over the (cached) block for the squared deviations
+    double bmean = sum / bn, bm2 = 0.0, d;
+    for(int i=0; i < len; i++) {
+      d = buf[i] - bmean;
+      if (d - d == 0.0) bm2 += d*d;
+    }
+    mergeMoments(bn, bmin, bmax, bmean, bm2);
+
+    if (histogram == null) {
+      histogram = new Histogram(NdArrayStatistics.HISTOGRAM_BINS, 
+				bmin, bmax);
+      histogram.setGrowable(true);
+    }
+    histogram.add(buf, len);
+    sketch.add(buf, len);
+  }
+
+  /**
+   * add the values in a region of an NdArrayData
+   * @param startCoord  the position of the first value in the region, 
+   *                    in the same coordinates as used by 
+   *                    NdArrayData.getValue(int[])
+   * @param size        the length of each axis of the region
+   */
+  public void add(NdArrayData data, int[] startCoord, int[] size) {
+    int[] loc = ArrayTypeConverter.arrayDoubleToInt(
+					    data.getVolume().getLocation());
+    int[] start = new int[startCoord.length];
+    for(int i=0; i < start.length; i++) start[i] = startCoord[i] - loc[i];
+    StatisticsEngine.Blocks blocks = 
+      new StatisticsEngine.Blocks(start, size, loc);
+
+    double[] buf = new double[StatisticsEngine.BLOCK_SIZE];
+    int[] bstart = new int[size.length];
+    int[] bsize = new int[size.length];
+    long which;
+    while ((which = blocks.next()) >= 0) {
+      blocks.getBlock(which, bstart, bsize);
+      data.readInto(buf, bstart, bsize);
+      add(buf, (int) NdArrayMath.size(bsize));
+    }
+  }
+
+  /**
+   * combine the moments of another set of values with these (using 
+   * the pairwise formula of Chan et al.)
+   */
+  private void mergeMoments(long bn, double bmin, double bmax, 
+			    double bmean, double bm2) 
+  {
+    if (bn == 0) return;
+    if (n == 0) {
+      mean = bmean;
+      m2 = bm2;
+    }
+    else {
+      long tot = n + bn;
+      double delta = bmean - mean;
+      mean += delta * bn / tot;
+      m2 += bm2 + delta*delta * ((double) n) * bn / tot;
+    }
+    n += bn;
+    if (bmin < min) min = bmin;
+    if (bmax > max) max = bmax;
+  }
+
+  /**
+   * add the contents of another accumulator to this one
+   */
+  public void merge(StreamingStatistics that) {
+    synchronized (that) {
+      synchronized (this) {
+	nan += that.nan;
+	inf += that.inf;
+	mergeMoments(that.n, that.min, that.max, that.mean, that.m2);
+	if (that.histogram != null) {
+	  if (histogram == null) {
+	    histogram = copy(that.histogram);
+	  }
+	  else {
+	    histogram.merge(that.histogram);
+	  }
+	}
+	sketch.merge(that.sketch);
+      }
+    }
+  }
+
+  private static Histogram copy(Histogram h) {
+    Histogram out = new Histogram(h.getBinCount(), h.getLowerBound(), 
+				  h.getUpperBound());
+    out.setGrowable(h.isGrowable());
+    out.merge(h);
+    return out;
+  }
+
+  /**
+   * return the number of finite values added so far
+   */
+  public synchronized long getCount() { return n; }
+
+  /**
+   * return the quantile sketch (not a copy)
+   */
+  QuantileSketch getSketch() { return sketch; }
+
+  /**
+   * return a snapshot of the statistics accumulated so far
+   */
+  public synchronized NdArrayStatistics getStatistics() {
+    return getStatistics(null);
+  }
+
+  /**
+   * return a snapshot of the statistics using a separately computed 
+   * histogram, which is assumed to give precise percentiles.
+   */
+  synchronized NdArrayStatistics getStatistics(Histogram precise) {
+    if (n == 0) 
+      return new NdArrayStatistics(0, nan, inf, Double.NaN, Double.NaN, 
+				   Double.NaN, Double.NaN, null, null, false);
+
+    QuantileSketch sk = new QuantileSketch(sketch.k);
+    sk.merge(sketch);
+    if (precise != null) 
+      return new NdArrayStatistics(n, nan, inf, min, max, mean, 
+				   Math.sqrt(m2/n), precise, sk, true);
+
+    return new NdArrayStatistics(n, nan, inf, min, max, mean, 
+				 Math.sqrt(m2/n), copy(histogram), sk, false);
+  }
+}
@@ -0,0 +1,542 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+package ncsa.horizon.data;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import ncsa.horizon.util.*;
+
+/**
+ * copies between n-dimensional arrays stored as 1d arrays, for 
+ * extracting and setting regions of in-memory data. <p>
+ *
+ * copy() copies any strided box of one array into a strided box of 
+ * another of the same type: a region of an array is described by the 
+ * index of its first element and the distance (stride) between 
+ * successive elements along each of its axes.  Strides need not be in
+ * increasing order, so a region can be transposed (e.g. a 
+ * position-velocity plane whose x axis is the third axis of the data),
+ * decimated (a stride that is a multiple of the axis' stride in the 
+ * array) or reversed (a negative stride) as it is copied.  Axes are 
+ * reordered so that the innermost loop writes consecutive elements, and
+ * adjacent axes that are contiguous in both arrays are merged, so that
+ * a box spanning the full width of the leading axes is copied with a 
+ * few large System.arraycopy() calls. <p>
+ *
+ * resample() samples a 2-dimensional plane of an array at regularly 
+ * spaced, possibly fractional positions, taking the nearest value or 
+ * interpolating bilinearly. <p>
+ *
+ * Both split the work across the WorkerPool threads when at least 
+ * PARALLEL_MIN elements are written; apart from that, they allocate 
+ * only a few small index arrays.
+ */
+public class StridedCopy {
+
+  /**
+   * the least number of elements copied for the work to be split 
+   * between threads
+   */
+  public final static int PARALLEL_MIN = 1 << 18;
+
+  private StridedCopy() { }
+
+  /**
+   * copy a strided region of one array into a strided region of 
+   * another.  Element (i0, i1, ...) of the region is 
+   * src[srcPos + i0*srcStrides[0] + i1*srcStrides[1] + ...], and is 
+   * copied to the element of dst similarly placed.
+   * @param src         the array to copy from
+   * @param srcPos      the index in src of the region's first element
+   * @param srcStrides  the distance in src between successive elements
+   *                    along each axis of the region
+   * @param dst         the array to copy to; it must be of the same 
+   *                    type as src
+   * @param dstPos      the index in dst of the region's first element
+   * @param dstStrides  the distance in dst between successive elements
+   *                    along each axis of the region
+   * @param counts      the length of each axis of the region
+   * @exception IllegalArgumentException if the arrays are not of the 
+   *            same type, or the region is not within either of them
+   */
+  public static void copy(Object src, int srcPos, int[] srcStrides,
+			  Object dst, int dstPos, int[] dstStrides,
+			  int[] counts) 
+  {
+    checkTypes(src, dst);
+    int n = counts.length;
+    if (srcStrides.length != n || dstStrides.length != n)
+      throw new IllegalArgumentException("stride and count arrays " +
+					 "differ in length");
+
+    // keep the axes longer than 1, ordered by increasing dst stride
+    int[] cnt = new int[n], ss = new int[n], ds = new int[n];
+    int m = 0;
+    for(int k=0; k < n; k++) {
+      if (counts[k] < 0) 
+	throw new IllegalArgumentException("negative count: " + counts[k]);
+      if (counts[k] == 0) return;
+      if (counts[k] == 1) continue;
+      int j = m++;
+      while (j > 0 && Math.abs(ds[j-1]) > Math.abs(dstStrides[k])) {
+	cnt[j] = cnt[j-1];
+	ss[j] = ss[j-1];
+	ds[j] = ds[j-1];
+	j--;
+      }
+      cnt[j] = counts[k];
+      ss[j] = srcStrides[k];
+      ds[j] = dstStrides[k];
+    }
+
+    // merge axes that continue the one before in both arrays
+    int r = 0;
+    for(int k=1; k < m; k++) {
+      if (ss[k] == ss[r]*cnt[r] && ds[k] == ds[r]*cnt[r]) {
+	cnt[r] *= cnt[k];
+      } 
+      else {
+	r++;
+	cnt[r] = cnt[k];
+	ss[r] = ss[k];
+	ds[r] = ds[k];
+      }
+    }
+    m = (m == 0) ? 0 : r+1;
+
+    checkBounds(src, srcPos, ss, cnt, m);
+    checkBounds(dst, dstPos, ds, cnt, m);
+
+    if (m == 0) {
+      copyRow(src, srcPos, 1, dst, dstPos, 1, 1);
+      return;
+    }
+
+    int nrows = 1;
+    for(int k=1; k < m; k++) nrows *= cnt[k];
+    run(new Copier(src, srcPos, ss, dst, dstPos, ds, cnt, m, nrows), 
+	nrows, (long) nrows * cnt[0]);
+  }
+
+  /**
+   * sample a 2-dimensional plane of one array at regularly spaced 
+   * positions, writing the values to another array of the same type 
+   * a row at a time.  Value (i, j) is taken from position 
+   * (x0 + i*dx, y0 + j*dy) in the plane, where element (x, y) of the 
+   * plane is src[srcPos + x*xstride + y*ystride]; positions outside 
+   * the plane are taken to be at its nearest edge.
+   * @param src          the array to sample
+   * @param srcPos       the index in src of element (0, 0) of the plane
+   * @param xstride      the distance in src between successive 
+   *                     elements along the plane's x axis
+   * @param ystride      the distance in src between successive 
+   *                     elements along the plane's y axis
+   * @param nx           the length of the plane's x axis
+   * @param ny           the length of the plane's y axis
+   * @param x0           the x position of the first value
+   * @param y0           the y position of the first value
+   * @param dx           the distance in x between successive values 
+   *                     in a row; it may be negative
+   * @param dy           the distance in y between successive rows
+   * @param interpolate  if true, interpolate bilinearly between the 
+   *                     four nearest elements (for numeric types 
+   *                     only, rounding for integer types); otherwise 
+   *                     take the element whose position is 
+   *                     floor(x), floor(y)
+   * @param dst          the array to write to
+   * @param dstPos       the index in dst of the first value
+   * @param w            the number of values in a row
+   * @param h            the number of rows
+   * @exception IllegalArgumentException if the arrays are not of the 
+   *            same type, or either region is not within its array
+   */
+  public static void resample(Object src, int srcPos, int xstride, 
+			      int ystride, int nx, int ny, 
+			      double x0, double y0, double dx, double dy, 
+			      boolean interpolate, 
+			      Object dst, int dstPos, int w, int h) 
+  {
+    checkTypes(src, dst);
+    if (w <= 0 || h <= 0) return;
+    if (nx <= 0 || ny <= 0) 
+      throw new IllegalArgumentException("empty plane");
+    checkBounds(src, srcPos, new int[] { xstride, ystride }, 
+		new int[] { nx, ny }, 2);
+    checkBounds(dst, dstPos, new int[] { 1, w }, new int[] { w, h }, 2);
+    if (src instanceof boolean[] || src instanceof char[] || 
+	src instanceof Object[]) 
+      interpolate = false;
+
+    // the elements (and weights) each column and row are taken from
+    int[] col = new int[w], col1 = null, row = new int[h], row1 = null;
+    float[] fx = null, fy = null;
+    if (interpolate) {
+      col1 = new int[w];
+      fx = new float[w];
+      row1 = new int[h];
+      fy = new float[h];
+    }
+    positions(x0, dx, nx, xstride, col, col1, fx);
+    positions(y0, dy, ny, ystride, row, row1, fy);
+
+    run(new Sampler(src, srcPos, col, col1, fx, row, row1, fy, 
+		    dst, dstPos, w), 
+	h, (long) w * h);
+  }
+
+  /**
+   * compute the offsets in the source of the elements sampled along 
+   * one axis and, if interpolating, of the elements after them and the
+   * weights of the latter
+   */
+  private static void positions(double p0, double dp, int n, int stride, 
+				int[] off, int[] off1, float[] frac) 
+  {
+    for(int i=0; i < off.length; i++) {
+      double p = p0 + i*dp;
+      if (p < 0.0) p = 0.0;
+      if (p > n-1) p = n-1;
+      int e = (int) p;
+      off[i] = e * stride;
+      if (off1 != null) {
+	off1[i] = Math.min(e+1, n-1) * stride;
+	frac[i] = (float) (p - e);
+      }
+    }
+  }
+
+  private static void checkTypes(Object src, Object dst) {
+    if (src == null || dst == null || ! src.getClass().isArray() ||
+	src.getClass() != dst.getClass())
+      throw new IllegalArgumentException("arrays of the same type needed");
+  }
+
+  /**
+   * make sure a strided region is within an array
+   */
+  private static void checkBounds(Object array, int pos, int[] strides,
+				  int[] counts, int m) 
+  {
+    long lo = pos, hi = pos;
+    for(int k=0; k < m; k++) {
+      long ext = (long) (counts[k]-1) * strides[k];
+      if (ext < 0) lo += ext;
+      else hi += ext;
+    }
+    if (lo < 0 || hi >= Array.getLength(array)) 
+      throw new IllegalArgumentException("region out of range");
+  }
+
+  /**
+   * a task that copies or samples blocks of rows until there are none
+   * left
+   */
+  private static abstract class RowTask implements Runnable {
+    AtomicInteger next;
+    int nrows, block;
+
+    /**
+     * process rows from (inclusive) to to (exclusive)
+     */
+    abstract void rows(int from, int to);
+
+    public void run() {
+      int b;
+      while ((b = next.getAndIncrement()) * block < nrows) 
+	rows(b*block, Math.min(nrows, (b+1)*block));
+    }
+  }
+
+  /**
+   * run a RowTask on this thread and, if there is enough work, on 
+   * the WorkerPool threads
+   */
+  private static void run(RowTask task, int nrows, long work) {
+    int nthreads = (work < PARALLEL_MIN) ? 1 : 
+      Math.min(WorkerPool.getParallelism(), nrows);
+    task.next = new AtomicInteger(0);
+    task.nrows = nrows;
+    task.block = Math.max(1, nrows / (nthreads*4));
+    if (nthreads <= 1) {
+      task.rows(0, nrows);
+      return;
+    }
+
+    ArrayList futures = new ArrayList();
+    ExecutorService exec = WorkerPool.getExecutor();
+    for(int i=1; i < nthreads; i++) futures.add(exec.submit(task));
+    task.run();
+
+    for(Iterator it = futures.iterator(); it.hasNext(); ) {
+      Future f = (Future) it.next();
+      if (f.cancel(false)) continue;
+      try {
+	WorkerPool.getUninterruptibly(f);
+      } catch (ExecutionException ex) {
+	Throwable cause = ex.getCause();
+	if (cause instanceof RuntimeException) 
+	  throw (RuntimeException) cause;
+	if (cause instanceof Error) throw (Error) cause;
+	throw new InternalError("array copy failed: " + cause);
+      }
+    }
+  }
+
+  /**
+   * copies rows along the first (merged) axis of a region
+   */
+  private static class Copier extends RowTask {
+    Object src, dst;
+    int srcPos, dstPos, m;
+    int[] ss, ds, cnt;
+
+    Copier(Object src, int srcPos, int[] ss, Object dst, int dstPos, 
+	   int[] ds, int[] cnt, int m, int nrows) 
+    {
+      this.src = src;
+      this.srcPos = srcPos;
+      this.ss = ss;
+      this.dst = dst;
+      this.dstPos = dstPos;
+      this.ds = ds;
+      this.cnt = cnt;
+      this.m = m;
+    }
+
+    void rows(int from, int to) {
+      // the position of row from along the outer axes
+      int[] idx = new int[m];
+      int s = srcPos, d = dstPos;
+      for(int k=1, rem=from; k < m; k++) {
+	idx[k] = rem % cnt[k];
+	rem /= cnt[k];
+	s += idx[k]*ss[k];
+	d += idx[k]*ds[k];
+      }
+
+      for(int r=from; r < to; r++) {
+	copyRow(src, s, ss[0], dst, d, ds[0], cnt[0]);
+	for(int k=1; k < m; k++) {
+	  s += ss[k];
+	  d += ds[k];
+	  if (++idx[k] < cnt[k]) break;
+	  s -= cnt[k]*ss[k];
+	  d -= cnt[k]*ds[k];
+	  idx[k] = 0;
+	}
+      }
+    }
+  }
+
+  /**
+   * samples rows of a plane
+   */
+  private static class Sampler extends RowTask {
+    Object src, dst;
+    int srcPos, dstPos, w;
+    int[] col, col1, row, row1;
+    float[] fx, fy;
+
+    Sampler(Object src, int srcPos, int[] col, int[] col1, float[] fx, 
+	    int[] row, int[] row1, float[] fy, Object dst, int dstPos, 
+	    int w) 
+    {
+      this.src = src;
+      this.srcPos = srcPos;
+      this.col = col;
+      this.col1 = col1;
+      this.fx = fx;
+      this.row = row;
+      this.row1 = row1;
+      this.fy = fy;
+      this.dst = dst;
+      this.dstPos = dstPos;
+      this.w = w;
+    }
+
+    void rows(int from, int to) {
+      for(int j=from; j < to; j++) {
+	int d = dstPos + j*w, r = srcPos + row[j];
+	if (fx == null) {
+	  gatherRow(src, r, col, dst, d, w);
+	  continue;
+	}
+
+	int r1 = srcPos + row1[j];
+	float f = fy[j];
+	int i;
+	if (src instanceof float[]) {
+	  float[] a = (float[]) src, o = (float[]) dst;
+	  for(i=0; i < w; i++) 
+	    o[d+i] = (float) lerp(a[r+col[i]], a[r+col1[i]], 
+				  a[r1+col[i]], a[r1+col1[i]], fx[i], f);
+	}
+	else if (src instanceof double[]) {
+	  double[] a = (double[]) src, o = (double[]) dst;
+	  for(i=0; i < w; i++) 
+	    o[d+i] = lerp(a[r+col[i]], a[r+col1[i]], 
+			  a[r1+col[i]], a[r1+col1[i]], fx[i], f);
+	}
+	else {
+	  for(i=0; i < w; i++) 
+	    setRounded(dst, d+i, lerp(get(src, r+col[i]), 
+				      get(src, r+col1[i]), 
+				      get(src, r1+col[i]), 
+				      get(src, r1+col1[i]), fx[i], f));
+	}
+      }
+    }
+  }
+
+  /**
+   * interpolate bilinearly between four values; a value whose weight 
+   * is zero is ignored (so that a NaN next to the position sampled 
+   * does not spread)
+   */
+  private static double lerp(double v00, double v10, double v01, 
+			     double v11, float fx, float fy) 
+  {
+    double a = (fx == 0.0f) ? v00 : v00 + fx*(v10 - v00);
+    if (fy == 0.0f) return a;
+    double b = (fx == 0.0f) ? v01 : v01 + fx*(v11 - v01);
+    return a + fy*(b - a);
+  }
+
+  private static double get(Object a, int i) {
+    if (a instanceof int[]) return ((int[]) a)[i];
+    if (a instanceof short[]) return ((short[]) a)[i];
+    if (a instanceof byte[]) return ((byte[]) a)[i];
+    if (a instanceof long[]) return ((long[]) a)[i];
+    throw new ClassCastException("not a numeric array: " + 
+				 a.getClass().getName());
+  }
+
+  private static void setRounded(Object a, int i, double v) {
+    long l = Math.round(v);
+    if (a instanceof int[]) ((int[]) a)[i] = (int) l;
+    else if (a instanceof short[]) ((short[]) a)[i] = (short) l;
+    else if (a instanceof byte[]) ((byte[]) a)[i] = (byte) l;
+    else if (a instanceof long[]) ((long[]) a)[i] = l;
+    else throw new ClassCastException("not a numeric array: " + 
+				      a.getClass().getName());
+  }
+
+  /**
+   * copy n elements of src, stride ss apart from s, into dst, stride 
+   * ds apart from d
+   */
+  private static void copyRow(Object src, int s, int ss, 
+			      Object dst, int d, int ds, int n) 
+  {
+    int i;
+    if (ss == 1 && ds == 1) {
+      System.arraycopy(src, s, dst, d, n);
+    }
+    else if (src instanceof float[]) {
+      float[] a = (float[]) src, o = (float[]) dst;
+      for(i=0; i < n; i++, s += ss, d += ds) o[d] = a[s];
+    }
+    else if (src instanceof double[]) {
+      double[] a = (double[]) src, o = (double[]) dst;
+      for(i=0; i < n; i++, s += ss, d += ds) o[d] = a[s];
+    }
+    else if (src instanceof int[]) {
+      int[] a = (int[]) src, o = (int[]) dst;
+      for(i=0; i < n; i++, s += ss, d += ds) o[d] = a[s];
+    }
+    else if (src instanceof short[]) {
+      short[] a = (short[]) src, o = (short[]) dst;
+      for(i=0; i < n; i++, s += ss, d += ds) o[d] = a[s];
+    }
+    else if (src instanceof byte[]) {
+      byte[] a = (byte[]) src, o = (byte[]) dst;
+      for(i=0; i < n; i++, s += ss, d += ds) o[d] = a[s];
+    }
+    else if (src instanceof long[]) {
+      long[] a = (long[]) src, o = (long[]) dst;
+      for(i=0; i < n; i++, s += ss, d += ds) o[d] = a[s];
+    }
+    else if (src instanceof char[]) {
+      char[] a = (char[]) src, o = (char[]) dst;
+      for(i=0; i < n; i++, s += ss, d += ds) o[d] = a[s];
+    }
+    else if (src instanceof boolean[]) {
+      boolean[] a = (boolean[]) src, o = (boolean[]) dst;
+      for(i=0; i < n; i++, s += ss, d += ds) o[d] = a[s];
+    }
+    else {
+      Object[] a = (Object[]) src, o = (Object[]) dst;
+      for(i=0; i < n; i++, s += ss, d += ds) o[d] = a[s];
+    }
+  }
+
+  /**
+   * copy the n elements of src at r + off[i] into consecutive elements
+   * of dst from d
+   */
+  private static void gatherRow(Object src, int r, int[] off, 
+				Object dst, int d, int n) 
+  {
+    int i;
+    if (src instanceof float[]) {
+      float[] a = (float[]) src, o = (float[]) dst;
+      for(i=0; i < n; i++) o[d+i] = a[r+off[i]];
+    }
+    else if (src instanceof double[]) {
+      double[] a = (double[]) src, o = (double[]) dst;
+      for(i=0; i < n; i++) o[d+i] = a[r+off[i]];
+    }
+    else if (src instanceof int[]) {
+      int[] a = (int[]) src, o = (int[]) dst;
+      for(i=0; i < n; i++) o[d+i] = a[r+off[i]];
+    }
+    else if (src instanceof short[]) {
+      short[] a = (short[]) src, o = (short[]) dst;
+      for(i=0; i < n; i++) o[d+i] = a[r+off[i]];
+    }
+    else if (src instanceof byte[]) {
+      byte[] a = (byte[]) src, o = (byte[]) dst;
+      for(i=0; i < n; i++) o[d+i] = a[r+off[i]];
+    }
+    else if (src instanceof long[]) {
+      long[] a = (long[]) src, o = (long[]) dst;
+      for(i=0; i < n; i++) o[d+i] = a[r+off[i]];
+    }
+    else if (src instanceof char[]) {
+      char[] a = (char[]) src, o = (char[]) dst;
+      for(i=0; i < n; i++) o[d+i] = a[r+off[i]];
+    }
+    else if (src instanceof boolean[]) {
+      boolean[] a = (boolean[]) src, o = (boolean[]) dst;
+      for(i=0; i < n; i++) o[d+i] = a[r+off[i]];
+    }
+    else {
+      Object[] a = (Object[]) src, o = (Object[]) dst;
+      for(i=0; i < n; i++) o[d+i] = a[r+off[i]];
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.data;
+
+import java.io.IOException;
+import ncsa.horizon.util.*;
+
+/**
+ * a supplier of the rectangular tiles of an n-dimensional array, used 
+ * by TiledNdArrayData to load the parts of a volume on demand.  The 
+ * array is divided into tiles of size getTileSize() starting at the 
+ * origin; tiles along the upper edge of an axis may be smaller when 
+ * the axis length is not a multiple of the tile length. <p>
+ *
+ * Tile coordinates passed to readTile() count from zero, regardless 
+ * of the location of the volume the array represents.
+ */
+public interface TileSource {
+
+  /**
+   * return the number of axes in the array
+   */
+  public int getNaxes();
+
+  /**
+   * return the length of each axis of the whole array
+   */
+  public int[] getSize();
+
+  /**
+   * return the length of each axis of a (full) tile
+   */
+  public int[] getTileSize();
+
+  /**
+   * return the type of the values returned by readTile()
+   */
+  public JavaType getType();
+
+  /**
+   * read a tile of values.  
+   * @param origin  the zero-based position of the first value in the tile
+   * @param size    the length of each axis of the tile; this is the 
+   *                tile size clipped to the edge of the array
+   * @return a 1-d array of type getType() of length 
+   *         NdArrayMath.size(size) holding the values in the usual 
+   *         order (first axis varying fastest).
+   */
+  public Object readTile(int[] origin, int[] size) throws IOException;
+}
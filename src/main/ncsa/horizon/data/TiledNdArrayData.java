@@ -0,0 +1,663 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import ncsa.horizon.util.*;
+
+/**
+ * An NdArrayData that stores its volume as fixed-size n-dimensional 
+ * tiles which are loaded on demand from a TileSource.  Loaded tiles 
+ * are kept in a least-recently-used cache whose total size is bounded
+ * in bytes, so the size of the volume is not limited by the heap or 
+ * by the 2^31 element limit of a Java array; only the requests for 
+ * values must fit into a single array.  A request for a sub-array 
+ * (e.g. a plane of a cube requested by SliceImageSource) touches only 
+ * the tiles that overlap it; when several of them are not yet in the 
+ * cache, they are loaded in parallel by the threads of the WorkerPool. <p>
+ *
+ * The cache keeps hit and miss counts which can be used to tune the 
+ * tile and cache sizes. <p>
+ *
+ * The data are read-only; the setValue methods will throw an
+ * UnsupportedOperationException.
+ */
+public class TiledNdArrayData extends NdArrayData {
+
+  /**
+   * the default maximum size of the tile cache in bytes (64 MB)
+   */
+  public final static long DEFAULT_CACHE_SIZE = 64L*1024*1024;
+
+  protected TileSource source;
+  protected int naxes;
+  protected int[] isize, tileSize, ntiles;
+  protected Volume volume;
+  protected JavaType javaType;
+  protected int bytesPerValue;
+
+  // the tile cache, in access order, keyed by tile number (a Long)
+  private LinkedHashMap cache = new LinkedHashMap(64, 0.75f, true);
+  private long maxCacheBytes = DEFAULT_CACHE_SIZE;
+  private long cacheBytes = 0;
+  private long hits = 0, misses = 0;
+
+  // the most recently used tile, checked before the cache so that 
+  // runs of single-value reads need not create a key object
+  private long lastKey = -1;
+  private Object lastTile = null;
+
+  // the number of tiles spanned by a step along each axis
+  private long[] tileStride;
+
+  /**
+   * Disabled.
+   */
+  protected TiledNdArrayData() { }
+
+  /**
+   * create a TiledNdArrayData with a cache of the default size
+   * @param source  the source of the tiles
+   * @param vol     the volume covered by the data; its size must 
+   *                match that of the source.
+   */
+  public TiledNdArrayData(TileSource source, Volume vol) {
+    this(source, vol, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * create a TiledNdArrayData
+   * @param source     the source of the tiles
+   * @param vol        the volume covered by the data; its size must 
+   *                   match that of the source.
+   * @param cacheSize  the maximum number of bytes of tiles to keep in 
+   *                   memory.
+   * @exception IllegalArgumentException if the volume does not match 
+   *                   the source
+   */
+  public TiledNdArrayData(TileSource source, Volume vol, long cacheSize) {
+    this.source = source;
+    naxes = source.getNaxes();
+    isize = source.getSize();
+    tileSize = source.getTileSize();
+    javaType = source.getType();
+    bytesPerValue = (javaType.isSizeKnown()) ? javaType.size()/8 : 8;
+
+    if (vol.getNaxes() != naxes)
+      throw new IllegalArgumentException("volume has wrong number of axes");
+    int[] vsize = vol.getTrueSize();
+    for(int i=0; i < naxes; i++) {
+      if (vsize[i] != isize[i]) 
+	throw new IllegalArgumentException("volume size does not match " +
+					   "tile source along axis " + i);
+    }
+    volume = new Volume(vol);
+
+    ntiles = new int[naxes];
+    tileStride = new long[naxes];
+    long stride = 1;
+    for(int i=0; i < naxes; i++) {
+      ntiles[i] = (isize[i] + tileSize[i] - 1) / tileSize[i];
+      tileStride[i] = stride;
+      stride *= ntiles[i];
+    }
+
+    setCacheSize(cacheSize);
+  }
+
+  /**
+   * set the maximum number of bytes of tiles to keep in memory.  The
+   * most recently used tile is always kept, even if it is larger than
+   * this limit.
+   */
+  public synchronized void setCacheSize(long bytes) {
+    maxCacheBytes = bytes;
+    trimCache();
+  }
+
+  /**
+   * return the maximum number of bytes of tiles kept in memory
+   */
+  public synchronized long getCacheSize() { return maxCacheBytes; }
+
+  /**
+   * return the number of bytes of tiles currently held in memory
+   */
+  public synchronized long getCachedBytes() { return cacheBytes; }
+
+  /**
+   * return the number of tile requests satisfied from the cache
+   */
+  public synchronized long getHitCount() { return hits; }
+
+  /**
+   * return the number of tile requests that required loading a tile
+   * from the source
+   */
+  public synchronized long getMissCount() { return misses; }
+
+  /**
+   * reset the hit and miss counts to zero
+   */
+  public synchronized void resetCounts() { hits = misses = 0; }
+
+  /**
+   * remove all tiles from the cache
+   */
+  public synchronized void clearCache() {
+    lastKey = -1;
+    lastTile = null;
+    cache.clear();
+    cacheBytes = 0;
+  }
+
+  private void trimCache() {
+    Iterator it = cache.entrySet().iterator();
+    while (cacheBytes > maxCacheBytes && cache.size() > 1 && it.hasNext()) {
+      Map.Entry ent = (Map.Entry) it.next();
+      if (((Long) ent.getKey()).longValue() == lastKey) {
+	lastKey = -1;
+	lastTile = null;
+      }
+      cacheBytes -= 
+	  bytesPerValue * (long) java.lang.reflect.Array.getLength(
+                                                             ent.getValue());
+      it.remove();
+    }
+  }
+
+  /**
+   * return the tile (as a 1-d array) with the given position in the 
+   * grid of tiles, loading it from the source if necessary.
+   */
+  protected Object getTile(int[] tilePos) {
+    long which = 0;
+    for(int i=0; i < naxes; i++) which += tilePos[i] * tileStride[i];
+    return getTile(which);
+  }
+
+  /**
+   * return the tile (as a 1-d array) with the given tile number, 
+   * loading it from the source if necessary.
+   */
+  private Object getTile(long which) {
+    Long key;
+    synchronized (this) {
+      if (which == lastKey) {
+	hits++;
+	return lastTile;
+      }
+      key = new Long(which);
+      Object tile = cache.get(key);
+      if (tile != null) {
+	hits++;
+	lastKey = which;
+	lastTile = tile;
+	return tile;
+      }
+      misses++;
+    }
+
+    // load outside of the lock so that other threads can use 
+    // tiles that are already cached.
+    int[] tilePos = new int[naxes];
+    long rem = which;
+    for(int i=naxes-1; i >= 0; i--) {
+      tilePos[i] = (int) (rem / tileStride[i]);
+      rem -= tilePos[i] * tileStride[i];
+    }
+    int[] origin = new int[naxes];
+    int[] tsize = new int[naxes];
+    tileExtent(tilePos, origin, tsize);
+    Object tile;
+    try {
+      tile = source.readTile(origin, tsize);
+    } catch (IOException ex) {
+      throw new InternalError(getClass().getName() + 
+			      ": unable to read tile: " + ex);
+    }
+
+    synchronized (this) {
+      if (cache.put(key, tile) == null)
+	cacheBytes += bytesPerValue * NdArrayMath.size(tsize);
+      lastKey = which;
+      lastTile = tile;
+      trimCache();
+    }
+    return tile;
+  }
+
+  /**
+   * compute the zero-based origin and size of a tile
+   */
+  private void tileExtent(int[] tilePos, int[] origin, int[] tsize) {
+    for(int i=0; i < naxes; i++) {
+      origin[i] = tilePos[i] * tileSize[i];
+      tsize[i] = Math.min(tileSize[i], isize[i] - origin[i]);
+    }
+  }
+
+  /**
+   * Return the intersected part of this NdArrayData as an InMemoryData
+   * object.  Null is returned if there is not enough memory to hold it.
+   */
+  public NdArrayData getNdArrayData(Volume vol) {
+    NdArrayData out = null;
+    try {
+      Volume intersectVolume = volume.intersection(vol);
+      out = new InMemoryData(intersectVolume, getType());
+      int startCoord[] =
+	ArrayTypeConverter.arrayDoubleToInt(intersectVolume.getLocation());
+      int out_size[] = intersectVolume.getTrueSize();
+      Object values = getValue(startCoord, out_size);
+      if (values == null) return null;
+      out.setValues(values);
+      out.setComplete();
+    } catch (InstantiationException e) {
+      System.err.println(e);
+      return null;
+    }
+    return out;
+  }
+
+  /**
+   * Get the number of axes of this nd data array
+   */
+  public int getNaxes() {
+    return naxes;
+  }
+
+  /**
+   * Return a int array represent the dimensions of the volume.
+   */
+  public int[] getSize() {
+    return (int[]) isize.clone();
+  }
+
+  /**
+   * Return the size of the tiles the data are stored in
+   */
+  public int[] getTileSize() {
+    return (int[]) tileSize.clone();
+  }
+
+  /**
+   * Return the data type
+   */
+  public JavaType getType() {
+    return javaType;
+  }
+
+  /**
+   * Return the value at the index.  The element is located by treating 
+   * the whole nd array as 1d array.
+   */
+  public Object getValue(int index) {
+    int[] coord = NdArrayMath.indexNumberToArray(index, isize);
+    return valueAtCoord(coord);
+  }
+
+  /**
+   * Return the value at the coord.  Null is returned if coord is out
+   * of range.
+   */
+  public Object getValue(int[] coord) {
+    int[] realCoord = realStartCoord(coord);
+    for(int i=0; i < naxes; i++) {
+      if (realCoord[i] < 0 || realCoord[i] >= isize[i]) return null;
+    }
+    return valueAtCoord(realCoord);
+  }
+
+  private Object valueAtCoord(int[] coord) {
+    int[] tilePos = new int[naxes];
+    int[] origin = new int[naxes];
+    int[] tsize = new int[naxes];
+    for(int i=0; i < naxes; i++) tilePos[i] = coord[i] / tileSize[i];
+    tileExtent(tilePos, origin, tsize);
+
+    int idx = 0;
+    for(int i=naxes-1; i >= 0; i--) 
+      idx = idx*tsize[i] + (coord[i] - origin[i]);
+    return javaType.wrappedValueFromArray(getTile(tilePos), idx);
+  }
+
+  /**
+   * Get 1d array elements of a sub nd array starting at startCoord
+   * with size to be size.  Only the tiles that overlap the requested
+   * region are loaded.
+   * May return null if the required sub nd array out of range of this
+   * volume.
+   */
+  public Object getValue(int[] startCoord, int[] out_size) {
+    int[] start = realStartCoord(startCoord);
+    for(int i = 0; i < naxes; i++) {
+      if (start[i] < 0 || out_size[i] < 0 ||
+	  start[i] + out_size[i] > isize[i])
+      {
+	System.err.println(getClass().getName() + ": size out of range.");
+	return null;
+      }
+    }
+    long length = NdArrayMath.size(out_size);
+    if (length > Integer.MAX_VALUE) {
+      System.err.println(getClass().getName() +
+			 ": requested region too large for a single array");
+      return null;
+    }
+    Object out = javaType.allocateArray((int) length);
+    if (length == 0) return out;
+
+    assemble(out, start, out_size);
+    return out;
+  }
+
+  /**
+   * Return the value at the index as a double.  No objects are 
+   * created when the value is in the most recently used tile.
+   */
+  public double getDouble(long index) {
+    if (index < 0) 
+      throw new IllegalArgumentException("index out of range: " + index);
+    long rem = index, which = 0;
+    int idx = 0, mult = 1;
+    for(int i=0; i < naxes; i++) {
+      int c = (int) (rem % isize[i]);
+      rem /= isize[i];
+      int tp = c / tileSize[i];
+      which += tp * tileStride[i];
+      idx += (c - tp*tileSize[i]) * mult;
+      mult *= Math.min(tileSize[i], isize[i] - tp*tileSize[i]);
+    }
+    if (rem > 0)
+      throw new IllegalArgumentException("index out of range: " + index);
+    return javaType.doubleFromArray(getTile(which), idx);
+  }
+
+  /**
+   * Return the value at the coord as a double.
+   * @exception IllegalArgumentException if coord is out of range
+   */
+  public double getDouble(int[] coord) {
+    return getDouble(NdArrayMath.indexArrayToNumber(realStartCoord(coord), 
+						    isize));
+  }
+
+  /**
+   * Copy the elements of a sub nd array starting at startCoord 
+   * with size to be size into dst, converting them to floats directly
+   * from the tiles.
+   */
+  public void readInto(float[] dst, int[] startCoord, int[] out_size) {
+    assemble(dst, checkRegion(startCoord, out_size), out_size);
+  }
+
+  /**
+   * Copy the elements of a sub nd array starting at startCoord 
+   * with size to be size into dst, converting them to doubles directly
+   * from the tiles.
+   */
+  public void readInto(double[] dst, int[] startCoord, int[] out_size) {
+    assemble(dst, checkRegion(startCoord, out_size), out_size);
+  }
+
+  private int[] checkRegion(int[] startCoord, int[] out_size) {
+    int[] start = realStartCoord(startCoord);
+    for(int i = 0; i < naxes; i++) {
+      if (start[i] < 0 || out_size[i] < 0 ||
+	  start[i] + out_size[i] > isize[i])
+	throw new IllegalArgumentException("region out of range");
+    }
+    return start;
+  }
+
+  /**
+   * fill out (an array either of type getType() or of float or double)
+   * with the values in the region with the given zero-based start and 
+   * size, copying from each tile the region overlaps.
+   */
+  private void assemble(Object out, int[] start, int[] out_size) {
+    if (NdArrayMath.size(out_size) == 0) return;
+
+    // the range of tiles touched along each axis
+    int[] first = new int[naxes];
+    int[] last = new int[naxes];
+    for(int i=0; i < naxes; i++) {
+      first[i] = start[i] / tileSize[i];
+      last[i] = (start[i] + out_size[i] - 1) / tileSize[i];
+    }
+    preload(first, last);
+
+    int[] tilePos = (int[]) first.clone();
+    int[] origin = new int[naxes];
+    int[] tsize = new int[naxes];
+    int[] lo = new int[naxes];
+    int[] hi = new int[naxes];
+    int[] pos = new int[naxes];
+    while (true) {
+      tileExtent(tilePos, origin, tsize);
+      for(int i=0; i < naxes; i++) {
+	lo[i] = Math.max(start[i], origin[i]);
+	hi[i] = Math.min(start[i] + out_size[i], origin[i] + tsize[i]);
+      }
+      copyFromTile(getTile(tilePos), origin, tsize, lo, hi, 
+		   out, start, out_size, pos);
+
+      // advance to the next tile
+      int ax;
+      for(ax = 0; ax < naxes; ax++) {
+	tilePos[ax]++;
+	if (tilePos[ax] <= last[ax]) break;
+	tilePos[ax] = first[ax];
+      }
+      if (ax >= naxes) break;
+    }
+
+  }
+
+  /**
+   * load the tiles between first and last (inclusive) in the grid of 
+   * tiles that are not already cached, using several threads when more 
+   * than one is missing.  Nothing is done if the missing tiles would 
+   * not all fit into the cache at once.
+   */
+  private void preload(int[] first, int[] last) {
+    long count = 1;
+    for(int i=0; i < naxes; i++) count *= last[i] - first[i] + 1;
+    long tileBytes = bytesPerValue * NdArrayMath.size(tileSize);
+    if (count < 2 || WorkerPool.getParallelism() < 2 || 
+	count*tileBytes > maxCacheBytes) 
+      return;
+
+    final long[] missing = new long[(int) count];
+    int n = 0;
+    synchronized (this) {
+      int[] tilePos = (int[]) first.clone();
+      while (true) {
+	long which = 0;
+	for(int i=0; i < naxes; i++) which += tilePos[i] * tileStride[i];
+	if (which != lastKey && ! cache.containsKey(new Long(which)))
+	  missing[n++] = which;
+
+	int ax;
+	for(ax = 0; ax < naxes; ax++) {
+	  tilePos[ax]++;
+	  if (tilePos[ax] <= last[ax]) break;
+	  tilePos[ax] = first[ax];
+	}
+	if (ax >= naxes) break;
+      }
+    }
+    if (n < 2) return;
+
+    final int nmissing = n;
+    final AtomicInteger next = new AtomicInteger(0);
+    Runnable loader = new Runnable() {
+      public void run() {
+	int i;
+	while ((i = next.getAndIncrement()) < nmissing) getTile(missing[i]);
+      }
+    };
+
+    int nthreads = Math.min(WorkerPool.getParallelism(), nmissing);
+    ExecutorService exec = WorkerPool.getExecutor();
+    ArrayList futures = new ArrayList();
+    for(int i=1; i < nthreads; i++) futures.add(exec.submit(loader));
+
+    loader.run();
+    for(int i=0; i < futures.size(); i++) {
+      Future f = (Future) futures.get(i);
+
+      // a helper that never got started has nothing left to do
+      if (f.cancel(false)) continue;
+      try {
+	WorkerPool.getUninterruptibly(f);
+      } catch (ExecutionException ex) {
+	Throwable cause = ex.getCause();
+	if (cause instanceof RuntimeException) 
+	  throw (RuntimeException) cause;
+	if (cause instanceof Error) throw (Error) cause;
+	throw new InternalError("tile loading failed: " + cause);
+      }
+    }
+  }
+
+  /**
+   * copy the part of a tile between lo (inclusive) and hi (exclusive)
+   * into the output array, one row (along the first axis) at a time.
+   */
+  private void copyFromTile(Object tile, int[] origin, int[] tsize, 
+			    int[] lo, int[] hi, Object out, 
+			    int[] start, int[] out_size, int[] pos) 
+  {
+    int rowlen = hi[0] - lo[0];
+    System.arraycopy(lo, 0, pos, 0, naxes);
+    while (true) {
+      int src = 0, dst = 0;
+      for(int i=naxes-1; i >= 0; i--) {
+	src = src*tsize[i] + (pos[i] - origin[i]);
+	dst = dst*out_size[i] + (pos[i] - start[i]);
+      }
+      if (out instanceof float[] && javaType != JavaType.FLOAT)
+	NdArrayMath.copyToFloat(tile, src, (float[]) out, dst, rowlen);
+      else if (out instanceof double[] && javaType != JavaType.DOUBLE)
+	NdArrayMath.copyToDouble(tile, src, (double[]) out, dst, rowlen);
+      else
+	System.arraycopy(tile, src, out, dst, rowlen);
+
+      int ax;
+      for(ax = 1; ax < naxes; ax++) {
+	pos[ax]++;
+	if (pos[ax] < hi[ax]) break;
+	pos[ax] = lo[ax];
+      }
+      if (ax >= naxes) break;
+    }
+  }
+
+  /**
+   * Get all the element as one-d array.  This will load every tile;
+   * null is returned if the volume is too large to fit into a single 
+   * Java array.
+   */
+  public Object getValue() {
+    int[] start = ArrayTypeConverter.arrayDoubleToInt(volume.getLocation());
+    return getValue(start, isize);
+  }
+
+  /**
+   * Return a copy of the volume.
+   */
+  public Volume getVolume() {
+    return new Volume(volume);
+  }
+
+  /**
+   * return true; the tiles are always available from the source.
+   */
+  public boolean isComplete() {
+    return true;
+  }
+
+  /**
+   * does nothing as the data are always complete.
+   */
+  public void setComplete() { }
+
+  protected int[] realStartCoord(int[] startCoord) {
+    double[] volumeStart = volume.getLocation();
+    int[] realStartCoord = new int[naxes];
+    for (int i = 0; i < naxes; i++) {
+      realStartCoord[i] = startCoord[i] - (int) volumeStart[i];
+    }
+    return realStartCoord;
+  }
+
+  /**
+   * not supported; the tiled data are read-only
+   */
+  public void setValue(int startIndex, int length, Object value) {
+    throw new UnsupportedOperationException(getClass().getName() +
+					    ": data are read-only");
+  }
+
+  /**
+   * not supported; the tiled data are read-only
+   */
+  public void setValue(int index, Object value) {
+    throw new UnsupportedOperationException(getClass().getName() +
+					    ": data are read-only");
+  }
+
+  /**
+   * not supported; the tiled data are read-only
+   */
+  public void setValue(int[] coord, Object value) {
+    throw new UnsupportedOperationException(getClass().getName() +
+					    ": data are read-only");
+  }
+
+  /**
+   * not supported; the tiled data are read-only
+   */
+  public void setValue(int[] startCoord, int[] size, Object value) {
+    throw new UnsupportedOperationException(getClass().getName() +
+					    ": data are read-only");
+  }
+
+  /**
+   * not supported; the tiled data are read-only
+   */
+  public void setValues(Object data) {
+    throw new UnsupportedOperationException(getClass().getName() +
+					    ": data are read-only");
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.data;
+
+/**
+ * a description of a rectangular region of an NdArrayData whose values 
+ * have just been set.  An NdArrayData passes one of these to its 
+ * observers (via notifyObservers()) when only part of it has changed,
+ * as when a volume is loaded progressively; see 
+ * NdArrayData.regionUpdated().  Observers can then refresh only what 
+ * depends on that region.
+ */
+public class UpdatedRegion {
+
+  protected int[] start, size;
+
+  /**
+   * describe an updated region
+   * @param start  the position of the first value in the region, in the
+   *               same coordinates as used by NdArrayData.getValue(int[])
+   * @param size   the length of each axis of the region
+   */
+  public UpdatedRegion(int[] start, int[] size) {
+    this.start = (int[]) start.clone();
+    this.size = (int[]) size.clone();
+  }
+
+  /**
+   * return the position of the first value in the region
+   */
+  public int[] getStart() { return (int[]) start.clone(); }
+
+  /**
+   * return the length of each axis of the region
+   */
+  public int[] getSize() { return (int[]) size.clone(); }
+
+  /**
+   * return true if this region overlaps another box with the 
+   * given start and size
+   */
+  public boolean intersects(int[] ostart, int[] osize) {
+    for(int i=0; i < start.length && i < ostart.length; i++) {
+      if (ostart[i] >= start[i] + size[i] || 
+	  start[i] >= ostart[i] + osize[i])   return false;
+    }
+    return true;
+  }
+
+  public String toString() {
+    StringBuffer sb = new StringBuffer("UpdatedRegion[");
+    for(int i=0; i < start.length; i++) {
+      if (i > 0) sb.append(',');
+      sb.append(start[i]).append('+').append(size[i]);
+    }
+    return sb.append(']').toString();
+  }
+}
@@ -96,10 +96,13 @@ public class LutSelectionPanel extends Panel {
     return super.action(evt, arg);
   }
 
+  /**
+   * return the color model of the selected Lut.  It is the same 
+   * object each time the same Lut is selected, so that the registered
+   * viewers' views are recolored rather than rendered again.
+   */
   public ColorModel currentColorModel() {
-    Lut aLut = luts[currentChoice];
-    return new IndexColorModel(8, 256, aLut.getRed(),
-			       aLut.getGreen(), aLut.getBlue());
+    return luts[currentChoice].getIndexColorModel();
   }
 
   public Lut getLut() {
@@ -27,16 +27,21 @@
  * Modification history:
  *    22-Aug-1997 Wei Xie     Initial version.
  *    06-Dec-1997 Ray Plante  Moved from awt to modules package
+ *    17-Oct-2026 agent       Added controls to play the planes of a 
+ *                            cube with a PlaneAnimator
  *    
  */
 
 package ncsa.horizon.modules;
 
 import java.awt.*;
+import java.util.Observable;
+import java.util.Observer;
 import java.util.StringTokenizer;
 import ncsa.horizon.coordinates.CoordinateSystem;
 import ncsa.horizon.util.*;
 import ncsa.horizon.awt.*;
+import ncsa.horizon.viewer.PlaneAnimator;
 import ncsa.horizon.viewer.Viewer;
 
 public class SliceChooserPanel extends Panel implements LayoutRearrangeable {
@@ -48,6 +53,11 @@ public class SliceChooserPanel extends Panel implements LayoutRearrangeable {
 
   private Slice slice;
 
+  /**
+   * plays the planes of the registered viewer; see regist()
+   */
+  protected PlaneAnimator animator;
+
   /**
    * Axis names.
    */
@@ -140,6 +150,27 @@ public class SliceChooserPanel extends Panel implements LayoutRearrangeable {
    */
   protected LabeledField ySizeLabeledField;
 
+  /**
+   * Animation: label
+   */
+  protected Label animationLabel;
+
+  /**
+   * the axis to play the planes along; the first item chooses the 
+   * first axis not displayed
+   */
+  protected Choice animAxisChoice;
+
+  /**
+   * Frames per second LabeledField
+   */
+  protected LabeledField fpsLabeledField;
+
+  /**
+   * buttons to step back a plane, to play or stop, and to step 
+   * forward a plane
+   */
+  protected Button prevButton, playButton, nextButton;
 
   public SliceChooserPanel(Volume volume) {
     extractFrom(volume);
@@ -306,12 +337,28 @@ public class SliceChooserPanel extends Panel implements LayoutRearrangeable {
     ySizeLabeledField = new LabeledField("Y Size");
     ySizeLabeledField.setValue(size[yaxis]);
 
+    animationLabel = new Label("Animation:");
+    animationLabel.setFont(subtitleFont);
+    animAxisChoice = new Choice();
+    animAxisChoice.addItem("first undisplayed axis");
+    for (int i = 0; i < naxes; i++) {
+      animAxisChoice.addItem(axesLabel[i]);
+    }
+    fpsLabeledField = new LabeledField("Frames/s", 4);
+    fpsLabeledField.setValue(PlaneAnimator.DEFAULT_FRAME_RATE);
+    prevButton = new Button(" < ");
+    playButton = new Button(" Play ");
+    nextButton = new Button(" > ");
+
   } // end SliceChooserPanel.init
 
   public boolean action(Event evt, Object arg) {
     Object tar = evt.target;
     if (tar instanceof List) {
       int select = ((List) tar).getSelectedIndex();
+    } else if (tar == animAxisChoice) {
+      if (animator != null) 
+	animator.setAxis(animAxisChoice.getSelectedIndex() - 1);
     } else if (tar instanceof Choice) {
       // cho is xaxisChoice or yaxisChoice
       Choice cho = (Choice) tar;
@@ -330,6 +377,21 @@ public class SliceChooserPanel extends Panel implements LayoutRearrangeable {
 	setSlice();
 	if(viewer != null)
 	  viewer.displaySlice(slice);
+      } else if (tar == playButton && animator != null) {
+	if (animator.isPlaying()) {
+	  animator.stop();
+	  playButton.setLabel(" Play ");
+	} else {
+	  setAnimation();
+	  animator.start();
+	  playButton.setLabel(" Stop ");
+	}
+      } else if (tar == prevButton && animator != null) {
+	setAnimation();
+	animator.step(-1);
+      } else if (tar == nextButton && animator != null) {
+	setAnimation();
+	animator.step(1);
       }
     }
     return super.action(evt, arg);
@@ -482,10 +544,84 @@ public class SliceChooserPanel extends Panel implements LayoutRearrangeable {
 
     gbl.setConstraints(ySizeLabeledField, gbc);
     container.add(ySizeLabeledField);
+
+    Separator sep3 = new Separator();
+    gbc.gridwidth = GridBagConstraints.REMAINDER;
+    gbc.fill = GridBagConstraints.HORIZONTAL;
+    gbl.setConstraints(sep3, gbc);
+    container.add(sep3);
+
+    gbc.fill = GridBagConstraints.NONE;
+    gbl.setConstraints(animationLabel, gbc);
+    container.add(animationLabel);
+
+    Label animAxisLabel = new Label("               Axis: ");
+    gbc.gridwidth = GridBagConstraints.RELATIVE;
+    gbl.setConstraints(animAxisLabel, gbc);
+    container.add(animAxisLabel);
+
+    gbc.gridwidth = GridBagConstraints.REMAINDER;
+    gbl.setConstraints(animAxisChoice, gbc);
+    container.add(animAxisChoice);
+
+    Panel playPanel = new Panel();
+    playPanel.add(fpsLabeledField);
+    playPanel.add(prevButton);
+    playPanel.add(playButton);
+    playPanel.add(nextButton);
+    gbl.setConstraints(playPanel, gbc);
+    container.add(playPanel);
   } // end SliceChooserPanel.layoutComponents(Container)
 
   public void regist(Viewer viewer) {
+    if (animator != null) animator.stop();
     this.viewer = viewer;
+    animator = new PlaneAnimator(viewer);
+    animator.setAxis(animAxisChoice.getSelectedIndex() - 1);
+    animator.addObserver(new Observer() {
+      public void update(Observable o, Object arg) {
+	// null means that playing has ended
+	final Slice shown = (Slice) arg;
+	EventQueue.invokeLater(new Runnable() {
+	  public void run() { 
+	    if (shown != null) showLocation(shown); 
+	    if (animator != null && ! animator.isPlaying())
+	      playButton.setLabel(" Play ");
+	  }
+	});
+      }
+    });
+    playButton.setLabel(" Play ");
+  }
+
+  /**
+   * return the animator that plays the planes of the registered 
+   * viewer, or null if no viewer is registered
+   */
+  public PlaneAnimator getAnimator() {
+    return animator;
+  }
+
+  /**
+   * pass the animation axis and frame rate shown to the animator
+   */
+  private void setAnimation() {
+    animator.setAxis(animAxisChoice.getSelectedIndex() - 1);
+    try {
+      animator.setFrameRate(Double.valueOf(fpsLabeledField.getValue()).
+			    doubleValue());
+    } catch (IllegalArgumentException ex) {
+      fpsLabeledField.setValue(animator.getFrameRate());
+    }
+  }
+
+  /**
+   * show the location of a slice being displayed by the animator
+   */
+  private void showLocation(Slice shown) {
+    for(int i = 0; i < naxes && i < shown.getNaxes(); i++) {
+      sliceLocTextFields[i].setText("" + shown.axisPos(i));
+    }
   }
 
   private void setSlice() {
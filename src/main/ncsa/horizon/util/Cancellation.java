@@ -0,0 +1,78 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.util;
+
+/**
+ * a flag with which one thread asks work being done on its behalf by
+ * another to stop.  Unlike Thread.interrupt(), raising it does nothing
+ * to the working thread but change what the work sees when it polls:
+ * an interrupt would also close any channel the thread happens to be
+ * using (see java.nio.channels.InterruptibleChannel), such as the file
+ * of a MappedFITSData while it maps a segment, for every later reader.
+ * <p>
+ *
+ * A Cancellation is attached to the thread doing the work with
+ * setCurrent(), so that code several calls down (e.g. a SliceRenderer
+ * beneath Viewable.getView()) can poll it with current() without it
+ * being passed along.  A thread with none attached gets one that is
+ * never cancelled.
+ */
+public class Cancellation {
+
+    private static ThreadLocal attached = new ThreadLocal();
+
+    private final static Cancellation NEVER = new Cancellation() {
+	public void cancel() { }
+    };
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * ask the work to stop
+     */
+    public void cancel() { cancelled = true; }
+
+    /**
+     * return true if the work has been asked to stop
+     */
+    public boolean isCancelled() { return cancelled; }
+
+    /**
+     * return the Cancellation attached to the calling thread
+     */
+    public static Cancellation current() {
+	Cancellation c = (Cancellation) attached.get();
+	return (c == null) ? NEVER : c;
+    }
+
+    /**
+     * attach a Cancellation to the calling thread, or detach the one
+     * attached if c is null
+     */
+    public static void setCurrent(Cancellation c) {
+	if (c == null)
+	    attached.remove();
+	else
+	    attached.set(c);
+    }
+}
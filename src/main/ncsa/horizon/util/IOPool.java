@@ -0,0 +1,81 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.util;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a small pool of threads for background tasks that spend their time
+ * waiting on I/O, such as producing image frames from data that are
+ * still being read, or fetching blocks of a remote file ahead of
+ * need.  Such tasks are kept off the WorkerPool, whose threads (one
+ * per processor) are meant for computations split up to run on
+ * several processors: a worker blocked on a read is a processor's
+ * worth of computing lost. <p>
+ *
+ * The number of threads is fixed (see getThreadCount()) rather than
+ * tied to the processors, so that a burst of slow reads neither
+ * starves the computations nor opens an unbounded number of
+ * connections; tasks beyond that wait their turn.  The threads are
+ * daemon threads, created as needed.
+ */
+public class IOPool {
+
+    private final static int THREADS = 4;
+
+    private static ThreadPoolExecutor executor = null;
+
+    private IOPool() { }
+
+    /**
+     * return the number of threads the pool will use at most
+     */
+    public static int getThreadCount() { return THREADS; }
+
+    /**
+     * return the shared executor
+     */
+    public synchronized static ExecutorService getExecutor() {
+	if (executor == null) {
+	    executor = new ThreadPoolExecutor(THREADS, THREADS,
+					      30L, TimeUnit.SECONDS,
+					      new LinkedBlockingQueue(),
+					      new IOFactory());
+	}
+	return executor;
+    }
+
+    static class IOFactory implements ThreadFactory {
+	int count = 0;
+
+	public synchronized Thread newThread(Runnable r) {
+	    Thread t = new Thread(r, "horizon io " + (++count));
+	    t.setDaemon(true);
+	    return t;
+	}
+    }
+}
@@ -425,6 +425,24 @@ public final class JavaType {
       }
       return null;
   }
+
+  /**
+   * return the value of an element of an array of this type as a 
+   * double, without wrapping it in an object.
+   * @exception NumberFormatException if this type is not numeric
+   */
+  public double doubleFromArray(Object array, int index) {
+      switch(code) {
+      case 2: return (double) ((char[]) array)[index];
+      case 3: return (double) ((byte[]) array)[index];
+      case 4: return (double) ((short[]) array)[index];
+      case 5: return (double) ((int[]) array)[index];
+      case 6: return (double) ((long[]) array)[index];
+      case 7: return (double) ((float[]) array)[index];
+      case 8: return ((double[]) array)[index];
+      }
+      throw new NumberFormatException(name + " is not a numeric type");
+  }
     
   /**
    * code: 1, name: "boolean", className: "Java.Lang.Boolean"
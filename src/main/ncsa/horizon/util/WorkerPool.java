@@ -0,0 +1,106 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+
+package ncsa.horizon.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a pool of worker threads shared by the parts of Horizon that split 
+ * up expensive computations (e.g. data statistics, image rendering) 
+ * so that they can run on several processors at once.  The threads 
+ * are daemon threads, created as needed up to one per available 
+ * processor. <p>
+ *
+ * Tasks submitted to the pool should not block waiting for other 
+ * tasks in the pool to complete, as all of the threads could end up 
+ * waiting.  Background tasks that mostly wait on I/O belong on the 
+ * IOPool instead.
+ */
+public class WorkerPool {
+
+    private static ThreadPoolExecutor executor = null;
+
+    private WorkerPool() { }
+
+    /**
+     * return the number of threads the pool will use at most; this is
+     * the number of processors available.
+     */
+    public static int getParallelism() {
+	return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * return the shared executor
+     */
+    public synchronized static ExecutorService getExecutor() {
+	if (executor == null) {
+	    int n = getParallelism();
+	    executor = new ThreadPoolExecutor(n, n, 30L, TimeUnit.SECONDS,
+					      new LinkedBlockingQueue(),
+					      new WorkerFactory());
+	}
+	return executor;
+    }
+
+    /**
+     * wait for a task submitted to the pool to finish and return its 
+     * result, even if this thread is interrupted meanwhile.  A helper 
+     * task may be writing into its caller's arrays, so the caller must 
+     * not go on until it is done; an interrupt is restored once it is, 
+     * for the caller to notice.
+     * @exception ExecutionException if the task threw an exception
+     */
+    public static Object getUninterruptibly(Future f) 
+	throws ExecutionException
+    {
+	boolean interrupted = false;
+	try {
+	    while (true) {
+		try {
+		    return f.get();
+		} catch (InterruptedException ex) {
+		    interrupted = true;
+		}
+	    }
+	} finally {
+	    if (interrupted) Thread.currentThread().interrupt();
+	}
+    }
+
+    static class WorkerFactory implements ThreadFactory {
+	int count = 0;
+
+	public synchronized Thread newThread(Runnable r) {
+	    Thread t = new Thread(r, "horizon worker " + (++count));
+	    t.setDaemon(true);
+	    return t;
+	}
+    }
+}
@@ -41,6 +41,7 @@ import java.util.*;
 
 import ncsa.horizon.awt.ROI;
 import ncsa.horizon.awt.image.SliceImageSource;
+import ncsa.horizon.awt.image.SliceRenderer;
 import ncsa.horizon.awt.image.TransferFunctionImageSource;
 import ncsa.horizon.awt.image.FlippingFilter;
 import ncsa.horizon.util.*;
@@ -74,6 +75,19 @@ public class FITSFuncViewable extends FITSViewable {
     super(url);
   } // end FITSFuncViewable(String name)
 
+  /** 
+   * New a Viewable to display the first nd array available from a 
+   * given reader (e.g. a MappedFITSNdArrayReader).
+   * If a NdArrayData can't be created by the reader. Exception throws.
+   */
+  public FITSFuncViewable(NdArrayReader reader,
+			  TransferFunction transferFunction)
+    throws InstantiationException {
+    super(reader);
+    this.transferFunction = transferFunction;
+    setRange();
+  } // end FITSFuncViewable(NdArrayReader reader)
+
   /** 
    * New a Viewable to read local FITS file.
    * If a reader can't be created for this file. Exception throws.
@@ -81,13 +95,17 @@ public class FITSFuncViewable extends FITSViewable {
   public FITSFuncViewable(String filename,
 			  TransferFunction transferFunction)
     throws InstantiationException {
-    super(filename);
+    // the transfer function's range needs the statistics of all of 
+    // the data, so only load progressively without one
+    super(filename, transferFunction == null);
     this.transferFunction = transferFunction;
     setRange();
   } // end FITSFuncViewable(String name)
 
   /** 
-   * New a Viewable to read through a URL.
+   * New a Viewable to read through a URL.  The transfer function's 
+   * range is set from the plane shown first, as finding that of all 
+   * of the data would mean fetching the whole file.
    * If a reader can't be created for this file. Exception throws.
    */
   public FITSFuncViewable(URL url, 
@@ -95,62 +113,56 @@ public class FITSFuncViewable extends FITSViewable {
     throws InstantiationException {
     super(url);
     this.transferFunction = transferFunction;
-    setRange();
+    setRange(false);
   } // end FITSFuncViewable(String name)
 
-  private void setRange() {
+  private void setRange() { setRange(true); }
+
+  /**
+   * set the transfer function's range from the statistics of all of
+   * the data if allData is true and the data are complete, or else 
+   * from those of the default slice
+   */
+  private void setRange(boolean allData) {
       if (transferFunction == null) return;
 
       NdArrayData d = getData();
       JavaType jt = d.getType();
-      Object da = d.getValue();
       Object min=null, max=null;
-      try {
-	  if (jt == JavaType.DOUBLE) {
-	      double[] dda = (double[]) da;
-	      double[] mnmx = NdArrayMath.minMax1d(dda);
-	      min = jt.wrap(mnmx[0]);
-	      max = jt.wrap(mnmx[1]);
-	  }
-	  else if (jt == JavaType.FLOAT) {
-	      float[] dda = (float[]) da;
-	      float[] mnmx = NdArrayMath.minMax1d(dda);
-	      min = jt.wrap(mnmx[0]);
-	      max = jt.wrap(mnmx[1]);
-	  }
-	  else if (jt == JavaType.INT) {
-	      int[] dda = (int[]) da;
-	      int[] mnmx = NdArrayMath.minMax1d(dda);
-	      min = jt.wrap(mnmx[0]);
-	      max = jt.wrap(mnmx[1]);
-	  }
-	  else if (jt == JavaType.LONG) {
-	      long[] dda = (long[]) da;
-	      long[] mnmx = NdArrayMath.minMax1d(dda);
-	      min = jt.wrap(mnmx[0]);
-	      max = jt.wrap(mnmx[1]);
-	  } 
-	  else if (jt == JavaType.SHORT) {
-	      short[] dda = (short[]) da;
-	      short[] mnmx = NdArrayMath.minMax1d(dda);
-	      min = JavaType.INT.wrap((int) mnmx[0]);
-	      max = JavaType.INT.wrap((int) mnmx[1]);
-	  } 
-	  else if (jt == JavaType.BYTE) {
-	      byte[] dda = (byte[]) da;
-	      byte[] mnmx = NdArrayMath.minMax1d(dda);
-	      min = JavaType.INT.wrap((int) mnmx[0]);
-	      max = JavaType.INT.wrap((int) mnmx[1]);
-	  } 
-	  else { 
-	      System.err.println("Warning: unsupported (non-numeric) " + 
-				 "data type");
-	      return;
-	  }
-      } catch (ClassCastException ex) {
-	  throw new InternalError("JavaType implementation error");
+      if (jt != JavaType.DOUBLE && jt != JavaType.FLOAT &&
+	  jt != JavaType.INT && jt != JavaType.LONG &&
+	  jt != JavaType.SHORT && jt != JavaType.BYTE) 
+      {
+	  System.err.println("Warning: unsupported (non-numeric) " + 
+			     "data type");
+	  return;
       }
 
+      // the statistics are cached, so the transfer function's 
+      // calcRange() will not need to rescan the data.
+      NdArrayStatistics stats = (allData && d.isComplete()) ? 
+	  StatisticsEngine.getStatistics(d) :
+	  StatisticsEngine.getStatistics(d, getDefaultSlice());
+      double mn = stats.getMinimum(), mx = stats.getMaximum();
+      if (stats.getCount() == 0) mn = mx = 0.0;
+
+      if (jt == JavaType.DOUBLE) {
+	  min = jt.wrap(mn);
+	  max = jt.wrap(mx);
+      }
+      else if (jt == JavaType.FLOAT) {
+	  min = jt.wrap((float) mn);
+	  max = jt.wrap((float) mx);
+      }
+      else if (jt == JavaType.LONG) {
+	  min = jt.wrap((long) mn);
+	  max = jt.wrap((long) mx);
+      } 
+      else {
+	  min = JavaType.INT.wrap((int) mn);
+	  max = JavaType.INT.wrap((int) mx);
+      } 
+
       System.err.println("Range: " + min + ", " + max);
       if (min != null) transferFunction.setMinimum(min);
       if (max != null) transferFunction.setMaximum(max);
@@ -169,11 +181,35 @@ public class FITSFuncViewable extends FITSViewable {
     }
     if(!dataVolume.isComplete()) {
       dataVolume.addObserver(sis);
+      prioritize(sl);
     }
     image = Toolkit.getDefaultToolkit().createImage(sis);
     return flip(image);
   }
 
+  /**
+   * render a view with a SliceRenderer, using the transfer function
+   * if there is one
+   */
+  protected Image renderView(SliceRenderer r, Slice slice, 
+			     IndexColorModel cm) 
+  {
+    if (transferFunction == null) return super.renderView(r, slice, cm);
+    return r.render(slice, cm, transferFunction);
+  }
+
+  /**
+   * return the revision of a NumericTransferFunction, so that frames 
+   * rendered ahead of time are discarded when it is edited; with any 
+   * other kind of transfer function, frames are not kept (-1)
+   */
+  protected long getRenderRevision() {
+    if (transferFunction == null) return super.getRenderRevision();
+    if (transferFunction instanceof NumericTransferFunction) 
+      return ((NumericTransferFunction) transferFunction).getRevision();
+    return -1;
+  }
+
   /**
    * Not alway create a new image.
    */
@@ -201,6 +237,9 @@ public class FITSFuncViewable extends FITSViewable {
     } else if (makeDefault) {
       makeDefaultSlice(slice);
     }
+    if (canRenderDirectly(colorModel)) 
+      return renderView(slice, (IndexColorModel) colorModel);
+
     Volume volume = dataVolume.getVolume();
 
     this.slice = slice.projection(volume);
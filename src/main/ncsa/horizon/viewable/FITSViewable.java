@@ -40,7 +40,9 @@ import java.util.*;
 
 import ncsa.horizon.awt.ROI;
 import ncsa.horizon.awt.image.SliceImageSource;
+import ncsa.horizon.awt.image.SliceRenderer;
 import ncsa.horizon.awt.image.FlippingFilter;
+import ncsa.horizon.awt.image.Lut;
 import ncsa.horizon.util.*;
 import ncsa.horizon.data.*;
 import ncsa.horizon.coordinates.CoordinateSystem;
@@ -69,6 +71,45 @@ public class FITSViewable implements Viewable {
    */
   protected Slice defaultSlice;
 
+  /**
+   * if true, getView() renders complete data directly into a 
+   * BufferedImage with a SliceRenderer rather than through an 
+   * ImageProducer and filters
+   */
+  protected boolean directRendering = true;
+
+  /**
+   * the renderer used when directRendering is true
+   */
+  protected SliceRenderer renderer = null;
+
+  /**
+   * how the renderer combines data pixels for views sampled every 2 or
+   * more pixels; one of ImagePyramid.MEAN, MAXIMUM, or MINIMUM
+   */
+  protected int reduction = ImagePyramid.MEAN;
+
+  /**
+   * the limit on the memory the renderer uses to retain planes
+   */
+  protected long planeCacheSize = SliceRenderer.DEFAULT_CACHE_SIZE;
+
+  /**
+   * the frames rendered ahead of time, if any; see getPrefetcher()
+   */
+  protected FramePrefetcher prefetcher = null;
+
+  /**
+   * the color model used by the direct renderer when none is given
+   */
+  protected IndexColorModel defaultColorModel = null;
+
+  /**
+   * the updater still loading dataVolume, or null if the data were 
+   * complete when read
+   */
+  protected NdArrayDataUpdater updater = null;
+
   /**
    * Can't instantiate a FITSViewable without argument.
    */
@@ -84,29 +125,69 @@ public class FITSViewable implements Viewable {
   private NdArrayReader reader;
 
   /** 
-   * New a Viewable to read local FITS file.
+   * New a Viewable to read local FITS file.  The data are loaded in
+   * the background, the plane being viewed first, and views are 
+   * updated as they arrive.
    * If a reader can't be created for this file. Exception throws.
    */
   public FITSViewable(String filename) throws InstantiationException {
-    reader = new FITSNdArrayReader(filename);
-    constructVariables();
+    this(filename, true);
   } // end FITSViewable(String name)
 
   /** 
-   * New a Viewable to read through a URL.
+   * New a Viewable to read local FITS file.
+   * If a reader can't be created for this file. Exception throws.
+   * @param progressive  if true, load the data in the background, the
+   *                     plane being viewed first; otherwise, read all 
+   *                     of the data before returning
+   */
+  public FITSViewable(String filename, boolean progressive) 
+    throws InstantiationException 
+  {
+    FITSNdArrayReader fitsReader = new FITSNdArrayReader(filename);
+    fitsReader.setProgressive(progressive);
+    reader = fitsReader;
+    constructVariables();
+  } // end FITSViewable(String name, boolean progressive)
+
+  /** 
+   * New a Viewable to read through a URL.  For an HTTP server that 
+   * supports Range requests, only the parts of the file needed for 
+   * the views are fetched (see RemoteFITSNdArrayReader); otherwise the
+   * whole file is read.
    * If a reader can't be created for this file. Exception throws.
    */
   public FITSViewable(URL url) throws InstantiationException {
-    reader = new FITSNdArrayReader(url);
+    String protocol = url.getProtocol();
+    if (protocol.equals("http") || protocol.equals("https")) {
+      try {
+	reader = new RemoteFITSNdArrayReader(url);
+      } catch (InstantiationException e) {
+	// no Range support, compressed, or no plain image; read it all
+	reader = null;
+      }
+    }
+    if (reader == null) reader = new FITSNdArrayReader(url);
     constructVariables();
   } // end FITSViewable(String name)
 
+  /** 
+   * New a Viewable to display the first nd array available from a 
+   * given reader (e.g. a MappedFITSNdArrayReader).
+   * If a NdArrayData can't be created by the reader. Exception throws.
+   */
+  public FITSViewable(NdArrayReader reader) throws InstantiationException {
+    this.reader = reader;
+    constructVariables();
+  } // end FITSViewable(NdArrayReader reader)
+
   // used only for constructor.
   private boolean constructDatavolume() {
     dataVolume = reader.getNdArrayData();
     if (dataVolume == null) {
       return false;
     }
+    if (! dataVolume.isComplete()) updater = reader.getUpdater();
     return true;
     /*
     try {
@@ -151,11 +232,24 @@ public class FITSViewable implements Viewable {
     }
     if(!dataVolume.isComplete()) {
       dataVolume.addObserver(sis);
+      prioritize(sl);
     }
     image = Toolkit.getDefaultToolkit().createImage(sis);
     return flip(image);
   }
 
+  /**
+   * if the data are still being loaded, ask that the plane containing
+   * a slice be loaded next
+   */
+  protected void prioritize(Slice sl) {
+    if (updater == null || dataVolume.isComplete()) return;
+    Slice plane = sl.projection(dataVolume.getVolume());
+    updater.prioritize(
+	ArrayTypeConverter.arrayDoubleToInt(plane.getLocation()),
+	ArrayTypeConverter.arrayDoubleToInt(plane.getSize()));
+  }
+
   // works only for Constructors
   private void constructVariables() throws InstantiationException {
     if (constructDatavolume()) {
@@ -260,7 +354,8 @@ public class FITSViewable implements Viewable {
    * @param makeDefault if true make this slice be the viewable's default view,
    *                    if possible
    * <p>
-   * @return   A java.awt.Image object (null on failure)
+   * @return   A java.awt.Image object (null on failure); see 
+   *           setDirectRendering() regarding the reuse of images
    */
   public Image getView(Slice slice, 
                        ColorModel colorModel, boolean makeDefault) {
@@ -269,6 +364,9 @@ public class FITSViewable implements Viewable {
     } else if (makeDefault) {
       makeDefaultSlice(slice);
     }
+    if (canRenderDirectly(colorModel)) 
+      return renderView(slice, (IndexColorModel) colorModel);
+
     Volume volume = dataVolume.getVolume();
     // if the given slice is in the different plane, bringing the
     // largest image contain all the data of the new slice plane
@@ -290,6 +388,138 @@ public class FITSViewable implements Viewable {
     }
   }
 
+  /**
+   * choose whether getView() renders complete data directly into a 
+   * BufferedImage (the default) or via an ImageProducer.  The direct 
+   * path avoids copying each frame through the flipping and cropping 
+   * filters and reuses its buffers; each view it returns is a new 
+   * image (or, after a change of color model only, shares the last 
+   * one's pixels), which later views leave alone.  Incomplete data 
+   * and color models other than IndexColorModel always go through an 
+   * ImageProducer.
+   */
+  public void setDirectRendering(boolean yes) { directRendering = yes; }
+
+  /**
+   * return true if getView() renders complete data directly into a 
+   * BufferedImage
+   */
+  public boolean isDirectRendering() { return directRendering; }
+
+  protected boolean canRenderDirectly(ColorModel cm) {
+    return (directRendering && dataVolume.isComplete() &&
+	    (cm == null || (cm instanceof IndexColorModel &&
+			    ((IndexColorModel) cm).getMapSize() <= 256)));
+  }
+
+  /**
+   * render a view with the SliceRenderer, or return the frame already
+   * rendered for the slice by the prefetcher, if any
+   */
+  protected Image renderView(Slice slice, IndexColorModel cm) {
+    cm = getIndexColorModel(cm);
+    if (prefetcher != null) {
+      Image frame = prefetcher.getFrame(slice, cm);
+      if (frame != null) return frame;
+    }
+    return renderView(getRenderer(), slice, cm);
+  }
+
+  /**
+   * render a view with a given SliceRenderer.  The values in the plane 
+   * containing the slice are mapped linearly onto the color model.
+   * This is also used by the FramePrefetcher, whose renderers run on 
+   * its own threads, so a subclass overriding it must allow for it 
+   * being called by several threads at once.
+   * @param cm  the color model (not null)
+   */
+  protected Image renderView(SliceRenderer r, Slice slice, 
+			     IndexColorModel cm) 
+  {
+    Slice plane = slice.projection(dataVolume.getVolume());
+    NdArrayStatistics stats = StatisticsEngine.getStatistics(dataVolume, 
+							     plane);
+    return r.render(slice, cm, stats.getMinimum(), stats.getMaximum());
+  }
+
+  /**
+   * return a number that changes whenever the views rendered directly
+   * would change for reasons other than the data changing (which the 
+   * FramePrefetcher notices itself), or -1 if this cannot be known.  
+   * The views made by this class depend only on the data, so this 
+   * returns 0.
+   */
+  protected long getRenderRevision() { return 0; }
+
+  /**
+   * return the FramePrefetcher that renders views ahead of their 
+   * request (e.g. the following planes of an animation), creating it 
+   * if necessary.  Views it has rendered are returned by getView() 
+   * without rendering them again.
+   */
+  public synchronized FramePrefetcher getPrefetcher() {
+    if (prefetcher == null) prefetcher = new FramePrefetcher(this);
+    return prefetcher;
+  }
+
+  /**
+   * return the renderer used for direct rendering, creating it if 
+   * necessary
+   */
+  protected SliceRenderer getRenderer() {
+    if (renderer == null) {
+      renderer = new SliceRenderer(dataVolume);
+      renderer.setReduction(reduction);
+      renderer.setCacheSize(planeCacheSize);
+    }
+    return renderer;
+  }
+
+  /**
+   * set how data pixels are combined when direct rendering a view whose
+   * slice has a sampling of 2 or more along both axes.  Such views are 
+   * rendered at the reduced resolution from a cached ImagePyramid of 
+   * the plane.
+   * @param method  ImagePyramid.MEAN (the default), MAXIMUM, or MINIMUM
+   */
+  public void setReduction(int method) {
+    if (renderer != null) renderer.setReduction(method);
+    reduction = method;
+    if (prefetcher != null) prefetcher.clear();
+  }
+
+  /**
+   * return how data pixels are combined for views of reduced resolution
+   */
+  public int getReduction() { return reduction; }
+
+  /**
+   * set the limit on the memory used to retain the values of planes 
+   * rendered directly at full resolution, so that changing the 
+   * transfer function or panning within a recent plane does not read 
+   * the data again
+   * @param bytes  the limit; 0 turns off the cache
+   */
+  public void setPlaneCacheSize(long bytes) {
+    if (renderer != null) renderer.setCacheSize(bytes);
+    planeCacheSize = Math.max(0, bytes);
+  }
+
+  /**
+   * return the limit on the memory used to retain planes
+   */
+  public long getPlaneCacheSize() { return planeCacheSize; }
+
+  /**
+   * return the given color model, or if it is null, the default one
+   */
+  protected IndexColorModel getIndexColorModel(IndexColorModel cm) {
+    if (cm != null) return cm;
+    if (defaultColorModel == null) 
+      defaultColorModel = Lut.getRainbowLut().getIndexColorModel();
+    return defaultColorModel;
+  }
+
   // what about the case xaxis = 1 yaxis = 0,
   // while other slice yaxis = 1, xaxis = 0
   // now, there are not in the same plane.
@@ -0,0 +1,418 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+package ncsa.horizon.viewable;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+
+import ncsa.horizon.awt.image.SliceRenderer;
+import ncsa.horizon.util.Slice;
+import ncsa.horizon.util.WorkerPool;
+
+/**
+ * an object that renders views of a FITSViewable before they are 
+ * requested, on threads of its own, and keeps them until they are.  
+ * This lets an animation through the planes of a cube (see 
+ * ncsa.horizon.viewer.PlaneAnimator) display each plane as soon as 
+ * its turn comes, rather than reading and rendering it then. <p>
+ *
+ * prefetch() sets the list of slices wanted, in the order they will 
+ * be needed; the threads render the ones not already kept, first 
+ * first.  The frames are kept in a cache of limited size, the least 
+ * recently used being discarded first.  FITSViewable.getView() asks 
+ * the prefetcher for a frame before rendering a view itself; a frame 
+ * rendered with one color model is returned recolored for any other 
+ * of the same map size (see SliceRenderer).  Frames are discarded when
+ * the data change, when the viewable's getRenderRevision() changes 
+ * (e.g. when its transfer function is edited), and by clear(). <p>
+ *
+ * The time taken to render a frame is measured (see getRenderTime()), 
+ * so that a client can decide how far ahead to ask for frames.
+ */
+public class FramePrefetcher {
+
+  /**
+   * the default limit on the memory used by the frames kept: 64 Mbytes
+   */
+  public final static long DEFAULT_CACHE_SIZE = 64L*1024*1024;
+
+  /**
+   * how long, in milliseconds, a thread waits for work before exiting
+   */
+  public final static long IDLE_TIMEOUT = 30000;
+
+  protected FITSViewable viewable;
+
+  private long cacheSize = DEFAULT_CACHE_SIZE, cacheUsed = 0;
+
+  // key -> Frame, least recently used first
+  private LinkedHashMap frames = new LinkedHashMap(16, 0.75f, true);
+
+  // key -> Slice, in the order needed; and the keys being rendered
+  private LinkedHashMap wanted = new LinkedHashMap();
+  private HashSet busy = new HashSet();
+
+  // what the frames are rendered with
+  private IndexColorModel colorModel = null;
+  private long revision = 0;
+
+  // incremented whenever the frames are discarded, so that frames 
+  // being rendered at the time are not kept
+  private int generation = 0;
+
+  private Worker[] workers;
+  private boolean stopping = false;
+  private SliceRenderer[] renderers;
+
+  // statistics; renderTime is a moving average, in milliseconds
+  private double renderTime = 0.0;
+  private long rendered = 0, hits = 0, misses = 0;
+
+  private Observer invalidator = new Observer() {
+    public void update(Observable o, Object arg) {
+      clear();
+    }
+  };
+
+  /**
+   * a view rendered ahead of time
+   */
+  private static class Frame {
+    BufferedImage image, recolored = null;
+    int mapSize = -1;
+    long bytes;
+
+    Frame(BufferedImage image) {
+      this.image = image;
+      if (image.getColorModel() instanceof IndexColorModel) 
+	mapSize = ((IndexColorModel) image.getColorModel()).getMapSize();
+      bytes = (long) image.getWidth() * image.getHeight() + 256;
+    }
+
+    /**
+     * return the frame with a given color model, or null if its 
+     * raster cannot be used with it
+     */
+    BufferedImage imageFor(IndexColorModel cm) {
+      if (image.getColorModel() == cm) return image;
+      if (recolored != null && recolored.getColorModel() == cm) 
+	return recolored;
+      WritableRaster r = image.getRaster();
+      if (! cm.isCompatibleRaster(r)) return null;
+      recolored = new BufferedImage(cm, r, false, null);
+      return recolored;
+    }
+  }
+
+  /**
+   * create a prefetcher for a viewable, with one thread fewer than the
+   * number of processors (but at least one)
+   */
+  public FramePrefetcher(FITSViewable viewable) {
+    this(viewable, Math.max(1, WorkerPool.getParallelism() - 1));
+  }
+
+  /**
+   * create a prefetcher for a viewable
+   * @param nthreads  the number of threads to render frames with
+   */
+  public FramePrefetcher(FITSViewable viewable, int nthreads) {
+    this.viewable = viewable;
+    workers = new Worker[Math.max(1, nthreads)];
+    renderers = new SliceRenderer[workers.length];
+    viewable.getData().addObserver(invalidator);
+  }
+
+  /**
+   * return the number of threads that render frames
+   */
+  public int getThreadCount() { return workers.length; }
+
+  /**
+   * set the limit on the memory used by the frames kept
+   */
+  public synchronized void setCacheSize(long bytes) {
+    cacheSize = Math.max(0, bytes);
+    trim();
+  }
+
+  /**
+   * return the limit on the memory used by the frames kept
+   */
+  public synchronized long getCacheSize() { return cacheSize; }
+
+  /**
+   * discard the frames kept
+   */
+  public synchronized void clear() {
+    frames.clear();
+    cacheUsed = 0;
+    generation++;
+  }
+
+  /**
+   * discard the frames kept and those wanted, and let the threads exit
+   * without waiting for more work.  prefetch() starts them again.
+   */
+  public synchronized void stop() {
+    wanted.clear();
+    clear();
+    stopping = true;
+    notifyAll();
+  }
+
+  /**
+   * ask for frames to be rendered for some slices, replacing the 
+   * earlier list.  Slices whose frames are kept already are skipped.
+   * @param slices  the slices, in the order they will be needed
+   * @param cm      the color model to render with; if null, the 
+   *                viewable's default
+   */
+  public void prefetch(Slice[] slices, IndexColorModel cm) {
+    cm = viewable.getIndexColorModel(cm);
+    long rev = viewable.getRenderRevision();
+    boolean direct = viewable.canRenderDirectly(cm);
+
+    synchronized (this) {
+      wanted.clear();
+      if (rev < 0 || ! direct) return;
+      stopping = false;
+      if (rev != revision || colorModel == null || 
+	  colorModel.getMapSize() != cm.getMapSize()) 
+      {
+	clear();
+	revision = rev;
+      }
+      colorModel = cm;
+
+      for(int i=0; i < slices.length; i++) {
+	String key = key(slices[i]);
+	if (! frames.containsKey(key) && ! busy.contains(key)) 
+	  wanted.put(key, slices[i].clone());
+      }
+
+      int n = Math.min(workers.length, wanted.size());
+      for(int i=0; i < workers.length && n > 0; i++) {
+	if (workers[i] == null) {
+	  if (renderers[i] == null) {
+	    renderers[i] = new SliceRenderer(viewable.getData());
+	    renderers[i].setImageReuse(false);
+	    renderers[i].setCacheSize(0);
+	  }
+	  workers[i] = new Worker(i);
+	  workers[i].start();
+	}
+	n--;
+      }
+      notifyAll();
+    }
+  }
+
+  /**
+   * return the frame kept for a slice, with the given color model, or
+   * null if there is none
+   */
+  public Image getFrame(Slice slice, IndexColorModel cm) {
+    long rev = viewable.getRenderRevision();
+    String key = key(slice);
+    synchronized (this) {
+      if (rev != revision && frames.size() > 0) clear();
+      Frame f = (rev == revision) ? (Frame) frames.get(key) : null;
+      Image out = null;
+      if (f != null && f.mapSize == cm.getMapSize()) out = f.imageFor(cm);
+      if (out == null) misses++;
+      else hits++;
+      return out;
+    }
+  }
+
+  /**
+   * return true if a frame is kept for a slice
+   */
+  public synchronized boolean hasFrame(Slice slice) {
+    return frames.containsKey(key(slice));
+  }
+
+  /**
+   * wait until the frame for a slice has been rendered, if it is 
+   * wanted or being rendered
+   * @param timeout  the longest time to wait, in milliseconds
+   * @return true if the frame is kept
+   */
+  public synchronized boolean waitForFrame(Slice slice, long timeout) 
+    throws InterruptedException
+  {
+    String key = key(slice);
+    long end = System.currentTimeMillis() + timeout, left = timeout;
+    while (! frames.containsKey(key) && left > 0 &&
+	   (wanted.containsKey(key) || busy.contains(key))) 
+    {
+      wait(left);
+      left = end - System.currentTimeMillis();
+    }
+    return frames.containsKey(key);
+  }
+
+  /**
+   * return the time taken to render a frame (a moving average), in 
+   * milliseconds, or 0 if none has been rendered
+   */
+  public synchronized double getRenderTime() { return renderTime; }
+
+  /**
+   * return the number of frames rendered
+   */
+  public synchronized long getRenderedCount() { return rendered; }
+
+  /**
+   * return the number of views requested from getFrame() that were 
+   * kept
+   */
+  public synchronized long getHitCount() { return hits; }
+
+  /**
+   * return the number of views requested from getFrame() that were not
+   * kept
+   */
+  public synchronized long getMissCount() { return misses; }
+
+  /**
+   * return the number of frames kept
+   */
+  public synchronized int getFrameCount() { return frames.size(); }
+
+  private void trim() {
+    Iterator it = frames.entrySet().iterator();
+    while (cacheUsed > cacheSize && it.hasNext()) {
+      Frame f = (Frame) ((Map.Entry) it.next()).getValue();
+      cacheUsed -= f.bytes;
+      it.remove();
+    }
+  }
+
+  /**
+   * return a string identifying the region and sampling of a slice
+   */
+  static String key(Slice slice) {
+    Slice s = (Slice) slice.clone();
+    s.makeLengthsPositive();
+    StringBuffer sb = new StringBuffer();
+    sb.append(s.getXaxis()).append(',').append(s.getYaxis());
+    for(int i=0; i < s.getNaxes(); i++) {
+      sb.append(';').append(s.axisPos(i)).append(',');
+      sb.append(s.getLength(i)).append(',').append(s.getStep(i));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * a thread that renders the wanted frames, each with its own 
+   * SliceRenderer, and exits when there have been none for a while
+   */
+  private class Worker extends Thread {
+    int index;
+
+    Worker(int index) {
+      super("horizon prefetcher " + (index+1));
+      setDaemon(true);
+      this.index = index;
+    }
+
+    public void run() {
+      try {
+	work();
+      } finally {
+	// let prefetch() start another thread, even if this one died
+	synchronized (FramePrefetcher.this) {
+	  if (workers[index] == this) workers[index] = null;
+	  FramePrefetcher.this.notifyAll();
+	}
+      }
+    }
+
+    private void work() {
+      SliceRenderer renderer = renderers[index];
+      while (true) {
+	String key = null;
+	Slice slice = null;
+	IndexColorModel cm;
+	int gen;
+	synchronized (FramePrefetcher.this) {
+	  long idleSince = System.currentTimeMillis();
+	  while ((key = nextWanted()) == null) {
+	    long idle = System.currentTimeMillis() - idleSince;
+	    if (idle >= IDLE_TIMEOUT || stopping) return;
+	    try {
+	      FramePrefetcher.this.wait(IDLE_TIMEOUT - idle);
+	    } catch (InterruptedException ex) {
+	      return;
+	    }
+	  }
+	  slice = (Slice) wanted.remove(key);
+	  busy.add(key);
+	  cm = colorModel;
+	  gen = generation;
+	}
+
+	Image img = null;
+	long start = System.nanoTime();
+	try {
+	  renderer.setReduction(viewable.getReduction());
+	  img = viewable.renderView(renderer, slice, cm);
+	} catch (RuntimeException ex) {
+	  System.err.println("Trouble prefetching view: " + ex);
+	} finally {
+	  double time = (System.nanoTime() - start) / 1.0e6;
+	  synchronized (FramePrefetcher.this) {
+	    busy.remove(key);
+	    if (img instanceof BufferedImage && gen == generation) {
+	      Frame f = new Frame((BufferedImage) img);
+	      frames.put(key, f);
+	      cacheUsed += f.bytes;
+	      trim();
+	      renderTime = (rendered == 0) ? time 
+		                           : 0.8*renderTime + 0.2*time;
+	      rendered++;
+	    }
+	    FramePrefetcher.this.notifyAll();
+	  }
+	}
+      }
+    }
+  }
+
+  /**
+   * return the key of the first wanted frame, or null if there is none
+   */
+  private String nextWanted() {
+    Iterator it = wanted.keySet().iterator();
+    return it.hasNext() ? (String) it.next() : null;
+  }
+}
@@ -137,6 +137,22 @@ public class ADILViewer extends SelectionViewer implements Cloneable {
     protected ImageDisplayMap cpixtrx=null;
     protected CoordinateSystem coord=null;
     protected Image mainimg=null;
+
+    /** render the views for the main and magnifier canvases */
+    protected RenderScheduler mainScheduler = 
+	new RenderScheduler(new RenderScheduler.Display() {
+	    public void displayView(Slice s, Image view) {
+		mainimg = view;
+		mainview.displayImage(mainimg);
+	    }
+	});
+    protected RenderScheduler magScheduler = 
+	new RenderScheduler(new RenderScheduler.Display() {
+	    public void displayView(Slice s, Image view) {
+		magview.displayImage(view);
+		magview.repaint();
+	    }
+	});
     protected boolean newViewable = false;
     protected Dimension sliceSize = new Dimension(0,0);
     protected int lepid;
@@ -472,19 +488,15 @@ public class ADILViewer extends SelectionViewer implements Cloneable {
 	    validate();
 	}
 
-	// extract the slice as an Image
-	mainimg = data.getView(slice, (ColorModel) null, true);
-
-	// now display the slice
+	// extract the slice as an Image (away from the event thread); it 
+	// is displayed when ready
 	System.out.println("Loading image...");
-	mainview.displayImage(mainimg);
+	mainScheduler.request(data, slice, (ColorModel) null, true);
 
 	// update the view in the magnifier canvas
 	Dimension sz = mainview.size();
 	setPixelSelection(sz.width/2, sz.height/2);
 	setBoxSelection(0, 0, sz.width, sz.height);
- 	try { Thread.sleep(100); }          // this helps reduce image request
-	catch (InterruptedException e) { }  // collisions between two canvases
 	updateMagview();
     }
 
@@ -867,7 +879,7 @@ public class ADILViewer extends SelectionViewer implements Cloneable {
 // 	                   magslice.axisPos(magslice.getYaxis()) + ") len(" + 
 // 	                   magslice.getLength(magslice.getXaxis()) + ", " +
 // 	                   magslice.getLength(magslice.getYaxis()) + ")" );
-	Image magimg = data.getView(magslice, (ColorModel) null, true);
+	magScheduler.request(data, magslice, (ColorModel) null, true);
 
 	// update the magslice pixel map
 	int xax = magslice.getXaxis(),
@@ -879,11 +891,19 @@ public class ADILViewer extends SelectionViewer implements Cloneable {
 		       magslice.getTrueLength(xax), 
 		       magslice.getTrueLength(yax));
 
-	// display the subimage
-	magview.displayImage(magimg);
-	magview.repaint();
+	// the subimage is displayed when it has been rendered
     }
 
+    /**
+     * return the scheduler that renders the views of the main canvas
+     */
+    public RenderScheduler getMainScheduler() { return mainScheduler; }
+
+    /**
+     * return the scheduler that renders the views of the magnifier
+     */
+    public RenderScheduler getMagnifierScheduler() { return magScheduler; }
+
     public void setDrawBox(boolean b)   { mainview.drawBox = b;   }
     public void setDrawLine(boolean b)  { mainview.drawLine = b;  }
     public void setDrawPoint(boolean b) { mainview.drawPoint = b; }
@@ -1190,6 +1210,8 @@ public class ADILViewer extends SelectionViewer implements Cloneable {
 	if (hdrWindow != null) hdrWindow.dispose();
 
 	// forget everything
+	mainScheduler.cancel();
+	magScheduler.cancel();
 	data = null;
 	slice = magslice =null;
 	ppixtrx = mpixtrx = cpixtrx;
@@ -78,6 +78,15 @@ public class BasicSelectionViewer extends SelectionViewer
     /** the last image extracted from the current viewable */
     protected Image             image=null;
 
+    /** renders the views requested by displaySlice() */
+    protected RenderScheduler scheduler = 
+	new RenderScheduler(new RenderScheduler.Display() {
+	    public void displayView(Slice s, Image view) {
+		image = view;
+		repaint();
+	    }
+	});
+
     /** the last slice requested from the current viewable */
     protected Slice             slice=null;
 
@@ -162,7 +171,6 @@ public class BasicSelectionViewer extends SelectionViewer
     public void displaySlice ( Slice sl ) {
 
 	if (viewable == null) return;
-	if ((image = viewable.getView(sl)) == null) return;
 
 	// save a copy of input slice
 	if (viewable != null) slice = null;
@@ -193,10 +201,16 @@ public class BasicSelectionViewer extends SelectionViewer
 	    updatePixelMap();
 	}
 
-	// now we are ready to display the slice
-	repaint();
+	// now we are ready to display the slice; it is rendered away 
+	// from the event thread and painted when ready
+	scheduler.request(viewable, sl, null, false);
     }
 
+    /**
+     * return the scheduler that renders this viewer's views
+     */
+    public RenderScheduler getScheduler() { return scheduler; }
+
     /**
      * Display a default slice of the current Viewable.
      */
@@ -32,12 +32,24 @@ import ncsa.horizon.awt.ImageCanvas;
 import ncsa.horizon.util.Slice;
 import ncsa.horizon.viewable.Viewable;
 
+/**
+ * the part of a viewer that displays views in an ImageCanvas.  Views 
+ * of a given slice are rendered by a RenderScheduler, away from the 
+ * AWT event thread, and displayed when ready; a newer request 
+ * supersedes one not yet displayed.
+ */
 public class ImageCanvasViewerImpl {
 
   private ImageCanvas canvas;
+  private RenderScheduler scheduler;
 
   public ImageCanvasViewerImpl(ImageCanvas c) {
     canvas = c;
+    scheduler = new RenderScheduler(new RenderScheduler.Display() {
+      public void displayView(Slice slice, Image view) {
+	canvas.displayImage(view);
+      }
+    });
   }
 
   public void displaySlice(Viewable v) {
@@ -46,15 +58,18 @@ public class ImageCanvasViewerImpl {
   }
 
   public void displaySlice(Viewable v, Slice s) {
-    Image image = v.getView(s);
-    canvas.displayImage(image);
+    scheduler.request(v, s, null, false);
   }
 
   public void displaySlice(Viewable v, Slice s, ColorModel cm) {
-    Image image = v.getView(s, cm, false);
-    canvas.displayImage(image);
+    scheduler.request(v, s, cm, false);
   }
 
+  /**
+   * return the scheduler that renders the views
+   */
+  public RenderScheduler getScheduler() { return scheduler; }
+
   public Dimension getDisplaySize() {
     return canvas.size();
   }
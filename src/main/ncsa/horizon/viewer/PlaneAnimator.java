@@ -0,0 +1,417 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+package ncsa.horizon.viewer;
+
+import java.awt.EventQueue;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Observable;
+
+import ncsa.horizon.util.Slice;
+import ncsa.horizon.util.Volume;
+import ncsa.horizon.viewable.FITSViewable;
+import ncsa.horizon.viewable.FramePrefetcher;
+import ncsa.horizon.viewable.Viewable;
+
+/**
+ * an object that plays the planes of a cube through a viewer, one 
+ * after another along an axis that is not displayed (e.g. the 
+ * channels of a spectral cube), at a given frame rate. <p>
+ *
+ * Each tick, the animator takes the slice the viewer is showing, moves
+ * it to the next plane along the animation axis and has the viewer 
+ * display it (on the AWT event thread), keeping the viewer's zoom and
+ * pan.  Playback can loop, bounce back and forth, or stop at the end 
+ * (see setMode()).  When the viewer's Viewable is a FITSViewable, the 
+ * animator asks its FramePrefetcher to render the following planes 
+ * ahead of time, so that each is ready when its turn comes; how far 
+ * ahead (the lookahead) is adapted to the time the prefetcher takes 
+ * to render a plane, the frame rate and the number of rendering 
+ * threads, within the frames the prefetcher can keep.  If a plane is 
+ * not ready in time, the animator waits for it rather than skip it, 
+ * and the frame counts as late; lost time is not made up with a burst
+ * of frames. <p>
+ *
+ * After each frame is displayed, the animator's Observers are 
+ * notified with the slice displayed; when playing ends, however it 
+ * ends, they are notified with null.
+ */
+public class PlaneAnimator extends Observable implements Runnable {
+
+  /**
+   * play from the first plane to the last, then start again
+   */
+  public final static int LOOP = 0;
+
+  /**
+   * play from the first plane to the last, then back again
+   */
+  public final static int BOUNCE = 1;
+
+  /**
+   * play to the last plane (or the first, if playing backward) and stop
+   */
+  public final static int ONCE = 2;
+
+  /**
+   * the default frame rate, in frames per second
+   */
+  public final static double DEFAULT_FRAME_RATE = 10.0;
+
+  /**
+   * the default limit on the number of planes rendered ahead
+   */
+  public final static int DEFAULT_MAX_LOOKAHEAD = 32;
+
+  /**
+   * the longest time, in milliseconds, to wait for a plane being 
+   * rendered ahead before rendering it in the viewer instead
+   */
+  public final static long FRAME_TIMEOUT = 1000;
+
+  protected Viewer viewer;
+
+  private int axis = -1, mode = LOOP, direction = 1;
+  private double frameRate = DEFAULT_FRAME_RATE;
+  private int maxLookahead = DEFAULT_MAX_LOOKAHEAD, lookahead = 0;
+  private boolean prefetching = true;
+  private Thread player = null;
+
+  // statistics
+  private long frames = 0, late = 0, started = 0;
+
+  /**
+   * create an animator for a viewer
+   */
+  public PlaneAnimator(Viewer viewer) {
+    this.viewer = viewer;
+  }
+
+  /**
+   * set the axis to play along.  If it is negative (the default), the 
+   * first axis not displayed is used.
+   */
+  public synchronized void setAxis(int axis) { this.axis = axis; }
+
+  /**
+   * return the axis to play along, or -1 if it is chosen automatically
+   */
+  public synchronized int getAxis() { return axis; }
+
+  /**
+   * set the frame rate, in frames per second
+   */
+  public synchronized void setFrameRate(double fps) {
+    if (fps <= 0.0) 
+      throw new IllegalArgumentException("Frame rate must be positive: " + 
+					 fps);
+    frameRate = fps;
+  }
+
+  /**
+   * return the frame rate, in frames per second
+   */
+  public synchronized double getFrameRate() { return frameRate; }
+
+  /**
+   * set what happens at the end of the axis: LOOP, BOUNCE or ONCE
+   */
+  public synchronized void setMode(int mode) {
+    if (mode < LOOP || mode > ONCE) 
+      throw new IllegalArgumentException("Unknown mode: " + mode);
+    this.mode = mode;
+  }
+
+  /**
+   * return what happens at the end of the axis
+   */
+  public synchronized int getMode() { return mode; }
+
+  /**
+   * set the direction of play: forward if positive, backward if 
+   * negative
+   */
+  public synchronized void setDirection(int dir) {
+    direction = (dir < 0) ? -1 : 1;
+  }
+
+  /**
+   * return the direction of play: 1 for forward, -1 for backward
+   */
+  public synchronized int getDirection() { return direction; }
+
+  /**
+   * set the limit on the number of planes rendered ahead
+   */
+  public synchronized void setMaxLookahead(int n) { 
+    maxLookahead = Math.max(0, n); 
+  }
+
+  /**
+   * set whether planes are rendered ahead (when the Viewable is a 
+   * FITSViewable); the default is true
+   */
+  public synchronized void setPrefetching(boolean yes) { 
+    prefetching = yes; 
+  }
+
+  /**
+   * return whether planes are rendered ahead
+   */
+  public synchronized boolean isPrefetching() { return prefetching; }
+
+  /**
+   * return the limit on the number of planes rendered ahead
+   */
+  public synchronized int getMaxLookahead() { return maxLookahead; }
+
+  /**
+   * return the number of planes being rendered ahead
+   */
+  public synchronized int getLookahead() { return lookahead; }
+
+  /**
+   * start playing, if not playing already
+   */
+  public synchronized void start() {
+    if (player != null) return;
+    frames = late = 0;
+    started = System.currentTimeMillis();
+    player = new Thread(this, "horizon plane animator");
+    player.setDaemon(true);
+    player.start();
+  }
+
+  /**
+   * stop playing.  The plane being displayed stays displayed.
+   */
+  public synchronized void stop() {
+    if (player == null) return;
+    player.interrupt();
+    player = null;
+  }
+
+  /**
+   * return true if playing
+   */
+  public synchronized boolean isPlaying() { return player != null; }
+
+  /**
+   * display the plane n planes along the animation axis from the one 
+   * displayed (backward if n is negative), stopping at the ends
+   */
+  public void step(int n) {
+    Slice slice = viewer.getViewSlice();
+    if (slice == null || viewer.getViewable() == null) return;
+    int ax = getPlayAxis(slice);
+    if (ax < 0) return;
+    double[] range = getRange(ax);
+    double pos = slice.axisPos(ax) + n;
+    pos = Math.max(range[0], Math.min(range[1], pos));
+    if (pos == slice.axisPos(ax)) return;
+    slice.setAxisPos(ax, pos);
+    viewer.displaySlice(slice);
+    setChanged();
+    notifyObservers(slice);
+  }
+
+  /**
+   * return the number of frames displayed since playing last started
+   */
+  public synchronized long getFrameCount() { return frames; }
+
+  /**
+   * return the number of frames displayed later than their time since
+   * playing last started
+   */
+  public synchronized long getLateCount() { return late; }
+
+  /**
+   * return the rate, in frames per second, at which frames have been 
+   * displayed since playing last started
+   */
+  public synchronized double getMeasuredFrameRate() {
+    long t = System.currentTimeMillis() - started;
+    return (t > 0) ? frames * 1000.0 / t : 0.0;
+  }
+
+  public void run() {
+    Thread me = Thread.currentThread();
+    long next = System.nanoTime();
+
+    try {
+      while (isCurrent(me)) {
+	Slice slice = viewer.getViewSlice();
+	Viewable v = viewer.getViewable();
+	if (slice == null || v == null) break;
+	int ax = getPlayAxis(slice);
+	if (ax < 0) break;
+
+	double[] range = getRange(ax);
+	int dir;
+	double fps;
+	synchronized (this) {
+	  dir = direction;
+	  fps = frameRate;
+	}
+	double pos = advance(slice.axisPos(ax), dir, range);
+	if (Double.isNaN(pos)) break;
+	dir = getDirection();
+	slice.setAxisPos(ax, pos);
+
+	if (v instanceof FITSViewable && isPrefetching()) {
+	  FramePrefetcher pf = ((FITSViewable) v).getPrefetcher();
+	  prefetch(pf, slice, ax, dir, range, fps);
+	  pf.waitForFrame(slice, FRAME_TIMEOUT);
+	}
+
+	long now = System.nanoTime();
+	if (now < next) {
+	  long wait = next - now;
+	  Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+	} 
+	else if (now - next > 1000000) {
+	  // no catching up
+	  synchronized (this) { late++; }
+	  next = now;
+	}
+	if (! isCurrent(me)) break;
+
+	final Slice show = slice;
+	EventQueue.invokeAndWait(new Runnable() {
+	  public void run() { viewer.displaySlice(show); }
+	});
+	synchronized (this) { frames++; }
+	setChanged();
+	notifyObservers(slice);
+
+	next += (long) (1.0e9 / fps);
+      }
+    } 
+    catch (InterruptedException ex) { }
+    catch (InvocationTargetException ex) {
+      System.err.println("Trouble displaying plane: " + 
+			 ex.getTargetException());
+    }
+    finally {
+      // so that isPlaying() is false and start() works again, however
+      // play ended
+      synchronized (this) {
+	if (player == me) player = null;
+      }
+      setChanged();
+      notifyObservers(null);
+    }
+  }
+
+  private synchronized boolean isCurrent(Thread t) { 
+    return player == t && ! t.isInterrupted(); 
+  }
+
+  /**
+   * return the axis to play along for a slice, or -1 if there is none
+   */
+  protected int getPlayAxis(Slice slice) {
+    int ax = getAxis();
+    if (ax >= 0 && ax < slice.getNaxes()) return ax;
+    for(int i=0; i < slice.getNaxes(); i++) {
+      if (i != slice.getXaxis() && i != slice.getYaxis()) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * return the positions of the first and last planes along an axis
+   */
+  private double[] getRange(int ax) {
+    Volume vol = viewer.getViewable().getData().getVolume();
+    double first = vol.axisPos(ax);
+    return new double[] { first, first + vol.getTrueLength(ax) - 1 };
+  }
+
+  /**
+   * return the position of the plane after pos in the given direction,
+   * or NaN if play should stop.  A BOUNCE reverses the direction.
+   */
+  private double advance(double pos, int dir, double[] range) {
+    double next = pos + dir;
+    if (next >= range[0] && next <= range[1]) return next;
+    if (range[0] == range[1]) return Double.NaN;
+    switch (getMode()) {
+    case BOUNCE:
+      setDirection(-dir);
+      return pos - dir;
+    case ONCE:
+      return Double.NaN;
+    default:
+      return (dir > 0) ? range[0] : range[1];
+    }
+  }
+
+  /**
+   * ask the prefetcher for the planes following a slice, as many as 
+   * can be rendered in the time it takes to display them
+   */
+  private void prefetch(FramePrefetcher pf, Slice slice, int ax, int dir,
+			double[] range, double fps) 
+  {
+    double ms = pf.getRenderTime();
+    int n = (int) Math.ceil(ms * fps / 1000.0 / pf.getThreadCount()) + 2;
+
+    double bytes = Math.abs(slice.getLength(slice.getXaxis()) / 
+			    slice.getStep(slice.getXaxis()) *
+			    slice.getLength(slice.getYaxis()) / 
+			    slice.getStep(slice.getYaxis())) + 256;
+    int fit = (int) Math.min(Integer.MAX_VALUE, pf.getCacheSize() / bytes);
+    synchronized (this) {
+      n = Math.min(n, Math.min(maxLookahead, fit - 1));
+      lookahead = n = Math.max(0, n);
+    }
+
+    Slice[] want = new Slice[n + 1];
+    double pos = slice.axisPos(ax);
+    int d = dir;
+    int m = getMode();
+    int k;
+    for(k=0; k < want.length; k++) {
+      want[k] = (Slice) slice.clone();
+      want[k].setAxisPos(ax, pos);
+      double nxt = pos + d;
+      if (nxt < range[0] || nxt > range[1]) {
+	if (m == ONCE || range[0] == range[1]) { k++; break; }
+	if (m == BOUNCE) {
+	  d = -d;
+	  nxt = pos + d;
+	} 
+	else {
+	  nxt = (d > 0) ? range[0] : range[1];
+	}
+      }
+      pos = nxt;
+    }
+    if (k < want.length) {
+      Slice[] tmp = new Slice[k];
+      System.arraycopy(want, 0, tmp, 0, k);
+      want = tmp;
+    }
+    pf.prefetch(want, null);
+  }
+}
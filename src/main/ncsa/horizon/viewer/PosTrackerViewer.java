@@ -58,6 +58,15 @@ public class PosTrackerViewer extends Viewer implements Cloneable {
     protected ImageDisplayMap pixelMap=null;
     protected CoordinateSystem coordSys=null;
     protected Image view=null;
+
+    /** renders the views requested by displaySlice() */
+    protected RenderScheduler scheduler = 
+	new RenderScheduler(new RenderScheduler.Display() {
+	    public void displayView(Slice s, Image v) {
+		view = v;
+		display.displayImage(view);
+	    }
+	});
 //    protected Dimension sliceSize = new Dimension(0,0);
 
     protected ImageCanvas display=null;
@@ -299,14 +308,16 @@ public class PosTrackerViewer extends Viewer implements Cloneable {
 			    ": " );
 	}
 
-	// extract the slice as an Image
-	view = data.getView(slice, (ColorModel) null, true);
-
-	// now display the slice
-	display.displayImage(view);
-
+	// extract the slice as an Image, away from the event thread, and
+	// display it when it is ready
+	scheduler.request(data, slice, (ColorModel) null, true);
     }
 
+    /**
+     * return the scheduler that renders this viewer's views
+     */
+    public RenderScheduler getScheduler() { return scheduler; }
+
     /**
      * display a default slice of the current Viewable
      */
@@ -0,0 +1,413 @@
+/*
+ * NCSA Horizon Image Browser
+ * Project Horizon
+ * National Center for Supercomputing Applications
+ * University of Illinois at Urbana-Champaign
+ * 605 E. Springfield, Champaign IL 61820
+ * horizon@ncsa.uiuc.edu
+ *
+ * Copyright (C) 1998, Board of Trustees of the University of Illinois
+ *
+ * NCSA Horizon software, both binary and source (hereafter, Software) is
+ * copyrighted by The Board of Trustees of the University of Illinois
+ * (UI), and ownership remains with the UI.
+ *
+ * You should have received a full statement of copyright and
+ * conditions for use with this package; if not, a copy may be
+ * obtained from the above address.  Please see this statement
+ * for more details.
+ *
+ */
+
+package ncsa.horizon.viewer;
+
+import java.awt.EventQueue;
+import java.awt.Image;
+import java.awt.image.ColorModel;
+import java.util.Observable;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ncsa.horizon.util.Cancellation;
+import ncsa.horizon.util.Slice;
+import ncsa.horizon.util.WorkerPool;
+import ncsa.horizon.viewable.Viewable;
+
+/**
+ * an object that gets the views a viewer displays from its Viewable 
+ * away from the AWT event thread, so that a burst of requests (e.g. 
+ * from dragging a selection box) neither blocks the user interface 
+ * nor piles up renders of views that are already out of date. <p>
+ *
+ * Each display area of a viewer has its own scheduler, to which the 
+ * viewer passes each view it wants with request().  Only the newest 
+ * request is kept: one that has not started when another arrives is 
+ * dropped (coalesced), and a render in progress is cancelled through
+ * the Cancellation attached to its thread (which SliceRenderer polls 
+ * between rows).  The thread is not interrupted, as that would close
+ * the file of any MappedFITSData it happened to be mapping.
+ * So that a long drag still shows something, a render is not 
+ * cancelled once the oldest request not yet satisfied has waited 
+ * longer than the patience (see setPatience()).  A render starts no 
+ * sooner than the delay (see setDelay()) after the request, so that 
+ * requests arriving together make one render. <p>
+ *
+ * Renders run on a pool of a few daemon threads shared by all 
+ * schedulers; each scheduler runs one render at a time, so at most 
+ * one task per scheduler is ever queued.  A view is handed to the 
+ * scheduler's Display on the event thread.  After each view is 
+ * displayed, the scheduler's Observers are notified with the time in 
+ * milliseconds from its request (as a Long); this and the other 
+ * counts kept (see toString()) can be used to monitor the viewer's 
+ * responsiveness. <p>
+ *
+ * Note that the display of a view happens some time after request() 
+ * returns.
+ */
+public class RenderScheduler extends Observable {
+
+  /**
+   * a display area that shows the views rendered for it
+   */
+  public interface Display {
+
+    /**
+     * show a view.  This is called on the AWT event thread.
+     * @param slice  the slice requested
+     * @param view   the view rendered
+     */
+    public void displayView(Slice slice, Image view);
+  }
+
+  /**
+   * the default delay between a request and the start of its render,
+   * in milliseconds
+   */
+  public final static long DEFAULT_DELAY = 10;
+
+  /**
+   * the default longest time, in milliseconds, that requests will be 
+   * cancelled in favor of newer ones before a view is displayed
+   */
+  public final static long DEFAULT_PATIENCE = 50;
+
+  private static ScheduledThreadPoolExecutor pool = null;
+
+  private Display display;
+  private long delay = DEFAULT_DELAY, patience = DEFAULT_PATIENCE;
+
+  // the newest request not yet started, and the one being rendered;
+  // scheduled is true while a start is queued
+  private Request pending = null, running = null;
+  private boolean scheduled = false;
+
+  // when the oldest request not yet satisfied was made (0 if none)
+  private long waitingSince = 0;
+
+  // incremented by cancel(), so that views rendered earlier are not 
+  // displayed
+  private int generation = 0;
+
+  // statistics; times are in nanoseconds
+  private long requests, coalesced, cancelled, failed, rendered, shown;
+  private long renderTime, maxRenderTime, latency, maxLatency, lastLatency;
+
+  private static class Request {
+    Viewable viewable;
+    Slice slice;
+    ColorModel colorModel;
+    boolean makeDefault;
+    long time;
+    int generation;
+    Cancellation cancellation = new Cancellation();
+  }
+
+  /**
+   * create a scheduler for a display area
+   */
+  public RenderScheduler(Display display) {
+    this.display = display;
+  }
+
+  /**
+   * return the pool of threads that render views: at least 2 (so that
+   * one slow render does not hold up the other viewers), and up to 
+   * one per processor, at most 4
+   */
+  private synchronized static ScheduledThreadPoolExecutor getPool() {
+    if (pool == null) {
+      int n = Math.max(2, Math.min(4, WorkerPool.getParallelism()));
+      pool = new ScheduledThreadPoolExecutor(n, new ThreadFactory() {
+	int count = 0;
+	public synchronized Thread newThread(Runnable r) {
+	  Thread t = new Thread(r, "horizon renderer " + (++count));
+	  t.setDaemon(true);
+	  return t;
+	}
+      });
+    }
+    return pool;
+  }
+
+  /**
+   * set the delay between a request and the start of its render
+   * @param millis  the delay in milliseconds; 0 starts renders at once
+   */
+  public synchronized void setDelay(long millis) { 
+    delay = Math.max(0, millis); 
+  }
+
+  /**
+   * return the delay between a request and the start of its render
+   */
+  public synchronized long getDelay() { return delay; }
+
+  /**
+   * set how long, in milliseconds, the oldest request not yet 
+   * satisfied may wait before a render in progress is allowed to 
+   * finish even though a newer request has arrived
+   */
+  public synchronized void setPatience(long millis) { 
+    patience = Math.max(0, millis); 
+  }
+
+  /**
+   * return how long requests may wait while renders are cancelled
+   */
+  public synchronized long getPatience() { return patience; }
+
+  /**
+   * request a view, replacing any earlier request not yet displayed.
+   * The arguments are those of Viewable.getView(Slice, ColorModel, 
+   * boolean).
+   */
+  public synchronized void request(Viewable viewable, Slice slice, 
+				   ColorModel cm, boolean makeDefault) 
+  {
+    Request r = new Request();
+    r.viewable = viewable;
+    r.slice = (slice == null) ? null : (Slice) slice.clone();
+    r.colorModel = cm;
+    r.makeDefault = makeDefault;
+    r.time = System.nanoTime();
+    r.generation = generation;
+    requests++;
+
+    if (waitingSince == 0) waitingSince = r.time;
+    if (pending != null) coalesced++;
+    pending = r;
+
+    if (running != null) {
+      if (r.time - waitingSince < patience*1000000L) 
+	running.cancellation.cancel();
+    } 
+    else if (! scheduled) {
+      schedule(delay);
+    }
+  }
+
+  /**
+   * drop the request waiting to start, if any, cancel the render in 
+   * progress, and keep any view already rendered from being displayed
+   */
+  public synchronized void cancel() {
+    generation++;
+    if (pending != null) coalesced++;
+    pending = null;
+    if (running != null) running.cancellation.cancel();
+    waitingSince = 0;
+  }
+
+  /**
+   * return true if no request is waiting or being rendered.  (The 
+   * last view rendered may still be waiting to be displayed.)
+   */
+  public synchronized boolean isIdle() {
+    return (pending == null && running == null && ! scheduled);
+  }
+
+  /**
+   * wait until no request is waiting or being rendered
+   */
+  public synchronized void waitUntilIdle() throws InterruptedException {
+    while (! isIdle()) wait();
+  }
+
+  private void schedule(long millis) {
+    scheduled = true;
+    getPool().schedule(new Runnable() {
+      public void run() { renderNext(); }
+    }, millis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * render the pending request
+   */
+  private void renderNext() {
+    final Request r;
+    synchronized (this) {
+      scheduled = false;
+      r = pending;
+      pending = null;
+      if (r == null) {
+	notifyAll();
+	return;
+      }
+      running = r;
+    }
+
+    Image view = null;
+    Throwable error = null;
+    long start = System.nanoTime();
+    Cancellation.setCurrent(r.cancellation);
+    try {
+      view = r.viewable.getView(r.slice, r.colorModel, r.makeDefault);
+    } catch (Throwable ex) {
+      error = ex;
+    } finally {
+      Cancellation.setCurrent(null);
+      finish(r, view, System.nanoTime() - start);
+    }
+
+    if (error != null) 
+      System.err.println("Trouble rendering view: " + error);
+  }
+
+  /**
+   * record the end of a render, hand the view (if any) to the event 
+   * thread, and start the next render if one is pending
+   */
+  private synchronized void finish(final Request r, final Image view, 
+				   long time) 
+  {
+    running = null;
+
+    boolean wasCancelled = r.cancellation.isCancelled();
+    if (wasCancelled) {
+      cancelled++;
+    }
+    else if (view == null) {
+      failed++;
+    }
+    else {
+      rendered++;
+      renderTime += time;
+      maxRenderTime = Math.max(maxRenderTime, time);
+      EventQueue.invokeLater(new Runnable() {
+	public void run() { show(r, view); }
+      });
+    }
+
+    if (pending == null && (wasCancelled || view == null)) 
+      waitingSince = 0;
+    if (pending != null) {
+      long waited = (System.nanoTime() - pending.time) / 1000000L;
+      schedule(Math.max(0, delay - waited));
+    }
+    notifyAll();
+  }
+
+  /**
+   * display a rendered view (on the event thread)
+   */
+  private void show(Request r, Image view) {
+    synchronized (this) {
+      if (r.generation != generation) return;
+    }
+    display.displayView(r.slice, view);
+
+    long t;
+    synchronized (this) {
+      t = System.nanoTime() - r.time;
+      shown++;
+      latency += t;
+      maxLatency = Math.max(maxLatency, t);
+      lastLatency = t;
+      waitingSince = (running != null) ? running.time : 
+	             (pending != null) ? pending.time : 0;
+    }
+    setChanged();
+    notifyObservers(new Long(t / 1000000L));
+  }
+
+  /**
+   * return the number of views requested
+   */
+  public synchronized long getRequestCount() { return requests; }
+
+  /**
+   * return the number of requests dropped before their renders started
+   */
+  public synchronized long getCoalescedCount() { return coalesced; }
+
+  /**
+   * return the number of renders cancelled while in progress
+   */
+  public synchronized long getCancelledCount() { return cancelled; }
+
+  /**
+   * return the number of renders that produced a view
+   */
+  public synchronized long getRenderCount() { return rendered; }
+
+  /**
+   * return the number of views displayed
+   */
+  public synchronized long getDisplayedCount() { return shown; }
+
+  /**
+   * return the mean time taken by renders that produced a view, in 
+   * milliseconds
+   */
+  public synchronized double getMeanRenderTime() { 
+    return (rendered == 0) ? 0.0 : renderTime / 1.0e6 / rendered;
+  }
+
+  /**
+   * return the longest time taken by a render, in milliseconds
+   */
+  public synchronized double getMaxRenderTime() { 
+    return maxRenderTime / 1.0e6; 
+  }
+
+  /**
+   * return the mean time from the request of a view to its display, 
+   * in milliseconds
+   */
+  public synchronized double getMeanLatency() { 
+    return (shown == 0) ? 0.0 : latency / 1.0e6 / shown;
+  }
+
+  /**
+   * return the longest time from the request of a view to its display,
+   * in milliseconds
+   */
+  public synchronized double getMaxLatency() { return maxLatency / 1.0e6; }
+
+  /**
+   * return the time from the request of the last view displayed to its
+   * display, in milliseconds
+   */
+  public synchronized double getLastLatency() { return lastLatency / 1.0e6; }
+
+  /**
+   * reset the counts and times
+   */
+  public synchronized void resetStatistics() {
+    requests = coalesced = cancelled = failed = rendered = shown = 0;
+    renderTime = maxRenderTime = latency = maxLatency = lastLatency = 0;
+  }
+
+  /**
+   * return a summary of the counts and times
+   */
+  public synchronized String toString() {
+    return requests + " requests, " + coalesced + " coalesced, " + 
+      cancelled + " cancelled, " + failed + " failed, " + shown + 
+      " displayed; render " + (float) getMeanRenderTime() + " ms mean, " +
+      (float) getMaxRenderTime() + " max; latency " + 
+      (float) getMeanLatency() + " ms mean, " + 
+      (float) getMaxLatency() + " max";
+  }
+}
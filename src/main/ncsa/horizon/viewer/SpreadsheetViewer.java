@@ -330,11 +330,25 @@ class SelectionSpreadsheet extends Spreadsheet {
     setColnumOrder(cellOrder);
     data = new String[rect.height][rect.width];
     Object dataArray = dataSlice.getValue();
+    int code = dataType.code();
     for(int i=0; i < rect.height; i++) { // row
       int rowStart = i * rect.width;
       for(int j = 0; j < rect.width; j++) {
-	data[i][j] = dataType.
+	// format the primitive types without wrapping each value
+	switch(code) {
+	case 3: case 4: case 5:
+	  data[i][j] = Integer.toString((int) dataSlice.getDouble(j, i));
+	  break;
+	case 7:
+	  data[i][j] = Float.toString((float) dataSlice.getDouble(j, i));
+	  break;
+	case 8:
+	  data[i][j] = Double.toString(dataSlice.getDouble(j, i));
+	  break;
+	default:
+	  data[i][j] = dataType.
 	    wrappedValueFromArray(dataArray, rowStart + j).toString();
+	}
       }
     } 
   }